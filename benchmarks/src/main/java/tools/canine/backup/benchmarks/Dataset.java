@@ -0,0 +1,111 @@
+package tools.canine.backup.benchmarks;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * The synthetic data the benchmarks back up. Every set is generated from a
+ * fixed seed, so runs on different machines compress the same bytes.
+ */
+public enum Dataset {
+
+    /**
+     * Thousands of small text files spread over a tree of folders, like a
+     * web root or a config directory.
+     */
+    SMALL_FILES {
+        @Override
+        void generate(Path directory, int sizeMb, Random random) throws IOException {
+            long remaining = sizeMb * 1024L * 1024;
+            int count = 0;
+            while (remaining > 0) {
+                Path folder = directory.resolve("dir-" + (count / 100));
+                Files.createDirectories(folder);
+                int size = (int) Math.min(remaining, 512 + random.nextInt(7 * 1024));
+                try (OutputStream out = Files.newOutputStream(folder.resolve("file-" + count + ".txt"))) {
+                    writeText(out, size, random);
+                }
+                remaining -= size;
+                count++;
+            }
+        }
+    },
+
+    /**
+     * Two large log-like files that compress well.
+     */
+    HUGE_COMPRESSIBLE {
+        @Override
+        void generate(Path directory, int sizeMb, Random random) throws IOException {
+            for (int i = 0; i < 2; i++) {
+                try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(directory.resolve("huge-" + i + ".log")), 1 << 16)) {
+                    writeText(out, sizeMb * 512L * 1024, random);
+                }
+            }
+        }
+    },
+
+    /**
+     * Two large random files, like media or already compressed dumps.
+     */
+    HUGE_INCOMPRESSIBLE {
+        @Override
+        void generate(Path directory, int sizeMb, Random random) throws IOException {
+            byte[] chunk = new byte[1 << 16];
+            for (int i = 0; i < 2; i++) {
+                try (OutputStream out = Files.newOutputStream(directory.resolve("huge-" + i + ".bin"))) {
+                    for (long written = 0; written < sizeMb * 512L * 1024; written += chunk.length) {
+                        random.nextBytes(chunk);
+                        out.write(chunk);
+                    }
+                }
+            }
+        }
+    };
+
+    private static final String[] LEVELS = {"INFO", "INFO", "INFO", "DEBUG", "WARN", "ERROR"};
+
+    private static final String[] PATHS = {"/api/v1/items", "/api/v1/users", "/login", "/static/app.js", "/health"};
+
+    /**
+     * Write the files of this set.
+     *
+     * @param directory The empty folder to fill.
+     * @param sizeMb    Roughly how much data to write in total.
+     * @param random    The source of the data.
+     */
+    abstract void generate(Path directory, int sizeMb, Random random) throws IOException;
+
+    /**
+     * Create the set in a folder.
+     *
+     * @param directory The empty folder to fill.
+     * @param sizeMb    Roughly how much data to write in total.
+     */
+    public void create(Path directory, int sizeMb) throws IOException {
+        generate(directory, sizeMb, new Random(0x6361_6e69_6e65L + ordinal()));
+    }
+
+    /**
+     * Write log lines with varied fields, which deflate shrinks to around a
+     * fifth of their size.
+     */
+    private static void writeText(OutputStream out, long size, Random random) throws IOException {
+        long written = 0;
+        while (written < size) {
+            String line = String.format("2026-10-%02dT%02d:%02d:%02d.%03dZ %s [worker-%d] %s %d %dms id=%08x%n",
+                    1 + random.nextInt(28), random.nextInt(24), random.nextInt(60), random.nextInt(60), random.nextInt(1000),
+                    LEVELS[random.nextInt(LEVELS.length)], random.nextInt(16), PATHS[random.nextInt(PATHS.length)],
+                    random.nextBoolean() ? 200 : 404, random.nextInt(500), random.nextInt());
+            byte[] bytes = line.getBytes(StandardCharsets.US_ASCII);
+            int length = (int) Math.min(bytes.length, size - written);
+            out.write(bytes, 0, length);
+            written += length;
+        }
+    }
+}
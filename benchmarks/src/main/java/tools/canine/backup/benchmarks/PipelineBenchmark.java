@@ -0,0 +1,218 @@
+package tools.canine.backup.benchmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPKeyPair;
+import org.bouncycastle.openpgp.PGPKeyRingGenerator;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import tools.canine.backup.CanineBackup;
+import tools.canine.backup.config.BackupConfig;
+import tools.canine.backup.utils.FileUtil;
+import tools.canine.backup.utils.GPGUtil;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Throughput of each stage of a backup and of the whole pipeline, on the
+ * {@link Dataset} sets. S3 is left out: every benchmark runs the same calls
+ * {@code FileUtil.performBackup} makes and writes to a discarding stream or
+ * a temp file instead of uploading.
+ * <p>
+ * Besides ops/s, each benchmark reports a {@code megabytes} counter: how
+ * many MiB of input it got through per second. Add {@code -prof gc} for
+ * the allocation rate:
+ * <pre>
+ * java -jar target/benchmarks.jar -prof gc
+ * java -jar target/benchmarks.jar PipelineBenchmark.streamingBackup -p dataset=SMALL_FILES -p codec=zstd
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class PipelineBenchmark {
+
+    @Param({"SMALL_FILES", "HUGE_COMPRESSIBLE", "HUGE_INCOMPRESSIBLE"})
+    public Dataset dataset;
+
+    @Param({"deflate", "zstd", "store"})
+    public String codec;
+
+    /**
+     * Roughly how much data each set holds.
+     */
+    @Param({"128"})
+    public int sizeMb;
+
+    private Path workDirectory;
+    private Path source;
+    private Path largestFile;
+    private Path zip;
+    private double sourceMb;
+    private double largestFileMb;
+    private double zipMb;
+
+    /**
+     * MiB of input processed, reported by JMH as a rate next to ops/s.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Throughput {
+
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, GeneralSecurityException, PGPException {
+        workDirectory = Files.createTempDirectory("canine-bench");
+        source = Files.createDirectory(workDirectory.resolve("source"));
+        dataset.create(source, sizeMb);
+
+        BackupConfig config = new BackupConfig();
+        config.addBackupInfo("codec", codec);
+        config.addBackupInfo("publicKey", writePublicKey(workDirectory.resolve("public.pgp")).toString());
+        CanineBackup.setConfig(config);
+
+        long total = 0;
+        long largest = -1;
+        try (Stream<Path> files = Files.walk(source)) {
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                long size = Files.size(file);
+                total += size;
+                if (size > largest) {
+                    largest = size;
+                    largestFile = file;
+                }
+            }
+        }
+        sourceMb = toMb(total);
+        largestFileMb = toMb(largest);
+
+        zip = workDirectory.resolve("prebuilt.zip");
+        require(FileUtil.compressPath(source.toString(), zip.toString()), "compress the source");
+        zipMb = toMb(Files.size(zip));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(workDirectory.toFile());
+    }
+
+    /**
+     * Zip the source folder.
+     */
+    @Benchmark
+    public void compressPath(Throughput throughput) {
+        require(FileUtil.compressPath(source.toString(), OutputStream.nullOutputStream()), "compress the source");
+        throughput.megabytes += sourceMb;
+    }
+
+    /**
+     * Zip the largest file in the set, the path single-file backups take.
+     */
+    @Benchmark
+    public void compressFile(Throughput throughput) {
+        require(FileUtil.compressFile(largestFile.toString(), OutputStream.nullOutputStream()), "compress a file");
+        throughput.megabytes += largestFileMb;
+    }
+
+    /**
+     * Encrypt an already built zip, counted in zip MiB.
+     */
+    @Benchmark
+    public void encryptFile(Throughput throughput) {
+        require(GPGUtil.encryptFile(zip.toString(), workDirectory.resolve("encrypted.zip.gpg").toString(), false, true), "encrypt the zip");
+        throughput.megabytes += zipMb;
+    }
+
+    /**
+     * A staged backup: zip to disk, then encrypt to disk.
+     */
+    @Benchmark
+    public void stagedBackup(Throughput throughput) {
+        Path staged = workDirectory.resolve("staged.zip");
+        require(FileUtil.compressPath(source.toString(), staged.toString()), "compress the source");
+        require(GPGUtil.encryptFile(staged.toString(), workDirectory.resolve("staged.zip.gpg").toString(), false, true), "encrypt the zip");
+        throughput.megabytes += sourceMb;
+    }
+
+    /**
+     * A streaming backup: compression and encryption run together and
+     * nothing touches the disk.
+     */
+    @Benchmark
+    public void streamingBackup(Throughput throughput) {
+        require(FileUtil.streamArchive(source.toString(), "bench.zip", false, OutputStream.nullOutputStream()), "stream the archive");
+        throughput.megabytes += sourceMb;
+    }
+
+    /**
+     * Generate a throwaway RSA key and write its public key ring, so the
+     * benchmarks need no key files of their own.
+     */
+    private static Path writePublicKey(Path file) throws GeneralSecurityException, PGPException, IOException {
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA", BouncyCastleProvider.PROVIDER_NAME);
+        generator.initialize(3072);
+        PGPKeyPair keyPair = new JcaPGPKeyPair(PublicKeyAlgorithmTags.RSA_GENERAL, generator.generateKeyPair(), new Date());
+        PGPKeyRingGenerator ring = new PGPKeyRingGenerator(PGPSignature.POSITIVE_CERTIFICATION, keyPair, "benchmark",
+                new JcaPGPDigestCalculatorProviderBuilder().build().get(HashAlgorithmTags.SHA1), null, null,
+                new JcaPGPContentSignerBuilder(PublicKeyAlgorithmTags.RSA_GENERAL, HashAlgorithmTags.SHA256), null);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            ring.generatePublicKeyRing().encode(out);
+        }
+        return file;
+    }
+
+    private static double toMb(long bytes) {
+        return bytes / (1024.0 * 1024);
+    }
+
+    /**
+     * The pipeline reports failure with a boolean; turn it into an error so
+     * a broken run does not pass as a fast one.
+     */
+    private static void require(boolean worked, String what) {
+        if (!worked) {
+            throw new IllegalStateException("Unable to " + what);
+        }
+    }
+}
@@ -33,4 +33,4 @@ cp "$TARGET_JAR" "$ROOT_DIRECTORY"
 
 # ------------------------- Run Jar -----------------------------
 echo "Running $TARGET_JAR"
-java -jar canine-backup-0.1.jar
\ No newline at end of file
+java -jar canine-backup-0.1.jar "$@"
\ No newline at end of file
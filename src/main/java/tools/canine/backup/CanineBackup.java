@@ -5,30 +5,72 @@ import org.apache.logging.log4j.Logger;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import tools.canine.backup.config.BackupConfig;
+import tools.canine.backup.jobs.BackupJob;
+import tools.canine.backup.jobs.CronSchedule;
+import tools.canine.backup.jobs.Daemon;
+import tools.canine.backup.jobs.JobScheduler;
+import tools.canine.backup.jobs.JobType;
 import tools.canine.backup.types.Docker;
 import tools.canine.backup.types.MySQL;
+import tools.canine.backup.types.MySQLBinlog;
 import tools.canine.backup.types.StaticFiles;
+import tools.canine.backup.utils.AWSUtils;
 import tools.canine.backup.utils.FileUtil;
+import tools.canine.backup.utils.Metrics;
+import tools.canine.backup.utils.RepositoryUtil;
 import tools.canine.backup.utils.RequestUtil;
+import tools.canine.backup.utils.RestoreUtil;
+import tools.canine.backup.utils.RetentionUtil;
+import tools.canine.backup.utils.Throttle;
 
 import java.io.File;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 public class CanineBackup {
 
     private static Logger logger;
     private static BackupConfig config;
     private static String timeStamp;
+    private static final InheritableThreadLocal<String> RUN_TIME_STAMP = new InheritableThreadLocal<>();
+    private static final ThreadLocal<Long> RUN_STARTED = new ThreadLocal<>();
+    private static final ThreadLocal<Long> RUN_CPU_STARTED = new ThreadLocal<>();
+    private static final Set<String> RUNNING_JOBS = ConcurrentHashMap.newKeySet();
+    private static JobScheduler scheduler;
     private static final String USER_AGENT = "caninebackup (+https://github.com/caninetools/backup)";
 
     public static void main(String[] args) {
-        timeStamp = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss")
-                .withZone(ZoneId.systemDefault())
-                .format(Instant.now());
+        boolean restore = args.length > 0 && args[0].equalsIgnoreCase("restore");
+        boolean daemon = args.length > 0 && args[0].equalsIgnoreCase("daemon");
+        boolean verify = args.length > 0 && args[0].equalsIgnoreCase("verify");
+        boolean restoreMysql = args.length > 0 && args[0].equalsIgnoreCase("restore-mysql");
+        if (restore && args.length < 3) {
+            System.err.println("Usage: restore <key> <directory|-> [paths...]");
+            System.exit(2);
+        }
+        if (verify && args.length < 2) {
+            System.err.println("Usage: verify <key>...");
+            System.exit(2);
+        }
+        if (restoreMysql && args.length < 3) {
+            System.err.println("Usage: restore-mysql <database> <\"yyyy-MM-dd HH:mm:ss\"|latest> [target database]");
+            System.exit(2);
+        }
+        // restoring to stdout keeps it for the data, so logs go to stderr
+        if (restore && args[2].equals("-")) {
+            System.setOut(System.err);
+        }
+
+        timeStamp = newTimeStamp();
         System.setProperty("log4j.configurationFile", "log4j2config.xml");
         logger = LogManager.getLogger(CanineBackup.class);
         logger.info("Time is {}", timeStamp);
@@ -49,23 +91,100 @@ public class CanineBackup {
         JSONObject configJson = new JSONObject(configContents);
         setupConfig(configJson);
 
-        // backup the static files!
-        logger.info("Starting static files...");
+        if (restore) {
+            boolean restored = RestoreUtil.restore(args[1], args[2], Arrays.asList(args).subList(3, args.length));
+            AWSUtils.shutdown();
+            RequestUtil.flush();
+            System.exit(restored ? 0 : 1);
+        }
+
+        if (restoreMysql) {
+            boolean restored = MySQLBinlog.restore(args[1], args[2], args.length > 3 ? args[3] : args[1]);
+            AWSUtils.shutdown();
+            RequestUtil.flush();
+            System.exit(restored ? 0 : 1);
+        }
+
+        if (verify) {
+            boolean verified = true;
+            for (String key : Arrays.asList(args).subList(1, args.length)) {
+                verified &= AWSUtils.verifyObject(key);
+            }
+            AWSUtils.shutdown();
+            RequestUtil.flush();
+            System.exit(verified ? 0 : 1);
+        }
+
+        if (daemon) {
+            runDaemon(configJson);
+            return;
+        }
+
+        Map<BackupJob, Boolean> results = runJobs(buildJobs(configJson));
+        maintain();
+        AWSUtils.shutdown();
+        finishRun(results);
+        RequestUtil.flush();
+    }
+
+    /**
+     * Stay running and back up each target on its own schedule. The S3
+     * client, keys and thread pools are set up once and reused by every run.
+     * <p>
+     * A target's schedule is the first of {@code schedule.<name>},
+     * {@code <type>Schedule} (like {@code mysqlSchedule}) and
+     * {@code schedule} that is set, in cron syntax. Without any, targets run
+     * daily at 03:00. Targets and config are read once, so restart the
+     * daemon to pick up changes.
+     */
+    private static void runDaemon(JSONObject configJson) {
+        Map<String, CronSchedule> parsed = new ConcurrentHashMap<>();
+        Function<BackupJob, CronSchedule> schedules = job -> parsed.computeIfAbsent(getSchedule(job), CronSchedule::new);
+        List<BackupJob> jobs = buildJobs(configJson);
+        try {
+            for (BackupJob job : jobs) {
+                logger.info("Job '{}' runs at '{}'", job.name(), schedules.apply(job));
+            }
+        } catch (IllegalArgumentException exception) {
+            logger.error("Invalid schedule: {}", exception.getMessage());
+            System.exit(1);
+        }
+
+        Daemon daemon = new Daemon(jobs, schedules, batch -> {
+            RUN_TIME_STAMP.set(newTimeStamp());
+            return runJobs(batch);
+        }, CanineBackup::maintain, CanineBackup::finishRun);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            logger.info("Stopping daemon");
+            daemon.stop();
+            AWSUtils.shutdown();
+            RequestUtil.flush();
+        }, "daemon-shutdown"));
+        daemon.run();
+    }
+
+    private static String getSchedule(BackupJob job) {
+        String fallback = config.getBackupInfo(job.type().getConfigName() + "Schedule", config.getBackupInfo("schedule", "0 3 * * *"));
+        return config.getBackupInfo("schedule." + job.name(), fallback);
+    }
+
+    /**
+     * Build a job for everything we back up.
+     */
+    private static List<BackupJob> buildJobs(JSONObject configJson) {
+        List<BackupJob> jobs = new ArrayList<>();
         for (Map.Entry<String, String> entry : config.getStaticFiles().entrySet()) {
             String service = entry.getKey();
             String path = entry.getValue();
             StaticFiles staticFiles = new StaticFiles(service, path);
-            staticFiles.backup();
+            jobs.add(new BackupJob(service, JobType.STATIC_FILES, staticFiles::estimateSize, () -> Throttle.runAs(service, staticFiles::backup)));
         }
-        logger.info("Static files are done!");
 
-        // backup the containers!
-        logger.info("Starting docker stacks backup...");
         Docker docker = new Docker(configJson.getString("dockerStacks"));
-        docker.backup();
-        logger.info("Docker stacks are done!");
+        for (String stack : docker.getStacks()) {
+            jobs.add(new BackupJob(stack, JobType.DOCKER, () -> docker.estimateSize(stack), () -> Throttle.runAs(stack, () -> docker.backup(stack))));
+        }
 
-        logger.info("Starting MySQL databases backup...");
         JSONObject mysqlConfig = configJson.getJSONObject("mysql");
         JSONArray databasesArray = mysqlConfig.getJSONArray("databases");
         ArrayList<String> databases = new ArrayList<>();
@@ -73,11 +192,92 @@ public class CanineBackup {
             databases.add(databasesArray.getString(i));
         }
         MySQL mysql = new MySQL(databases);
-        mysql.backup();
-        logger.info("MySQL databases are done!");
+        for (String database : mysql.getDatabases()) {
+            jobs.add(new BackupJob(database, JobType.MYSQL, () -> mysql.estimateSize(database), () -> Throttle.runAs(database, () -> mysql.backup(database))));
+        }
+        return jobs;
+    }
+
+    /**
+     * Run jobs within the concurrency limits. Overlapping daemon batches
+     * share one scheduler, so the limits hold across all of them.
+     *
+     * @return Whether each job worked.
+     */
+    private static Map<BackupJob, Boolean> runJobs(List<BackupJob> jobs) {
+        RUN_STARTED.set(System.nanoTime());
+        RUN_CPU_STARTED.set(Metrics.getProcessCpuNanos());
+        jobs.forEach(job -> RUNNING_JOBS.add(job.name()));
+        return getScheduler().runAll(jobs);
+    }
+
+    private static synchronized JobScheduler getScheduler() {
+        if (scheduler == null) {
+            Map<JobType, Integer> typeLimits = new EnumMap<>(JobType.class);
+            for (JobType type : JobType.values()) {
+                int limit = config.getBackupInt(type.getConfigName() + "Concurrency", 0);
+                if (limit > 0) {
+                    typeLimits.put(type, limit);
+                }
+            }
+            scheduler = new JobScheduler(config.getBackupInt("concurrency", 4), typeLimits);
+        }
+        return scheduler;
+    }
+
+    /**
+     * Delete what is no longer needed once the backups are done.
+     */
+    private static void maintain() {
+        // old snapshots have to go before the chunks only they use
+        RetentionUtil.run();
+        RepositoryUtil.collectGarbage();
+        AWSUtils.abortOrphanedUploads();
+    }
+
+    /**
+     * Write the metrics and send the summary alert. The metrics are taken
+     * out as they are written, so a later batch does not log them again;
+     * those of jobs still running in another batch are left for it. The
+     * report files keep the last values of jobs this batch did not run.
+     */
+    private static void finishRun(Map<BackupJob, Boolean> results) {
+        List<String> failed = results.entrySet().stream()
+                .filter(entry -> !entry.getValue())
+                .map(entry -> entry.getKey().name())
+                .toList();
+        Map<String, Map<Metrics.Series, Double>> metrics;
+        // the run-wide values have no job, so another batch must not take them in between
+        synchronized (RUNNING_JOBS) {
+            results.keySet().forEach(job -> RUNNING_JOBS.remove(job.name()));
+            Long started = RUN_STARTED.get();
+            RUN_STARTED.remove();
+            if (started != null) {
+                Metrics.set("run_seconds", null, (System.nanoTime() - started) / 1e9);
+            }
+            // the whole process, so it includes any batch running alongside
+            Long cpuStarted = RUN_CPU_STARTED.get();
+            RUN_CPU_STARTED.remove();
+            long cpuNanos = Metrics.getProcessCpuNanos();
+            if (cpuStarted != null && cpuStarted >= 0 && cpuNanos >= 0) {
+                Metrics.set("run_cpu_seconds", null, (cpuNanos - cpuStarted) / 1e9);
+            }
+            results.forEach((job, worked) -> Metrics.set("job_success", job.name(), worked ? 1 : 0));
+            Metrics.set("jobs_failed", null, failed.size());
+            Metrics.set("last_run_timestamp_seconds", null, Instant.now().getEpochSecond());
+            metrics = Metrics.take(RUNNING_JOBS);
+            Metrics.log(metrics);
+            // written in here, so a batch finishing later never writes older values
+            Metrics.writeReports(Metrics.merge(metrics));
+        }
 
+        String runTimeStamp = getTimeStamp();
         logger.info("Everything is done!!");
-        RequestUtil.sendAlert("normal", "Backup Complete (" + timeStamp + ")", "All backups have been completed.", "default");
+        if (failed.isEmpty()) {
+            RequestUtil.sendAlert("normal", "Backup Complete (" + runTimeStamp + ")", "All " + results.size() + " backups have been completed.", "default");
+        } else {
+            RequestUtil.sendAlert("failure", "Backup Complete (" + runTimeStamp + ")", failed.size() + " of " + results.size() + " backups failed: " + String.join(", ", failed), "high");
+        }
     }
 
     private static void setupConfig(JSONObject json) {
@@ -89,10 +289,23 @@ public class CanineBackup {
             config.addPath(service, path);
         }
 
+        // add exclude patterns, this section is optional
+        JSONObject excludes = json.optJSONObject("excludes");
+        if (excludes != null) {
+            for (String service : excludes.keySet()) {
+                JSONArray patternsArray = excludes.getJSONArray(service);
+                ArrayList<String> patterns = new ArrayList<>();
+                for (int i = 0; i < patternsArray.length(); i++) {
+                    patterns.add(patternsArray.getString(i));
+                }
+                config.addExcludes(service, patterns);
+            }
+        }
+
         // add aws info
         JSONObject awsInfo = json.getJSONObject("aws");
         for (String key : awsInfo.keySet()) {
-            String value = awsInfo.getString(key);
+            String value = awsInfo.optString(key);
             config.addAwsInfo(key, value);
         }
 
@@ -110,14 +323,47 @@ public class CanineBackup {
             String value = mysqlInfo.getString(key);
             config.addMysqlInfo(key, value);
         }
+
+        // add backup pipeline info, this section is optional
+        JSONObject backupInfo = json.optJSONObject("backup");
+        if (backupInfo != null) {
+            for (String key : backupInfo.keySet()) {
+                String value = backupInfo.optString(key);
+                config.addBackupInfo(key, value);
+            }
+        }
     }
 
     public static BackupConfig getConfig() {
         return config;
     }
 
+    /**
+     * Replace the config, for running parts of the pipeline without
+     * {@link #main}, like the benchmarks do.
+     *
+     * @param backupConfig The config.
+     */
+    public static void setConfig(BackupConfig backupConfig) {
+        config = backupConfig;
+    }
+
+    /**
+     * Get the timestamp of the current run, used in archive names. In
+     * daemon mode every batch has its own, set on the thread that runs it
+     * and inherited by the threads it starts.
+     *
+     * @return The timestamp, like {@code 2025-01-31_03-00-00}.
+     */
     public static String getTimeStamp() {
-        return timeStamp;
+        String runTimeStamp = RUN_TIME_STAMP.get();
+        return runTimeStamp != null ? runTimeStamp : timeStamp;
+    }
+
+    private static String newTimeStamp() {
+        return DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss")
+                .withZone(ZoneId.systemDefault())
+                .format(Instant.now());
     }
 
     public static String getUserAgent() {
@@ -0,0 +1,164 @@
+package tools.canine.backup.archive;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The index of a seekable archive: where each encrypted block of the zip
+ * starts in the uploaded object, and which part of the zip each entry takes
+ * up. With it one file can be restored by fetching only the blocks it spans.
+ * <p>
+ * Stored as {@code {"key":..,"blocks":[[offset,length,objectOffset,objectLength]],
+ * "entries":[[name,offset,end]]}}, where offsets without a prefix are
+ * positions in the zip and {@code key} is what decrypts every block.
+ */
+public class ArchiveIndex {
+
+    private final String key;
+    private final List<Block> blocks = new ArrayList<>();
+    private final List<Entry> entries = new ArrayList<>();
+
+    /**
+     * Create an empty index.
+     *
+     * @param key The passphrase the blocks are encrypted with.
+     */
+    public ArchiveIndex(String key) {
+        this.key = key;
+    }
+
+    /**
+     * Read an index.
+     *
+     * @param reader Where to read it from. It is not closed.
+     * @return The index.
+     */
+    public static ArchiveIndex load(Reader reader) throws IOException {
+        try {
+            JSONObject json = new JSONObject(new JSONTokener(reader));
+            ArchiveIndex index = new ArchiveIndex(json.getString("key"));
+            JSONArray blocks = json.getJSONArray("blocks");
+            for (int i = 0; i < blocks.length(); i++) {
+                JSONArray block = blocks.getJSONArray(i);
+                index.addBlock(new Block(block.getLong(0), block.getInt(1), block.getLong(2), block.getInt(3)));
+            }
+            JSONArray entries = json.getJSONArray("entries");
+            for (int i = 0; i < entries.length(); i++) {
+                JSONArray entry = entries.getJSONArray(i);
+                index.addEntry(new Entry(entry.getString(0), entry.getLong(1), entry.getLong(2)));
+            }
+            return index;
+        } catch (RuntimeException exception) {
+            throw new IOException("Archive index is not valid", exception);
+        }
+    }
+
+    /**
+     * Write the index as JSON.
+     *
+     * @param writer Where to write it. It is not closed.
+     */
+    public void write(Writer writer) throws IOException {
+        writer.write("{\"key\":" + JSONObject.quote(key) + ",\"blocks\":[");
+        for (int i = 0; i < blocks.size(); i++) {
+            Block block = blocks.get(i);
+            writer.write((i > 0 ? ",[" : "[") + block.offset() + "," + block.length() + "," + block.objectOffset() + "," + block.objectLength() + "]");
+        }
+        writer.write("],\"entries\":[");
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            writer.write((i > 0 ? ",[" : "[") + JSONObject.quote(entry.name()) + "," + entry.offset() + "," + entry.end() + "]");
+        }
+        writer.write("]}");
+    }
+
+    /**
+     * Add a block. Blocks are added in order.
+     *
+     * @param block The block.
+     */
+    public synchronized void addBlock(Block block) {
+        blocks.add(block);
+    }
+
+    /**
+     * Add an entry. Entries are added in the order they are in the zip.
+     *
+     * @param entry The entry.
+     */
+    public synchronized void addEntry(Entry entry) {
+        entries.add(entry);
+    }
+
+    /**
+     * Get the passphrase the blocks are encrypted with.
+     *
+     * @return The passphrase.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Get every block.
+     *
+     * @return The blocks, in order.
+     */
+    public List<Block> getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * Get every entry.
+     *
+     * @return The entries, in the order they are in the zip.
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Get the blocks that hold part of a range of the zip.
+     *
+     * @param start Where the range starts in the zip.
+     * @param end   Where the range ends in the zip, exclusive.
+     * @return The blocks, in order.
+     */
+    public List<Block> getBlocks(long start, long end) {
+        List<Block> covering = new ArrayList<>();
+        for (Block block : blocks) {
+            if (block.offset() < end && block.offset() + block.length() > start) {
+                covering.add(block);
+            }
+        }
+        return covering;
+    }
+
+    /**
+     * One encrypted block.
+     *
+     * @param offset       Where its plain data starts in the zip.
+     * @param length       How much of the zip it holds.
+     * @param objectOffset Where it starts in the uploaded object.
+     * @param objectLength How long it is once encrypted.
+     */
+    public record Block(long offset, int length, long objectOffset, int objectLength) {
+    }
+
+    /**
+     * One zip entry, from its local header to the end of its data.
+     *
+     * @param name   The path inside the zip.
+     * @param offset Where its local header starts in the zip.
+     * @param end    Where it ends in the zip, exclusive.
+     */
+    public record Entry(String name, long offset, long end) {
+    }
+}
@@ -0,0 +1,58 @@
+package tools.canine.backup.archive;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Reads an archive front to back, entry by entry, as it arrives.
+ * {@link ZipStreamReader} reads zips and {@link TarStreamReader} tars.
+ */
+public interface ArchiveReader extends Closeable {
+
+    /**
+     * Move to the next entry, skipping whatever is left of the current one.
+     *
+     * @return The entry. NULL at the end of the archive, or if the stream
+     * ends where an entry would start, as it does when reading part of one.
+     */
+    Entry next() throws IOException;
+
+    /**
+     * Read the data of the current entry.
+     *
+     * @param out Where to write the data. It is not closed.
+     * @return How many bytes were written.
+     * @throws IOException If the data is damaged or cut short.
+     */
+    long transferTo(OutputStream out) throws IOException;
+
+    /**
+     * An entry of an archive.
+     */
+    interface Entry {
+
+        /**
+         * Get the path inside the archive.
+         *
+         * @return The path, with forward slashes. Directories end in one.
+         */
+        String name();
+
+        /**
+         * Get when the entry was last modified.
+         *
+         * @return The time, in epoch millis.
+         */
+        long modified();
+
+        /**
+         * Check if this is a directory entry.
+         *
+         * @return true if the name ends with a slash.
+         */
+        default boolean isDirectory() {
+            return name().endsWith("/");
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package tools.canine.backup.archive;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+/**
+ * Writes files and streams into an archive, in the order they are added.
+ * {@link ParallelZipWriter} compresses into a zip; {@link TarWriter} copies
+ * into an uncompressed tar.
+ */
+public interface ArchiveWriter extends Closeable {
+
+    /**
+     * Add a file to the archive.
+     *
+     * @param file     The file to read.
+     * @param name     The path inside the archive.
+     * @param size     The size of the file.
+     * @param modified When the file was last modified, in epoch millis.
+     */
+    void addFile(Path file, String name, long size, long modified) throws IOException;
+
+    /**
+     * Add an entry read from a stream, such as a dump coming out of another
+     * process. Returns once the entry is fully read.
+     *
+     * @param name     The path inside the archive.
+     * @param input    Where to read the data. It is not closed.
+     * @param maxSize  The most bytes to take from the stream for this entry.
+     * @param modified The modification time to record, in epoch millis.
+     * @return How many bytes were read. Less than maxSize if the stream ended,
+     * or if the writer keeps its entries smaller.
+     */
+    long addStream(String name, InputStream input, long maxSize, long modified) throws IOException;
+
+    /**
+     * Add an entry made from bytes in memory, like a generated listing.
+     *
+     * @param name     The path inside the archive.
+     * @param data     The contents.
+     * @param modified The modification time to record, in epoch millis.
+     */
+    void addData(String name, byte[] data, long modified) throws IOException;
+
+    /**
+     * Be told about every file that made it into the archive in full.
+     *
+     * @param listener The listener.
+     */
+    void setEntryListener(EntryListener listener);
+
+    /**
+     * Slow down reading files and streams, for rate limits.
+     *
+     * @param throttle Asked for every read before it happens.
+     */
+    void setReadThrottle(ReadThrottle throttle);
+
+    /**
+     * Gets told about files as they are written.
+     */
+    interface EntryListener {
+
+        /**
+         * A file was written to the archive.
+         *
+         * @param name     The path inside the archive.
+         * @param size     The size that was passed to {@link #addFile}.
+         * @param modified The modification time that was passed to {@link #addFile}.
+         * @param crc      The CRC-32 of what was stored, 0 if the writer does not work it out.
+         */
+        void written(String name, long size, long modified, long crc);
+    }
+
+    /**
+     * Holds reads back to a rate.
+     */
+    interface ReadThrottle {
+
+        /**
+         * Wait until some bytes may be read.
+         *
+         * @param bytes How many bytes are about to be read.
+         */
+        void acquire(long bytes) throws IOException;
+    }
+}
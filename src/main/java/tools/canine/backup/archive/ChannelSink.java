@@ -0,0 +1,74 @@
+package tools.canine.backup.archive;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An output stream that can take bytes without them passing through the
+ * Java heap, because a file sits under it. {@link TarWriter} writes through
+ * this when it can, so file contents are copied by the kernel with
+ * {@link FileChannel#transferTo}.
+ */
+public interface ChannelSink {
+
+    /**
+     * Check whether bytes can go straight to a channel.
+     *
+     * @return true if {@link #write(ByteBuffer)} and {@link #transferFrom} skip the heap.
+     */
+    boolean hasChannel();
+
+    /**
+     * Write everything left in a buffer.
+     *
+     * @param buffer The bytes, best a direct buffer.
+     */
+    void write(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Copy part of a file into this stream.
+     *
+     * @param source   The file.
+     * @param position Where to start in it.
+     * @param count    How many bytes to copy.
+     * @return How many bytes were copied, less than count only if the file ended first.
+     */
+    long transferFrom(FileChannel source, long position, long count) throws IOException;
+
+    /**
+     * Write to a file channel, at its current position.
+     *
+     * @param target The channel. It is not closed.
+     * @return The sink.
+     */
+    static ChannelSink of(FileChannel target) {
+        return new ChannelSink() {
+            @Override
+            public boolean hasChannel() {
+                return true;
+            }
+
+            @Override
+            public void write(ByteBuffer buffer) throws IOException {
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+            }
+
+            @Override
+            public long transferFrom(FileChannel source, long position, long count) throws IOException {
+                long copied = 0;
+                while (copied < count) {
+                    // one call can copy less than asked, even before the end of the file
+                    long transferred = source.transferTo(position + copied, count - copied, target);
+                    if (transferred <= 0) {
+                        break;
+                    }
+                    copied += transferred;
+                }
+                return copied;
+            }
+        };
+    }
+}
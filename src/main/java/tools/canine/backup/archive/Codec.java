@@ -0,0 +1,67 @@
+package tools.canine.backup.archive;
+
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+/**
+ * How the data of a zip entry is compressed.
+ */
+public enum Codec {
+
+    /**
+     * Kept as is. Used for data that does not compress.
+     */
+    STORE(ZipStreamWriter.METHOD_STORED, 0),
+
+    /**
+     * Plain deflate, which every zip reader understands.
+     */
+    DEFLATE(ZipStreamWriter.METHOD_DEFLATED, Deflater.DEFAULT_COMPRESSION),
+
+    /**
+     * Zstandard. Much faster than deflate for a better ratio, but needs a
+     * reader that knows zip method 93, like libarchive or 7-Zip.
+     */
+    ZSTD(ZipStreamWriter.METHOD_ZSTD, 3);
+
+    private final int method;
+    private final int defaultLevel;
+
+    Codec(int method, int defaultLevel) {
+        this.method = method;
+        this.defaultLevel = defaultLevel;
+    }
+
+    /**
+     * Get the codec for a name from the config.
+     *
+     * @param name The name, like {@code zstd}. {@code none} means store.
+     * @return The codec.
+     * @throws IllegalArgumentException If no codec has that name.
+     */
+    public static Codec fromName(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        if (lower.equals("none")) {
+            return STORE;
+        }
+        return valueOf(lower.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Get the zip compression method.
+     *
+     * @return The method number stored in the headers.
+     */
+    public int getMethod() {
+        return method;
+    }
+
+    /**
+     * Get the level used when none is configured.
+     *
+     * @return The level.
+     */
+    public int getDefaultLevel() {
+        return defaultLevel;
+    }
+}
@@ -0,0 +1,67 @@
+package tools.canine.backup.archive;
+
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Guesses whether data is worth compressing, so files that are already
+ * compressed are stored instead of being run through the codec for nothing.
+ */
+public class Compressibility {
+
+    /**
+     * Formats that are compressed already.
+     */
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            "7z", "aac", "apk", "avif", "br", "bz2", "deb", "docx", "flac", "gif", "gpg", "gz", "heic",
+            "jar", "jpeg", "jpg", "lz4", "lzma", "m4a", "m4v", "mkv", "mov", "mp3", "mp4", "odt", "ogg",
+            "opus", "pgp", "png", "pptx", "rar", "rpm", "tgz", "txz", "webm", "webp", "whl", "woff2",
+            "xlsx", "xz", "zip", "zst");
+
+    /**
+     * Above this many bits per byte even a perfect order-0 coder saves under
+     * 3%, and deflate or zstd will not do much better on such data.
+     */
+    private static final double ENTROPY_LIMIT = 7.8;
+
+    /**
+     * Check the file name against formats that are compressed already.
+     *
+     * @param name The file name or path.
+     * @return true if the extension is a known compressed format.
+     */
+    public static boolean hasCompressedExtension(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot < 0 || dot < name.lastIndexOf('/')) {
+            return false;
+        }
+        return COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Check whether a sample of data looks random, from the Shannon entropy
+     * of its bytes.
+     *
+     * @param sample The sample.
+     * @param length How many bytes of the sample to look at.
+     * @return true if compressing it would not save anything worth the time.
+     */
+    public static boolean looksIncompressible(byte[] sample, int length) {
+        if (length < 4096) {
+            // too little to judge, and small data is cheap to try anyway
+            return false;
+        }
+        int[] counts = new int[256];
+        for (int i = 0; i < length; i++) {
+            counts[sample[i] & 0xFF]++;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / length;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2) > ENTROPY_LIMIT;
+    }
+}
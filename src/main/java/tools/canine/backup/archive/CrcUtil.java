@@ -0,0 +1,99 @@
+package tools.canine.backup.archive;
+
+/**
+ * CRC helpers for checksums computed in pieces on different threads.
+ */
+public class CrcUtil {
+
+    private static final int CRC32_POLYNOMIAL = 0xEDB88320;
+
+    private static final int CRC32C_POLYNOMIAL = 0x82F63B78;
+
+    /**
+     * Combine two CRC-32 values into the CRC-32 of both pieces of data back to
+     * back. This is zlib's crc32_combine, so blocks can be checksummed in
+     * parallel and joined afterwards.
+     *
+     * @param crc1   The CRC of the first piece.
+     * @param crc2   The CRC of the second piece.
+     * @param length The length of the second piece.
+     * @return The CRC of the first piece followed by the second.
+     */
+    public static long combine(long crc1, long crc2, long length) {
+        return combine(crc1, crc2, length, CRC32_POLYNOMIAL);
+    }
+
+    /**
+     * Combine two CRC-32C values, like {@link #combine(long, long, long)}.
+     * S3 uses CRC-32C for its full object checksums.
+     *
+     * @param crc1   The CRC-32C of the first piece.
+     * @param crc2   The CRC-32C of the second piece.
+     * @param length The length of the second piece.
+     * @return The CRC-32C of the first piece followed by the second.
+     */
+    public static long combineCrc32c(long crc1, long crc2, long length) {
+        return combine(crc1, crc2, length, CRC32C_POLYNOMIAL);
+    }
+
+    static long combine(long crc1, long crc2, long length, int polynomial) {
+        if (length <= 0) {
+            return crc1;
+        }
+
+        int[] even = new int[32];
+        int[] odd = new int[32];
+
+        // operator for one zero bit
+        odd[0] = polynomial;
+        int row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+
+        // operator for two zero bits, then four
+        square(even, odd);
+        square(odd, even);
+
+        int crc = (int) crc1;
+        do {
+            // apply zeros operator for this bit of length
+            square(even, odd);
+            if ((length & 1) != 0) {
+                crc = times(even, crc);
+            }
+            length >>>= 1;
+            if (length == 0) {
+                break;
+            }
+
+            square(odd, even);
+            if ((length & 1) != 0) {
+                crc = times(odd, crc);
+            }
+            length >>>= 1;
+        } while (length != 0);
+
+        return (crc ^ (int) crc2) & 0xFFFFFFFFL;
+    }
+
+    private static int times(int[] matrix, int vector) {
+        int sum = 0;
+        int index = 0;
+        while (vector != 0) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[index];
+            }
+            vector >>>= 1;
+            index++;
+        }
+        return sum;
+    }
+
+    private static void square(int[] square, int[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+}
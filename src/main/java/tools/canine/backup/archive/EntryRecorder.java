@@ -0,0 +1,20 @@
+package tools.canine.backup.archive;
+
+/**
+ * An output stream that wants to know where each zip entry written to it
+ * lands. {@link ZipStreamWriter} reports every finished entry to an output
+ * that implements this, which is how a seekable archive builds its index
+ * and how the metrics learn how much data went into a zip.
+ */
+public interface EntryRecorder {
+
+    /**
+     * Note a finished entry.
+     *
+     * @param name   The path inside the zip.
+     * @param offset Where its local header starts, counted from the start of the zip.
+     * @param end    Where its data, or data descriptor, ends.
+     * @param size   Its uncompressed size.
+     */
+    void recordEntry(String name, long offset, long end, long size);
+}
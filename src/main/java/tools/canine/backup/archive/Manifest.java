@@ -0,0 +1,171 @@
+package tools.canine.backup.archive;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What a directory looked like when it was last backed up: the size,
+ * modification time and CRC-32 of every file. Incremental backups compare
+ * against it to find the files that need archiving again.
+ * <p>
+ * Stored as {@code {"runsSinceFull":n,"files":{"path":[size,modified,crc]}}}.
+ */
+public class Manifest {
+
+    private final Map<String, FileState> files = new HashMap<>();
+    private int runsSinceFull;
+
+    /**
+     * Read a manifest. A missing file gives an empty manifest.
+     *
+     * @param file The manifest file.
+     * @return The manifest.
+     */
+    public static Manifest load(Path file) throws IOException {
+        Manifest manifest = new Manifest();
+        if (!Files.exists(file)) {
+            return manifest;
+        }
+
+        JSONObject json;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            json = new JSONObject(new JSONTokener(reader));
+        } catch (RuntimeException exception) {
+            throw new IOException("Manifest " + file + " is not valid", exception);
+        }
+        manifest.runsSinceFull = json.optInt("runsSinceFull", 0);
+        JSONObject files = json.optJSONObject("files");
+        if (files != null) {
+            for (String path : files.keySet()) {
+                JSONArray state = files.getJSONArray(path);
+                manifest.put(path, state.getLong(0), state.getLong(1), state.getLong(2));
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Write the manifest. It goes to a temporary file first and is moved into
+     * place, so a crash never leaves half a manifest behind.
+     *
+     * @param file The manifest file.
+     */
+    public void save(Path file) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                // written by hand, building a JSONObject for millions of files is wasteful
+                writer.write("{\"runsSinceFull\":" + runsSinceFull + ",\"files\":{");
+                boolean first = true;
+                for (Map.Entry<String, FileState> entry : files.entrySet()) {
+                    if (!first) {
+                        writer.write(',');
+                    }
+                    first = false;
+                    FileState state = entry.getValue();
+                    writer.write(JSONObject.quote(entry.getKey()));
+                    writer.write(":[" + state.size() + "," + state.modified() + "," + state.crc() + "]");
+                }
+                writer.write("}}");
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Check if a file looks the same as when the manifest was made.
+     *
+     * @param path     The path inside the archive.
+     * @param size     The current size.
+     * @param modified The current modification time, in epoch millis.
+     * @return true if size and modification time both match.
+     */
+    public boolean isUnchanged(String path, long size, long modified) {
+        FileState state = files.get(path);
+        return state != null && state.size() == size && state.modified() == modified;
+    }
+
+    /**
+     * Get what is known about a file.
+     *
+     * @param path The path inside the archive.
+     * @return The state. NULL if the file is not in the manifest.
+     */
+    public FileState get(String path) {
+        return files.get(path);
+    }
+
+    /**
+     * Record a file.
+     *
+     * @param path     The path inside the archive.
+     * @param size     The size.
+     * @param modified The modification time, in epoch millis.
+     * @param crc      The CRC-32 of the contents.
+     */
+    public void put(String path, long size, long modified, long crc) {
+        files.put(path, new FileState(size, modified, crc));
+    }
+
+    /**
+     * Record a file.
+     *
+     * @param path  The path inside the archive.
+     * @param state The state.
+     */
+    public void put(String path, FileState state) {
+        files.put(path, state);
+    }
+
+    /**
+     * Get every path in the manifest.
+     *
+     * @return The paths.
+     */
+    public Set<String> getPaths() {
+        return files.keySet();
+    }
+
+    /**
+     * Check if there is anything to compare against.
+     *
+     * @return true if no files are recorded.
+     */
+    public boolean isEmpty() {
+        return files.isEmpty();
+    }
+
+    public int getRunsSinceFull() {
+        return runsSinceFull;
+    }
+
+    public void setRunsSinceFull(int runsSinceFull) {
+        this.runsSinceFull = runsSinceFull;
+    }
+
+    /**
+     * The recorded state of one file.
+     *
+     * @param size     The size.
+     * @param modified The modification time, in epoch millis.
+     * @param crc      The CRC-32 of the contents.
+     */
+    public record FileState(long size, long modified, long crc) {
+    }
+}
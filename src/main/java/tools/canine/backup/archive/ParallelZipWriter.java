@@ -0,0 +1,625 @@
+package tools.canine.backup.archive;
+
+import com.github.luben.zstd.Zstd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Builds a zip by compressing on a worker pool and writing in order on the
+ * calling thread, like a scatter/gather zip creator.
+ * <p>
+ * Every file is cut into fixed-size blocks which are deflated independently.
+ * Each block is primed with the 32 KiB before it as a preset dictionary and
+ * all but the last end with a sync flush, so the blocks join into one normal
+ * deflate stream, the same trick pigz uses. The CRCs of the blocks are
+ * combined, so nothing has to be read twice.
+ * <p>
+ * With zstd every block is its own frame instead; frames read back to back
+ * decode as one stream, so no dictionary is needed. Files that are already
+ * compressed, by their extension or by the entropy of their first bytes, are
+ * not compressed again, and neither is any single-block entry that did not
+ * shrink.
+ * <p>
+ * At most {@code window} blocks are queued or compressing at once, which
+ * bounds memory no matter how many or how large the files are.
+ * <p>
+ * With {@link #setPrefetch}, blocks are read ahead on virtual threads and the
+ * pool only compresses, so many files are being opened and read at once.
+ * That hides the latency of each open on network mounts, where the pool's
+ * few threads would otherwise spend most of their time waiting.
+ */
+public class ParallelZipWriter implements ArchiveWriter {
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    /**
+     * How much of a file is looked at to decide if it is worth compressing.
+     */
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    /**
+     * Stream entries do not know how many blocks they have until the end.
+     */
+    private static final int UNKNOWN_BLOCK_COUNT = -1;
+
+    /**
+     * A final, empty deflate block. Used to close off a file that could not
+     * be read to the end.
+     */
+    private static final byte[] EMPTY_FINAL_BLOCK = {0x03, 0x00};
+
+    private final ZipStreamWriter zip;
+    private final ExecutorService pool;
+    private final Codec codec;
+    private final int level;
+    private final int blockSize;
+    private final int window;
+    private final BiConsumer<Path, IOException> onError;
+    private final Deque<PendingEntry> pending = new ArrayDeque<>();
+    private int pendingBlocks;
+    private EntryListener entryListener;
+    private volatile ReadThrottle readThrottle;
+    private Semaphore prefetchReads;
+    private Semaphore prefetchMemory;
+    private int prefetchMemoryLimit;
+
+    /**
+     * Create a writer.
+     *
+     * @param out       Where to write the zip. It is closed by {@link #close()}.
+     * @param pool      The threads that compress blocks.
+     * @param codec     How to compress entries that are worth compressing.
+     * @param level     The level for the codec.
+     * @param blockSize How many bytes of a file go in each block.
+     * @param window    How many blocks may be queued or compressing at once.
+     * @param onError   Told about files that could not be read. The archive
+     *                  carries on without them.
+     */
+    public ParallelZipWriter(OutputStream out, ExecutorService pool, Codec codec, int level, int blockSize, int window, BiConsumer<Path, IOException> onError) {
+        this.zip = new ZipStreamWriter(out);
+        this.pool = pool;
+        this.codec = codec;
+        this.level = level;
+        this.blockSize = Math.max(blockSize, DICTIONARY_SIZE);
+        this.window = Math.max(window, 1);
+        this.onError = onError;
+    }
+
+    /**
+     * Queue a file for the archive. Its blocks start compressing right away;
+     * this only blocks when the window is full.
+     *
+     * @param file     The file to read.
+     * @param name     The path inside the zip.
+     * @param size     The size of the file.
+     * @param modified When the file was last modified, in epoch millis.
+     */
+    @Override
+    public void addFile(Path file, String name, long size, long modified) throws IOException {
+        int blockCount = (int) Math.max(1, (size + blockSize - 1) / blockSize);
+        Codec entryCodec = chooseCodec(file, name, blockCount);
+        PendingEntry entry = new PendingEntry(file, name, modified, size, blockCount, entryCodec);
+        pending.add(entry);
+
+        for (int index = 0; index < blockCount; index++) {
+            while (pendingBlocks >= window && !entry.truncated) {
+                drainOne();
+            }
+            if (entry.truncated) {
+                break;
+            }
+            long offset = (long) index * blockSize;
+            int length = (int) Math.min(blockSize, Math.max(0, size - offset));
+            boolean last = index == blockCount - 1;
+            boolean single = blockCount == 1;
+            entry.blocks.add(prefetchReads == null
+                    ? pool.submit(() -> compressBlock(entryCodec, file, offset, length, last, single))
+                    : prefetchBlock(entryCodec, file, offset, length, last, single));
+            pendingBlocks++;
+        }
+    }
+
+    /**
+     * Add an entry read from a stream, such as a dump coming out of another
+     * process. The stream is read on the calling thread and its blocks are
+     * compressed on the pool, so this returns once the entry is fully read.
+     *
+     * @param name     The path inside the zip.
+     * @param input    Where to read the data. It is not closed.
+     * @param maxSize  The most bytes to take from the stream for this entry.
+     *                 Keeping it below 4 GiB avoids ZIP64 descriptors.
+     * @param modified The modification time to record, in epoch millis.
+     * @return How many bytes were read. Less than maxSize if the stream ended.
+     */
+    @Override
+    public long addStream(String name, InputStream input, long maxSize, long modified) throws IOException {
+        // read one block ahead, so the last block is known before it is compressed
+        int wanted = (int) Math.min(blockSize, maxSize);
+        if (readThrottle != null) {
+            readThrottle.acquire(wanted);
+        }
+        byte[] current = input.readNBytes(wanted);
+        long total = current.length;
+
+        Codec entryCodec = codec;
+        if (Compressibility.hasCompressedExtension(name) || Compressibility.looksIncompressible(current, Math.min(current.length, SAMPLE_SIZE))) {
+            entryCodec = Codec.STORE;
+        }
+        PendingEntry entry = new PendingEntry(null, name, modified, maxSize, UNKNOWN_BLOCK_COUNT, entryCodec);
+        pending.add(entry);
+        byte[] dictionary = null;
+        int blockCount = 0;
+        while (true) {
+            boolean last = current.length < wanted || total == maxSize;
+            byte[] next = null;
+            if (!last) {
+                wanted = (int) Math.min(blockSize, maxSize - total);
+                if (readThrottle != null) {
+                    readThrottle.acquire(wanted);
+                }
+                next = input.readNBytes(wanted);
+                total += next.length;
+                last = next.length == 0;
+            }
+
+            while (pendingBlocks >= window) {
+                drainOne();
+            }
+            byte[] data = current;
+            byte[] blockDictionary = dictionary;
+            boolean finalBlock = last;
+            boolean single = last && blockCount == 0;
+            Codec blockCodec = entryCodec;
+            entry.blocks.add(pool.submit(() -> {
+                Block block = compress(blockCodec, blockDictionary, data, data.length, finalBlock, single);
+                block.dictionary = blockDictionary;
+                return block;
+            }));
+            pendingBlocks++;
+            blockCount++;
+            if (last) {
+                break;
+            }
+            if (entryCodec == Codec.DEFLATE) {
+                dictionary = Arrays.copyOfRange(current, Math.max(0, current.length - DICTIONARY_SIZE), current.length);
+            }
+            current = next;
+        }
+        entry.blockCount = blockCount;
+        return total;
+    }
+
+    /**
+     * Queue an entry made from bytes in memory, like a generated listing.
+     *
+     * @param name     The path inside the zip.
+     * @param data     The contents.
+     * @param modified The modification time to record, in epoch millis.
+     */
+    @Override
+    public void addData(String name, byte[] data, long modified) throws IOException {
+        while (pendingBlocks >= window) {
+            drainOne();
+        }
+        Codec entryCodec = Compressibility.hasCompressedExtension(name) ? Codec.STORE : codec;
+        PendingEntry entry = new PendingEntry(null, name, modified, data.length, 1, entryCodec);
+        entry.blocks.add(CompletableFuture.completedFuture(compress(entryCodec, null, data, data.length, true, true)));
+        pending.add(entry);
+        pendingBlocks++;
+    }
+
+    /**
+     * Be told about every file that made it into the archive in full.
+     *
+     * @param listener The listener.
+     */
+    @Override
+    public void setEntryListener(EntryListener listener) {
+        this.entryListener = listener;
+    }
+
+    /**
+     * Slow down reading files and streams, for rate limits.
+     *
+     * @param throttle Asked for every read before it happens.
+     */
+    @Override
+    public void setReadThrottle(ReadThrottle throttle) {
+        this.readThrottle = throttle;
+    }
+
+    /**
+     * Read file blocks ahead of compression on virtual threads. The window
+     * should hold at least {@code depth} blocks, or it limits the read-ahead
+     * first.
+     *
+     * @param depth  How many blocks may be read at once.
+     * @param memory Permits of 1 KiB for the blocks read but not compressed
+     *               yet, which can be shared by writers to cap them together.
+     * @param limit  How many permits {@code memory} was created with.
+     */
+    public void setPrefetch(int depth, Semaphore memory, int limit) {
+        this.prefetchReads = new Semaphore(Math.max(depth, 1));
+        this.prefetchMemory = memory;
+        this.prefetchMemoryLimit = Math.max(limit, 1);
+    }
+
+    /**
+     * Write everything still queued and then the central directory.
+     */
+    public void finish() throws IOException {
+        while (!pending.isEmpty()) {
+            drainOne();
+        }
+        zip.finish();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            for (PendingEntry entry : pending) {
+                entry.blocks.forEach(block -> block.cancel(true));
+            }
+            zip.close();
+        }
+    }
+
+    /**
+     * Write the next block in archive order, waiting for it if needed.
+     */
+    private void drainOne() throws IOException {
+        PendingEntry entry = pending.peek();
+        if (entry == null) {
+            return;
+        }
+
+        // small files go out with a classic header once their only block is ready
+        if (entry.blockCount == 1) {
+            pending.poll();
+            Block block = await(entry, entry.blocks.poll());
+            if (block != null) {
+                zip.writeEntry(entry.name, entry.modified, block.method, block.crc, block.length, List.of(block.data));
+                entryWritten(entry, block.crc, block.length);
+            }
+            return;
+        }
+
+        if (!entry.started) {
+            zip.beginEntry(entry.name, entry.modified, getStreamedMethod(entry.codec), entry.expectedSize);
+            entry.started = true;
+        }
+
+        Block block = await(entry, entry.blocks.poll());
+        boolean last = entry.written + 1 == entry.blockCount;
+        if (block == null) {
+            // the file failed part way, end the entry where we are
+            entry.truncated = true;
+        } else {
+            if (entry.tail != null && !Arrays.equals(entry.tail, block.dictionary)) {
+                // the file changed under us, redo this block against what we actually wrote
+                block = recompress(entry, block);
+            }
+            zip.writeData(block.data, 0, block.data.length);
+            entry.crc = CrcUtil.combine(entry.crc, block.crc, block.length);
+            entry.compressedSize += block.data.length;
+            entry.size += block.length;
+            entry.tail = block.tail;
+            if (block.finalBlock && !last) {
+                // the file got shorter, nothing after this block belongs to it
+                entry.truncated = true;
+            }
+        }
+        entry.written++;
+
+        if (entry.truncated) {
+            entry.blocks.forEach(future -> future.cancel(true));
+            pendingBlocks -= entry.blocks.size();
+            entry.blocks.clear();
+            if (getStreamedMethod(entry.codec) == ZipStreamWriter.METHOD_DEFLATED && (block == null || !block.finalBlock)) {
+                zip.writeData(EMPTY_FINAL_BLOCK, 0, EMPTY_FINAL_BLOCK.length);
+                entry.compressedSize += EMPTY_FINAL_BLOCK.length;
+            }
+            last = true;
+        }
+
+        if (last) {
+            zip.endEntry(entry.crc, entry.compressedSize, entry.size);
+            pending.poll();
+            if (!entry.truncated) {
+                entryWritten(entry, entry.crc, entry.size);
+            }
+        }
+    }
+
+    private void entryWritten(PendingEntry entry, long crc, long size) {
+        // a file that changed size while being read is not worth remembering
+        if (entryListener != null && entry.file != null && size == entry.expectedSize) {
+            entryListener.written(entry.name, entry.expectedSize, entry.modified, crc);
+        }
+    }
+
+    private Block await(PendingEntry entry, Future<Block> future) throws IOException {
+        pendingBlocks--;
+        try {
+            return future.get();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing " + entry.file);
+        } catch (ExecutionException exception) {
+            if (exception.getCause() instanceof IOException ioException) {
+                onError.accept(entry.file, ioException);
+                return null;
+            }
+            throw new IOException("Unable to compress " + entry.file, exception.getCause());
+        }
+    }
+
+    private Block recompress(PendingEntry entry, Block block) throws IOException {
+        long offset = (long) entry.written * blockSize;
+        byte[] data = new byte[block.length];
+        int read;
+        try (FileChannel channel = FileChannel.open(entry.file, StandardOpenOption.READ)) {
+            read = readFully(channel, ByteBuffer.wrap(data), offset);
+        }
+        boolean last = entry.written + 1 == entry.blockCount;
+        return compress(Codec.DEFLATE, entry.tail, data, read, last || read < data.length, false);
+    }
+
+    /**
+     * Pick the codec for a file. Single blocks are simply tried, since they
+     * fall back to storing on their own; larger files are sampled first.
+     */
+    private Codec chooseCodec(Path file, String name, int blockCount) {
+        if (codec == Codec.STORE || Compressibility.hasCompressedExtension(name)) {
+            return Codec.STORE;
+        }
+        if (blockCount == 1) {
+            return codec;
+        }
+        byte[] sample = new byte[SAMPLE_SIZE];
+        int read;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            read = readFully(channel, ByteBuffer.wrap(sample), 0);
+        } catch (IOException exception) {
+            // reading the blocks fails the same way and reports it
+            return codec;
+        }
+        return Compressibility.looksIncompressible(sample, read) ? Codec.STORE : codec;
+    }
+
+    private Block compressBlock(Codec entryCodec, Path file, long offset, int length, boolean last, boolean single) throws IOException {
+        int dictionaryLength = getDictionaryLength(entryCodec, offset);
+        byte[] buffer = new byte[dictionaryLength + length];
+        int read = readBlock(file, buffer, offset - dictionaryLength);
+        return compressRead(entryCodec, buffer, read, dictionaryLength, length, last, single);
+    }
+
+    /**
+     * Start reading a block on a virtual thread and compress it on the pool
+     * once it is in. This waits while the prefetch memory is used up.
+     */
+    private Future<Block> prefetchBlock(Codec entryCodec, Path file, long offset, int length, boolean last, boolean single) throws IOException {
+        int dictionaryLength = getDictionaryLength(entryCodec, offset);
+        // a block bigger than the whole cap still gets through, on its own
+        int permits = Math.min((dictionaryLength + length + 1023) / 1024, prefetchMemoryLimit);
+        try {
+            prefetchMemory.acquire(permits);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading ahead " + file);
+        }
+        byte[] buffer = new byte[dictionaryLength + length];
+
+        CompletableFuture<Integer> read = new CompletableFuture<>();
+        Thread.ofVirtual().name("prefetch").start(() -> {
+            try {
+                prefetchReads.acquire();
+                try {
+                    read.complete(readBlock(file, buffer, offset - dictionaryLength));
+                } finally {
+                    prefetchReads.release();
+                }
+            } catch (IOException exception) {
+                read.completeExceptionally(exception);
+            } catch (InterruptedException exception) {
+                read.completeExceptionally(new InterruptedIOException("Interrupted while reading ahead " + file));
+            } catch (RuntimeException exception) {
+                read.completeExceptionally(exception);
+            }
+        });
+        CompletableFuture<Block> block = read.thenApplyAsync(count ->
+                compressRead(entryCodec, buffer, count, dictionaryLength, length, last, single), pool);
+        // also when the block is cancelled, since it is then never compressed
+        block.whenComplete((result, exception) -> prefetchMemory.release(permits));
+        return block;
+    }
+
+    /**
+     * Only deflate blocks lean on the data before them.
+     */
+    private static int getDictionaryLength(Codec entryCodec, long offset) {
+        return entryCodec == Codec.DEFLATE ? (int) Math.min(offset, DICTIONARY_SIZE) : 0;
+    }
+
+    private int readBlock(Path file, byte[] buffer, long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return readFully(channel, ByteBuffer.wrap(buffer), position);
+        }
+    }
+
+    /**
+     * Compress a block read into a buffer, after the dictionary it starts with.
+     */
+    private Block compressRead(Codec entryCodec, byte[] buffer, int read, int dictionaryLength, int length, boolean last, boolean single) {
+        byte[] dictionary = dictionaryLength == 0 ? null : Arrays.copyOf(buffer, Math.min(read, dictionaryLength));
+        int dataLength = Math.max(0, read - dictionaryLength);
+        byte[] data = dictionaryLength == 0 ? buffer : Arrays.copyOfRange(buffer, dictionaryLength, dictionaryLength + dataLength);
+        Block block = compress(entryCodec, dictionary, data, dataLength, last || dataLength < length, single);
+        block.dictionary = dictionary;
+        return block;
+    }
+
+    /**
+     * Compress one block.
+     *
+     * @param entryCodec The codec of the entry.
+     * @param dictionary The data just before this block, for deflate. NULL if none.
+     * @param data       The data.
+     * @param length     How many bytes of data there are.
+     * @param last       Whether this is the last block of the entry.
+     * @param single     Whether this is the only block of the entry, which
+     *                   lets it be stored instead if it does not shrink.
+     */
+    private Block compress(Codec entryCodec, byte[] dictionary, byte[] data, int length, boolean last, boolean single) {
+        Block block = new Block();
+        block.method = single ? entryCodec.getMethod() : getStreamedMethod(entryCodec);
+        block.data = switch (entryCodec) {
+            case STORE -> single ? (length == data.length ? data : Arrays.copyOf(data, length)) : deflate(Deflater.NO_COMPRESSION, null, data, length, last);
+            case DEFLATE -> deflate(level, dictionary, data, length, last);
+            case ZSTD -> zstd(data, length);
+        };
+        if (single && entryCodec != Codec.STORE && block.data.length >= length) {
+            block.data = length == data.length ? data : Arrays.copyOf(data, length);
+            block.method = ZipStreamWriter.METHOD_STORED;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        block.crc = crc.getValue();
+        block.length = length;
+        block.finalBlock = last;
+        if (entryCodec == Codec.DEFLATE) {
+            block.tail = Arrays.copyOfRange(data, Math.max(0, length - DICTIONARY_SIZE), length);
+        }
+        return block;
+    }
+
+    /**
+     * Get the method of an entry written in blocks with a data descriptor.
+     * Raw stored data has no end marker, so a reader going through the zip in
+     * order could not find where it stops; such entries use deflate's stored
+     * blocks instead, which cost five bytes per 64 KiB.
+     */
+    private static int getStreamedMethod(Codec entryCodec) {
+        return entryCodec == Codec.STORE ? ZipStreamWriter.METHOD_DEFLATED : entryCodec.getMethod();
+    }
+
+    private static byte[] deflate(int level, byte[] dictionary, byte[] data, int length, boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(data, 0, length);
+            if (last) {
+                deflater.finish();
+            }
+
+            byte[] out = new byte[Math.max(64, length + (length >> 4) + 64)];
+            int size = 0;
+            while (true) {
+                if (size == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                int count = deflater.deflate(out, size, out.length - size, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                size += count;
+                if (last ? deflater.finished() : size < out.length) {
+                    break;
+                }
+            }
+
+            return Arrays.copyOf(out, size);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private byte[] zstd(byte[] data, int length) {
+        byte[] out = new byte[Math.toIntExact(Zstd.compressBound(length))];
+        long size = Zstd.compressByteArray(out, 0, out.length, data, 0, length, level);
+        if (Zstd.isError(size)) {
+            throw new IllegalStateException("zstd failed: " + Zstd.getErrorName(size));
+        }
+        return Arrays.copyOf(out, (int) size);
+    }
+
+    private int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        if (readThrottle != null) {
+            readThrottle.acquire(buffer.remaining());
+        }
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * A compressed block and what is needed to join it to its neighbours.
+     */
+    private static class Block {
+
+        private byte[] data;
+        private int method;
+        private long crc;
+        private int length;
+        private boolean finalBlock;
+        private byte[] dictionary;
+        private byte[] tail;
+    }
+
+    /**
+     * A file whose blocks have not all been written yet.
+     */
+    private static class PendingEntry {
+
+        private final Path file;
+        private final String name;
+        private final long modified;
+        private final long expectedSize;
+        private final Codec codec;
+        private int blockCount;
+        private final Deque<Future<Block>> blocks = new ArrayDeque<>();
+        private boolean started;
+        private boolean truncated;
+        private int written;
+        private long crc;
+        private long compressedSize;
+        private long size;
+        private byte[] tail;
+
+        PendingEntry(Path file, String name, long modified, long expectedSize, int blockCount, Codec codec) {
+            this.file = file;
+            this.name = name;
+            this.modified = modified;
+            this.expectedSize = expectedSize;
+            this.codec = codec;
+            this.blockCount = blockCount;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package tools.canine.backup.archive;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a tar front to back, entry by entry, as written by {@link TarWriter}
+ * or by tar itself. ustar headers, pax extended headers and GNU long names
+ * are understood. Every header's checksum is checked; the data has none.
+ * Links, devices and other special entries are skipped.
+ */
+public class TarStreamReader implements ArchiveReader {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final InputStream in;
+    private final byte[] header = new byte[TarWriter.RECORD_SIZE];
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private Entry current;
+    private long remaining;
+    private long padding;
+    private boolean ended;
+
+    /**
+     * Create a reader.
+     *
+     * @param in The tar. It is closed by {@link #close()}.
+     */
+    public TarStreamReader(InputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public Entry next() throws IOException {
+        skip(remaining + padding);
+        remaining = 0;
+        padding = 0;
+        current = null;
+
+        String longName = null;
+        String paxPath = null;
+        long paxSize = -1;
+        long paxModified = -1;
+        while (!ended) {
+            int read = in.readNBytes(header, 0, header.length);
+            if (read == 0) {
+                ended = true;
+                return null;
+            }
+            if (read < header.length) {
+                throw new EOFException("Tar ended inside a header");
+            }
+            if (isZero(header)) {
+                // the end of the archive, the records after it are only padding
+                ended = true;
+                return null;
+            }
+            checkChecksum();
+
+            byte type = header[156];
+            long headerSize = parseNumber(124, 12);
+            // global pax headers ('g') apply to every entry after them, but none of theirs matter here
+            if (type == TarWriter.TYPE_PAX || type == 'g' || type == 'L') {
+                byte[] data = readData(headerSize);
+                if (type == 'L') {
+                    longName = parseString(data, 0, data.length);
+                } else if (type == TarWriter.TYPE_PAX) {
+                    try {
+                        for (String[] record : parseRecords(data)) {
+                            switch (record[0]) {
+                                case "path" -> paxPath = record[1];
+                                case "size" -> paxSize = Long.parseLong(record[1]);
+                                case "mtime" -> paxModified = new BigDecimal(record[1]).movePointRight(3).longValue();
+                                default -> {
+                                }
+                            }
+                        }
+                    } catch (NumberFormatException exception) {
+                        throw new IOException("Pax header is damaged", exception);
+                    }
+                }
+                continue;
+            }
+
+            long size = paxSize >= 0 ? paxSize : headerSize;
+            String name = paxPath != null ? paxPath : longName != null ? longName : parseName();
+            long modified = paxModified >= 0 ? paxModified : parseNumber(136, 12) * 1000;
+            boolean file = type == TarWriter.TYPE_FILE || type == 0 || type == '7';
+            boolean directory = type == '5';
+            remaining = size;
+            padding = TarWriter.padding(size);
+            if (!file && !directory) {
+                longName = null;
+                paxPath = null;
+                paxSize = -1;
+                paxModified = -1;
+                skip(remaining + padding);
+                remaining = 0;
+                padding = 0;
+                continue;
+            }
+            if (directory && !name.endsWith("/")) {
+                name += "/";
+            }
+            current = new Entry(name, modified, size);
+            return current;
+        }
+        return null;
+    }
+
+    @Override
+    public long transferTo(OutputStream out) throws IOException {
+        if (current == null) {
+            throw new IllegalStateException("No entry to read");
+        }
+        long written = 0;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new EOFException("Entry " + current.name() + " is cut short: got " + written + " of " + current.size() + " bytes");
+            }
+            out.write(buffer, 0, read);
+            written += read;
+            remaining -= read;
+        }
+        return written;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void checkChecksum() throws IOException {
+        long expected = parseNumber(148, 8);
+        long actual = 0;
+        for (int i = 0; i < header.length; i++) {
+            actual += i >= 148 && i < 156 ? ' ' : header[i] & 0xFF;
+        }
+        if (actual != expected) {
+            throw new IOException("Tar header is damaged: checksum " + actual + ", expected " + expected);
+        }
+    }
+
+    private String parseName() {
+        String name = parseString(header, 0, 100);
+        boolean ustar = header[257] == 'u' && header[258] == 's' && header[259] == 't' && header[260] == 'a' && header[261] == 'r';
+        if (ustar) {
+            String prefix = parseString(header, 345, 155);
+            if (!prefix.isEmpty()) {
+                return prefix + "/" + name;
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Read a number field, in octal or, when its top bit is set, the GNU
+     * base-256 form used for large values.
+     */
+    private long parseNumber(int offset, int length) throws IOException {
+        if ((header[offset] & 0x80) != 0) {
+            long value = header[offset] & 0x7F;
+            for (int i = 1; i < length; i++) {
+                value = (value << 8) | (header[offset + i] & 0xFF);
+            }
+            return value;
+        }
+        long value = 0;
+        boolean digits = false;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = header[i];
+            if (b == 0 || (b == ' ' && digits)) {
+                break;
+            }
+            if (b == ' ') {
+                continue;
+            }
+            if (b < '0' || b > '7') {
+                throw new IOException("Tar header is damaged: bad number at " + offset);
+            }
+            value = (value << 3) | (b - '0');
+            digits = true;
+        }
+        return value;
+    }
+
+    private static String parseString(byte[] bytes, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && bytes[end] != 0) {
+            end++;
+        }
+        return new String(bytes, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Split pax data into its {@code "<length> <key>=<value>\n"} records.
+     */
+    private static List<String[]> parseRecords(byte[] data) throws IOException {
+        List<String[]> records = new ArrayList<>();
+        int position = 0;
+        while (position < data.length) {
+            int space = position;
+            while (space < data.length && data[space] != ' ') {
+                space++;
+            }
+            int length;
+            try {
+                length = Integer.parseInt(new String(data, position, space - position, StandardCharsets.US_ASCII));
+            } catch (NumberFormatException exception) {
+                throw new IOException("Pax header is damaged", exception);
+            }
+            if (length <= 0 || position + length > data.length) {
+                throw new IOException("Pax header is damaged");
+            }
+            String record = new String(data, space + 1, position + length - space - 2, StandardCharsets.UTF_8);
+            int equals = record.indexOf('=');
+            if (equals > 0) {
+                records.add(new String[]{record.substring(0, equals), record.substring(equals + 1)});
+            }
+            position += length;
+        }
+        return records;
+    }
+
+    private byte[] readData(long size) throws IOException {
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IOException("Tar header data is too big: " + size);
+        }
+        byte[] data = in.readNBytes((int) size);
+        if (data.length < size) {
+            throw new EOFException("Tar ended inside a header");
+        }
+        skip(TarWriter.padding(size));
+        return data;
+    }
+
+    private void skip(long count) throws IOException {
+        if (count > 0) {
+            in.skipNBytes(count);
+        }
+    }
+
+    private static boolean isZero(byte[] bytes) {
+        for (byte b : bytes) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * An entry as described by its headers.
+     *
+     * @param name     The path inside the tar.
+     * @param modified The modification time, in epoch millis.
+     * @param size     The size of its data.
+     */
+    public record Entry(String name, long modified, long size) implements ArchiveReader.Entry {
+    }
+}
@@ -0,0 +1,416 @@
+package tools.canine.backup.archive;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * Writes an uncompressed POSIX tar, for data that is not worth compressing.
+ * Nothing is compressed or checksummed, so the only work left is moving bytes.
+ * <p>
+ * When the output has a file under it (see {@link ChannelSink}), files are
+ * copied into it with {@link FileChannel#transferTo}, which the kernel does
+ * without the bytes ever reaching the heap. Headers and small files are
+ * gathered in a direct buffer first, so a tree of small files still goes out
+ * in large writes. Any other output gets the same bytes through the buffer.
+ * <p>
+ * Names that do not fit a ustar header, and sizes of 8 GiB or more, are
+ * written as pax extended headers, which GNU tar, bsdtar and
+ * {@link TarStreamReader} all read.
+ */
+public class TarWriter implements ArchiveWriter {
+
+    static final int RECORD_SIZE = 512;
+
+    static final byte TYPE_FILE = '0';
+    static final byte TYPE_PAX = 'x';
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Files up to this size are read into the buffer with their header
+     * rather than copied with a call of their own.
+     */
+    private static final int SMALL_FILE_SIZE = 64 * 1024;
+
+    /**
+     * A tar header needs the size before the data, so stream entries are held
+     * in memory and kept to this size. Longer streams carry on in more entries.
+     */
+    private static final int MAX_STREAM_ENTRY = 16 * 1024 * 1024;
+
+    /**
+     * How much of a file is copied between checks with the read throttle.
+     */
+    private static final long TRANSFER_CHUNK = 16L * 1024 * 1024;
+
+    /**
+     * The largest size the 11 octal digits of a ustar header hold.
+     */
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+
+    private static final String PAX_NAME = "././@PaxHeader";
+
+    private final OutputStream out;
+    private final ChannelSink sink;
+    private final EntryRecorder recorder;
+    private final BiConsumer<Path, IOException> onError;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private byte[] heapBuffer;
+    private long written;
+    private boolean finished;
+    private EntryListener entryListener;
+    private ReadThrottle readThrottle;
+
+    /**
+     * Create a writer.
+     *
+     * @param out     Where to write the tar. It is closed by {@link #close()}.
+     *                If it is an {@link EntryRecorder}, it is told where
+     *                every entry was written.
+     * @param onError Told about files that could not be read. The archive
+     *                carries on without them.
+     */
+    public TarWriter(OutputStream out, BiConsumer<Path, IOException> onError) {
+        this.out = out;
+        this.recorder = out instanceof EntryRecorder entryRecorder ? entryRecorder : null;
+        this.onError = onError;
+        if (out instanceof ChannelSink channelSink && channelSink.hasChannel()) {
+            this.sink = channelSink;
+        } else if (out instanceof FileOutputStream file) {
+            this.sink = ChannelSink.of(file.getChannel());
+        } else {
+            this.sink = null;
+        }
+    }
+
+    @Override
+    public void addFile(Path file, String name, long size, long modified) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+        } catch (IOException exception) {
+            onError.accept(file, exception);
+            return;
+        }
+
+        try (channel) {
+            long offset = written;
+            writeHeader(name, size, modified);
+            long copied = size <= SMALL_FILE_SIZE ? readInto(file, channel, size) : transfer(channel, size);
+            if (copied < size) {
+                // the file got shorter, but the header already gave its size
+                putZeros(size - copied);
+            }
+            long end = written;
+            putZeros(padding(size));
+            if (recorder != null) {
+                recorder.recordEntry(name, offset, end, size);
+            }
+            // a file that changed size while being read is not worth remembering
+            if (entryListener != null && copied == size && channel.size() == size) {
+                entryListener.written(name, size, modified, 0);
+            }
+        }
+    }
+
+    @Override
+    public long addStream(String name, InputStream input, long maxSize, long modified) throws IOException {
+        int wanted = (int) Math.min(maxSize, MAX_STREAM_ENTRY);
+        if (readThrottle != null) {
+            readThrottle.acquire(wanted);
+        }
+        byte[] data = input.readNBytes(wanted);
+        addData(name, data, modified);
+        return data.length;
+    }
+
+    @Override
+    public void addData(String name, byte[] data, long modified) throws IOException {
+        long offset = written;
+        writeHeader(name, data.length, modified);
+        put(data, 0, data.length);
+        long end = written;
+        putZeros(padding(data.length));
+        if (recorder != null) {
+            recorder.recordEntry(name, offset, end, data.length);
+        }
+    }
+
+    @Override
+    public void setEntryListener(EntryListener listener) {
+        this.entryListener = listener;
+    }
+
+    @Override
+    public void setReadThrottle(ReadThrottle throttle) {
+        this.readThrottle = throttle;
+    }
+
+    /**
+     * Write the two empty records that end a tar.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        putZeros(2L * RECORD_SIZE);
+        flush();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read a small file into the buffer, after its header.
+     *
+     * @return How many bytes were read, less than size if the file ended early.
+     */
+    private long readInto(Path file, FileChannel channel, long size) throws IOException {
+        if (readThrottle != null) {
+            readThrottle.acquire(size);
+        }
+        if (buffer.remaining() < size) {
+            flush();
+        }
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + (int) size);
+        long read = 0;
+        try {
+            while (buffer.hasRemaining()) {
+                int count = channel.read(buffer, read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+        } catch (IOException exception) {
+            onError.accept(file, exception);
+        } finally {
+            buffer.limit(limit);
+        }
+        written += read;
+        return read;
+    }
+
+    /**
+     * Copy a file after its header, straight into the output if it can take
+     * it, or through the buffer if not.
+     *
+     * @return How many bytes were copied, less than size if the file ended early.
+     */
+    private long transfer(FileChannel channel, long size) throws IOException {
+        flush();
+        long copied = 0;
+        while (copied < size) {
+            long chunk = Math.min(TRANSFER_CHUNK, size - copied);
+            if (readThrottle != null) {
+                readThrottle.acquire(chunk);
+            }
+            long count;
+            if (sink != null) {
+                count = sink.transferFrom(channel, copied, chunk);
+            } else {
+                count = 0;
+                while (count < chunk) {
+                    buffer.limit((int) Math.min(BUFFER_SIZE, chunk - count));
+                    int read = channel.read(buffer, copied + count);
+                    if (read <= 0) {
+                        break;
+                    }
+                    count += read;
+                    flush();
+                }
+                buffer.clear();
+            }
+            copied += count;
+            written += count;
+            if (count < chunk) {
+                break;
+            }
+        }
+        return copied;
+    }
+
+    /**
+     * Write the header of an entry, after a pax header if ustar cannot hold
+     * its name or size.
+     */
+    private void writeHeader(String name, long size, long modified) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int split = findSplit(name, nameBytes);
+        boolean paxName = split == -2;
+        boolean paxSize = size > MAX_OCTAL_SIZE;
+        if (paxName || paxSize) {
+            StringBuilder records = new StringBuilder();
+            if (paxName) {
+                appendRecord(records, "path", name);
+            }
+            if (paxSize) {
+                appendRecord(records, "size", Long.toString(size));
+            }
+            byte[] data = records.toString().getBytes(StandardCharsets.UTF_8);
+            put(buildHeader(PAX_NAME.getBytes(StandardCharsets.US_ASCII), 0, data.length, modified, TYPE_PAX), 0, RECORD_SIZE);
+            put(data, 0, data.length);
+            putZeros(padding(data.length));
+        }
+
+        byte[] header;
+        if (paxName) {
+            // readers without pax support still get something close
+            byte[] fallback = name.replaceAll("[^\\x20-\\x7e]", "_").getBytes(StandardCharsets.US_ASCII);
+            header = buildHeader(Arrays.copyOfRange(fallback, Math.max(0, fallback.length - 100), fallback.length), -1, paxSize ? 0 : size, modified, TYPE_FILE);
+        } else {
+            header = buildHeader(nameBytes, split, size, modified, TYPE_FILE);
+        }
+        put(header, 0, RECORD_SIZE);
+    }
+
+    /**
+     * Find where to split a name between the prefix and name fields.
+     *
+     * @return -1 if there is no need, the index of the slash to split at, or
+     * -2 if the name does not fit and needs a pax header. Non-ASCII names
+     * always get one, so every reader agrees on their encoding.
+     */
+    private static int findSplit(String name, byte[] nameBytes) {
+        if (nameBytes.length != name.length()) {
+            return -2;
+        }
+        if (nameBytes.length <= 100) {
+            return -1;
+        }
+        for (int i = Math.min(155, nameBytes.length - 2); i > 0; i--) {
+            if (nameBytes[i] == '/') {
+                return nameBytes.length - i - 1 <= 100 ? i : -2;
+            }
+        }
+        return -2;
+    }
+
+    /**
+     * Build a ustar header.
+     *
+     * @param name  The name, split at the slash at {@code split} into the
+     *              prefix and name fields, or whole if split is -1.
+     */
+    private static byte[] buildHeader(byte[] name, int split, long size, long modified, byte type) {
+        byte[] header = new byte[RECORD_SIZE];
+        if (split >= 0) {
+            System.arraycopy(name, split + 1, header, 0, name.length - split - 1);
+            System.arraycopy(name, 0, header, 345, split);
+        } else {
+            System.arraycopy(name, 0, header, 0, Math.min(name.length, 100));
+        }
+        writeOctal(header, 100, 8, 0644);
+        writeOctal(header, 108, 8, 0);
+        writeOctal(header, 116, 8, 0);
+        writeOctal(header, 124, 12, size);
+        writeOctal(header, 136, 12, Math.max(0, modified / 1000));
+        header[156] = type;
+        System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 6);
+        header[263] = '0';
+        header[264] = '0';
+
+        // the checksum is worked out with its own field as spaces
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long checksum = 0;
+        for (byte value : header) {
+            checksum += value & 0xFF;
+        }
+        writeOctal(header, 148, 7, checksum);
+        header[155] = ' ';
+        return header;
+    }
+
+    /**
+     * Write a number as zero padded octal digits ending in a NUL.
+     */
+    private static void writeOctal(byte[] header, int offset, int length, long value) {
+        String digits = Long.toOctalString(value);
+        int width = length - 1;
+        for (int i = 0; i < width; i++) {
+            int index = i - (width - digits.length());
+            header[offset + i] = (byte) (index < 0 ? '0' : digits.charAt(index));
+        }
+        header[offset + width] = 0;
+    }
+
+    /**
+     * Add a pax record, {@code "<length> <key>=<value>\n"}, where the length
+     * counts its own digits.
+     */
+    private static void appendRecord(StringBuilder records, String key, String value) {
+        int body = (" " + key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8).length;
+        int length = body + 1;
+        while (length != body + Integer.toString(length).length()) {
+            length = body + Integer.toString(length).length();
+        }
+        records.append(length).append(' ').append(key).append('=').append(value).append('\n');
+    }
+
+    static long padding(long size) {
+        return (RECORD_SIZE - size % RECORD_SIZE) % RECORD_SIZE;
+    }
+
+    private void put(byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.put(data, offset, count);
+            offset += count;
+            length -= count;
+            written += count;
+        }
+    }
+
+    private void putZeros(long count) throws IOException {
+        while (count > 0) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            int chunk = (int) Math.min(count, buffer.remaining());
+            for (int i = 0; i < chunk; i++) {
+                buffer.put((byte) 0);
+            }
+            count -= chunk;
+            written += chunk;
+        }
+    }
+
+    /**
+     * Write out what the buffer holds and empty it.
+     */
+    private void flush() throws IOException {
+        buffer.flip();
+        if (sink != null) {
+            sink.write(buffer);
+        } else if (buffer.hasRemaining()) {
+            if (heapBuffer == null) {
+                heapBuffer = new byte[BUFFER_SIZE];
+            }
+            int length = buffer.remaining();
+            buffer.get(heapBuffer, 0, length);
+            out.write(heapBuffer, 0, length);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,371 @@
+package tools.canine.backup.archive;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a zip front to back, entry by entry, without needing the central
+ * directory. This is what lets a restore unpack an archive while it is still
+ * downloading.
+ * <p>
+ * Entries may be stored with their sizes in the local header, deflated, or
+ * zstd compressed as a run of frames. Entries with a data descriptor have to
+ * mark their own end, which deflate and zstd frames do; raw stored data with
+ * a descriptor cannot be read this way, and {@link ParallelZipWriter} never
+ * writes it. Every entry's CRC-32 and size are checked as it is read.
+ */
+public class ZipStreamReader implements ArchiveReader {
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int DATA_DESCRIPTOR = 0x08074b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END = 0x06054b50;
+    private static final int ZSTD_MAGIC = 0xFD2FB528;
+
+    private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+    private static final int FLAG_ENCRYPTED = 0x0001;
+    private static final int ZIP64_EXTRA = 0x0001;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final PushbackInputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private Entry current;
+    private boolean consumed = true;
+    private boolean ended;
+
+    /**
+     * Create a reader.
+     *
+     * @param in The zip. It is closed by {@link #close()}.
+     */
+    public ZipStreamReader(InputStream in) {
+        this.in = new PushbackInputStream(in, BUFFER_SIZE);
+    }
+
+    /**
+     * Move to the next entry, skipping whatever is left of the current one.
+     *
+     * @return The entry. NULL once the central directory is reached, or the
+     * stream ends where an entry would start, as it does when reading part
+     * of a zip.
+     */
+    @Override
+    public Entry next() throws IOException {
+        if (!consumed) {
+            transferTo(OutputStream.nullOutputStream());
+        }
+        if (ended) {
+            return null;
+        }
+
+        int first = in.read();
+        if (first < 0) {
+            ended = true;
+            return null;
+        }
+        in.unread(first);
+        int signature = readInt();
+        if (signature == CENTRAL_HEADER || signature == END) {
+            ended = true;
+            return null;
+        }
+        if (signature != LOCAL_HEADER) {
+            throw new IOException(String.format("Not a zip entry header: %08x", signature));
+        }
+
+        readShort();
+        int flags = readShort();
+        int method = readShort();
+        int dosTime = readInt();
+        long crc = readInt() & ZIP64_MAGIC;
+        long compressedSize = readInt() & ZIP64_MAGIC;
+        long size = readInt() & ZIP64_MAGIC;
+        int nameLength = readShort();
+        int extraLength = readShort();
+        String name = new String(readBytes(nameLength), StandardCharsets.UTF_8);
+        byte[] extra = readBytes(extraLength);
+
+        // a ZIP64 extra holds the real sizes, and means the descriptor uses 8 byte sizes
+        boolean zip64 = false;
+        for (int offset = 0; offset + 4 <= extra.length; ) {
+            int id = getShort(extra, offset);
+            int length = getShort(extra, offset + 2);
+            if (id == ZIP64_EXTRA && length >= 16 && offset + 20 <= extra.length) {
+                zip64 = true;
+                size = getLong(extra, offset + 4);
+                compressedSize = getLong(extra, offset + 12);
+            }
+            offset += 4 + length;
+        }
+
+        if ((flags & FLAG_ENCRYPTED) != 0) {
+            throw new IOException("Entry " + name + " is encrypted");
+        }
+        boolean descriptor = (flags & FLAG_DATA_DESCRIPTOR) != 0;
+        current = new Entry(name, method, toEpochMillis(dosTime), descriptor ? -1 : size, descriptor, zip64, crc, compressedSize);
+        consumed = false;
+        return current;
+    }
+
+    /**
+     * Read the data of the current entry.
+     *
+     * @param out Where to write the uncompressed data. It is not closed.
+     * @return How many bytes were written.
+     * @throws IOException If the data is damaged or does not match its CRC.
+     */
+    @Override
+    public long transferTo(OutputStream out) throws IOException {
+        if (current == null || consumed) {
+            throw new IllegalStateException("No entry to read");
+        }
+        consumed = true;
+        Entry entry = current;
+        CRC32 crc = new CRC32();
+        long written = switch (entry.method()) {
+            case ZipStreamWriter.METHOD_STORED -> copyStored(entry, out, crc);
+            case ZipStreamWriter.METHOD_DEFLATED -> inflate(out, crc);
+            case ZipStreamWriter.METHOD_ZSTD -> decompressZstd(entry, out, crc);
+            default -> throw new IOException("Entry " + entry.name() + " uses unsupported method " + entry.method());
+        };
+
+        long expectedCrc = entry.crc;
+        long expectedSize = entry.size();
+        if (entry.descriptor()) {
+            int first = readInt();
+            expectedCrc = (first == DATA_DESCRIPTOR ? readInt() : first) & ZIP64_MAGIC;
+            if (entry.zip64) {
+                readLong();
+                expectedSize = readLong();
+            } else {
+                readInt();
+                expectedSize = readInt() & ZIP64_MAGIC;
+            }
+        }
+        if (crc.getValue() != expectedCrc || written != expectedSize) {
+            throw new IOException("Entry " + entry.name() + " is damaged: got " + written + " bytes with CRC "
+                    + Long.toHexString(crc.getValue()) + ", expected " + expectedSize + " with " + Long.toHexString(expectedCrc));
+        }
+        return written;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private long copyStored(Entry entry, OutputStream out, CRC32 crc) throws IOException {
+        if (entry.descriptor()) {
+            throw new IOException("Entry " + entry.name() + " is stored without sizes and cannot be streamed");
+        }
+        long left = entry.compressedSize;
+        while (left > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+            if (read < 0) {
+                throw new EOFException("Zip ended inside " + entry.name());
+            }
+            crc.update(buffer, 0, read);
+            out.write(buffer, 0, read);
+            left -= read;
+        }
+        return entry.compressedSize;
+    }
+
+    private long inflate(OutputStream out, CRC32 crc) throws IOException {
+        Inflater inflater = new Inflater(true);
+        byte[] output = new byte[BUFFER_SIZE];
+        long written = 0;
+        int read = 0;
+        try {
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    read = in.read(buffer);
+                    if (read < 0) {
+                        throw new EOFException("Zip ended inside " + current.name());
+                    }
+                    inflater.setInput(buffer, 0, read);
+                }
+                int count = inflater.inflate(output);
+                if (count > 0) {
+                    crc.update(output, 0, count);
+                    out.write(output, 0, count);
+                    written += count;
+                } else if (inflater.needsDictionary()) {
+                    throw new IOException("Entry " + current.name() + " needs a preset dictionary");
+                }
+            }
+            // whatever the inflater did not use belongs to what follows the entry
+            int remaining = inflater.getRemaining();
+            if (remaining > 0) {
+                in.unread(buffer, read - remaining, remaining);
+            }
+            return written;
+        } catch (DataFormatException exception) {
+            throw new IOException("Entry " + current.name() + " is damaged", exception);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private long decompressZstd(Entry entry, OutputStream out, CRC32 crc) throws IOException {
+        long written = 0;
+        long compressedRead = 0;
+        while (true) {
+            if (!entry.descriptor() && compressedRead >= entry.compressedSize) {
+                return written;
+            }
+            if (entry.descriptor() && peekInt() != ZSTD_MAGIC) {
+                return written;
+            }
+
+            byte[] frame = readZstdFrame();
+            compressedRead += frame.length;
+            long contentSize = Zstd.getFrameContentSize(frame);
+            if (contentSize < 0 || contentSize > Integer.MAX_VALUE - 8) {
+                throw new IOException("Entry " + entry.name() + " has a zstd frame without a usable size");
+            }
+            byte[] data = new byte[(int) contentSize];
+            try {
+                if (Zstd.decompressByteArray(data, 0, data.length, frame, 0, frame.length) != contentSize) {
+                    throw new IOException("Entry " + entry.name() + " has a short zstd frame");
+                }
+            } catch (ZstdException exception) {
+                throw new IOException("Entry " + entry.name() + " is damaged", exception);
+            }
+            crc.update(data, 0, data.length);
+            out.write(data);
+            written += data.length;
+        }
+    }
+
+    /**
+     * Read one zstd frame by walking its block headers, so nothing after it
+     * is consumed.
+     */
+    private byte[] readZstdFrame() throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(readBytes(4));
+        int descriptor = readByte(frame);
+        int contentSizeFlag = descriptor >>> 6;
+        boolean singleSegment = (descriptor & 0x20) != 0;
+        boolean checksum = (descriptor & 0x04) != 0;
+        int dictionaryIdFlag = descriptor & 0x03;
+
+        int headerLength = (singleSegment ? 0 : 1)
+                + new int[]{0, 1, 2, 4}[dictionaryIdFlag]
+                + new int[]{singleSegment ? 1 : 0, 2, 4, 8}[contentSizeFlag];
+        frame.write(readBytes(headerLength));
+
+        boolean lastBlock = false;
+        while (!lastBlock) {
+            byte[] header = readBytes(3);
+            frame.write(header);
+            int value = (header[0] & 0xFF) | (header[1] & 0xFF) << 8 | (header[2] & 0xFF) << 16;
+            lastBlock = (value & 1) != 0;
+            int type = (value >>> 1) & 0x03;
+            int blockSize = value >>> 3;
+            if (type == 3) {
+                throw new IOException("Entry " + current.name() + " has a damaged zstd block");
+            }
+            // an RLE block stores its byte once
+            frame.write(readBytes(type == 1 ? 1 : blockSize));
+        }
+        if (checksum) {
+            frame.write(readBytes(4));
+        }
+        return frame.toByteArray();
+    }
+
+    private int readByte(ByteArrayOutputStream copy) throws IOException {
+        int value = in.read();
+        if (value < 0) {
+            throw new EOFException("Zip ended early");
+        }
+        copy.write(value);
+        return value;
+    }
+
+    private int peekInt() throws IOException {
+        byte[] bytes = in.readNBytes(4);
+        in.unread(bytes);
+        return bytes.length < 4 ? 0 : getInt(bytes, 0);
+    }
+
+    private byte[] readBytes(int length) throws IOException {
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length < length) {
+            throw new EOFException("Zip ended early");
+        }
+        return bytes;
+    }
+
+    private int readShort() throws IOException {
+        return getShort(readBytes(2), 0);
+    }
+
+    private int readInt() throws IOException {
+        return getInt(readBytes(4), 0);
+    }
+
+    private long readLong() throws IOException {
+        return getLong(readBytes(8), 0);
+    }
+
+    private static int getShort(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8;
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return getShort(bytes, offset) | getShort(bytes, offset + 2) << 16;
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        return (getInt(bytes, offset) & ZIP64_MAGIC) | (long) getInt(bytes, offset + 4) << 32;
+    }
+
+    private static long toEpochMillis(int dosTime) {
+        try {
+            LocalDateTime time = LocalDateTime.of(
+                    ((dosTime >>> 25) & 0x7F) + 1980,
+                    (dosTime >>> 21) & 0x0F,
+                    (dosTime >>> 16) & 0x1F,
+                    (dosTime >>> 11) & 0x1F,
+                    (dosTime >>> 5) & 0x3F,
+                    (dosTime << 1) & 0x3E);
+            return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (RuntimeException exception) {
+            return 0;
+        }
+    }
+
+    /**
+     * An entry as described by its local header.
+     *
+     * @param name       The path inside the zip.
+     * @param method     The compression method.
+     * @param modified   The modification time, in epoch millis.
+     * @param size       The uncompressed size, or -1 if it only follows the data.
+     * @param descriptor Whether a data descriptor follows the data.
+     * @param zip64      Whether the descriptor holds 8 byte sizes.
+     * @param crc        The CRC-32 from the local header, if it has one.
+     * @param compressedSize The compressed size from the local header, if it has one.
+     */
+    public record Entry(String name, int method, long modified, long size, boolean descriptor,
+                        boolean zip64, long crc, long compressedSize) implements ArchiveReader.Entry {
+    }
+}
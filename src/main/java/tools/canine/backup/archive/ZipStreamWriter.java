@@ -0,0 +1,385 @@
+package tools.canine.backup.archive;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the zip file format around data that has already been compressed.
+ * {@link java.util.zip.ZipOutputStream} insists on compressing entries
+ * itself, which keeps it on one thread; this writer only lays out headers,
+ * so compression can happen anywhere.
+ * <p>
+ * Entries whose sizes are known up front get a classic local header. Entries
+ * that are streamed get a data descriptor after their data. ZIP64 records are
+ * added whenever a size, offset or the entry count needs them.
+ */
+public class ZipStreamWriter implements Closeable {
+
+    public static final int METHOD_STORED = 0;
+    public static final int METHOD_DEFLATED = 8;
+    public static final int METHOD_ZSTD = 93;
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int DATA_DESCRIPTOR = 0x08074b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int ZIP64_END = 0x06064b50;
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+    private static final int END = 0x06054b50;
+
+    private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final int VERSION_DEFAULT = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final int VERSION_ZSTD = 63;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_EXTRA = 0x0001;
+
+    /**
+     * Streamed entries below this size keep 4 byte descriptor sizes, which
+     * older readers expect. The gap to 4 GiB covers compression overhead.
+     */
+    private static final long ZIP64_THRESHOLD = 0xF0000000L;
+
+    private final OutputStream out;
+    private final EntryRecorder recorder;
+    private final List<CentralEntry> entries = new ArrayList<>();
+    private final byte[] scratch = new byte[8];
+
+    private long written;
+    private CentralEntry current;
+    private boolean finished;
+
+    /**
+     * Create a writer.
+     *
+     * @param out Where to write the zip. It is closed by {@link #close()}.
+     *            If it is an {@link EntryRecorder}, it is told where every
+     *            entry was written.
+     */
+    public ZipStreamWriter(OutputStream out) {
+        this.out = new BufferedOutputStream(out, 1 << 16);
+        this.recorder = out instanceof EntryRecorder entryRecorder ? entryRecorder : null;
+    }
+
+    /**
+     * Write an entry whose data is already complete.
+     *
+     * @param name           The path inside the zip, using forward slashes.
+     * @param modified       When the file was last modified, in epoch millis.
+     * @param method         The compression method of the data.
+     * @param crc            The CRC-32 of the uncompressed data.
+     * @param size           The uncompressed size.
+     * @param compressedData The data, in order.
+     */
+    public void writeEntry(String name, long modified, int method, long crc, long size, List<byte[]> compressedData) throws IOException {
+        long compressedSize = 0;
+        for (byte[] data : compressedData) {
+            compressedSize += data.length;
+        }
+
+        CentralEntry entry = new CentralEntry(name, modified, method, 0, written);
+        entry.crc = crc;
+        entry.size = size;
+        entry.compressedSize = compressedSize;
+        boolean zip64 = size >= ZIP64_MAGIC || compressedSize >= ZIP64_MAGIC;
+
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        writeInt(LOCAL_HEADER);
+        writeShort(versionNeeded(method, zip64));
+        writeShort(FLAG_UTF8);
+        writeShort(method);
+        writeInt(entry.dosTime);
+        writeInt((int) crc);
+        writeInt((int) (zip64 ? ZIP64_MAGIC : compressedSize));
+        writeInt((int) (zip64 ? ZIP64_MAGIC : size));
+        writeShort(nameBytes.length);
+        writeShort(zip64 ? 20 : 0);
+        writeBytes(nameBytes, 0, nameBytes.length);
+        if (zip64) {
+            writeShort(ZIP64_EXTRA);
+            writeShort(16);
+            writeLong(size);
+            writeLong(compressedSize);
+        }
+
+        for (byte[] data : compressedData) {
+            writeBytes(data, 0, data.length);
+        }
+        entries.add(entry);
+        record(entry);
+    }
+
+    /**
+     * Start an entry whose sizes are not known yet. Follow with
+     * {@link #writeData} and finish with {@link #endEntry}.
+     *
+     * @param name     The path inside the zip, using forward slashes.
+     * @param modified When the file was last modified, in epoch millis.
+     * @param method   The compression method of the data.
+     * @param maxSize  The most data the entry can hold, or -1 if unknown.
+     *                 Entries that might pass 4 GiB get a ZIP64 descriptor.
+     */
+    public void beginEntry(String name, long modified, int method, long maxSize) throws IOException {
+        if (current != null) {
+            throw new IllegalStateException("Entry " + current.name + " is still open");
+        }
+        current = new CentralEntry(name, modified, method, FLAG_DATA_DESCRIPTOR, written);
+        current.zip64 = maxSize < 0 || maxSize >= ZIP64_THRESHOLD;
+
+        // a zeroed ZIP64 extra tells readers to expect 8 byte sizes in the descriptor
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        writeInt(LOCAL_HEADER);
+        writeShort(versionNeeded(method, current.zip64));
+        writeShort(FLAG_UTF8 | FLAG_DATA_DESCRIPTOR);
+        writeShort(method);
+        writeInt(current.dosTime);
+        writeInt(0);
+        writeInt(0);
+        writeInt(0);
+        writeShort(nameBytes.length);
+        writeShort(current.zip64 ? 20 : 0);
+        writeBytes(nameBytes, 0, nameBytes.length);
+        if (current.zip64) {
+            writeShort(ZIP64_EXTRA);
+            writeShort(16);
+            writeLong(0);
+            writeLong(0);
+        }
+    }
+
+    /**
+     * Write data for the open entry.
+     */
+    public void writeData(byte[] data, int offset, int length) throws IOException {
+        writeBytes(data, offset, length);
+    }
+
+    /**
+     * Finish the open entry with a data descriptor.
+     *
+     * @param crc            The CRC-32 of the uncompressed data.
+     * @param compressedSize How many bytes were passed to {@link #writeData}.
+     * @param size           The uncompressed size.
+     */
+    public void endEntry(long crc, long compressedSize, long size) throws IOException {
+        if (current == null) {
+            throw new IllegalStateException("No entry is open");
+        }
+        if (!current.zip64 && (compressedSize >= ZIP64_MAGIC || size >= ZIP64_MAGIC)) {
+            throw new IOException("Entry " + current.name + " grew past its size limit");
+        }
+        current.crc = crc;
+        current.compressedSize = compressedSize;
+        current.size = size;
+
+        writeInt(DATA_DESCRIPTOR);
+        writeInt((int) crc);
+        if (current.zip64) {
+            writeLong(compressedSize);
+            writeLong(size);
+        } else {
+            writeInt((int) compressedSize);
+            writeInt((int) size);
+        }
+        entries.add(current);
+        record(current);
+        current = null;
+    }
+
+    /**
+     * Get how many bytes have been written so far.
+     *
+     * @return The offset of the next byte.
+     */
+    public long getOffset() {
+        return written;
+    }
+
+    /**
+     * Write the central directory. No entries can be added afterwards.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        if (current != null) {
+            throw new IllegalStateException("Entry " + current.name + " is still open");
+        }
+        finished = true;
+
+        long centralStart = written;
+        for (CentralEntry entry : entries) {
+            writeCentralEntry(entry);
+        }
+        long centralSize = written - centralStart;
+
+        boolean zip64 = entries.size() >= 0xFFFF || centralStart >= ZIP64_MAGIC || centralSize >= ZIP64_MAGIC;
+        if (zip64) {
+            long zip64EndStart = written;
+            writeInt(ZIP64_END);
+            writeLong(44);
+            writeShort(VERSION_ZIP64);
+            writeShort(VERSION_ZIP64);
+            writeInt(0);
+            writeInt(0);
+            writeLong(entries.size());
+            writeLong(entries.size());
+            writeLong(centralSize);
+            writeLong(centralStart);
+
+            writeInt(ZIP64_LOCATOR);
+            writeInt(0);
+            writeLong(zip64EndStart);
+            writeInt(1);
+        }
+
+        writeInt(END);
+        writeShort(0);
+        writeShort(0);
+        writeShort(Math.min(entries.size(), 0xFFFF));
+        writeShort(Math.min(entries.size(), 0xFFFF));
+        writeInt((int) Math.min(centralSize, ZIP64_MAGIC));
+        writeInt((int) Math.min(centralStart, ZIP64_MAGIC));
+        writeShort(0);
+        out.flush();
+    }
+
+    /**
+     * Finish the zip and close the stream. If an entry is still open the
+     * archive is broken anyway, so the stream is closed as is.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (current == null) {
+                finish();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeCentralEntry(CentralEntry entry) throws IOException {
+        boolean sizeTooBig = entry.size >= ZIP64_MAGIC;
+        boolean compressedTooBig = entry.compressedSize >= ZIP64_MAGIC;
+        boolean offsetTooBig = entry.offset >= ZIP64_MAGIC;
+        int extraLength = (sizeTooBig ? 8 : 0) + (compressedTooBig ? 8 : 0) + (offsetTooBig ? 8 : 0);
+        int version = versionNeeded(entry.method, extraLength > 0 || entry.zip64);
+
+        byte[] nameBytes = entry.name.getBytes(StandardCharsets.UTF_8);
+        writeInt(CENTRAL_HEADER);
+        writeShort(version);
+        writeShort(version);
+        writeShort(FLAG_UTF8 | entry.flags);
+        writeShort(entry.method);
+        writeInt(entry.dosTime);
+        writeInt((int) entry.crc);
+        writeInt((int) (compressedTooBig ? ZIP64_MAGIC : entry.compressedSize));
+        writeInt((int) (sizeTooBig ? ZIP64_MAGIC : entry.size));
+        writeShort(nameBytes.length);
+        writeShort(extraLength > 0 ? extraLength + 4 : 0);
+        writeShort(0);
+        writeShort(0);
+        writeShort(0);
+        writeInt(0);
+        writeInt((int) (offsetTooBig ? ZIP64_MAGIC : entry.offset));
+        writeBytes(nameBytes, 0, nameBytes.length);
+        if (extraLength > 0) {
+            writeShort(ZIP64_EXTRA);
+            writeShort(extraLength);
+            if (sizeTooBig) {
+                writeLong(entry.size);
+            }
+            if (compressedTooBig) {
+                writeLong(entry.compressedSize);
+            }
+            if (offsetTooBig) {
+                writeLong(entry.offset);
+            }
+        }
+    }
+
+    private void record(CentralEntry entry) {
+        if (recorder != null) {
+            recorder.recordEntry(entry.name, entry.offset, written, entry.size);
+        }
+    }
+
+    private static int versionNeeded(int method, boolean zip64) {
+        if (method == METHOD_ZSTD) {
+            return VERSION_ZSTD;
+        }
+        return zip64 ? VERSION_ZIP64 : VERSION_DEFAULT;
+    }
+
+    private void writeShort(int value) throws IOException {
+        scratch[0] = (byte) value;
+        scratch[1] = (byte) (value >>> 8);
+        writeBytes(scratch, 0, 2);
+    }
+
+    private void writeInt(int value) throws IOException {
+        scratch[0] = (byte) value;
+        scratch[1] = (byte) (value >>> 8);
+        scratch[2] = (byte) (value >>> 16);
+        scratch[3] = (byte) (value >>> 24);
+        writeBytes(scratch, 0, 4);
+    }
+
+    private void writeLong(long value) throws IOException {
+        for (int i = 0; i < 8; i++) {
+            scratch[i] = (byte) (value >>> (8 * i));
+        }
+        writeBytes(scratch, 0, 8);
+    }
+
+    private void writeBytes(byte[] data, int offset, int length) throws IOException {
+        out.write(data, offset, length);
+        written += length;
+    }
+
+    /**
+     * What the central directory needs to know about each entry.
+     */
+    private static class CentralEntry {
+
+        private final String name;
+        private final int dosTime;
+        private final int method;
+        private final int flags;
+        private final long offset;
+        private long crc;
+        private long compressedSize;
+        private long size;
+        private boolean zip64;
+
+        CentralEntry(String name, long modified, int method, int flags, long offset) {
+            this.name = name;
+            this.dosTime = toDosTime(modified);
+            this.method = method;
+            this.flags = flags;
+            this.offset = offset;
+        }
+
+        private static int toDosTime(long modified) {
+            LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(modified), ZoneId.systemDefault());
+            if (time.getYear() < 1980) {
+                return (1 << 21) | (1 << 16);
+            }
+            return (time.getYear() - 1980) << 25
+                    | time.getMonthValue() << 21
+                    | time.getDayOfMonth() << 16
+                    | time.getHour() << 11
+                    | time.getMinute() << 5
+                    | time.getSecond() >> 1;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package tools.canine.backup.config;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class BackupConfig {
@@ -9,6 +10,8 @@ public class BackupConfig {
     private final Map<String, String> awsInfo = new HashMap<>();
     private final Map<String, String> ntfyInfo = new HashMap<>();
     private final Map<String, String> mysqlInfo = new HashMap<>();
+    private final Map<String, String> backupInfo = new HashMap<>();
+    private final Map<String, List<String>> excludes = new HashMap<>();
 
     /**
      * Add a path.
@@ -29,6 +32,26 @@ public class BackupConfig {
         return staticFiles;
     }
 
+    /**
+     * Add exclude patterns.
+     *
+     * @param name     The job they are for, or "*" for every job.
+     * @param patterns The patterns, in the order they apply.
+     */
+    public void addExcludes(String name, List<String> patterns) {
+        excludes.put(name, List.copyOf(patterns));
+    }
+
+    /**
+     * Get exclude patterns.
+     *
+     * @param name The job, or "*" for the patterns of every job.
+     * @return The patterns, empty if there are none.
+     */
+    public List<String> getExcludes(String name) {
+        return excludes.getOrDefault(name, List.of());
+    }
+
     /**
      * Add AWS information.
      *
@@ -49,6 +72,17 @@ public class BackupConfig {
         return awsInfo.get(name);
     }
 
+    /**
+     * Get AWS info as a number.
+     *
+     * @param name     The name of the key to get.
+     * @param fallback The value to use if the key is not set or not a number.
+     * @return The value of said key.
+     */
+    public int getAwsInt(String name, int fallback) {
+        return parseInt(awsInfo.get(name), fallback);
+    }
+
     /**
      * Add ntfy information.
      *
@@ -88,4 +122,59 @@ public class BackupConfig {
     public String getMysqlInfo(String name) {
         return mysqlInfo.get(name);
     }
-}
\ No newline at end of file
+
+    /**
+     * Add backup pipeline information.
+     *
+     * @param name  The key.
+     * @param value The value of the key.
+     */
+    public void addBackupInfo(String name, String value) {
+        backupInfo.put(name, value);
+    }
+
+    /**
+     * Get backup pipeline info.
+     *
+     * @param name     The name of the key to get.
+     * @param fallback The value to use if the key is not set.
+     * @return The value of said key.
+     */
+    public String getBackupInfo(String name, String fallback) {
+        return backupInfo.getOrDefault(name, fallback);
+    }
+
+    /**
+     * Get backup pipeline info as a boolean.
+     *
+     * @param name     The name of the key to get.
+     * @param fallback The value to use if the key is not set.
+     * @return The value of said key.
+     */
+    public boolean getBackupBoolean(String name, boolean fallback) {
+        String value = backupInfo.get(name);
+        return value == null ? fallback : Boolean.parseBoolean(value);
+    }
+
+    /**
+     * Get backup pipeline info as a number.
+     *
+     * @param name     The name of the key to get.
+     * @param fallback The value to use if the key is not set or not a number.
+     * @return The value of said key.
+     */
+    public int getBackupInt(String name, int fallback) {
+        return parseInt(backupInfo.get(name), fallback);
+    }
+
+    private static int parseInt(String value, int fallback) {
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException exception) {
+            return fallback;
+        }
+    }
+}
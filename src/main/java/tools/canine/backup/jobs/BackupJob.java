@@ -0,0 +1,16 @@
+package tools.canine.backup.jobs;
+
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * A single unit of backup work, like one static path, one Docker stack or
+ * one database.
+ *
+ * @param name         The name shown in logs and alerts.
+ * @param type         What kind of job this is, used for per-type limits.
+ * @param sizeEstimate Estimates how many bytes the job will read.
+ * @param task         Runs the job, returning true if it worked.
+ */
+public record BackupJob(String name, JobType type, LongSupplier sizeEstimate, BooleanSupplier task) {
+}
@@ -0,0 +1,144 @@
+package tools.canine.backup.jobs;
+
+import java.time.LocalDateTime;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A cron schedule with the five standard fields: minute, hour, day of
+ * month, month and day of week. Fields take {@code *}, numbers, ranges like
+ * {@code 1-5}, steps like {@code *}{@code /15} or {@code 8-18/2}, lists of
+ * those, and three-letter month and day names. Sunday is 0 or 7.
+ * {@code @hourly}, {@code @daily}, {@code @weekly}, {@code @monthly} and
+ * {@code @yearly} work too.
+ * <p>
+ * As in cron, when both the day of month and the day of week are limited,
+ * a day matches if either does.
+ */
+public class CronSchedule {
+
+    private static final Map<String, String> MACROS = Map.of(
+            "@hourly", "0 * * * *",
+            "@daily", "0 0 * * *",
+            "@midnight", "0 0 * * *",
+            "@weekly", "0 0 * * 0",
+            "@monthly", "0 0 1 * *",
+            "@yearly", "0 0 1 1 *",
+            "@annually", "0 0 1 1 *");
+
+    private static final List<String> MONTHS = List.of("JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP", "OCT", "NOV", "DEC");
+
+    private static final List<String> DAYS = List.of("SUN", "MON", "TUE", "WED", "THU", "FRI", "SAT");
+
+    private final String expression;
+    private final BitSet minutes;
+    private final BitSet hours;
+    private final BitSet daysOfMonth;
+    private final BitSet months;
+    private final BitSet daysOfWeek;
+    private final boolean anyDayOfMonth;
+    private final boolean anyDayOfWeek;
+
+    /**
+     * Parse a schedule.
+     *
+     * @param expression The cron expression.
+     * @throws IllegalArgumentException If the expression is not valid.
+     */
+    public CronSchedule(String expression) {
+        this.expression = expression.trim();
+        String[] fields = MACROS.getOrDefault(this.expression.toLowerCase(Locale.ROOT), this.expression).split("\\s+");
+        if (fields.length != 5) {
+            throw new IllegalArgumentException("Schedule '" + expression + "' needs 5 fields");
+        }
+        minutes = parseField(fields[0], 0, 59, null, 0);
+        hours = parseField(fields[1], 0, 23, null, 0);
+        daysOfMonth = parseField(fields[2], 1, 31, null, 0);
+        months = parseField(fields[3], 1, 12, MONTHS, 1);
+        daysOfWeek = parseField(fields[4], 0, 7, DAYS, 0);
+        if (daysOfWeek.get(7)) {
+            daysOfWeek.set(0);
+        }
+        anyDayOfMonth = fields[2].startsWith("*");
+        anyDayOfWeek = fields[4].startsWith("*");
+    }
+
+    /**
+     * Check whether the schedule fires in a minute.
+     *
+     * @param time Any time in the minute.
+     * @return true if it fires.
+     */
+    public boolean matches(LocalDateTime time) {
+        if (!minutes.get(time.getMinute()) || !hours.get(time.getHour()) || !months.get(time.getMonthValue())) {
+            return false;
+        }
+        boolean dayOfMonth = daysOfMonth.get(time.getDayOfMonth());
+        boolean dayOfWeek = daysOfWeek.get(time.getDayOfWeek().getValue() % 7);
+        if (anyDayOfMonth || anyDayOfWeek) {
+            return dayOfMonth && dayOfWeek;
+        }
+        return dayOfMonth || dayOfWeek;
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    private BitSet parseField(String field, int min, int max, List<String> names, int firstName) {
+        BitSet values = new BitSet(max + 1);
+        for (String part : field.split(",")) {
+            int step = 1;
+            int slash = part.indexOf('/');
+            if (slash >= 0) {
+                step = parseNumber(part.substring(slash + 1), 1, max, null, 0);
+                part = part.substring(0, slash);
+            }
+
+            int start;
+            int end;
+            if (part.equals("*")) {
+                start = min;
+                end = max;
+            } else {
+                int dash = part.indexOf('-');
+                if (dash >= 0) {
+                    start = parseNumber(part.substring(0, dash), min, max, names, firstName);
+                    end = parseNumber(part.substring(dash + 1), min, max, names, firstName);
+                } else {
+                    start = parseNumber(part, min, max, names, firstName);
+                    // a step on a single value runs to the end of the field, like 5/15
+                    end = slash >= 0 ? max : start;
+                }
+            }
+            if (start > end) {
+                throw new IllegalArgumentException("Schedule '" + expression + "' has a backwards range: " + part);
+            }
+            for (int value = start; value <= end; value += step) {
+                values.set(value);
+            }
+        }
+        return values;
+    }
+
+    private int parseNumber(String text, int min, int max, List<String> names, int firstName) {
+        if (names != null) {
+            int index = names.indexOf(text.toUpperCase(Locale.ROOT));
+            if (index >= 0) {
+                return index + firstName;
+            }
+        }
+        try {
+            int value = Integer.parseInt(text);
+            if (value < min || value > max) {
+                throw new IllegalArgumentException("Schedule '" + expression + "' has " + value + " outside " + min + "-" + max);
+            }
+            return value;
+        } catch (NumberFormatException exception) {
+            throw new IllegalArgumentException("Schedule '" + expression + "' has an invalid value: " + text);
+        }
+    }
+}
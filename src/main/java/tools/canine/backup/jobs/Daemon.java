@@ -0,0 +1,194 @@
+package tools.canine.backup.jobs;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Keeps running and starts jobs when their cron schedules fire. Jobs due in
+ * the same minute run together as one batch; batches of different jobs can
+ * overlap, but a job never starts while its last run is still going.
+ * <p>
+ * Maintenance, like retention and repository garbage collection, only runs
+ * once no batch is running, since deleting while another batch uploads
+ * could remove what it is about to reference.
+ */
+public class Daemon {
+
+    /**
+     * How far back to look for missed minutes, after a suspend or a long
+     * pause. Anything older is skipped rather than run late.
+     */
+    private static final int MAX_CATCH_UP_MINUTES = 60;
+
+    private static final Logger logger = LogManager.getLogger(Daemon.class);
+
+    private final List<BackupJob> jobs;
+    private final Function<BackupJob, CronSchedule> schedules;
+    private final Function<List<BackupJob>, Map<BackupJob, Boolean>> runner;
+    private final Runnable maintenance;
+    private final Consumer<Map<BackupJob, Boolean>> finisher;
+
+    private final Set<String> running = ConcurrentHashMap.newKeySet();
+    private final ReadWriteLock maintenanceLock = new ReentrantReadWriteLock();
+    private final ExecutorService batches;
+    private volatile boolean stopping;
+    private volatile Thread loopThread;
+
+    /**
+     * Create a daemon.
+     *
+     * @param jobs        Every job the daemon runs.
+     * @param schedules   Gives the schedule of a job.
+     * @param runner      Runs a batch of jobs and returns whether each worked.
+     * @param maintenance Runs after a batch when no other batch is running.
+     * @param finisher    Reports a finished batch.
+     */
+    public Daemon(List<BackupJob> jobs, Function<BackupJob, CronSchedule> schedules,
+                  Function<List<BackupJob>, Map<BackupJob, Boolean>> runner, Runnable maintenance,
+                  Consumer<Map<BackupJob, Boolean>> finisher) {
+        this.jobs = List.copyOf(jobs);
+        this.schedules = schedules;
+        this.runner = runner;
+        this.maintenance = maintenance;
+        this.finisher = finisher;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.batches = Executors.newCachedThreadPool(runnable -> new Thread(runnable, "run-" + threadCount.incrementAndGet()));
+    }
+
+    /**
+     * Check the schedules every minute until {@link #stop()} is called.
+     */
+    public void run() {
+        loopThread = Thread.currentThread();
+        LocalDateTime next = LocalDateTime.now().truncatedTo(ChronoUnit.MINUTES).plusMinutes(1);
+        logger.info("Daemon started, first check at {}", next);
+        while (!stopping) {
+            try {
+                Duration wait = Duration.between(LocalDateTime.now(), next);
+                if (!wait.isNegative()) {
+                    Thread.sleep(wait.toMillis() + 1);
+                }
+            } catch (InterruptedException exception) {
+                if (stopping) {
+                    break;
+                }
+                Thread.currentThread().interrupt();
+                logger.error("Daemon was interrupted", exception);
+                break;
+            }
+
+            LocalDateTime now = LocalDateTime.now().truncatedTo(ChronoUnit.MINUTES);
+            if (now.isBefore(next)) {
+                // woke up a little early
+                continue;
+            }
+            LocalDateTime from = next;
+            if (Duration.between(from, now).toMinutes() > MAX_CATCH_UP_MINUTES) {
+                logger.warn("Skipping schedules between {} and {}, the daemon was not running", from, now.minusMinutes(MAX_CATCH_UP_MINUTES));
+                from = now.minusMinutes(MAX_CATCH_UP_MINUTES);
+            }
+            startDue(from, now);
+            next = now.plusMinutes(1);
+        }
+    }
+
+    /**
+     * Stop scheduling and wait for running batches to finish.
+     */
+    public void stop() {
+        stopping = true;
+        Thread thread = loopThread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        batches.shutdown();
+        try {
+            while (!batches.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.info("Waiting for {} running job(s) to finish", running.size());
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Start every job whose schedule fired between two minutes, inclusive.
+     */
+    private void startDue(LocalDateTime from, LocalDateTime to) {
+        Map<String, BackupJob> due = new LinkedHashMap<>();
+        for (BackupJob job : jobs) {
+            CronSchedule schedule = schedules.apply(job);
+            for (LocalDateTime minute = from; !minute.isAfter(to); minute = minute.plusMinutes(1)) {
+                if (schedule.matches(minute)) {
+                    due.put(getKey(job), job);
+                    break;
+                }
+            }
+        }
+        if (due.isEmpty()) {
+            return;
+        }
+
+        List<BackupJob> batch = new ArrayList<>();
+        for (Map.Entry<String, BackupJob> entry : due.entrySet()) {
+            if (running.add(entry.getKey())) {
+                batch.add(entry.getValue());
+            } else {
+                logger.warn("Job '{}' is due but its last run has not finished, skipping it", entry.getValue().name());
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        logger.info("Starting {} job(s): {}", batch.size(), batch.stream().map(BackupJob::name).toList());
+        batches.execute(() -> runBatch(batch));
+    }
+
+    private void runBatch(List<BackupJob> batch) {
+        Map<BackupJob, Boolean> results = new LinkedHashMap<>();
+        maintenanceLock.readLock().lock();
+        try {
+            results = runner.apply(batch);
+        } catch (RuntimeException exception) {
+            logger.error("Batch of {} job(s) failed", batch.size(), exception);
+        } finally {
+            maintenanceLock.readLock().unlock();
+            batch.forEach(job -> running.remove(getKey(job)));
+        }
+
+        // whichever batch finishes last does the maintenance for all of them
+        if (maintenanceLock.writeLock().tryLock()) {
+            try {
+                maintenance.run();
+            } catch (RuntimeException exception) {
+                logger.error("Maintenance failed", exception);
+            } finally {
+                maintenanceLock.writeLock().unlock();
+            }
+        }
+        finisher.accept(results);
+    }
+
+    private static String getKey(BackupJob job) {
+        return job.type().getConfigName() + "/" + job.name();
+    }
+}
@@ -0,0 +1,128 @@
+package tools.canine.backup.jobs;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs backup jobs concurrently. At most {@code globalLimit} jobs run at
+ * once, and each job type can be capped further. Jobs are started largest
+ * first, so the long ones are not left running alone at the end.
+ * <p>
+ * Several threads can call {@link #runAll} at once, like overlapping daemon
+ * batches; the limits then hold across all of them.
+ */
+public class JobScheduler {
+
+    private static final Logger logger = LogManager.getLogger(JobScheduler.class);
+
+    private final int globalLimit;
+    private final Map<JobType, Integer> typeLimits;
+    private final Map<JobType, Integer> typeRunning = new EnumMap<>(JobType.class);
+    private int running;
+
+    /**
+     * Create a scheduler.
+     *
+     * @param globalLimit How many jobs may run at once.
+     * @param typeLimits  How many jobs of each type may run at once. Types
+     *                    missing from the map are only bound by the global limit.
+     */
+    public JobScheduler(int globalLimit, Map<JobType, Integer> typeLimits) {
+        this.globalLimit = Math.max(1, globalLimit);
+        this.typeLimits = new EnumMap<>(JobType.class);
+        this.typeLimits.putAll(typeLimits);
+    }
+
+    /**
+     * Run every job and wait for all of them to finish. Jobs started by
+     * other calls count towards the limits, but are not waited for.
+     *
+     * @param jobs The jobs to run.
+     * @return Whether each job worked, keyed by job, in the order they started.
+     */
+    public Map<BackupJob, Boolean> runAll(List<BackupJob> jobs) {
+        logger.info("Estimating the size of {} job(s)", jobs.size());
+        Map<BackupJob, Long> sizes = new LinkedHashMap<>();
+        jobs.parallelStream()
+                .map(job -> Map.entry(job, job.sizeEstimate().getAsLong()))
+                .toList()
+                .forEach(entry -> sizes.put(entry.getKey(), entry.getValue()));
+
+        List<BackupJob> pending = new ArrayList<>(jobs);
+        pending.sort(Comparator.comparingLong((BackupJob job) -> sizes.get(job)).reversed());
+
+        Map<BackupJob, Boolean> results = new LinkedHashMap<>();
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(globalLimit, runnable -> new Thread(runnable, "job-" + threadCount.incrementAndGet()));
+        // this call's own jobs still running, the shared count also has those of other calls
+        int[] mine = new int[1];
+        try {
+            synchronized (this) {
+                while (!pending.isEmpty() || mine[0] > 0) {
+                    BackupJob next = running < globalLimit ? nextRunnable(pending) : null;
+                    if (next == null) {
+                        wait();
+                        continue;
+                    }
+
+                    running++;
+                    mine[0]++;
+                    typeRunning.merge(next.type(), 1, Integer::sum);
+                    results.put(next, false);
+                    logger.info("Starting job '{}' ({}, ~{} bytes)", next.name(), next.type().getConfigName(), sizes.get(next));
+                    executor.execute(() -> runJob(next, results, mine));
+                }
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            logger.error("Interrupted while waiting for jobs", exception);
+        } finally {
+            executor.shutdown();
+        }
+        return results;
+    }
+
+    private BackupJob nextRunnable(List<BackupJob> pending) {
+        Iterator<BackupJob> iterator = pending.iterator();
+        while (iterator.hasNext()) {
+            BackupJob job = iterator.next();
+            int limit = typeLimits.getOrDefault(job.type(), globalLimit);
+            if (typeRunning.getOrDefault(job.type(), 0) < limit) {
+                iterator.remove();
+                return job;
+            }
+        }
+        return null;
+    }
+
+    private void runJob(BackupJob job, Map<BackupJob, Boolean> results, int[] mine) {
+        long start = System.nanoTime();
+        boolean worked = false;
+        try {
+            worked = job.task().getAsBoolean();
+        } catch (RuntimeException exception) {
+            logger.error("Job '{}' threw an exception", job.name(), exception);
+        } finally {
+            long seconds = (System.nanoTime() - start) / 1_000_000_000L;
+            logger.info("Finished job '{}' in {}s ({})", job.name(), seconds, worked ? "success" : "failed");
+            synchronized (this) {
+                results.put(job, worked);
+                running--;
+                mine[0]--;
+                typeRunning.merge(job.type(), -1, Integer::sum);
+                notifyAll();
+            }
+        }
+    }
+}
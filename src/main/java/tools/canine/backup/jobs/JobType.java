@@ -0,0 +1,23 @@
+package tools.canine.backup.jobs;
+
+public enum JobType {
+
+    STATIC_FILES("static"),
+    DOCKER("docker"),
+    MYSQL("mysql");
+
+    private final String configName;
+
+    JobType(String configName) {
+        this.configName = configName;
+    }
+
+    /**
+     * Get the name used for this type in the config.
+     *
+     * @return The name, e.g. "docker".
+     */
+    public String getConfigName() {
+        return configName;
+    }
+}
@@ -0,0 +1,132 @@
+package tools.canine.backup.repository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Cuts data into content-defined chunks with the FastCDC gear hash. A cut is
+ * made where the rolling hash of the last 64 bytes matches a mask, so an
+ * insert or delete only moves the boundaries around it and the chunks after
+ * it are the same as before.
+ * <p>
+ * Below the average size a stricter mask is used and above it a looser one,
+ * which keeps chunk sizes close to the average.
+ */
+public class Chunker {
+
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // the table has to be the same on every run, or nothing deduplicates
+        SplittableRandom random = new SplittableRandom(0x63616e696e65L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final int minSize;
+    private final int averageSize;
+    private final int maxSize;
+    private final long maskSmall;
+    private final long maskLarge;
+
+    /**
+     * Create a chunker.
+     *
+     * @param minSize     No chunk is smaller than this, except the last.
+     * @param averageSize The size chunks aim for. Rounded down to a power of two.
+     * @param maxSize     No chunk is larger than this.
+     */
+    public Chunker(int minSize, int averageSize, int maxSize) {
+        int bits = 31 - Integer.numberOfLeadingZeros(Math.max(averageSize, 64));
+        this.minSize = minSize;
+        this.averageSize = 1 << bits;
+        this.maxSize = Math.max(maxSize, minSize + 1);
+        this.maskSmall = mask(bits + 2);
+        this.maskLarge = mask(bits - 2);
+    }
+
+    /**
+     * Split a stream into chunks.
+     *
+     * @param input    The data. It is not closed.
+     * @param consumer Given each chunk in order.
+     */
+    public void split(InputStream input, ChunkConsumer consumer) throws IOException {
+        byte[] buffer = new byte[maxSize];
+        int filled = 0;
+        boolean ended = false;
+        while (true) {
+            while (!ended && filled < buffer.length) {
+                int read = input.read(buffer, filled, buffer.length - filled);
+                if (read < 0) {
+                    ended = true;
+                } else {
+                    filled += read;
+                }
+            }
+            if (filled == 0) {
+                return;
+            }
+
+            int size = cut(buffer, filled);
+            consumer.accept(Arrays.copyOf(buffer, size));
+            System.arraycopy(buffer, size, buffer, 0, filled - size);
+            filled -= size;
+        }
+    }
+
+    /**
+     * Find where the first chunk of the data ends.
+     *
+     * @param data   The data, holding at least {@code maxSize} bytes unless it
+     *               is the end of the stream.
+     * @param length How many bytes of data there are.
+     * @return The length of the first chunk.
+     */
+    int cut(byte[] data, int length) {
+        if (length <= minSize) {
+            return length;
+        }
+        int end = Math.min(length, maxSize);
+        int normal = Math.min(end, averageSize);
+        long hash = 0;
+        int i = minSize;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xFF];
+            if ((hash & maskSmall) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < end; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xFF];
+            if ((hash & maskLarge) == 0) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * The top bits of the hash depend on the most bytes, so the mask uses those.
+     */
+    private static long mask(int bits) {
+        return -1L << (64 - Math.max(bits, 1));
+    }
+
+    /**
+     * Takes the chunks a stream is cut into.
+     */
+    @FunctionalInterface
+    public interface ChunkConsumer {
+
+        /**
+         * Take a chunk.
+         *
+         * @param chunk The chunk. The chunker does not touch it again.
+         */
+        void accept(byte[] chunk) throws IOException;
+    }
+}
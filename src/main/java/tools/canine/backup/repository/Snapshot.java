@@ -0,0 +1,171 @@
+package tools.canine.backup.repository;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * One backup in the repository: every file with the chunks that make it up,
+ * in order.
+ * <p>
+ * Stored as {@code {"files":[{"path":..,"size":..,"modified":..,"chunks":[..]}]}}.
+ */
+public class Snapshot {
+
+    private final Map<String, FileEntry> files = new LinkedHashMap<>();
+
+    /**
+     * Read a snapshot.
+     *
+     * @param file The snapshot file.
+     * @return The snapshot.
+     */
+    public static Snapshot load(Path file) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return read(reader, file.toString());
+        }
+    }
+
+    /**
+     * Read a snapshot written by {@link #write}.
+     *
+     * @param reader The JSON. It is not closed.
+     * @param source Where it came from, for errors.
+     * @return The snapshot.
+     */
+    public static Snapshot read(Reader reader, String source) throws IOException {
+        JSONObject json;
+        try {
+            json = new JSONObject(new JSONTokener(reader));
+        } catch (RuntimeException exception) {
+            throw new IOException("Snapshot " + source + " is not valid", exception);
+        }
+
+        Snapshot snapshot = new Snapshot();
+        JSONArray files = json.getJSONArray("files");
+        for (int i = 0; i < files.length(); i++) {
+            JSONObject entry = files.getJSONObject(i);
+            JSONArray chunks = entry.getJSONArray("chunks");
+            List<String> ids = new ArrayList<>(chunks.length());
+            for (int j = 0; j < chunks.length(); j++) {
+                ids.add(chunks.getString(j));
+            }
+            snapshot.add(new FileEntry(entry.getString("path"), entry.getLong("size"), entry.getLong("modified"), ids));
+        }
+        return snapshot;
+    }
+
+    /**
+     * Write the snapshot to a file, through a temporary file so a crash never
+     * leaves half of one behind.
+     *
+     * @param file The snapshot file.
+     */
+    public void save(Path file) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                write(writer);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Write the snapshot as JSON.
+     *
+     * @param writer Where to write it. It is not closed.
+     */
+    public void write(Writer writer) throws IOException {
+        writer.write("{\"files\":[");
+        boolean first = true;
+        for (FileEntry file : files.values()) {
+            if (!first) {
+                writer.write(',');
+            }
+            first = false;
+            writer.write("{\"path\":" + JSONObject.quote(file.path()));
+            writer.write(",\"size\":" + file.size() + ",\"modified\":" + file.modified() + ",\"chunks\":[");
+            for (int i = 0; i < file.chunks().size(); i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writer.write('"' + file.chunks().get(i) + '"');
+            }
+            writer.write("]}");
+        }
+        writer.write("]}");
+    }
+
+    /**
+     * Add a file.
+     *
+     * @param file The file.
+     */
+    public void add(FileEntry file) {
+        files.put(file.path(), file);
+    }
+
+    /**
+     * Get a file.
+     *
+     * @param path The path inside the backup.
+     * @return The file. NULL if it is not in the snapshot.
+     */
+    public FileEntry get(String path) {
+        return files.get(path);
+    }
+
+    /**
+     * Get every file.
+     *
+     * @return The files, in the order they were added.
+     */
+    public Collection<FileEntry> getFiles() {
+        return files.values();
+    }
+
+    /**
+     * Get every chunk the snapshot needs.
+     *
+     * @return The chunk IDs.
+     */
+    public Set<String> getChunks() {
+        Set<String> chunks = new HashSet<>();
+        for (FileEntry file : files.values()) {
+            chunks.addAll(file.chunks());
+        }
+        return chunks;
+    }
+
+    /**
+     * A file in a snapshot.
+     *
+     * @param path     The path inside the backup, using forward slashes.
+     * @param size     The size.
+     * @param modified The modification time, in epoch millis.
+     * @param chunks   The IDs of the chunks holding its contents, in order.
+     */
+    public record FileEntry(String path, long size, long modified, List<String> chunks) {
+    }
+}
@@ -0,0 +1,118 @@
+package tools.canine.backup.retention;
+
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.IsoFields;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Decides which backups to keep, grandfather-father-son style: the last few
+ * backups, plus the newest backup of each of the last few hours, days, weeks,
+ * months and years that have one. A backup kept by any rule is kept.
+ * <p>
+ * An incremental backup is useless without the full backup and incrementals
+ * before it, so keeping one keeps the whole chain up to it. The newest backup
+ * is always kept.
+ */
+public class RetentionPolicy {
+
+    private final int last;
+    private final int hourly;
+    private final int daily;
+    private final int weekly;
+    private final int monthly;
+    private final int yearly;
+
+    /**
+     * Create a policy. A count of 0 turns that rule off.
+     *
+     * @param last    How many of the newest backups to keep.
+     * @param hourly  How many hours to keep a backup for.
+     * @param daily   How many days to keep a backup for.
+     * @param weekly  How many weeks to keep a backup for.
+     * @param monthly How many months to keep a backup for.
+     * @param yearly  How many years to keep a backup for.
+     */
+    public RetentionPolicy(int last, int hourly, int daily, int weekly, int monthly, int yearly) {
+        this.last = last;
+        this.hourly = hourly;
+        this.daily = daily;
+        this.weekly = weekly;
+        this.monthly = monthly;
+        this.yearly = yearly;
+    }
+
+    /**
+     * Pick the backups to keep.
+     *
+     * @param backups The backups of one service, in any order.
+     * @return The keys of the backups to keep.
+     */
+    public Set<String> select(List<Backup> backups) {
+        List<Backup> newest = new ArrayList<>(backups);
+        newest.sort(Comparator.comparing(Backup::time).thenComparing(Backup::key).reversed());
+
+        Set<String> keep = new HashSet<>();
+        if (newest.isEmpty()) {
+            return keep;
+        }
+        keep.add(newest.get(0).key());
+        for (int i = 0; i < Math.min(last, newest.size()); i++) {
+            keep.add(newest.get(i).key());
+        }
+        keepPeriods(newest, hourly, time -> time.truncatedTo(ChronoUnit.HOURS), keep);
+        keepPeriods(newest, daily, LocalDateTime::toLocalDate, keep);
+        keepPeriods(newest, weekly, time -> time.get(IsoFields.WEEK_BASED_YEAR) * 100 + time.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR), keep);
+        keepPeriods(newest, monthly, YearMonth::from, keep);
+        keepPeriods(newest, yearly, LocalDateTime::getYear, keep);
+
+        // walk oldest to newest, so a kept incremental can pull in its chain
+        int chainStart = -1;
+        for (int i = newest.size() - 1; i >= 0; i--) {
+            Backup backup = newest.get(i);
+            if (!backup.incremental()) {
+                chainStart = i;
+            } else if (keep.contains(backup.key()) && chainStart >= 0) {
+                for (int j = chainStart; j > i; j--) {
+                    keep.add(newest.get(j).key());
+                }
+            }
+        }
+        return keep;
+    }
+
+    /**
+     * Keep the newest backup of each of the newest {@code count} periods.
+     */
+    private static void keepPeriods(List<Backup> newest, int count, Function<LocalDateTime, Object> period, Set<String> keep) {
+        Object lastPeriod = null;
+        int kept = 0;
+        for (Backup backup : newest) {
+            if (kept >= count) {
+                return;
+            }
+            Object current = period.apply(backup.time());
+            if (!current.equals(lastPeriod)) {
+                keep.add(backup.key());
+                lastPeriod = current;
+                kept++;
+            }
+        }
+    }
+
+    /**
+     * A backup that the policy looks at.
+     *
+     * @param key         The object key.
+     * @param time        When the backup was taken.
+     * @param incremental Whether it needs the backups before it to restore.
+     */
+    public record Backup(String key, LocalDateTime time, boolean incremental) {
+    }
+}
@@ -1,20 +1,41 @@
 package tools.canine.backup.types;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import tools.canine.backup.CanineBackup;
 import tools.canine.backup.utils.FileUtil;
+import tools.canine.backup.utils.Metrics;
+import tools.canine.backup.utils.ProcessInputStream;
+import tools.canine.backup.utils.RepositoryUtil;
 import tools.canine.backup.utils.RequestUtil;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 public class MySQL {
 
+    /**
+     * How long the tables may stay locked while parallel dumps start.
+     */
+    private static final int LOCK_TIMEOUT_SECONDS = 120;
+
     private final ArrayList<String> databases;
     private final Logger logger = LogManager.getLogger(this);
 
@@ -22,34 +43,390 @@ public class MySQL {
         this.databases = databases;
     }
 
-    public void backup() {
-        for (String database : databases) {
-            String databaseDump = database + ".sql";
-            String username = CanineBackup.getConfig().getMysqlInfo("username");
-            String password = CanineBackup.getConfig().getMysqlInfo("password");
+    public ArrayList<String> getDatabases() {
+        return databases;
+    }
 
-            // run the dump command
-            String command = "mysqldump -u " + username + " " + database + " > " + databaseDump;
-            Map<String, String> env = new HashMap<>();
-            env.put("MYSQL_PWD", password);
-            FileUtil.runCommand(database, command, env);
+    /**
+     * Dump and backup a single database. The dump is read straight from
+     * mysqldump into the archive, nothing is written to disk first. The
+     * whole job is timed as the {@code mysql} stage.
+     *
+     * @param database The database name.
+     * @return true if the backup was uploaded.
+     */
+    public boolean backup(String database) {
+        Metrics.Stage stage = Metrics.start(database, "mysql");
+        try {
+            return dumpAndBackup(database);
+        } finally {
+            stage.close();
+        }
+    }
 
-            // if the dump failed, skip
-            if (!Files.exists(Path.of(databaseDump))) {
-                logger.warn("{} does not exist after dump, did it fail?", databaseDump);
-                continue;
+    private boolean dumpAndBackup(String database) {
+        int parallel = CanineBackup.getConfig().getBackupInt("mysqlParallelDumps", 1);
+        long parallelMinSize = CanineBackup.getConfig().getBackupInt("mysqlParallelMinMb", 1024) * 1024L * 1024;
+        if (MySQLBinlog.isEnabled()) {
+            if (!RepositoryUtil.isEnabled()) {
+                return backupWithBinlog(database, parallel > 1 && estimateSize(database) >= parallelMinSize ? parallel : 1);
+            }
+            logger.warn("Binlog backups do not work with the repository, taking a full dump of '{}'", database);
+        }
+        if (parallel > 1 && estimateSize(database) >= parallelMinSize) {
+            return backupParallel(database, parallel);
+        }
+
+        Process dump = startDump(database, List.of(), List.of());
+        if (dump == null) {
+            return false;
+        }
+        logger.info("Dumping database '{}'", database);
+        return FileUtil.backupStreams(database, "databases", Map.of(database + ".sql", new ProcessInputStream(dump, "mysqldump of " + database)));
+    }
+
+    /**
+     * Ship the binlogs written since the last run, or take a full dump when
+     * one is due or the binlogs needed are gone. Full dumps take the locked
+     * path even with one process, so the binlog position can be read while
+     * nothing is written.
+     *
+     * @param database The database name.
+     * @param parallel How many processes a full dump uses.
+     * @return true if the backup was uploaded.
+     */
+    private boolean backupWithBinlog(String database, int parallel) {
+        MySQLBinlog.State state = MySQLBinlog.startIncremental(database);
+        if (state != null) {
+            Boolean shipped = MySQLBinlog.backupIncremental(database, state);
+            if (shipped != null) {
+                return shipped;
             }
+        }
+        return backupParallel(database, parallel);
+    }
+
+    /**
+     * Dump a database with several mysqldump processes at once, each taking
+     * a share of the tables, and backup all of them into one archive.
+     * <p>
+     * To make the parts agree with each other, the tables are locked while
+     * every process starts its own consistent snapshot transaction, then
+     * unlocked again. Writes to the database wait for that moment only.
+     * Each part restores on its own; views are kept in a separate part that
+     * should be restored last.
+     *
+     * @param database The database name.
+     * @param parallel How many processes to use.
+     * @return true if the backup was uploaded.
+     */
+    private boolean backupParallel(String database, int parallel) {
+        Map<String, Long> tables = new HashMap<>();
+        List<String> views = new ArrayList<>();
+        if (!listTables(database, tables, views)) {
+            return false;
+        }
+        List<List<String>> groups = groupTables(tables, parallel);
+
+        Process lock = lockTables(database, tables.keySet());
+        if (lock == null) {
+            return false;
+        }
 
-            logger.info("Dumped database '{}' to '{}'", database, databaseDump);
-            // backup!!
-            FileUtil.backupFile(database, "databases", databaseDump);
+        // nothing can be written to the tables now, so this is where the dump sits in the binlog
+        MySQLBinlog.Position position = MySQLBinlog.isEnabled() ? MySQLBinlog.readPosition(database) : null;
+        Map<String, InputStream> parts = new LinkedHashMap<>();
+        if (position != null) {
+            parts.put(database + ".binlog.json", new ByteArrayInputStream(position.toJson().toString(2).getBytes(StandardCharsets.UTF_8)));
+        }
+        CountDownLatch started = new CountDownLatch(groups.size() + (views.isEmpty() ? 0 : 1));
+        // the start is told from the structure comments, so they must not be skipped
+        List<String> dumpOptions = List.of("--single-transaction", "--comments");
+        for (int i = 0; i < groups.size(); i++) {
+            String part = String.format("%s.p%02d.sql", database, i);
+            Process dump = startDump(database, dumpOptions, groups.get(i));
+            if (dump == null) {
+                lock.destroy();
+                parts.values().forEach(IOUtils::closeQuietly);
+                return false;
+            }
+            parts.put(part, new DumpStartedInputStream(new ProcessInputStream(dump, "mysqldump of " + part), started::countDown));
+        }
+        if (!views.isEmpty()) {
+            Process dump = startDump(database, dumpOptions, views);
+            if (dump == null) {
+                lock.destroy();
+                parts.values().forEach(IOUtils::closeQuietly);
+                return false;
+            }
+            parts.put(database + ".views.sql", new DumpStartedInputStream(new ProcessInputStream(dump, "mysqldump of " + database + " views"), started::countDown));
+        }
 
+        // the parts are only read once the backup starts, so release the lock from the side
+        Thread unlocker = new Thread(() -> {
             try {
-                logger.info("Cleaning up {}", databaseDump);
-                Files.delete(Path.of(databaseDump));
-            } catch (IOException exception) {
-                RequestUtil.sendAlert("failure", "Failed Deletion", exception.getMessage(), "high");
-                logger.error("Failed to delete backup files for '{}'", databaseDump, exception);
+                if (!started.await(LOCK_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    logger.error("Dumps of '{}' did not start within {} seconds, giving up", database, LOCK_TIMEOUT_SECONDS);
+                    parts.values().forEach(IOUtils::closeQuietly);
+                }
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            } finally {
+                unlockTables(database, lock);
+            }
+        }, "unlock-" + database);
+        unlocker.setDaemon(true);
+        unlocker.start();
+
+        logger.info("Dumping database '{}' in {} parts", database, parts.size());
+        if (!FileUtil.backupStreams(database, "databases", parts)) {
+            return false;
+        }
+        if (position != null) {
+            new MySQLBinlog.State(position.file(), position.position(), 0).save(database);
+        }
+        return true;
+    }
+
+    /**
+     * Start mysqldump with its output on a pipe.
+     *
+     * @param database The database name.
+     * @param options  Extra options.
+     * @param tables   The tables to dump, empty for all of them.
+     * @return The process. NULL if it could not be started.
+     */
+    private Process startDump(String database, List<String> options, List<String> tables) {
+        List<String> command = new ArrayList<>();
+        command.add("mysqldump");
+        command.add("-u");
+        command.add(CanineBackup.getConfig().getMysqlInfo("username"));
+        command.addAll(options);
+        command.add(database);
+        command.addAll(tables);
+        try {
+            ProcessBuilder pb = new ProcessBuilder(command);
+            pb.environment().putAll(getEnv());
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+            return pb.start();
+        } catch (IOException exception) {
+            RequestUtil.sendAlert("failure", "Command Fail (" + database + ")", exception.getMessage(), "high");
+            logger.error("Failed to start mysqldump for '{}'", database, exception);
+            return null;
+        }
+    }
+
+    /**
+     * Get the tables of a database with their sizes, and its views.
+     *
+     * @return true if the lists were filled.
+     */
+    private boolean listTables(String database, Map<String, Long> tables, List<String> views) {
+        String username = CanineBackup.getConfig().getMysqlInfo("username");
+        String query = "SELECT table_name, table_type, COALESCE(data_length + index_length, 0) FROM information_schema.tables WHERE table_schema = '" + database + "'";
+        String command = "mysql -N -B -u " + username + " -e \"" + query + "\"";
+        String output = FileUtil.runCommandForOutput(database, command, getEnv());
+        if (output == null) {
+            return false;
+        }
+        for (String line : output.split("\n")) {
+            String[] columns = line.split("\t");
+            if (columns.length < 3) {
+                continue;
+            }
+            if (columns[1].equals("VIEW")) {
+                views.add(columns[0]);
+            } else {
+                try {
+                    tables.put(columns[0], Long.parseLong(columns[2].trim()));
+                } catch (NumberFormatException exception) {
+                    tables.put(columns[0], 0L);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Share tables between groups so every group holds about the same amount
+     * of data, by giving the biggest table left to the smallest group.
+     */
+    private List<List<String>> groupTables(Map<String, Long> tables, int count) {
+        int groupCount = Math.max(1, Math.min(count, tables.size()));
+        List<List<String>> groups = new ArrayList<>();
+        long[] sizes = new long[groupCount];
+        for (int i = 0; i < groupCount; i++) {
+            groups.add(new ArrayList<>());
+        }
+
+        List<Map.Entry<String, Long>> bySize = new ArrayList<>(tables.entrySet());
+        bySize.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        for (Map.Entry<String, Long> table : bySize) {
+            int smallest = 0;
+            for (int i = 1; i < groupCount; i++) {
+                if (sizes[i] < sizes[smallest]) {
+                    smallest = i;
+                }
+            }
+            groups.get(smallest).add(table.getKey());
+            sizes[smallest] += table.getValue();
+        }
+        return groups;
+    }
+
+    /**
+     * Hold a read lock on the tables of a database from a separate session.
+     * The session stays open until {@link #unlockTables} is called.
+     *
+     * @return The mysql client holding the lock. NULL if it could not be taken.
+     */
+    private Process lockTables(String database, Collection<String> tables) {
+        String username = CanineBackup.getConfig().getMysqlInfo("username");
+        Process lock;
+        try {
+            ProcessBuilder pb = new ProcessBuilder("mysql", "-N", "-B", "-u", username, database);
+            pb.environment().putAll(getEnv());
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+            lock = pb.start();
+        } catch (IOException exception) {
+            RequestUtil.sendAlert("failure", "Command Fail (" + database + ")", exception.getMessage(), "high");
+            logger.error("Failed to start mysql for '{}'", database, exception);
+            return null;
+        }
+
+        // only this database is locked, the rest of the server carries on
+        String tableList = tables.stream()
+                .map(table -> "`" + table.replace("`", "``") + "`")
+                .collect(Collectors.joining(", "));
+        try {
+            Writer writer = new OutputStreamWriter(lock.getOutputStream(), StandardCharsets.UTF_8);
+            writer.write((tables.isEmpty() ? "" : "FLUSH TABLES " + tableList + " WITH READ LOCK;\n") + "SELECT 'locked';\n");
+            writer.flush();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(lock.getInputStream(), StandardCharsets.UTF_8));
+            String line = reader.readLine();
+            if (!"locked".equals(line)) {
+                throw new IOException("Unexpected reply while locking tables: " + line);
+            }
+        } catch (IOException exception) {
+            lock.destroy();
+            RequestUtil.sendAlert("failure", "Failed Lock (" + database + ")", exception.getMessage(), "high");
+            logger.error("Failed to lock tables of '{}'", database, exception);
+            return null;
+        }
+        logger.info("Locked tables of '{}'", database);
+        return lock;
+    }
+
+    private void unlockTables(String database, Process lock) {
+        try (Writer writer = new OutputStreamWriter(lock.getOutputStream(), StandardCharsets.UTF_8)) {
+            writer.write("UNLOCK TABLES;\n");
+        } catch (IOException exception) {
+            logger.warn("Unable to unlock tables of '{}', closing the session instead", database, exception);
+        }
+        try {
+            if (!lock.waitFor(10, TimeUnit.SECONDS)) {
+                lock.destroy();
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            lock.destroy();
+        }
+        logger.info("Unlocked tables of '{}'", database);
+    }
+
+    /**
+     * Ask the server how big a database is.
+     *
+     * @param database The database name.
+     * @return The data and index size in bytes, 0 if unknown.
+     */
+    public long estimateSize(String database) {
+        String username = CanineBackup.getConfig().getMysqlInfo("username");
+        String query = "SELECT COALESCE(SUM(data_length + index_length), 0) FROM information_schema.tables WHERE table_schema = '" + database + "'";
+        String command = "mysql -N -B -u " + username + " -e \"" + query + "\"";
+        String output = FileUtil.runCommandForOutput(database, command, getEnv());
+        if (output == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(output.trim());
+        } catch (NumberFormatException exception) {
+            logger.warn("Unexpected size for database '{}': {}", database, output);
+            return 0;
+        }
+    }
+
+    static Map<String, String> getEnv() {
+        Map<String, String> env = new HashMap<>();
+        env.put("MYSQL_PWD", CanineBackup.getConfig().getMysqlInfo("password"));
+        return env;
+    }
+
+    /**
+     * Tells when a mysqldump process has started its snapshot. mysqldump only
+     * writes a table or view header after its transaction has begun, so the
+     * first one in the output means the process is past that point. The
+     * bytes before it are the session settings, which come out earlier, so
+     * the dump has to be started with {@code --comments}.
+     */
+    private static class DumpStartedInputStream extends FilterInputStream {
+
+        private static final byte[] MARKER = "structure for ".getBytes(StandardCharsets.US_ASCII);
+
+        private final Runnable onStarted;
+        private int matched;
+        private boolean started;
+
+        DumpStartedInputStream(InputStream in, Runnable onStarted) {
+            super(in);
+            this.onStarted = onStarted;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read < 0) {
+                started();
+            } else if (!started) {
+                scan((byte) read);
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = super.read(bytes, offset, length);
+            if (read < 0) {
+                started();
+            }
+            for (int i = 0; i < read && !started; i++) {
+                scan(bytes[offset + i]);
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            started();
+            super.close();
+        }
+
+        private void scan(byte value) {
+            // the marker starts with a letter it never repeats, so a mismatch only needs a fresh start
+            if (value == MARKER[matched]) {
+                matched++;
+            } else {
+                matched = value == MARKER[0] ? 1 : 0;
+            }
+            if (matched == MARKER.length) {
+                started();
+            }
+        }
+
+        private void started() {
+            if (!started) {
+                started = true;
+                onStarted.run();
             }
         }
     }
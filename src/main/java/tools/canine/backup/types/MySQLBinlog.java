@@ -0,0 +1,444 @@
+package tools.canine.backup.types;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import software.amazon.awssdk.services.s3.model.S3Object;
+import tools.canine.backup.CanineBackup;
+import tools.canine.backup.utils.AWSUtils;
+import tools.canine.backup.utils.FileUtil;
+import tools.canine.backup.utils.RequestUtil;
+import tools.canine.backup.utils.RestoreUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Incremental MySQL backups from the binary log, between full dumps.
+ * <p>
+ * With {@code backup.mysqlBinlog}, every full dump records the binlog
+ * position it was taken at, in the archive as {@code <database>.binlog.json}
+ * and in {@code manifests/databases/<database>.binlog.json}. The runs after it
+ * rotate the log and ship only the binlog files closed since, as an
+ * incremental ({@code .inc}) archive through the usual compress, encrypt and
+ * upload path, until {@code backup.mysqlFullEvery} runs call for a new dump.
+ * Binlogs hold every database on the server; restoring replays only the
+ * events of the one being restored.
+ * <p>
+ * Reading the binlogs needs the REPLICATION CLIENT, REPLICATION SLAVE and
+ * RELOAD privileges, and they have to be kept on the server for longer than
+ * the gap between runs. If the file a run should start from was purged, it
+ * makes a full dump instead.
+ */
+public class MySQLBinlog {
+
+    private static final Logger logger = LogManager.getLogger(MySQLBinlog.class);
+
+    private static final String FOLDER = "databases";
+
+    /**
+     * The entry of an incremental archive that says what its binlogs hold.
+     */
+    private static final String INFO_ENTRY = "binlog.json";
+
+    private static final DateTimeFormatter KEY_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss");
+
+    private static final DateTimeFormatter MYSQL_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    /**
+     * What follows {@code <database>_} in the key of an archive.
+     */
+    private static final Pattern ARCHIVE_KEY = Pattern.compile("(\\d{4}-\\d{2}-\\d{2}_\\d{2}-\\d{2}-\\d{2})(\\.inc)?(\\.zip\\.gpg|" + Pattern.quote(FileUtil.TAR_EXTENSION) + "|" + Pattern.quote(FileUtil.SEEKABLE_EXTENSION) + ")");
+
+    /**
+     * Check whether MySQL backups use the binary log between full dumps.
+     *
+     * @return true if {@code backup.mysqlBinlog} is set.
+     */
+    public static boolean isEnabled() {
+        return CanineBackup.getConfig().getBackupBoolean("mysqlBinlog", false);
+    }
+
+    /**
+     * Read where the binary log is now. Newer servers renamed the statement,
+     * so both names are tried.
+     *
+     * @param database The database being dumped, for alerts.
+     * @return The position, NULL if binary logging is off or the server could not be asked.
+     */
+    static Position readPosition(String database) {
+        String username = CanineBackup.getConfig().getMysqlInfo("username");
+        String client = "mysql -N -B -u " + username;
+        String output = FileUtil.runCommandForOutput(database,
+                client + " -e \"SHOW BINARY LOG STATUS\" 2>/dev/null || " + client + " -e \"SHOW MASTER STATUS\"", MySQL.getEnv());
+        if (output == null || output.isBlank()) {
+            logger.error("Unable to read the binlog position for '{}', is binary logging on?", database);
+            return null;
+        }
+        String[] columns = output.strip().split("\t");
+        try {
+            return new Position(columns[0], Long.parseLong(columns[1].trim()));
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException exception) {
+            logger.error("Unexpected binlog status for '{}': {}", database, output);
+            return null;
+        }
+    }
+
+    /**
+     * Check whether this run can be a binlog incremental.
+     *
+     * @param database The database.
+     * @return The state left by the last run, NULL if this one has to be a full dump.
+     */
+    static State startIncremental(String database) {
+        State state = State.load(database);
+        if (state == null) {
+            return null;
+        }
+        int fullEvery = CanineBackup.getConfig().getBackupInt("mysqlFullEvery", 24);
+        if (state.runsSinceFull() + 1 >= fullEvery) {
+            return null;
+        }
+        return state;
+    }
+
+    /**
+     * Ship the binlogs written since the last run.
+     *
+     * @param database The database.
+     * @param state    Where the last run stopped.
+     * @return true if uploaded, false if it failed, NULL if the binlogs
+     * needed are gone and a full dump has to be taken instead.
+     */
+    static Boolean backupIncremental(String database, State state) {
+        String username = CanineBackup.getConfig().getMysqlInfo("username");
+        // close the current file, so every file shipped is complete
+        if (!FileUtil.runCommand(database, "mysql -u " + username + " -e \"FLUSH BINARY LOGS\"", MySQL.getEnv())) {
+            return false;
+        }
+        String output = FileUtil.runCommandForOutput(database, "mysql -N -B -u " + username + " -e \"SHOW BINARY LOGS\"", MySQL.getEnv());
+        if (output == null) {
+            return false;
+        }
+        List<String> logs = output.lines()
+                .map(line -> line.split("\t")[0].strip())
+                .filter(name -> !name.isEmpty())
+                .toList();
+        int first = logs.indexOf(state.file());
+        if (first < 0) {
+            RequestUtil.sendAlert("failure", "Binlog Gap (" + database + ")", "'" + state.file() + "' is no longer on the server, taking a full dump", "high");
+            logger.warn("Binlog '{}' of '{}' is gone, taking a full dump instead", state.file(), database);
+            return null;
+        }
+        // the last file is the one just opened, the next run starts with it
+        List<String> files = logs.subList(first, logs.size() - 1);
+        String next = logs.getLast();
+        if (files.isEmpty()) {
+            logger.warn("No binlog of '{}' was closed since '{}'", database, state.file());
+            return false;
+        }
+
+        Path directory = Path.of("work", "binlog", database);
+        try {
+            FileUtils.deleteDirectory(directory.toFile());
+            Files.createDirectories(directory);
+        } catch (IOException exception) {
+            RequestUtil.sendAlert("failure", "Failed Backup (" + database + ")", exception.getMessage(), "high");
+            logger.error("Unable to create '{}'", directory, exception);
+            return false;
+        }
+        try {
+            String command = "mysqlbinlog --read-from-remote-server --raw -u " + username
+                    + " --result-file=" + directory.toAbsolutePath() + File.separator + " " + String.join(" ", files);
+            logger.info("Fetching {} binlog(s) for '{}', from '{}' at {}", files.size(), database, state.file(), state.position());
+            if (!FileUtil.runCommand(database, command, MySQL.getEnv())) {
+                return false;
+            }
+
+            JSONObject info = new JSONObject();
+            info.put("database", database);
+            info.put("startFile", state.file());
+            info.put("startPosition", state.position());
+            info.put("files", new JSONArray(files));
+            Files.writeString(directory.resolve(INFO_ENTRY), info.toString(2));
+
+            if (!FileUtil.backupIncrementalPath(database, FOLDER, directory.toString())) {
+                return false;
+            }
+            new State(next, 0, state.runsSinceFull() + 1).save(database);
+            return true;
+        } catch (IOException exception) {
+            RequestUtil.sendAlert("failure", "Failed Backup (" + database + ")", exception.getMessage(), "high");
+            logger.error("Unable to stage binlogs of '{}'", database, exception);
+            return false;
+        } finally {
+            FileUtils.deleteQuietly(directory.toFile());
+        }
+    }
+
+    /**
+     * Restore a database to a point in time: load the last full dump taken
+     * before it, then replay the binlogs shipped after that dump up to it.
+     * The archives are downloaded to {@code work/restore/<database>} first.
+     *
+     * @param database The database that was backed up.
+     * @param until    The time to stop at, as {@code yyyy-MM-dd HH:mm:ss} in
+     *                 the server's time zone, or {@code latest}.
+     * @param target   The database to restore into. It is created if needed.
+     * @return true if everything was restored.
+     */
+    public static boolean restore(String database, String until, String target) {
+        LocalDateTime stop = null;
+        if (!until.equalsIgnoreCase("latest")) {
+            try {
+                stop = LocalDateTime.parse(until.replace('T', ' '), MYSQL_TIME);
+            } catch (DateTimeParseException exception) {
+                logger.error("'{}' is not a time like 2024-01-31 23:59:59, or latest", until);
+                return false;
+            }
+        }
+
+        List<String> chain = findChain(database, stop);
+        if (chain.isEmpty()) {
+            logger.error("No full backup of '{}' was taken before {}", database, until);
+            return false;
+        }
+        logger.info("Restoring '{}' into '{}' from {} archive(s), up to {}", database, target, chain.size(), until);
+
+        Path work = Path.of("work", "restore", database);
+        try {
+            FileUtils.deleteDirectory(work.toFile());
+            String username = CanineBackup.getConfig().getMysqlInfo("username");
+            String createDatabase = "CREATE DATABASE IF NOT EXISTS `" + target.replace("`", "``") + "`";
+            if (!FileUtil.runCommand(target, "mysql -u " + username + " -e '" + createDatabase + "'", MySQL.getEnv())) {
+                return false;
+            }
+
+            for (int i = 0; i < chain.size(); i++) {
+                String key = chain.get(i);
+                Path directory = work.resolve(String.valueOf(i));
+                if (!RestoreUtil.restore(key, directory.toString(), List.of())) {
+                    return false;
+                }
+                boolean restored = i == 0 ? loadDump(directory, target) : replay(directory, database, target, stop);
+                if (!restored) {
+                    logger.error("Restoring '{}' from '{}' failed", database, key);
+                    return false;
+                }
+                FileUtils.deleteDirectory(directory.toFile());
+            }
+        } catch (IOException exception) {
+            RequestUtil.sendAlert("failure", "Failed Restore", database + " failed to restore because: " + exception.getMessage(), "max");
+            logger.error("Unable to restore '{}'", database, exception);
+            return false;
+        } finally {
+            FileUtils.deleteQuietly(work.toFile());
+        }
+        logger.info("Restored '{}' into '{}' up to {}", database, target, until);
+        return true;
+    }
+
+    /**
+     * Pick the archives to restore: the last full backup at or before the
+     * time, then every incremental after it up to the first one taken at or
+     * after the time, which holds the events leading up to it.
+     */
+    private static List<String> findChain(String database, LocalDateTime stop) {
+        String prefix = FOLDER + "/" + database + "_";
+        TreeMap<LocalDateTime, String> archives = new TreeMap<>();
+        Map<String, Boolean> incremental = new TreeMap<>();
+        for (S3Object object : AWSUtils.listObjects(prefix)) {
+            Matcher matcher = ARCHIVE_KEY.matcher(object.key().substring(prefix.length()));
+            if (!matcher.matches()) {
+                continue;
+            }
+            archives.put(LocalDateTime.parse(matcher.group(1), KEY_TIME), object.key());
+            incremental.put(object.key(), matcher.group(2) != null);
+        }
+
+        List<String> chain = new ArrayList<>();
+        for (Map.Entry<LocalDateTime, String> archive : archives.entrySet()) {
+            boolean isIncremental = incremental.get(archive.getValue());
+            boolean afterStop = stop != null && archive.getKey().isAfter(stop);
+            if (!isIncremental) {
+                if (afterStop) {
+                    break;
+                }
+                // a later full dump starts a new chain
+                chain.clear();
+                chain.add(archive.getValue());
+            } else if (!chain.isEmpty()) {
+                chain.add(archive.getValue());
+                if (afterStop) {
+                    break;
+                }
+            }
+        }
+        return chain;
+    }
+
+    /**
+     * Load a full dump. The parts load in name order, views last, since they
+     * can refer to any table.
+     */
+    private static boolean loadDump(Path directory, String target) throws IOException {
+        List<Path> parts;
+        try (Stream<Path> files = Files.list(directory)) {
+            parts = new ArrayList<>(files.filter(path -> path.toString().endsWith(".sql")).sorted().toList());
+        }
+        parts.sort((first, second) -> Boolean.compare(first.toString().endsWith(".views.sql"), second.toString().endsWith(".views.sql")));
+        String username = CanineBackup.getConfig().getMysqlInfo("username");
+        for (Path part : parts) {
+            logger.info("Loading '{}' into '{}'", part.getFileName(), target);
+            ProcessBuilder pb = new ProcessBuilder("mysql", "-u", username, target);
+            pb.environment().putAll(MySQL.getEnv());
+            pb.redirectInput(part.toFile());
+            pb.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+            if (!waitFor(pb.start(), "mysql < " + part.getFileName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replay the binlogs of an incremental archive into the target, keeping
+     * only the events of the database that was backed up.
+     */
+    private static boolean replay(Path directory, String database, String target, LocalDateTime stop) throws IOException {
+        JSONObject info = new JSONObject(Files.readString(directory.resolve(INFO_ENTRY), StandardCharsets.UTF_8));
+        List<String> command = getReplayCommand(directory, info, database, target, stop);
+
+        logger.info("Replaying {} binlog(s) from '{}' into '{}'", info.getJSONArray("files").length(), info.getString("startFile"), target);
+        String username = CanineBackup.getConfig().getMysqlInfo("username");
+        ProcessBuilder decode = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT);
+        ProcessBuilder apply = new ProcessBuilder("mysql", "-u", username)
+                .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                .redirectError(ProcessBuilder.Redirect.INHERIT);
+        apply.environment().putAll(MySQL.getEnv());
+        List<Process> pipeline = ProcessBuilder.startPipeline(List.of(decode, apply));
+        return waitFor(pipeline.get(0), "mysqlbinlog") & waitFor(pipeline.get(1), "mysql");
+    }
+
+    /**
+     * Build the mysqlbinlog command for an incremental archive. mysqlbinlog
+     * rewrites the database before it filters on it, so when restoring
+     * into another database the filter has to name the target.
+     *
+     * @param directory Where the archive was unpacked.
+     * @param info      The archive's {@value #INFO_ENTRY}.
+     * @param database  The database that was backed up.
+     * @param target    The database to restore into.
+     * @param stop      Where to stop, NULL to replay everything.
+     * @return The command.
+     */
+    static List<String> getReplayCommand(Path directory, JSONObject info, String database, String target, LocalDateTime stop) {
+        List<String> command = new ArrayList<>(Arrays.asList("mysqlbinlog", "--database=" + target));
+        if (info.getLong("startPosition") > 0) {
+            // only applies to the first file, which the full dump started part way through
+            command.add("--start-position=" + info.getLong("startPosition"));
+        }
+        if (stop != null) {
+            command.add("--stop-datetime=" + stop.format(MYSQL_TIME));
+        }
+        if (!target.equals(database)) {
+            command.add("--rewrite-db=" + database + "->" + target);
+        }
+        for (Object file : info.getJSONArray("files")) {
+            command.add(directory.resolve((String) file).toString());
+        }
+        return command;
+    }
+
+    private static boolean waitFor(Process process, String name) throws IOException {
+        try {
+            int exitCode = process.waitFor();
+            if (exitCode != 0) {
+                logger.error("{} failed (exit code {})", name, exitCode);
+                return false;
+            }
+            return true;
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            process.destroy();
+            throw new IOException("Interrupted while waiting for " + name, exception);
+        }
+    }
+
+    /**
+     * A place in the binary log.
+     */
+    record Position(String file, long position) {
+
+        JSONObject toJson() {
+            JSONObject json = new JSONObject();
+            json.put("file", file);
+            json.put("position", position);
+            return json;
+        }
+    }
+
+    /**
+     * Where the next run of a database starts reading the binary log.
+     *
+     * @param file          The first binlog it needs.
+     * @param position      Where in that file, 0 for the start.
+     * @param runsSinceFull How many incrementals followed the last full dump.
+     */
+    record State(String file, long position, int runsSinceFull) {
+
+        static State load(String database) {
+            Path path = getPath(database);
+            if (!Files.exists(path)) {
+                return null;
+            }
+            try {
+                JSONObject json = new JSONObject(Files.readString(path, StandardCharsets.UTF_8));
+                return new State(json.getString("file"), json.getLong("position"), json.getInt("runsSinceFull"));
+            } catch (IOException | RuntimeException exception) {
+                logger.warn("Unable to read '{}', taking a full dump", path, exception);
+                return null;
+            }
+        }
+
+        /**
+         * Remember where to carry on, once the archive is safely uploaded.
+         */
+        void save(String database) {
+            Path path = getPath(database);
+            JSONObject json = new JSONObject();
+            json.put("file", file);
+            json.put("position", position);
+            json.put("runsSinceFull", runsSinceFull);
+            try {
+                Files.createDirectories(path.getParent());
+                Files.writeString(path, json.toString(2));
+            } catch (IOException exception) {
+                // the next run takes a full dump, or ships the same binlogs again
+                RequestUtil.sendAlert("failure", "Failed Manifest", exception.getMessage(), "high");
+                logger.error("Unable to save binlog state '{}'", path, exception);
+            }
+        }
+
+        private static Path getPath(String database) {
+            return Path.of("manifests", FOLDER, database + ".binlog.json");
+        }
+    }
+}
@@ -12,8 +12,12 @@ public class StaticFiles {
         this.localPath = localPath;
     }
 
-    public void backup() {
+    public boolean backup() {
         // backup the path!
-        FileUtil.backupPath(name, name, localPath);
+        return FileUtil.backupPath(name, name, localPath);
+    }
+
+    public long estimateSize() {
+        return FileUtil.sizeOf(name, localPath);
     }
 }
@@ -1,50 +1,119 @@
 package tools.canine.backup.utils;
 
+import org.apache.commons.io.input.BoundedInputStream;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
 import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.S3Configuration;
-import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.ChecksumAlgorithm;
+import software.amazon.awssdk.services.s3.model.ChecksumMode;
+import software.amazon.awssdk.services.s3.model.ChecksumType;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.Delete;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
 import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListPartsRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.NoSuchUploadException;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Error;
 import software.amazon.awssdk.services.s3.model.S3Object;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
 import tools.canine.backup.CanineBackup;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
 
 public class AWSUtils {
 
     private static final Logger logger = LogManager.getLogger(AWSUtils.class);
 
+    /**
+     * S3 refuses uploads with more parts than this.
+     */
+    private static final int MAX_PARTS = 10000;
+
+    /**
+     * S3 deletes at most this many keys per request.
+     */
+    private static final int DELETE_BATCH = 1000;
+
+    private static S3Client client;
+    private static ExecutorService uploadExecutor;
+    private static ExecutorService downloadExecutor;
+
     public static boolean uploadFile(String toUpload, String destination) {
-        String endPoint = CanineBackup.getConfig().getAwsInfo("endpoint").replaceAll("/+$", "");
-        String accessKey = CanineBackup.getConfig().getAwsInfo("accessKey");
-        String secretKey = CanineBackup.getConfig().getAwsInfo("secretKey");
+        return uploadFile(toUpload, destination, null);
+    }
+
+    /**
+     * Upload a file, sending checksums worked out while it was written so
+     * S3 can check every part and the whole object as it stores them.
+     *
+     * @param toUpload    The file.
+     * @param destination The key to upload to.
+     * @param checksums   The file's checksums, NULL to let the SDK work out its own.
+     * @return true if the upload worked.
+     */
+    public static boolean uploadFile(String toUpload, String destination, Checksums checksums) {
         String bucket = CanineBackup.getConfig().getAwsInfo("bucket");
 
         try {
-            S3Client s3 = S3Client.builder()
-                    .endpointOverride(URI.create(endPoint))
-                    .credentialsProvider(StaticCredentialsProvider.create(
-                            AwsBasicCredentials.create(accessKey, secretKey)))
-                    .region(Region.US_EAST_1)
-                    .serviceConfiguration(S3Configuration.builder().pathStyleAccessEnabled(true).chunkedEncodingEnabled(false).build())
-                    .build();
-
-            PutObjectRequest putObjectRequest = PutObjectRequest.builder()
-                    .bucket(bucket)
-                    .key(destination)
-                    .build();
+            Path file = Paths.get(toUpload);
+            long size = Files.size(file);
+            if (checksums != null && checksums.getSize() != size) {
+                throw new IOException("The file changed after its checksums were worked out");
+            }
+            int partSize = getPartSize();
+            if (size <= partSize) {
+                PutObjectRequest.Builder putObjectRequest = PutObjectRequest.builder()
+                        .bucket(bucket)
+                        .key(destination);
+                if (checksums != null) {
+                    putObjectRequest.checksumCRC32C(Checksums.toHeader(checksums.getCrc32c()));
+                }
 
-            s3.putObject(putObjectRequest, RequestBody.fromFile(Paths.get(toUpload)));
-            s3.close();
+                Throttle.forUploads().acquire(size);
+                getClient().putObject(putObjectRequest.build(), RequestBody.fromFile(file));
+            } else {
+                uploadMultipart(file, size, bucket, destination, partSize, checksums, Throttle.forUploads());
+            }
             return true;
         } catch (Exception exception) {
             String description = toUpload + " failed to upload because: " + exception.getMessage();
@@ -54,50 +123,530 @@ public class AWSUtils {
         }
     }
 
-    public static void clean(String prefix, int keepCount) {
-        String endPoint = CanineBackup.getConfig().getAwsInfo("endpoint").replaceAll("/+$", "");
-        String accessKey = CanineBackup.getConfig().getAwsInfo("accessKey");
-        String secretKey = CanineBackup.getConfig().getAwsInfo("secretKey");
-        String bucket = CanineBackup.getConfig().getAwsInfo("bucket");
+    /**
+     * Upload a file in parts, several at a time. Each part is read straight
+     * from the file when it is sent, so only the HTTP buffers are in memory.
+     * Once a part fails no more are started.
+     * <p>
+     * Finished parts are written to an {@link UploadJournal}. If the upload
+     * fails, it is left open and the journal kept, so uploading the same file
+     * to the same key again carries on from the parts S3 already has.
+     */
+    private static void uploadMultipart(Path file, long size, String bucket, String destination, int partSize, Checksums checksums, Throttle throttle) throws Exception {
+        // raise the part size if the file would need too many parts, keeping it on a checksum block boundary
+        long needed = (size + MAX_PARTS - 1) / MAX_PARTS;
+        long effectivePartSize = Math.max(partSize, (needed + Checksums.BLOCK_SIZE - 1) / Checksums.BLOCK_SIZE * Checksums.BLOCK_SIZE);
+        int partCount = (int) ((size + effectivePartSize - 1) / effectivePartSize);
+        S3Client s3 = getClient();
 
-        try (S3Client s3 = S3Client.builder()
-                .endpointOverride(URI.create(endPoint))
-                .credentialsProvider(StaticCredentialsProvider.create(
-                        AwsBasicCredentials.create(accessKey, secretKey)))
-                .region(Region.US_EAST_1)
-                .serviceConfiguration(S3Configuration.builder()
-                        .pathStyleAccessEnabled(true)
-                        .chunkedEncodingEnabled(false)
-                        .build())
-                .build()) {
-            ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
+        UploadJournal journal = resumeJournal(file, bucket, destination, effectivePartSize);
+        if (journal == null) {
+            CreateMultipartUploadRequest.Builder request = CreateMultipartUploadRequest.builder()
                     .bucket(bucket)
-                    .prefix(prefix)
-                    .build();
+                    .key(destination);
+            if (checksums != null) {
+                request.checksumAlgorithm(ChecksumAlgorithm.CRC32_C).checksumType(ChecksumType.FULL_OBJECT);
+            }
+            String uploadId = s3.createMultipartUpload(request.build()).uploadId();
+            journal = UploadJournal.create(destination, uploadId, file, effectivePartSize, checksums);
+            logger.info("Uploading '{}' in {} parts of {} bytes", destination, partCount, effectivePartSize);
+        } else {
+            logger.info("Resuming upload of '{}', {} of {} parts are already uploaded", destination, journal.getParts().size(), partCount);
+        }
+        String uploadId = journal.getUploadId();
+        UploadJournal checkpoint = journal;
+        // the upload was started with or without checksums, so go by what it was started with
+        Checksums partChecksums = journal.getChecksums();
 
-            List<S3Object> allFiles = new ArrayList<>(s3.listObjectsV2(listRequest).contents());
+        Semaphore inFlight = new Semaphore(getPartsInFlight());
+        List<Future<?>> parts = new ArrayList<>();
+        AtomicBoolean failed = new AtomicBoolean();
+        try {
+            for (int number = 1; number <= partCount; number++) {
+                if (checkpoint.getParts().containsKey(number)) {
+                    continue;
+                }
+                long offset = (number - 1) * effectivePartSize;
+                long length = Math.min(effectivePartSize, size - offset);
+                int partNumber = number;
 
-            allFiles.sort((a, b) -> b.lastModified().compareTo(a.lastModified()));
-            if (allFiles.size() <= keepCount) {
-                logger.info("No old backups to delete; total backups: {}", allFiles.size());
-                return;
+                inFlight.acquire();
+                if (failed.get()) {
+                    // the failed part is thrown below, the rest are left for the resume
+                    inFlight.release();
+                    break;
+                }
+                parts.add(getUploadExecutor().submit(() -> {
+                    try {
+                        // the SDK may read a body more than once, so pay for each part up front
+                        throttle.acquire(length);
+                        UploadPartRequest.Builder request = UploadPartRequest.builder()
+                                .bucket(bucket)
+                                .key(destination)
+                                .uploadId(uploadId)
+                                .partNumber(partNumber)
+                                .contentLength(length);
+                        if (partChecksums != null) {
+                            setPartChecksum(request, partChecksums.getCrc32c(offset, length));
+                        }
+                        String eTag = s3.uploadPart(request.build(),
+                                RequestBody.fromContentProvider(() -> openRange(file, offset, length), length, "application/octet-stream")).eTag();
+                        checkpoint.recordPart(partNumber, eTag);
+                        logger.debug("Uploaded part {} of '{}' ({} bytes)", partNumber, destination, length);
+                        return null;
+                    } catch (Throwable throwable) {
+                        failed.set(true);
+                        throw throwable;
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+            }
+            for (Future<?> part : parts) {
+                part.get();
             }
 
-            List<S3Object> toDelete = allFiles.subList(keepCount, allFiles.size());
+            List<CompletedPart> completed = new ArrayList<>();
+            long partLength = effectivePartSize;
+            checkpoint.getParts().forEach((number, eTag) -> {
+                CompletedPart.Builder part = CompletedPart.builder().partNumber(number).eTag(eTag);
+                if (partChecksums != null) {
+                    long offset = (number - 1) * partLength;
+                    long crc = partChecksums.getCrc32c(offset, Math.min(partLength, size - offset));
+                    if (crc >= 0) {
+                        part.checksumCRC32C(Checksums.toHeader(crc));
+                    }
+                }
+                completed.add(part.build());
+            });
+            CompleteMultipartUploadRequest.Builder request = CompleteMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(destination)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(completed).build());
+            if (partChecksums != null) {
+                // S3 works out the CRC-32C of the assembled object and refuses it if this differs
+                request.checksumCRC32C(Checksums.toHeader(partChecksums.getCrc32c())).checksumType(ChecksumType.FULL_OBJECT);
+            }
+            s3.completeMultipartUpload(request.build());
+            checkpoint.delete();
+        } catch (Exception exception) {
+            parts.forEach(part -> part.cancel(true));
+            // the upload stays open for the next run, abortOrphanedUploads cleans up what is never resumed
+            checkpoint.close();
+            throw exception;
+        }
+    }
 
-            for (S3Object object : toDelete) {
-                logger.info("Deleting old backup: {}", object.key());
-                s3.deleteObject(DeleteObjectRequest.builder()
-                        .bucket(bucket)
-                        .key(object.key())
-                        .build());
+    /**
+     * Send a part's CRC-32C, or have the SDK work it out if the part does
+     * not line up with the checksum blocks.
+     *
+     * @param request The part upload.
+     * @param crc     The part's CRC-32C, -1 if unknown.
+     */
+    private static void setPartChecksum(UploadPartRequest.Builder request, long crc) {
+        if (crc >= 0) {
+            request.checksumCRC32C(Checksums.toHeader(crc));
+        } else {
+            request.checksumAlgorithm(ChecksumAlgorithm.CRC32_C);
+        }
+    }
+
+    /**
+     * Pick up the journal of an earlier upload of the same file, keeping only
+     * the parts S3 still has. A journal for a different file, or for an
+     * upload S3 no longer knows, is thrown away.
+     *
+     * @return The journal, or NULL to start a new upload.
+     */
+    private static UploadJournal resumeJournal(Path file, String bucket, String destination, long partSize) throws IOException {
+        UploadJournal journal = UploadJournal.load(destination);
+        if (journal == null) {
+            return null;
+        }
+        if (!file.toAbsolutePath().equals(journal.getFile()) || !journal.matchesFile() || journal.getPartSize() != partSize) {
+            logger.info("Discarding the unfinished upload of '{}', the file has changed", destination);
+            abortUpload(bucket, destination, journal.getUploadId());
+            journal.delete();
+            return null;
+        }
+
+        Map<Integer, String> uploaded = new HashMap<>();
+        try {
+            getClient().listPartsPaginator(ListPartsRequest.builder()
+                            .bucket(bucket)
+                            .key(destination)
+                            .uploadId(journal.getUploadId())
+                            .build())
+                    .parts()
+                    .forEach(part -> uploaded.put(part.partNumber(), part.eTag()));
+        } catch (NoSuchUploadException exception) {
+            logger.info("The unfinished upload of '{}' is gone, starting again", destination);
+            journal.delete();
+            return null;
+        }
+        journal.getParts().entrySet().removeIf(part -> !part.getValue().equals(uploaded.get(part.getKey())));
+        return journal;
+    }
+
+    /**
+     * Abort the multipart uploads this host started that nobody is going to
+     * finish: those whose journal points at a file that is gone or changed,
+     * and streamed ones started more than {@code aws.orphanUploadHours} ago,
+     * cut off by a crash. Uploads without a journal here are left alone, the
+     * bucket may be shared with other hosts and tools. Only run this while
+     * nothing is uploading.
+     */
+    public static void abortOrphanedUploads() {
+        String bucket = CanineBackup.getConfig().getAwsInfo("bucket");
+        long cutoff = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(CanineBackup.getConfig().getAwsInt("orphanUploadHours", 24));
+        try {
+            int aborted = 0;
+            for (Path path : UploadJournal.list()) {
+                UploadJournal journal = UploadJournal.load(path);
+                if (journal == null) {
+                    Files.delete(path);
+                    continue;
+                }
+                journal.close();
+                if (journal.isStreamed()) {
+                    if (journal.getCreated() >= cutoff) {
+                        continue;
+                    }
+                    logger.info("Aborting orphaned streamed upload of '{}'", journal.getKey());
+                } else if (!journal.matchesFile()) {
+                    logger.info("Aborting upload of '{}', its file is gone", journal.getKey());
+                } else {
+                    continue;
+                }
+                if (abortUpload(bucket, journal.getKey(), journal.getUploadId())) {
+                    journal.delete();
+                    aborted++;
+                }
+            }
+            if (aborted > 0) {
+                logger.info("Aborted {} orphaned upload(s)", aborted);
             }
+        } catch (Exception exception) {
+            logger.error("Unable to clean up orphaned uploads", exception);
+        }
+    }
+
+    /**
+     * Abort a multipart upload.
+     *
+     * @return true if it is gone, false if it could not be aborted.
+     */
+    private static boolean abortUpload(String bucket, String key, String uploadId) {
+        try {
+            getClient().abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .build());
+        } catch (NoSuchUploadException exception) {
+            // already gone
+        } catch (Exception exception) {
+            logger.error("Unable to abort multipart upload of '{}'", key, exception);
+            return false;
+        }
+        return true;
+    }
+
+    private static InputStream openRange(Path file, long offset, long length) {
+        try {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            channel.position(offset);
+            return BoundedInputStream.builder()
+                    .setInputStream(Channels.newInputStream(channel))
+                    .setMaxCount(length)
+                    .get();
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    /**
+     * Open a stream that uploads straight to S3 as it is written.
+     *
+     * @param destination The key to upload to.
+     * @return The stream, or null if the upload could not be started.
+     */
+    public static S3UploadStream openUploadStream(String destination) {
+        String bucket = CanineBackup.getConfig().getAwsInfo("bucket");
+
+        try {
+            return new S3UploadStream(getClient(), getUploadExecutor(), bucket, destination, getPartSize(), getPartsInFlight(), Throttle.forUploads(),
+                    Checksums.isEnabled() ? new Checksums() : null);
+        } catch (Exception exception) {
+            RequestUtil.sendAlert("failure", "Failed Upload", destination + " failed to start uploading because: " + exception.getMessage(), "max");
+            logger.error("Unable to open upload stream", exception);
+            return null;
+        }
+    }
+
+    /**
+     * Open a stream that downloads an object with several ranged GETs at once.
+     *
+     * @param key The key to download.
+     * @return The stream, or null if the object could not be found.
+     */
+    public static S3DownloadStream openDownloadStream(String key) {
+        String bucket = CanineBackup.getConfig().getAwsInfo("bucket");
+
+        try {
+            return new S3DownloadStream(getClient(), getDownloadExecutor(), bucket, key, getDownloadPartSize(), getDownloadPartsAhead());
+        } catch (Exception exception) {
+            RequestUtil.sendAlert("failure", "Failed Download", key + " failed to start downloading because: " + exception.getMessage(), "max");
+            logger.error("Unable to open download stream", exception);
+            return null;
+        }
+    }
+
+    /**
+     * Open a stream that downloads part of an object with several ranged GETs at once.
+     *
+     * @param key   The key to download.
+     * @param start The first byte to download.
+     * @param end   Where to stop, exclusive.
+     * @return The stream, or null if the download could not be started.
+     */
+    public static S3DownloadStream openDownloadStream(String key, long start, long end) {
+        String bucket = CanineBackup.getConfig().getAwsInfo("bucket");
+
+        try {
+            return new S3DownloadStream(getClient(), getDownloadExecutor(), bucket, key, start, end, getDownloadPartSize(), getDownloadPartsAhead());
+        } catch (Exception exception) {
+            RequestUtil.sendAlert("failure", "Failed Download", key + " failed to start downloading because: " + exception.getMessage(), "max");
+            logger.error("Unable to open download stream", exception);
+            return null;
+        }
+    }
+
+    /**
+     * Upload a small object from memory.
+     *
+     * @param destination The key to upload to.
+     * @param data        The contents.
+     */
+    public static void putObject(String destination, byte[] data) {
+        putObject(destination, data, Throttle.forUploads());
+    }
+
+    /**
+     * Upload a small object from memory, held to a rate.
+     *
+     * @param destination The key to upload to.
+     * @param data        The contents.
+     * @param throttle    The upload throttle, picked on the job's thread.
+     */
+    public static void putObject(String destination, byte[] data, Throttle throttle) {
+        String bucket = CanineBackup.getConfig().getAwsInfo("bucket");
+        PutObjectRequest.Builder request = PutObjectRequest.builder()
+                .bucket(bucket)
+                .key(destination);
+        if (Checksums.isEnabled()) {
+            CRC32C crc = new CRC32C();
+            crc.update(data);
+            request.checksumCRC32C(Checksums.toHeader(crc.getValue()));
+        }
+        throttle.acquireUnchecked(data.length);
+        getClient().putObject(request.build(), RequestBody.fromBytes(data));
+    }
+
+    /**
+     * Download a small object into memory.
+     *
+     * @param key The key.
+     * @return The contents, or NULL if there is no such object.
+     */
+    public static byte[] getObjectIfExists(String key) {
+        String bucket = CanineBackup.getConfig().getAwsInfo("bucket");
+        try {
+            return getClient().getObjectAsBytes(GetObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .build()).asByteArray();
+        } catch (NoSuchKeyException exception) {
+            return null;
+        }
+    }
 
-            logger.info("Deleted {} old backup(s)", toDelete.size());
+    /**
+     * Check an uploaded archive against its checksum manifest without
+     * downloading it: the size and the CRC-32C S3 keeps for the object have
+     * to match what was worked out while it was written.
+     *
+     * @param key The archive's key.
+     * @return true if it matches.
+     */
+    public static boolean verifyObject(String key) {
+        String bucket = CanineBackup.getConfig().getAwsInfo("bucket");
+        try {
+            byte[] manifest = getObjectIfExists(key + Checksums.MANIFEST_EXTENSION);
+            if (manifest == null) {
+                logger.error("'{}' has no checksums to verify against", key);
+                return false;
+            }
+            Checksums expected = Checksums.fromJson(new JSONObject(new String(manifest, StandardCharsets.UTF_8)));
+            HeadObjectResponse head = getClient().headObject(HeadObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .checksumMode(ChecksumMode.ENABLED)
+                    .build());
 
+            String problem = null;
+            if (head.contentLength() != expected.getSize()) {
+                problem = "size is " + head.contentLength() + ", expected " + expected.getSize();
+            } else if (head.checksumCRC32C() != null && !head.checksumCRC32C().equals(Checksums.toHeader(expected.getCrc32c()))) {
+                problem = "CRC-32C is " + head.checksumCRC32C() + ", expected " + Checksums.toHeader(expected.getCrc32c());
+            }
+            if (problem != null) {
+                RequestUtil.sendAlert("failure", "Verification Failed", key + " does not match its checksums: " + problem, "max");
+                logger.error("'{}' does not match its checksums: {}", key, problem);
+                return false;
+            }
+            if (head.checksumCRC32C() == null) {
+                logger.warn("The store keeps no CRC-32C for '{}', only its size was checked", key);
+            } else {
+                logger.info("'{}' matches its checksums ({} bytes, CRC-32C {})", key, expected.getSize(), head.checksumCRC32C());
+            }
+            return true;
         } catch (Exception exception) {
-            RequestUtil.sendAlert("failure", "Cleanup Failed", exception.getMessage(), "high");
-            logger.error("Failed to clean up old backups", exception);
+            RequestUtil.sendAlert("failure", "Verification Failed", key + " could not be verified because: " + exception.getMessage(), "max");
+            logger.error("Unable to verify '{}'", key, exception);
+            return false;
+        }
+    }
+
+    /**
+     * List every object under a prefix, following continuation tokens.
+     *
+     * @param prefix The prefix.
+     * @return The objects.
+     */
+    public static List<S3Object> listObjects(String prefix) {
+        String bucket = CanineBackup.getConfig().getAwsInfo("bucket");
+        List<S3Object> objects = new ArrayList<>();
+        getClient().listObjectsV2Paginator(ListObjectsV2Request.builder()
+                .bucket(bucket)
+                .prefix(prefix)
+                .build()).contents().forEach(objects::add);
+        return objects;
+    }
+
+    /**
+     * Delete objects in batches of up to 1000 per request.
+     *
+     * @param keys The keys to delete.
+     * @return How many could not be deleted.
+     */
+    public static int deleteObjects(List<String> keys) {
+        String bucket = CanineBackup.getConfig().getAwsInfo("bucket");
+        int failed = 0;
+        for (int start = 0; start < keys.size(); start += DELETE_BATCH) {
+            List<ObjectIdentifier> batch = keys.subList(start, Math.min(keys.size(), start + DELETE_BATCH)).stream()
+                    .map(key -> ObjectIdentifier.builder().key(key).build())
+                    .toList();
+            DeleteObjectsResponse response = getClient().deleteObjects(DeleteObjectsRequest.builder()
+                    .bucket(bucket)
+                    .delete(Delete.builder().objects(batch).quiet(true).build())
+                    .build());
+            for (S3Error error : response.errors()) {
+                logger.error("Unable to delete '{}': {}", error.key(), error.message());
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Get the S3 client shared by the whole run. Connections are pooled, so
+     * concurrent jobs reuse warm TLS connections instead of opening new ones.
+     *
+     * @return The client.
+     */
+    public static synchronized S3Client getClient() {
+        if (client == null) {
+            String endPoint = CanineBackup.getConfig().getAwsInfo("endpoint").replaceAll("/+$", "");
+            String accessKey = CanineBackup.getConfig().getAwsInfo("accessKey");
+            String secretKey = CanineBackup.getConfig().getAwsInfo("secretKey");
+            int maxConnections = CanineBackup.getConfig().getAwsInt("maxConnections", 64);
+
+            client = S3Client.builder()
+                    .endpointOverride(URI.create(endPoint))
+                    .credentialsProvider(StaticCredentialsProvider.create(
+                            AwsBasicCredentials.create(accessKey, secretKey)))
+                    .region(Region.US_EAST_1)
+                    .httpClientBuilder(ApacheHttpClient.builder()
+                            .maxConnections(maxConnections))
+                    .serviceConfiguration(S3Configuration.builder()
+                            .pathStyleAccessEnabled(true)
+                            .chunkedEncodingEnabled(false)
+                            .build())
+                    .build();
+        }
+        return client;
+    }
+
+    /**
+     * Close the shared client and transfer threads. Call once at the end of a run.
+     */
+    public static synchronized void shutdown() {
+        if (uploadExecutor != null) {
+            uploadExecutor.shutdown();
+            uploadExecutor = null;
+        }
+        if (downloadExecutor != null) {
+            downloadExecutor.shutdownNow();
+            downloadExecutor = null;
+        }
+        if (client != null) {
+            client.close();
+            client = null;
+        }
+    }
+
+    static synchronized ExecutorService getUploadExecutor() {
+        if (uploadExecutor == null) {
+            int threads = CanineBackup.getConfig().getAwsInt("uploadThreads", 16);
+            AtomicInteger count = new AtomicInteger();
+            uploadExecutor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "s3-upload-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return uploadExecutor;
+    }
+
+    static synchronized ExecutorService getDownloadExecutor() {
+        if (downloadExecutor == null) {
+            int threads = CanineBackup.getConfig().getAwsInt("downloadThreads", 8);
+            AtomicInteger count = new AtomicInteger();
+            downloadExecutor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "s3-download-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
         }
+        return downloadExecutor;
+    }
+
+    private static int getPartSize() {
+        return CanineBackup.getConfig().getAwsInt("partSizeMb", 16) * 1024 * 1024;
+    }
+
+    private static int getPartsInFlight() {
+        return CanineBackup.getConfig().getAwsInt("partsInFlight", 4);
+    }
+
+    private static int getDownloadPartSize() {
+        return CanineBackup.getConfig().getAwsInt("downloadPartSizeMb", 16) * 1024 * 1024;
+    }
+
+    private static int getDownloadPartsAhead() {
+        return CanineBackup.getConfig().getAwsInt("downloadPartsAhead", 16);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,147 @@
+package tools.canine.backup.utils;
+
+import tools.canine.backup.archive.ArchiveIndex;
+import tools.canine.backup.archive.EntryRecorder;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Encrypts a zip in fixed-size blocks, each its own OpenPGP message, and
+ * builds the {@link ArchiveIndex} that says where every block and entry is.
+ * Any block can then be fetched with a range request and decrypted on its
+ * own.
+ * <p>
+ * Blocks are encrypted on a thread pool, at most {@code window} at once, and
+ * written in order.
+ */
+public class BlockEncryptingOutputStream extends OutputStream implements EntryRecorder {
+
+    private final OutputStream out;
+    private final ExecutorService pool;
+    private final int blockSize;
+    private final int window;
+    private final ArchiveIndex index;
+    private final Deque<PendingBlock> pending = new ArrayDeque<>();
+
+    private byte[] buffer;
+    private int count;
+    private long plainWritten;
+    private long objectWritten;
+    private boolean closed;
+
+    /**
+     * Create a stream.
+     *
+     * @param out       Where to write the encrypted blocks. It is not closed.
+     * @param pool      The threads that encrypt blocks.
+     * @param blockSize How much of the zip goes in each block.
+     * @param window    How many blocks may be encrypting at once.
+     */
+    public BlockEncryptingOutputStream(OutputStream out, ExecutorService pool, int blockSize, int window) {
+        this.out = out;
+        this.pool = pool;
+        this.blockSize = blockSize;
+        this.window = Math.max(window, 1);
+        this.index = new ArchiveIndex(GPGUtil.newBlockKey());
+        this.buffer = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+        while (length > 0) {
+            int toCopy = Math.min(length, blockSize - count);
+            System.arraycopy(bytes, offset, buffer, count, toCopy);
+            count += toCopy;
+            offset += toCopy;
+            length -= toCopy;
+            if (count == blockSize) {
+                submit();
+            }
+        }
+    }
+
+    /**
+     * Encrypt what is left and write every block. The wrapped stream is
+     * flushed, not closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (count > 0) {
+            submit();
+        }
+        closed = true;
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void recordEntry(String name, long offset, long end, long size) {
+        index.addEntry(new ArchiveIndex.Entry(name, offset, end));
+    }
+
+    /**
+     * Get the index. It is complete once the stream is closed.
+     *
+     * @return The index.
+     */
+    public ArchiveIndex getIndex() {
+        return index;
+    }
+
+    private void submit() throws IOException {
+        while (pending.size() >= window) {
+            writeNext();
+        }
+        byte[] data = buffer;
+        int length = count;
+        String key = index.getKey();
+        pending.add(new PendingBlock(plainWritten, length, pool.submit(() -> GPGUtil.encryptBlock(data, length, key))));
+        plainWritten += length;
+        buffer = new byte[blockSize];
+        count = 0;
+    }
+
+    private void writeNext() throws IOException {
+        PendingBlock block = pending.poll();
+        byte[] encrypted;
+        try {
+            encrypted = block.encrypted().get();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while encrypting");
+        } catch (ExecutionException exception) {
+            pending.forEach(next -> next.encrypted().cancel(true));
+            pending.clear();
+            throw new IOException("Unable to encrypt block", exception.getCause());
+        }
+        out.write(encrypted);
+        index.addBlock(new ArchiveIndex.Block(block.offset(), block.length(), objectWritten, encrypted.length));
+        objectWritten += encrypted.length;
+    }
+
+    /**
+     * A block waiting for its encryption to finish.
+     */
+    private record PendingBlock(long offset, int length, Future<byte[]> encrypted) {
+    }
+}
@@ -0,0 +1,192 @@
+package tools.canine.backup.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-memory pipe between two threads. The writer fills fixed-size chunks
+ * and hands them to the reader through a bounded queue, so at most
+ * {@code chunkSize * depth} bytes are buffered at any time.
+ */
+public class BoundedPipe {
+
+    private static final byte[] EOF = new byte[0];
+
+    private final BlockingQueue<byte[]> queue;
+    private final int chunkSize;
+    private final PipeOutputStream output = new PipeOutputStream();
+    private final PipeInputStream input = new PipeInputStream();
+
+    private volatile Throwable failure;
+    private volatile boolean readerClosed;
+
+    /**
+     * Create a pipe.
+     *
+     * @param chunkSize The size of each chunk handed to the reader.
+     * @param depth     How many full chunks may wait for the reader.
+     */
+    public BoundedPipe(int chunkSize, int depth) {
+        this.chunkSize = chunkSize;
+        this.queue = new ArrayBlockingQueue<>(depth);
+    }
+
+    /**
+     * Get the writing end. Closing it signals end of data to the reader.
+     *
+     * @return The output stream.
+     */
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    /**
+     * Get the reading end.
+     *
+     * @return The input stream.
+     */
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    /**
+     * Mark the pipe as failed. The reader will get an IOException instead of
+     * end of data, so a half-written stream is never mistaken for a full one.
+     *
+     * @param cause Why the writer gave up.
+     */
+    public void fail(Throwable cause) {
+        failure = cause;
+        queue.offer(EOF);
+    }
+
+    private class PipeOutputStream extends OutputStream {
+
+        private byte[] buffer = new byte[chunkSize];
+        private int count;
+        private boolean closed;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                push();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (count == buffer.length) {
+                    push();
+                }
+                int toCopy = Math.min(length, buffer.length - count);
+                System.arraycopy(bytes, offset, buffer, count, toCopy);
+                count += toCopy;
+                offset += toCopy;
+                length -= toCopy;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (count > 0) {
+                push();
+            }
+            put(EOF);
+        }
+
+        private void push() throws IOException {
+            byte[] chunk = count == buffer.length ? buffer : Arrays.copyOf(buffer, count);
+            put(chunk);
+            buffer = new byte[chunkSize];
+            count = 0;
+        }
+
+        private void put(byte[] chunk) throws IOException {
+            try {
+                while (!queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                    if (readerClosed) {
+                        throw new IOException("Pipe reader closed");
+                    }
+                }
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing to pipe");
+            }
+        }
+    }
+
+    private class PipeInputStream extends InputStream {
+
+        private byte[] current;
+        private int position;
+        private boolean finished;
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return current[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int toCopy = Math.min(length, current.length - position);
+            System.arraycopy(current, position, bytes, offset, toCopy);
+            position += toCopy;
+            return toCopy;
+        }
+
+        /**
+         * Roughly how much is buffered, counting queued chunks as full.
+         */
+        @Override
+        public int available() {
+            int current = this.current == null ? 0 : this.current.length - position;
+            return (int) Math.min(Integer.MAX_VALUE, current + (long) queue.size() * chunkSize);
+        }
+
+        @Override
+        public void close() {
+            readerClosed = true;
+            queue.clear();
+        }
+
+        private boolean fill() throws IOException {
+            while (!finished && (current == null || position == current.length)) {
+                try {
+                    current = queue.take();
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while reading from pipe");
+                }
+                position = 0;
+                if (current == EOF) {
+                    finished = true;
+                }
+            }
+            if (failure != null) {
+                throw new IOException("Pipe writer failed", failure);
+            }
+            return !finished;
+        }
+    }
+}
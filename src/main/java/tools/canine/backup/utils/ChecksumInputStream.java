@@ -0,0 +1,62 @@
+package tools.canine.backup.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Passes everything through while adding it to {@link Checksums}.
+ */
+public class ChecksumInputStream extends FilterInputStream {
+
+    private final Checksums checksums;
+
+    /**
+     * Wrap a stream.
+     *
+     * @param in        Where the data comes from.
+     * @param checksums Given every byte read.
+     */
+    public ChecksumInputStream(InputStream in, Checksums checksums) {
+        super(in);
+        this.checksums = checksums;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int value = in.read();
+        if (value >= 0) {
+            checksums.update(new byte[]{(byte) value}, 0, 1);
+        }
+        return value;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int read = in.read(buffer, offset, length);
+        if (read > 0) {
+            checksums.update(buffer, offset, read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        // read what is skipped, or it would be missing from the checksums
+        byte[] buffer = new byte[(int) Math.min(count, 8192)];
+        long skipped = 0;
+        while (skipped < count) {
+            int read = read(buffer, 0, (int) Math.min(buffer.length, count - skipped));
+            if (read < 0) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
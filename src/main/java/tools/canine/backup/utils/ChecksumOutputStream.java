@@ -0,0 +1,42 @@
+package tools.canine.backup.utils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Passes everything through while adding it to {@link Checksums}.
+ */
+public class ChecksumOutputStream extends FilterOutputStream {
+
+    private final Checksums checksums;
+
+    /**
+     * Wrap a stream.
+     *
+     * @param out       Where the data goes.
+     * @param checksums Given every byte written.
+     */
+    public ChecksumOutputStream(OutputStream out, Checksums checksums) {
+        super(out);
+        this.checksums = checksums;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        checksums.update(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        out.write(bytes, offset, length);
+        checksums.update(bytes, offset, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        checksums.finish();
+    }
+}
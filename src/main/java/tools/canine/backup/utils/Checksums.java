@@ -0,0 +1,214 @@
+package tools.canine.backup.utils;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import tools.canine.backup.CanineBackup;
+import tools.canine.backup.archive.CrcUtil;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.zip.CRC32C;
+
+/**
+ * The SHA-256 and CRC-32C of an object, worked out as it is written so
+ * nothing has to be read twice.
+ * <p>
+ * The CRC-32C of every {@value #BLOCK_SIZE} byte block is kept too, so the
+ * checksum of any part that starts and ends on a block boundary can be sent
+ * to S3 without reading the part again. S3 checks each part and the whole
+ * object against them; the SHA-256 goes in a manifest next to the archive
+ * ({@value #MANIFEST_EXTENSION}) and is checked on restore. Turn this off
+ * with {@code backup.checksums} for stores that reject checksum headers.
+ */
+public class Checksums {
+
+    /**
+     * The size of the blocks checksummed separately. Part sizes are rounded to it.
+     */
+    public static final int BLOCK_SIZE = 1024 * 1024;
+
+    /**
+     * Added to an archive's key to get its checksum manifest.
+     */
+    public static final String MANIFEST_EXTENSION = ".checksums.json";
+
+    private final MessageDigest sha256;
+    private final CRC32C crc = new CRC32C();
+    private final CRC32C blockCrc = new CRC32C();
+    private long[] blocks = new long[16];
+    private int blockCount;
+    private int blockFill;
+    private long size;
+    private String sha256Hex;
+    private long wholeCrc = -1;
+
+    public Checksums() {
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException("SHA-256 is not available", exception);
+        }
+    }
+
+    private Checksums(JSONObject json) {
+        sha256 = null;
+        sha256Hex = json.getString("sha256");
+        size = json.getLong("size");
+        JSONArray blockArray = json.optJSONArray("blocks");
+        if (blockArray != null) {
+            blockCount = blockArray.length();
+            blocks = new long[blockCount];
+            for (int i = 0; i < blockCount; i++) {
+                blocks[i] = blockArray.getLong(i);
+            }
+        }
+        wholeCrc = Long.parseLong(json.getString("crc32c"), 16);
+    }
+
+    /**
+     * Check whether checksums should be worked out and sent.
+     *
+     * @return true unless {@code backup.checksums} is false.
+     */
+    public static boolean isEnabled() {
+        return CanineBackup.getConfig().getBackupBoolean("checksums", true);
+    }
+
+    /**
+     * Add bytes to the checksums.
+     *
+     * @param bytes  The data.
+     * @param offset Where the bytes start.
+     * @param length How many bytes there are.
+     */
+    public void update(byte[] bytes, int offset, int length) {
+        sha256.update(bytes, offset, length);
+        crc.update(bytes, offset, length);
+        size += length;
+        while (length > 0) {
+            int toBlock = Math.min(length, BLOCK_SIZE - blockFill);
+            blockCrc.update(bytes, offset, toBlock);
+            blockFill += toBlock;
+            offset += toBlock;
+            length -= toBlock;
+            if (blockFill == BLOCK_SIZE) {
+                endBlock();
+            }
+        }
+    }
+
+    /**
+     * Stop adding bytes. The checksums can be read after this.
+     */
+    public void finish() {
+        if (sha256Hex != null) {
+            return;
+        }
+        if (blockFill > 0) {
+            endBlock();
+        }
+        sha256Hex = HexFormat.of().formatHex(sha256.digest());
+        wholeCrc = crc.getValue();
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getSha256() {
+        return sha256Hex;
+    }
+
+    public long getCrc32c() {
+        return wholeCrc;
+    }
+
+    /**
+     * Get the CRC-32C of a range, from the block checksums.
+     *
+     * @param offset Where the range starts, on a block boundary.
+     * @param length How long it is, a whole number of blocks unless it runs to the end.
+     * @return The CRC-32C, or -1 if the range does not line up with the blocks.
+     */
+    public long getCrc32c(long offset, long length) {
+        if (offset % BLOCK_SIZE != 0 || (length % BLOCK_SIZE != 0 && offset + length != size) || offset + length > size) {
+            return -1;
+        }
+        int first = (int) (offset / BLOCK_SIZE);
+        int last = (int) ((offset + length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        if (last > blockCount) {
+            return -1;
+        }
+        long result = 0;
+        for (int block = first; block < last; block++) {
+            long blockLength = Math.min(BLOCK_SIZE, size - (long) block * BLOCK_SIZE);
+            result = CrcUtil.combineCrc32c(result, blocks[block], blockLength);
+        }
+        return result;
+    }
+
+    /**
+     * Format a CRC-32C the way S3 headers want it: four big-endian bytes in base64.
+     *
+     * @param crc The CRC-32C.
+     * @return The header value.
+     */
+    public static String toHeader(long crc) {
+        return Base64.getEncoder().encodeToString(ByteBuffer.allocate(4).putInt((int) crc).array());
+    }
+
+    /**
+     * Build the manifest stored next to an archive.
+     *
+     * @param key The archive's key.
+     * @return The manifest.
+     */
+    public JSONObject toManifest(String key) {
+        JSONObject manifest = new JSONObject();
+        manifest.put("key", key);
+        manifest.put("size", size);
+        manifest.put("sha256", sha256Hex);
+        manifest.put("crc32c", Long.toHexString(wholeCrc));
+        return manifest;
+    }
+
+    /**
+     * Save everything, block checksums included, so an interrupted upload
+     * can carry on sending part checksums.
+     *
+     * @return The checksums as JSON.
+     */
+    public JSONObject toJson() {
+        JSONObject json = toManifest(null);
+        JSONArray blockArray = new JSONArray();
+        for (int i = 0; i < blockCount; i++) {
+            blockArray.put(blocks[i]);
+        }
+        json.put("blocks", blockArray);
+        return json;
+    }
+
+    /**
+     * Read checksums saved with {@link #toJson()} or {@link #toManifest(String)}.
+     *
+     * @param json The JSON.
+     * @return The checksums. Without blocks, only the whole object ones are known.
+     */
+    public static Checksums fromJson(JSONObject json) {
+        return new Checksums(json);
+    }
+
+    private void endBlock() {
+        if (blockCount == blocks.length) {
+            long[] grown = new long[blocks.length * 2];
+            System.arraycopy(blocks, 0, grown, 0, blockCount);
+            blocks = grown;
+        }
+        blocks[blockCount++] = blockCrc.getValue();
+        blockCrc.reset();
+        blockFill = 0;
+    }
+}
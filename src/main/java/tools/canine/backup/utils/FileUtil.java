@@ -1,24 +1,101 @@
 package tools.canine.backup.utils;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
 import tools.canine.backup.CanineBackup;
+import tools.canine.backup.archive.ArchiveIndex;
+import tools.canine.backup.archive.ArchiveWriter;
+import tools.canine.backup.archive.Codec;
+import tools.canine.backup.archive.Manifest;
+import tools.canine.backup.archive.ParallelZipWriter;
+import tools.canine.backup.archive.TarWriter;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.io.PushbackInputStream;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.stream.Stream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 
 public class FileUtil {
 
     private static final Logger logger = LogManager.getLogger(FileUtil.class);
 
+    private static final int PIPE_CHUNK_SIZE = 1 << 20;
+
+    /**
+     * Stream entries stay well below 4 GiB, so they never need ZIP64.
+     */
+    private static final int MAX_SEGMENT_MB = 3072;
+
+    /**
+     * The zstd level used when lz4 is asked for.
+     */
+    private static final int LZ4_LIKE_ZSTD_LEVEL = -3;
+
+    /**
+     * The entry in an incremental archive that lists removed files, one per line.
+     */
+    public static final String DELETED_ENTRY = ".canine-deleted";
+
+    /**
+     * The first entry of a stream archive, listing its streams one per line.
+     * Only entries of a listed stream are joined back on restore.
+     */
+    public static final String STREAMS_ENTRY = ".canine-streams";
+
+    /**
+     * The extension of a seekable archive's blocks. Its index sits next to it
+     * with {@link #INDEX_EXTENSION} instead.
+     */
+    public static final String SEEKABLE_EXTENSION = ".zip.blocks";
+
+    public static final String INDEX_EXTENSION = ".zip.index.gpg";
+
+    /**
+     * The extension of an archive written as tar, see {@code backup.archiveFormat}.
+     */
+    public static final String TAR_EXTENSION = ".tar.gpg";
+
+    /**
+     * What follows the prefix in the key of a staged archive.
+     */
+    private static final Pattern RESUMABLE_KEY = Pattern.compile("\\d{4}-\\d{2}-\\d{2}_\\d{2}-\\d{2}-\\d{2}(\\.inc)?\\.(zip|tar)\\.gpg");
+
+    private static ExecutorService compressionPool;
+
+    private static Semaphore prefetchMemory;
+    private static int prefetchMemoryLimit;
+
     /**
      * Read contents of a file.
      *
@@ -44,31 +121,132 @@ public class FileUtil {
      * @return true if worked, false if failed.
      */
     public static boolean compressPath(String pathToCompress, String output) {
-        try (ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(Path.of(output)))) {
-            try (Stream<Path> paths = Files.walk(Path.of(pathToCompress))) {
-                paths.filter(path -> !Files.isDirectory(path))
-                        .forEach(path -> {
-                            try {
-                                String zipEntryName = Path.of(pathToCompress).relativize(path).toString().replace("\\", "/");
-                                zos.putNextEntry(new ZipEntry(zipEntryName));
-                                Files.copy(path, zos);
-                                zos.closeEntry();
-                            } catch (NoSuchFileException e) {
-                                logger.warn("File disappeared during compression: {}", path);
-                            } catch (IOException exception) {
-                                RequestUtil.sendAlert("failure", "Failed Compression", exception.getMessage(), "max");
-                                logger.error("Unable to compress file: {}", path, exception);
+        try (OutputStream out = new FileOutputStream(output)) {
+            return compressPath(pathToCompress, out);
+        } catch (IOException exception) {
+            RequestUtil.sendAlert("failure", "Failed Compression", exception.getMessage(), "max");
+            logger.error("Unable to create zip: {}", output, exception);
+            return false;
+        }
+    }
+
+    /**
+     * Compress a given path into a zip stream. Files are deflated in blocks on
+     * the compression pool and written out in walk order.
+     *
+     * @param pathToCompress The path to compress.
+     * @param output         Where to write the zip. It is closed when done.
+     * @return true if worked, false if failed.
+     */
+    public static boolean compressPath(String pathToCompress, OutputStream output) {
+        return compressPath(pathToCompress, output, null, null);
+    }
+
+    /**
+     * Compress a given path into a zip stream, leaving out files that have
+     * not changed since the previous manifest. Files that were in the previous
+     * manifest but are gone now are listed in a {@value #DELETED_ENTRY} entry.
+     *
+     * @param pathToCompress The path to compress.
+     * @param output         Where to write the zip. It is closed when done.
+     * @param previous       The manifest to compare against, NULL to archive everything.
+     * @param next           Filled with the state of every file, NULL if not needed.
+     * @return true if worked, false if failed.
+     */
+    public static boolean compressPath(String pathToCompress, OutputStream output, Manifest previous, Manifest next) {
+        return compressPath(pathToCompress, output, previous, next, PathFilter.NONE);
+    }
+
+    /**
+     * Compress the files of a path that a filter keeps into a zip stream,
+     * leaving out files that have not changed since the previous manifest.
+     * The tree is scanned in parallel with {@link TreeScanner}, in the same
+     * order every run. Files that were in the previous manifest but are gone
+     * or filtered out now are listed in a {@value #DELETED_ENTRY} entry.
+     * <p>
+     * A file whose size and modification time match is read once more and
+     * its CRC-32 compared, unless {@code backup.incrementalHashCheck} is
+     * off, so a rewrite that kept both is still picked up. Tar archives
+     * record no CRC, so such a file is taken as unchanged and its CRC kept
+     * for the next run.
+     *
+     * @param pathToCompress The path to compress.
+     * @param output         Where to write the zip. It is closed when done.
+     * @param previous       The manifest to compare against, NULL to archive everything.
+     * @param next           Filled with the state of every file, NULL if not needed.
+     * @param filter         Which files to keep.
+     * @return true if worked, false if failed.
+     */
+    public static boolean compressPath(String pathToCompress, OutputStream output, Manifest previous, Manifest next, PathFilter filter) {
+        Path root = Path.of(pathToCompress);
+        Set<String> seen = new HashSet<>();
+        boolean hashCheck = previous != null && CanineBackup.getConfig().getBackupBoolean("incrementalHashCheck", true);
+        try (ArchiveWriter archive = newArchiveWriter(output)) {
+            if (next != null) {
+                archive.setEntryListener(next::put);
+            }
+            TreeScanner.scan(root, filter, entry -> {
+                String zipEntryName = entry.name();
+                seen.add(zipEntryName);
+                if (previous != null && previous.isUnchanged(zipEntryName, entry.size(), entry.modified())) {
+                    Manifest.FileState state = previous.get(zipEntryName);
+                    if (hashCheck) {
+                        long crc = crc32(entry.path());
+                        if (crc >= 0 && (state.crc() == 0 || crc == state.crc())) {
+                            if (next != null) {
+                                next.put(zipEntryName, entry.size(), entry.modified(), crc);
                             }
-                        });
+                            return;
+                        }
+                        logger.debug("Contents of '{}' changed without its size or modification time", entry.path());
+                    } else {
+                        if (next != null) {
+                            next.put(zipEntryName, state);
+                        }
+                        return;
+                    }
+                }
+                archive.addFile(entry.path(), zipEntryName, entry.size(), entry.modified());
+            });
+
+            if (previous != null) {
+                List<String> deleted = previous.getPaths().stream()
+                        .filter(name -> !seen.contains(name))
+                        .sorted()
+                        .toList();
+                if (!deleted.isEmpty()) {
+                    byte[] listing = String.join("\n", deleted).getBytes(StandardCharsets.UTF_8);
+                    archive.addData(DELETED_ENTRY, listing, System.currentTimeMillis());
+                }
             }
             return true;
-        } catch (IOException exception) {
+        } catch (IOException | UncheckedIOException exception) {
             RequestUtil.sendAlert("failure", "Failed Compression", exception.getMessage(), "max");
             logger.error("Unable to compress folder: {}", pathToCompress, exception);
             return false;
         }
     }
 
+    /**
+     * Work out the CRC-32 of a file.
+     *
+     * @return The CRC, or -1 if the file could not be read, so it is archived
+     * and the archive reports the error.
+     */
+    private static long crc32(Path file) {
+        CRC32 crc = new CRC32();
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                crc.update(buffer, 0, read);
+            }
+            return crc.getValue();
+        } catch (IOException exception) {
+            return -1;
+        }
+    }
+
     /**
      * Compress a single file into a zip archive.
      *
@@ -83,11 +261,33 @@ public class FileUtil {
             return false;
         }
 
-        try (ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(Path.of(output)))) {
+        try (OutputStream out = new FileOutputStream(output)) {
+            return compressFile(fileToCompress, out);
+        } catch (IOException exception) {
+            RequestUtil.sendAlert("failure", "Failed Compression", exception.getMessage(), "max");
+            logger.error("Unable to create zip: {}", output, exception);
+            return false;
+        }
+    }
+
+    /**
+     * Compress a single file into a zip stream.
+     *
+     * @param fileToCompress The file to compress.
+     * @param output         Where to write the zip. It is closed when done.
+     * @return true if compression succeeded, false otherwise.
+     */
+    public static boolean compressFile(String fileToCompress, OutputStream output) {
+        Path inputFile = Path.of(fileToCompress);
+        if (!Files.exists(inputFile) || Files.isDirectory(inputFile)) {
+            logger.error("Provided path is invalid or not a file: {}", fileToCompress);
+            return false;
+        }
+
+        try (ArchiveWriter archive = newArchiveWriter(output)) {
             String fileName = inputFile.getFileName().toString();
-            zos.putNextEntry(new ZipEntry(fileName));
-            Files.copy(inputFile, zos);
-            zos.closeEntry();
+            BasicFileAttributes attributes = Files.readAttributes(inputFile, BasicFileAttributes.class);
+            archive.addFile(inputFile, fileName, attributes.size(), attributes.lastModifiedTime().toMillis());
             return true;
         } catch (IOException exception) {
             RequestUtil.sendAlert("failure", "Failed Compression", exception.getMessage(), "max");
@@ -96,18 +296,286 @@ public class FileUtil {
         }
     }
 
+    /**
+     * Compress streams into a zip stream. Each stream is cut into entries of
+     * at most {@code segmentMb}, named {@code name}, {@code name.000001} and
+     * so on, which keeps every entry clear of ZIP64 and lets several streams
+     * share one archive. The streams are listed in a {@value #STREAMS_ENTRY}
+     * entry first; joining a stream's entries in name order gives it back.
+     * With more than one stream, each is read into a bounded buffer on
+     * its own thread and the streams take turns, each writing at most about
+     * one buffer's worth per turn so no dump waits on another to finish.
+     *
+     * @param streams The streams by entry name. They are closed when done.
+     * @param output  Where to write the zip. It is closed when done.
+     * @return true if compression succeeded, false otherwise.
+     */
+    public static boolean compressStreams(Map<String, InputStream> streams, OutputStream output) {
+        long segmentSize = Math.min(CanineBackup.getConfig().getBackupInt("segmentMb", 1024), MAX_SEGMENT_MB) * 1024L * 1024;
+        int depth = CanineBackup.getConfig().getBackupInt("pipeDepth", 16);
+        Map<String, PushbackInputStream> sources = new LinkedHashMap<>();
+        for (Map.Entry<String, InputStream> stream : streams.entrySet()) {
+            InputStream input = stream.getValue();
+            if (streams.size() > 1) {
+                BoundedPipe pipe = new BoundedPipe(PIPE_CHUNK_SIZE, depth);
+                Thread pump = new Thread(() -> pump(stream.getValue(), pipe), "pump-" + stream.getKey());
+                pump.setDaemon(true);
+                pump.start();
+                input = pipe.getInputStream();
+            }
+            sources.put(stream.getKey(), new PushbackInputStream(input, 1));
+        }
+
+        // a slice longer than the pipe would leave every other dump blocked on a full pipe
+        long sliceSize = sources.size() > 1 ? Math.min(segmentSize, (long) PIPE_CHUNK_SIZE * depth) : segmentSize;
+        long modified = System.currentTimeMillis();
+        Map<String, Integer> segments = new HashMap<>();
+        List<String> turns = new ArrayList<>(sources.keySet());
+        int turn = 0;
+        try (ArchiveWriter archive = newArchiveWriter(output)) {
+            archive.addData(STREAMS_ENTRY, String.join("\n", turns).getBytes(StandardCharsets.UTF_8), modified);
+            while (!turns.isEmpty()) {
+                // round-robin, passing over streams with nothing waiting unless all are idle
+                turn %= turns.size();
+                for (int i = 0; i < turns.size(); i++) {
+                    int candidate = (turn + i) % turns.size();
+                    if (sources.get(turns.get(candidate)).available() > 0) {
+                        turn = candidate;
+                        break;
+                    }
+                }
+
+                String name = turns.get(turn);
+                PushbackInputStream source = sources.get(name);
+                int segment = segments.getOrDefault(name, 0);
+                int first = source.read();
+                if (first < 0) {
+                    sources.remove(name);
+                    turns.remove(turn);
+                    if (segment == 0) {
+                        archive.addData(name, new byte[0], modified);
+                    }
+                    continue;
+                }
+                source.unread(first);
+                segments.put(name, segment + 1);
+                archive.addStream(segment == 0 ? name : name + String.format(".%06d", segment), source, sliceSize, modified);
+                turn++;
+            }
+            return true;
+        } catch (IOException | UncheckedIOException exception) {
+            RequestUtil.sendAlert("failure", "Failed Compression", exception.getMessage(), "max");
+            logger.error("Unable to compress streams: {}", streams.keySet(), exception);
+            return false;
+        } finally {
+            // stops any writer still going, a finished one does not care
+            for (InputStream source : sources.values()) {
+                IOUtils.closeQuietly(source);
+            }
+            streams.values().forEach(IOUtils::closeQuietly);
+        }
+    }
+
+    /**
+     * Copy a stream into a pipe. A failure is passed on to the reader before
+     * the pipe is closed, so it is never mistaken for the end of the data.
+     */
+    private static void pump(InputStream input, BoundedPipe pipe) {
+        OutputStream output = pipe.getOutputStream();
+        try (input) {
+            input.transferTo(output);
+            output.close();
+        } catch (IOException exception) {
+            pipe.fail(exception);
+        }
+    }
+
+    /**
+     * Create the writer for an archive: a zip, or with
+     * {@code backup.archiveFormat} set to {@code tar}, an uncompressed tar
+     * that is copied into staged archives without passing through the heap.
+     * Files that cannot be read are reported and left out.
+     */
+    private static ArchiveWriter newArchiveWriter(OutputStream output) {
+        if (!isTar()) {
+            return newZipWriter(output);
+        }
+        TarWriter writer = new TarWriter(output, FileUtil::reportReadError);
+        Throttle throttle = Throttle.forReads();
+        if (throttle.isLimited()) {
+            writer.setReadThrottle(throttle::acquire);
+        }
+        return writer;
+    }
+
+    /**
+     * Create a zip writer on the shared compression pool.
+     */
+    private static ParallelZipWriter newZipWriter(OutputStream output) {
+        int blockSize = CanineBackup.getConfig().getBackupInt("blockSizeKb", 1024) * 1024;
+        int window = CanineBackup.getConfig().getBackupInt("compressionWindow", getCompressionThreads() * 4);
+        int prefetchDepth = getPrefetchDepth();
+        if (prefetchDepth > 0) {
+            // blocks read ahead wait in the window too
+            window = Math.max(window, prefetchDepth + getCompressionThreads());
+        }
+        String codecName = CanineBackup.getConfig().getBackupInfo("codec", "deflate");
+        Codec codec;
+        int defaultLevel;
+        if (codecName.equalsIgnoreCase("lz4")) {
+            // zip has no lz4 method, zstd's fast levels come close to it
+            codec = Codec.ZSTD;
+            defaultLevel = LZ4_LIKE_ZSTD_LEVEL;
+        } else {
+            try {
+                codec = Codec.fromName(codecName);
+            } catch (IllegalArgumentException exception) {
+                logger.warn("Unknown codec '{}', using deflate", codecName);
+                codec = Codec.DEFLATE;
+            }
+            defaultLevel = codec.getDefaultLevel();
+        }
+        int level = CanineBackup.getConfig().getBackupInt("codecLevel", defaultLevel);
+        ParallelZipWriter writer = new ParallelZipWriter(output, getCompressionPool(), codec, level, blockSize, window, FileUtil::reportReadError);
+        // the pool threads do not know the job, so pick its throttle here
+        Throttle throttle = Throttle.forReads();
+        if (throttle.isLimited()) {
+            writer.setReadThrottle(throttle::acquire);
+        }
+        if (prefetchDepth > 0) {
+            Semaphore memory = getPrefetchMemory();
+            writer.setPrefetch(prefetchDepth, memory, prefetchMemoryLimit);
+        }
+        return writer;
+    }
+
+    private static void reportReadError(Path path, IOException exception) {
+        if (exception instanceof NoSuchFileException) {
+            logger.warn("File disappeared during compression: {}", path);
+            return;
+        }
+        RequestUtil.sendAlert("failure", "Failed Compression", exception.getMessage(), "max");
+        logger.error("Unable to compress file: {}", path, exception);
+    }
+
+    /**
+     * Check whether archives are written as tar. Seekable archives are
+     * always zips, their index and restores rely on it.
+     */
+    private static boolean isTar() {
+        return CanineBackup.getConfig().getBackupInfo("archiveFormat", "zip").equalsIgnoreCase("tar")
+                && !CanineBackup.getConfig().getBackupBoolean("seekable", false);
+    }
+
+    /**
+     * Get the extension of the archives being written, before encryption.
+     */
+    private static String getArchiveExtension() {
+        return isTar() ? ".tar" : ".zip";
+    }
+
+    /**
+     * Get how many blocks the current job reads ahead of compression, from
+     * {@code backup.prefetchDepth.<job>} or else {@code backup.prefetchDepth}.
+     * Reading ahead pays off on network mounts, where opening each file is
+     * slow; 0 leaves it off.
+     */
+    private static int getPrefetchDepth() {
+        String job = Throttle.getJob();
+        int depth = CanineBackup.getConfig().getBackupInt("prefetchDepth", 0);
+        return job == null ? depth : CanineBackup.getConfig().getBackupInt("prefetchDepth." + job, depth);
+    }
+
+    /**
+     * Get the memory every job shares for blocks read ahead, in 1 KiB
+     * permits, {@code backup.prefetchMemoryMb} in all.
+     *
+     * @return The permits.
+     */
+    private static synchronized Semaphore getPrefetchMemory() {
+        if (prefetchMemory == null) {
+            prefetchMemoryLimit = Math.max(CanineBackup.getConfig().getBackupInt("prefetchMemoryMb", 256), 1) * 1024;
+            prefetchMemory = new Semaphore(prefetchMemoryLimit);
+        }
+        return prefetchMemory;
+    }
+
+    /**
+     * Get the threads shared by every job for compression.
+     *
+     * @return The pool.
+     */
+    public static synchronized ExecutorService getCompressionPool() {
+        if (compressionPool == null) {
+            AtomicInteger count = new AtomicInteger();
+            compressionPool = Executors.newFixedThreadPool(getCompressionThreads(), runnable -> {
+                Thread thread = new Thread(runnable, "compress-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return compressionPool;
+    }
+
+    /**
+     * Archives are uploaded as binary OpenPGP unless {@code backup.pgpArmor}
+     * is set, since armor makes them a third bigger.
+     */
+    private static boolean isArmored() {
+        return CanineBackup.getConfig().getBackupBoolean("pgpArmor", false);
+    }
+
+    private static int getCompressionThreads() {
+        return CanineBackup.getConfig().getBackupInt("compressionThreads", Runtime.getRuntime().availableProcessors());
+    }
+
     /**
      * Backup a given directory path.
+     *
+     * @return true if the backup was uploaded.
      */
-    public static void backupPath(String name, String folder, String localPath) {
-        performBackup(name, folder, localPath, false);
+    public static boolean backupPath(String name, String folder, String localPath) {
+        return performBackup(name, folder, localPath, false);
     }
 
     /**
      * Backup a given single file.
+     *
+     * @return true if the backup was uploaded.
      */
-    public static void backupFile(String name, String folder, String localFile) {
-        performBackup(name, folder, localFile, true);
+    public static boolean backupFile(String name, String folder, String localFile) {
+        return performBackup(name, folder, localFile, true);
+    }
+
+    /**
+     * Backup the output of one or more streams, such as database dumps. Each
+     * stream becomes its own entry in the zip. Streams are read at the same
+     * time, so none of their writers stall for long.
+     *
+     * @param name    Name of the service
+     * @param folder  Folder in S3 to upload to
+     * @param streams The streams by entry name. They are closed when done.
+     * @return true if the backup was uploaded.
+     */
+    public static boolean backupStreams(String name, String folder, Map<String, InputStream> streams) {
+        if (RepositoryUtil.isEnabled()) {
+            return RepositoryUtil.backupStreams(name, folder, streams);
+        }
+        return performBackup(name, folder, name, name + "_" + CanineBackup.getTimeStamp(), output -> compressStreams(streams, output), null);
+    }
+
+    /**
+     * Backup a directory that holds only what changed since the last full
+     * backup, which the caller keeps track of, such as database binlogs.
+     * The archive is marked incremental, so retention keeps it with its chain.
+     *
+     * @param name      Name of the service
+     * @param folder    Folder in S3 to upload to
+     * @param localPath The directory holding the changes
+     * @return true if the backup was uploaded.
+     */
+    public static boolean backupIncrementalPath(String name, String folder, String localPath) {
+        return performBackup(name, folder, localPath, name + "_" + CanineBackup.getTimeStamp() + ".inc", output -> compressPath(localPath, output), null);
     }
 
     /**
@@ -117,51 +585,447 @@ public class FileUtil {
      * @param folder Folder in S3 to upload to
      * @param source The path or file to back up
      * @param isFile True if source is a single file, false if it's a folder
+     * @return true if the backup was uploaded
      */
-    private static void performBackup(String name, String folder, String source, boolean isFile) {
-        String baseName = name + "_" + CanineBackup.getTimeStamp();
+    private static boolean performBackup(String name, String folder, String source, boolean isFile) {
+        if (RepositoryUtil.isEnabled()) {
+            return RepositoryUtil.backup(name, folder, source, isFile);
+        }
+        Incremental incremental = isFile ? null : startIncremental(name, folder);
+        Manifest previous = incremental == null ? null : incremental.previous();
+        Manifest next = incremental == null ? null : incremental.next();
+        PathFilter filter = PathFilter.forJob(name);
+        Predicate<OutputStream> compressor = isFile
+                ? output -> compressFile(source, output)
+                : output -> compressPath(source, output, previous, next, filter);
+        return performBackup(name, folder, source, getBaseName(name, incremental), compressor, incremental);
+    }
+
+    /**
+     * Perform the full backup of whatever the compressor writes.
+     *
+     * @param name        Name of the service
+     * @param folder      Folder in S3 to upload to
+     * @param source      What is being backed up, for logs
+     * @param baseName    The name of the archive, without extensions
+     * @param compressor  Writes the zip to the stream it is given and closes it
+     * @param incremental The manifests of an incremental run, NULL for a plain backup
+     * @return true if the backup was uploaded
+     */
+    private static boolean performBackup(String name, String folder, String source, String baseName, Predicate<OutputStream> compressor, Incremental incremental) {
+        if (CanineBackup.getConfig().getBackupBoolean("seekable", false)) {
+            return performSeekableBackup(name, folder, source, baseName, compressor, incremental);
+        }
+        if (CanineBackup.getConfig().getBackupBoolean("streaming", false)) {
+            return performStreamingBackup(name, folder, source, baseName, compressor, incremental);
+        }
+
         String prefix = folder + "/" + name + "_";
+        // a resumed archive is an older backup, so only stand in for this one when asked to
+        if (resumeUploads(name, prefix) && CanineBackup.getConfig().getBackupBoolean("skipAfterResume", false)) {
+            logger.info("Skipping a new backup of '{}', the resumed one is younger than {} hours (backup.skipAfterResume)",
+                    name, CanineBackup.getConfig().getBackupInt("resumeMaxAgeHours", 12));
+            return true;
+        }
 
-        String compressedName = baseName + ".zip";
+        // jobs run concurrently, so keep each folder's temp files apart
+        Path workDirectory = Path.of("work", folder);
+        try {
+            Files.createDirectories(workDirectory);
+        } catch (IOException exception) {
+            RequestUtil.sendAlert("failure", "Failed Backup", exception.getMessage(), "max");
+            logger.error("Unable to create working directory '{}'", workDirectory, exception);
+            return false;
+        }
+
+        String compressedName = workDirectory.resolve(baseName + getArchiveExtension()).toString();
         logger.info("Compressing '{}' to '{}'", source, compressedName);
-        boolean compress = compressSource(source, compressedName, isFile);
+        boolean compress;
+        try (Metrics.Stage stage = Metrics.start(name, "compress");
+             MeteredOutputStream out = new MeteredOutputStream(new FileOutputStream(compressedName))) {
+            compress = compressor.test(out);
+            stage.setBytesIn(out.getEntryBytes());
+            stage.setBytesOut(out.getBytesWritten());
+        } catch (IOException exception) {
+            RequestUtil.sendAlert("failure", "Failed Compression", exception.getMessage(), "max");
+            logger.error("Unable to create zip: {}", compressedName, exception);
+            compress = false;
+        }
         if (!compress) {
             logger.error("Failed to compress '{}'", source);
-            return;
+            return false;
         }
 
         String encryptedName = compressedName + ".gpg";
         logger.info("Encrypting '{}' to '{}'", compressedName, encryptedName);
-        boolean encrypt = GPGUtil.encryptFile(compressedName, encryptedName, true, true);
+        Checksums checksums = Checksums.isEnabled() ? new Checksums() : null;
+        boolean encrypt;
+        try (Metrics.Stage stage = Metrics.startOnThread(name, "encrypt")) {
+            encrypt = GPGUtil.encryptFile(compressedName, encryptedName, isArmored(), true, checksums);
+            stage.setBytesIn(new File(compressedName).length());
+            stage.setBytesOut(new File(encryptedName).length());
+        }
         if (!encrypt) {
             logger.error("Failed to encrypt '{}'", compressedName);
-            return;
+            return false;
         }
 
-        String destination = folder + "/" + encryptedName;
+        String destination = folder + "/" + baseName + getArchiveExtension() + ".gpg";
         logger.info("Uploading '{}' to '{}'", encryptedName, destination);
-        boolean upload = AWSUtils.uploadFile(encryptedName, destination);
+        boolean upload;
+        try (Metrics.Stage stage = Metrics.start(name, "upload")) {
+            upload = AWSUtils.uploadFile(encryptedName, destination, checksums);
+            long size = new File(encryptedName).length();
+            stage.setBytesIn(size);
+            stage.setBytesOut(size);
+        }
         if (!upload) {
             logger.error("Failed to upload '{}'", encryptedName);
-            return;
+            return false;
         }
 
+        saveChecksums(destination, checksums);
+        saveManifest(incremental);
         RequestUtil.sendAlert("normal", "Backup Completed (" + name + ")", "Backup completed successfully for '" + name + "` at " + CanineBackup.getTimeStamp(), "default");
 
-        AWSUtils.clean(prefix, 24);
+        RetentionUtil.register(prefix);
 
         cleanupTempFiles(compressedName, encryptedName, name);
+        return true;
+    }
+
+    /**
+     * Finish uploads an earlier run left open, if their archives are still
+     * in the work directory. Their manifests were never saved, so the next
+     * incremental just includes what they held again.
+     *
+     * @param name   Name of the service
+     * @param prefix The key prefix of the service's archives
+     * @return true if a resumed archive is younger than
+     * {@code backup.resumeMaxAgeHours}, so it could stand in for this run's backup
+     */
+    private static boolean resumeUploads(String name, String prefix) {
+        long maxAge = TimeUnit.HOURS.toMillis(CanineBackup.getConfig().getBackupInt("resumeMaxAgeHours", 12));
+        boolean recent = false;
+        try {
+            for (Path path : UploadJournal.list()) {
+                UploadJournal journal = UploadJournal.load(path);
+                if (journal == null) {
+                    continue;
+                }
+                journal.close();
+                String key = journal.getKey();
+                if (!key.startsWith(prefix) || !RESUMABLE_KEY.matcher(key.substring(prefix.length())).matches() || !journal.matchesFile()) {
+                    continue;
+                }
+
+                String encryptedName = journal.getFile().toString();
+                logger.info("Resuming upload of '{}' to '{}'", encryptedName, key);
+                boolean upload;
+                try (Metrics.Stage stage = Metrics.start(name, "resume")) {
+                    upload = AWSUtils.uploadFile(encryptedName, key);
+                    long size = new File(encryptedName).length();
+                    stage.setBytesIn(size);
+                    stage.setBytesOut(size);
+                }
+                if (!upload) {
+                    logger.error("Failed to resume upload of '{}'", encryptedName);
+                    continue;
+                }
+                saveChecksums(key, journal.getChecksums());
+
+                RequestUtil.sendAlert("normal", "Backup Completed (" + name + ")", "Backup for '" + name + "` resumed and uploaded to " + key, "default");
+                RetentionUtil.register(prefix);
+                cleanupTempFiles(encryptedName.substring(0, encryptedName.length() - ".gpg".length()), encryptedName, name);
+                if (System.currentTimeMillis() - journal.getCreated() < maxAge) {
+                    recent = true;
+                }
+            }
+        } catch (IOException exception) {
+            logger.error("Unable to read upload journals for '{}'", name, exception);
+        }
+        return recent;
+    }
+
+    /**
+     * Perform the full backup without touching the local disk. The zip is
+     * written into an in-memory pipe, encrypted on the way out of it and
+     * uploaded in parts while the rest is still being compressed.
+     *
+     * @param name        Name of the service
+     * @param folder      Folder in S3 to upload to
+     * @param source      What is being backed up, for logs
+     * @param baseName    The name of the archive, without extensions
+     * @param compressor  Writes the zip to the stream it is given and closes it
+     * @param incremental The manifests of an incremental run, NULL for a plain backup
+     * @return true if the backup was uploaded
+     */
+    private static boolean performStreamingBackup(String name, String folder, String source, String baseName, Predicate<OutputStream> compressor, Incremental incremental) {
+        String prefix = folder + "/" + name + "_";
+        String compressedName = baseName + getArchiveExtension();
+        String destination = folder + "/" + compressedName + ".gpg";
+
+        logger.info("Streaming '{}' to '{}'", source, destination);
+        S3UploadStream upload = AWSUtils.openUploadStream(destination);
+        if (upload == null) {
+            logger.error("Failed to start upload of '{}'", destination);
+            return false;
+        }
+
+        try (Metrics.Stage stage = Metrics.start(name, "stream")) {
+            boolean streamed = streamArchive(compressedName, upload, compressor, stage);
+            if (!streamed) {
+                logger.error("Failed to stream '{}', aborting upload", source);
+                upload.abort();
+                return false;
+            }
+            upload.close();
+        } catch (IOException exception) {
+            String description = destination + " failed to upload because: " + exception.getMessage();
+            RequestUtil.sendAlert("failure", "Failed Upload", description, "max");
+            logger.error("Unable to finish upload of '{}'", destination, exception);
+            return false;
+        }
+
+        saveChecksums(destination, upload.getChecksums());
+        saveManifest(incremental);
+        RequestUtil.sendAlert("normal", "Backup Completed (" + name + ")", "Backup completed successfully for '" + name + "` at " + CanineBackup.getTimeStamp(), "default");
+
+        RetentionUtil.register(prefix);
+        return true;
     }
 
     /**
-     * Compress a file or directory based on the mode.
+     * Perform the full backup as a seekable archive. The zip is encrypted in
+     * blocks of {@code seekableBlockMb} as it is written and uploaded while
+     * the rest is still being compressed, like a streaming backup. Once it is
+     * uploaded, an encrypted index of its blocks and entries goes next to it,
+     * so a single file can be restored without fetching the whole archive.
+     *
+     * @param name        Name of the service
+     * @param folder      Folder in S3 to upload to
+     * @param source      What is being backed up, for logs
+     * @param baseName    The name of the archive, without extensions
+     * @param compressor  Writes the zip to the stream it is given and closes it
+     * @param incremental The manifests of an incremental run, NULL for a plain backup
+     * @return true if both the archive and its index were uploaded
+     */
+    private static boolean performSeekableBackup(String name, String folder, String source, String baseName, Predicate<OutputStream> compressor, Incremental incremental) {
+        String prefix = folder + "/" + name + "_";
+        String destination = folder + "/" + baseName + SEEKABLE_EXTENSION;
+        String indexDestination = folder + "/" + baseName + INDEX_EXTENSION;
+
+        logger.info("Streaming '{}' to '{}' in blocks", source, destination);
+        S3UploadStream upload = AWSUtils.openUploadStream(destination);
+        if (upload == null) {
+            logger.error("Failed to start upload of '{}'", destination);
+            return false;
+        }
+
+        int blockSize = CanineBackup.getConfig().getBackupInt("seekableBlockMb", 4) * 1024 * 1024;
+        MeteredOutputStream uploaded = new MeteredOutputStream(upload);
+        BlockEncryptingOutputStream blocks = new BlockEncryptingOutputStream(uploaded, getCompressionPool(), blockSize, getCompressionThreads() * 2);
+        MeteredOutputStream zip = new MeteredOutputStream(blocks);
+        boolean blocksUploaded = false;
+        try (Metrics.Stage stage = Metrics.start(name, "stream")) {
+            if (!compressor.test(zip)) {
+                logger.error("Failed to stream '{}', aborting upload", source);
+                upload.abort();
+                return false;
+            }
+            stage.setBytesIn(zip.getEntryBytes());
+            stage.setBytesOut(uploaded.getBytesWritten());
+            upload.close();
+            blocksUploaded = true;
+            saveChecksums(destination, upload.getChecksums());
+
+            ArchiveIndex index = blocks.getIndex();
+            ByteArrayOutputStream json = new ByteArrayOutputStream();
+            try (Writer writer = new OutputStreamWriter(json, StandardCharsets.UTF_8)) {
+                index.write(writer);
+            }
+            ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+            if (!GPGUtil.encryptStream(new ByteArrayInputStream(json.toByteArray()), encrypted, baseName + ".json", false, true, CompressionAlgorithmTags.ZIP)) {
+                logger.error("Failed to encrypt index of '{}'", destination);
+                deleteBlocks(destination);
+                return false;
+            }
+            AWSUtils.putObject(indexDestination, encrypted.toByteArray());
+            logger.info("Uploaded index of '{}' with {} blocks and {} entries", destination, index.getBlocks().size(), index.getEntries().size());
+        } catch (IOException | RuntimeException exception) {
+            String description = destination + " failed to upload because: " + exception.getMessage();
+            RequestUtil.sendAlert("failure", "Failed Upload", description, "max");
+            logger.error("Unable to finish upload of '{}'", destination, exception);
+            if (blocksUploaded) {
+                deleteBlocks(destination);
+            }
+            return false;
+        }
+
+        saveManifest(incremental);
+        RequestUtil.sendAlert("normal", "Backup Completed (" + name + ")", "Backup completed successfully for '" + name + "` at " + CanineBackup.getTimeStamp(), "default");
+
+        RetentionUtil.register(prefix);
+        return true;
+    }
+
+    /**
+     * Delete the blocks of a seekable archive whose index did not make it.
+     * Without the index they cannot be restored, and a failed run is not
+     * meant to leave anything behind.
+     */
+    private static void deleteBlocks(String destination) {
+        try {
+            if (AWSUtils.deleteObjects(List.of(destination, destination + Checksums.MANIFEST_EXTENSION)) == 0) {
+                logger.info("Deleted '{}', its index was not uploaded", destination);
+            }
+        } catch (RuntimeException exception) {
+            RequestUtil.sendAlert("failure", "Cleanup Failed", destination + " has no index and could not be deleted: " + exception.getMessage(), "high");
+            logger.error("Unable to delete '{}', it has no index", destination, exception);
+        }
+    }
+
+    /**
+     * Work out whether this run of a directory backup is full or incremental.
+     * Incremental runs only archive files whose size or modification time
+     * changed since the last run, plus a list of deleted files. Every
+     * {@code fullEvery} runs a full backup starts a new chain, so a restore
+     * needs the latest full archive and the incrementals after it.
+     *
+     * @param name   Name of the service
+     * @param folder Folder in S3 to upload to
+     * @return The manifests to use. NULL if incremental backups are off.
+     */
+    private static Incremental startIncremental(String name, String folder) {
+        if (!CanineBackup.getConfig().getBackupBoolean("incremental", false)) {
+            return null;
+        }
+
+        Path file = Path.of("manifests", folder, name + ".json");
+        Manifest previous;
+        try {
+            previous = Manifest.load(file);
+        } catch (IOException exception) {
+            logger.warn("Unable to read manifest '{}', running a full backup", file, exception);
+            previous = new Manifest();
+        }
+
+        int fullEvery = CanineBackup.getConfig().getBackupInt("fullEvery", 7);
+        Manifest next = new Manifest();
+        if (previous.isEmpty() || previous.getRunsSinceFull() + 1 >= fullEvery) {
+            return new Incremental(file, null, next);
+        }
+        next.setRunsSinceFull(previous.getRunsSinceFull() + 1);
+        return new Incremental(file, previous, next);
+    }
+
+    /**
+     * Remember what was backed up, once the archive is safely uploaded.
+     */
+    private static void saveManifest(Incremental incremental) {
+        if (incremental == null) {
+            return;
+        }
+        try {
+            incremental.next().save(incremental.file());
+        } catch (IOException exception) {
+            // the next run compares against the older manifest, which only archives more
+            RequestUtil.sendAlert("failure", "Failed Manifest", exception.getMessage(), "high");
+            logger.error("Unable to save manifest '{}'", incremental.file(), exception);
+        }
+    }
+
+    /**
+     * Upload the checksum manifest of an archive. The archive is already
+     * stored and checked by S3, so failing here only loses the check on restore.
+     */
+    private static void saveChecksums(String key, Checksums checksums) {
+        if (checksums == null) {
+            return;
+        }
+        try {
+            AWSUtils.putObject(key + Checksums.MANIFEST_EXTENSION, checksums.toManifest(key).toString(2).getBytes(StandardCharsets.UTF_8));
+            logger.info("Uploaded checksums of '{}' (sha256 {})", key, checksums.getSha256());
+        } catch (RuntimeException exception) {
+            logger.error("Unable to upload checksums of '{}'", key, exception);
+        }
+    }
+
+    /**
+     * Get the name of the archive, marking incremental ones.
+     */
+    private static String getBaseName(String name, Incremental incremental) {
+        String baseName = name + "_" + CanineBackup.getTimeStamp();
+        if (incremental != null && incremental.previous() != null) {
+            baseName += ".inc";
+        }
+        return baseName;
+    }
+
+    /**
+     * Compress and encrypt a file or directory into a stream. Compression
+     * runs on its own thread and feeds the encryptor through a bounded pipe,
+     * so both stages work at the same time.
+     *
+     * @param source    The path or file to back up
+     * @param entryName The name of the zip stored inside the encrypted message
+     * @param isFile    True if source is a single file, false if it's a folder
+     * @param output    Where to write the encrypted archive. It is not closed.
+     * @return true if both compression and encryption worked
+     */
+    public static boolean streamArchive(String source, String entryName, boolean isFile, OutputStream output) {
+        return streamArchive(entryName, output, zip -> compressSource(source, zip, isFile), null);
+    }
+
+    /**
+     * Compress and encrypt into a stream, reporting the bytes zipped and
+     * written to a stage if one is given.
+     */
+    private static boolean streamArchive(String entryName, OutputStream output, Predicate<OutputStream> compressor, Metrics.Stage stage) {
+        int depth = CanineBackup.getConfig().getBackupInt("pipeDepth", 16);
+        BoundedPipe pipe = new BoundedPipe(PIPE_CHUNK_SIZE, depth);
+        AtomicBoolean compressed = new AtomicBoolean();
+        MeteredOutputStream zip = new MeteredOutputStream(pipe.getOutputStream());
+        MeteredOutputStream encrypted = new MeteredOutputStream(output);
+
+        Thread compressorThread = new Thread(() -> {
+            boolean worked = compressor.test(zip);
+            if (!worked) {
+                pipe.fail(new IOException("Compression of " + entryName + " failed"));
+            }
+            compressed.set(worked);
+        }, "compress-" + entryName);
+        compressorThread.start();
+
+        boolean worked;
+        try (InputStream in = pipe.getInputStream()) {
+            worked = GPGUtil.encryptStream(in, encrypted, entryName, isArmored(), true);
+        } catch (IOException exception) {
+            worked = false;
+        }
+
+        try {
+            compressorThread.join();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (stage != null) {
+            stage.setBytesIn(zip.getEntryBytes());
+            stage.setBytesOut(encrypted.getBytesWritten());
+        }
+        return worked && compressed.get();
+    }
+
+    /**
+     * Compress a file or directory into a stream based on the mode.
      *
      * @param input  The path to compress
-     * @param output Output zip file
+     * @param output Where to write the zip
      * @param isFile True if input is a file
      * @return true if success
      */
-    private static boolean compressSource(String input, String output, boolean isFile) {
+    private static boolean compressSource(String input, OutputStream output, boolean isFile) {
         return isFile
                 ? FileUtil.compressFile(input, output)
                 : FileUtil.compressPath(input, output);
@@ -182,14 +1046,66 @@ public class FileUtil {
         }
     }
 
+    /**
+     * Add up the size of every file under a path that a job backs up. Used
+     * to schedule the biggest jobs first, so a directory that cannot be read
+     * only ends the count early.
+     *
+     * @param name The job, whose filter is applied.
+     * @param path The file or directory.
+     * @return The total size in bytes.
+     */
+    public static long sizeOf(String name, String path) {
+        AtomicLong total = new AtomicLong();
+        try {
+            TreeScanner.scan(Path.of(path), PathFilter.forJob(name), entry -> total.addAndGet(entry.size()));
+        } catch (IOException | UncheckedIOException exception) {
+            logger.warn("Unable to get size of '{}'", path, exception);
+        }
+        return total.get();
+    }
+
+    /**
+     * Run a command on the system and capture what it prints.
+     *
+     * @param service The service that ran the command.
+     * @param command The command.
+     * @param envVars Optional environment variables to pass (e.g., MYSQL_PWD)
+     * @return The standard output. NULL if the command failed.
+     */
+    public static String runCommandForOutput(String service, String command, Map<String, String> envVars) {
+        try {
+            logger.debug("Running command: {}", command);
+            ProcessBuilder pb = new ProcessBuilder("bash", "-c", command);
+            if (envVars != null) {
+                pb.environment().putAll(envVars);
+            }
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+            Process process = pb.start();
+            String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            int exitCode = process.waitFor();
+            if (exitCode != 0) {
+                logger.error("Failed to run command {} (exit code {})", command, exitCode);
+                RequestUtil.sendAlert("failure", "Command Fail (" + service + ")", "Command failed: '" + command + "' (exit code " + exitCode + ")", "high");
+                return null;
+            }
+            return output;
+        } catch (IOException | InterruptedException exception) {
+            logger.error("Failed to run command '{}'", command, exception);
+            RequestUtil.sendAlert("failure", "Command Fail (" + service + ")", exception.getMessage(), "high");
+            return null;
+        }
+    }
+
     /**
      * Run a command on the system.
      *
      * @param service The service that ran the command.
      * @param command The command.
      * @param envVars Optional environment variables to pass (e.g., MYSQL_PWD)
+     * @return true if the command exited with 0.
      */
-    public static void runCommand(String service, String command, Map<String, String> envVars) {
+    public static boolean runCommand(String service, String command, Map<String, String> envVars) {
         try {
             logger.debug("Running command: {}", command);
             ProcessBuilder pb = new ProcessBuilder("bash", "-c", command);
@@ -202,10 +1118,23 @@ public class FileUtil {
             if (exitCode != 0) {
                 logger.error("Failed to run command {} (exit code {})", command, exitCode);
                 RequestUtil.sendAlert("failure", "Command Fail (" + service + ")", "Command failed: '" + command + "' (exit code " + exitCode + ")", "high");
+                return false;
             }
+            return true;
         } catch (IOException | InterruptedException exception) {
             logger.error("Failed to run command '{}'", command, exception);
             RequestUtil.sendAlert("failure", "Command Fail (" + service + ")", exception.getMessage(), "high");
+            return false;
         }
     }
+
+    /**
+     * Where the manifest of an incremental run lives and what it compares against.
+     *
+     * @param file     The manifest file.
+     * @param previous The manifest of the last run. NULL for a full backup.
+     * @param next     The manifest being built by this run.
+     */
+    private record Incremental(Path file, Manifest previous, Manifest next) {
+    }
 }
\ No newline at end of file
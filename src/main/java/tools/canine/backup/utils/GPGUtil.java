@@ -2,80 +2,427 @@ package tools.canine.backup.utils;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import tools.canine.backup.CanineBackup;
+import org.bouncycastle.bcpg.AEADAlgorithmTags;
 import org.bouncycastle.bcpg.ArmoredOutputStream;
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.openpgp.*;
+import org.bouncycastle.openpgp.jcajce.JcaPGPObjectFactory;
+import org.bouncycastle.openpgp.operator.PublicKeyDataDecryptorFactory;
 import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBEDataDecryptorFactoryBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBEKeyEncryptionMethodGenerator;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePublicKeyDataDecryptorFactoryBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.JcePublicKeyKeyEncryptionMethodGenerator;
 
 import java.io.*;
+import java.security.SecureRandom;
 import java.security.Security;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
 
 public class GPGUtil {
 
     private static final Logger logger = LogManager.getLogger(GPGUtil.class);
 
+    /**
+     * Size of the partial packet buffers. Peak memory per encryption is a
+     * small multiple of this, regardless of the input size.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * AEAD chunks of 2^(16+6) bytes, 4 MiB, the largest size allowed.
+     */
+    private static final int AEAD_CHUNK_SIZE = 16;
+
+    private static final String KEY_FILE = "public.pgp";
+
+    private static final String PRIVATE_KEY_FILE = "private.pgp";
+
+    /**
+     * S2K count byte for block passphrases, the smallest there is. They are
+     * random 256 bit keys, so stretching them adds nothing but time.
+     */
+    private static final int BLOCK_S2K_COUNT = 0;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * The recipient keys, parsed once per run.
+     */
+    private static List<PGPPublicKey> recipients;
+
+    /**
+     * The secret keys for restores, parsed once per run.
+     */
+    private static PGPSecretKeyRingCollection secretKeys;
+
     static {
         Security.addProvider(new BouncyCastleProvider());
     }
 
+    /**
+     * Encrypt a file. The file is streamed through the encryptor, so memory
+     * use does not depend on its size. It is compressed as set by
+     * {@code backup.pgpCompression}, which is off unless configured since
+     * archives are compressed already.
+     *
+     * @param input              The file to encrypt.
+     * @param output             The encrypted file to write.
+     * @param armor              Whether to ASCII armor the output.
+     * @param withIntegrityCheck Whether to add an integrity packet.
+     * @return true if worked, false if failed.
+     */
     public static boolean encryptFile(String input, String output, boolean armor, boolean withIntegrityCheck) {
-        try (OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(output))) {
-            PGPPublicKey encKey = readPublicKey();
-            if (encKey == null) {
-                logger.error("Encryption key not found!!!");
-                return false;
-            }
-
-            ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-            PGPCompressedDataGenerator comData = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
-            try (OutputStream compressedOut = comData.open(bOut)) {
-                PGPUtil.writeFileToLiteralData(
-                        compressedOut,
-                        PGPLiteralData.BINARY,
-                        new File(input)
-                );
-            } finally {
-                comData.close();
-            }
+        return encryptFile(input, output, armor, withIntegrityCheck, null);
+    }
 
-            byte[] bytes = bOut.toByteArray();
-            try (OutputStream out = armor ? new ArmoredOutputStream(fileOut) : fileOut) {
-                PGPEncryptedDataGenerator encryptedDataGenerator = new PGPEncryptedDataGenerator(
-                        new JcePGPDataEncryptorBuilder(PGPEncryptedData.CAST5)
-                                .setWithIntegrityPacket(withIntegrityCheck)
-                                .setSecureRandom(new java.security.SecureRandom())
-                                .setProvider("BC")
-                );
+    /**
+     * Encrypt a file, working out the checksums of what is written.
+     *
+     * @param input              The file to encrypt.
+     * @param output             The encrypted file to write.
+     * @param armor              Whether to ASCII armor the output.
+     * @param withIntegrityCheck Whether to add an integrity packet.
+     * @param checksums          Given everything written, NULL to skip.
+     * @return true if worked, false if failed.
+     */
+    public static boolean encryptFile(String input, String output, boolean armor, boolean withIntegrityCheck, Checksums checksums) {
+        File inputFile = new File(input);
+        try (InputStream fileIn = new FileInputStream(inputFile);
+             OutputStream fileOut = new BufferedOutputStream(checksums == null
+                     ? new FileOutputStream(output)
+                     : new ChecksumOutputStream(new FileOutputStream(output), checksums), BUFFER_SIZE)) {
+            Date modified = new Date(inputFile.lastModified());
+            return encryptStream(fileIn, fileOut, inputFile.getName(), modified, armor, withIntegrityCheck, getArchiveCompression());
+        } catch (IOException exception) {
+            logger.error("Unable to encrypt file", exception);
+            RequestUtil.sendAlert("failure", "Failed Encryption", exception.getMessage(), "max");
+            return false;
+        }
+    }
+
+    /**
+     * Encrypt a stream into another stream. Packets are written with partial
+     * lengths, so nothing is buffered beyond a fixed-size block and the input
+     * length does not need to be known up front. It is compressed as set by
+     * {@code backup.pgpCompression}.
+     *
+     * @param input              The plain data to encrypt.
+     * @param output             Where to write the encrypted data. It is not closed.
+     * @param fileName           The file name stored in the literal data packet.
+     * @param armor              Whether to ASCII armor the output.
+     * @param withIntegrityCheck Whether to add an integrity packet.
+     * @return true if worked, false if failed.
+     */
+    public static boolean encryptStream(InputStream input, OutputStream output, String fileName, boolean armor, boolean withIntegrityCheck) {
+        return encryptStream(input, output, fileName, new Date(), armor, withIntegrityCheck, getArchiveCompression());
+    }
+
+    /**
+     * Encrypt a stream into another stream with the given compression.
+     *
+     * @param input              The plain data to encrypt.
+     * @param output             Where to write the encrypted data. It is not closed.
+     * @param fileName           The file name stored in the literal data packet.
+     * @param armor              Whether to ASCII armor the output.
+     * @param withIntegrityCheck Whether to add an integrity packet.
+     * @param compression        The compression algorithm, one of {@link CompressionAlgorithmTags}.
+     * @return true if worked, false if failed.
+     */
+    public static boolean encryptStream(InputStream input, OutputStream output, String fileName, boolean armor, boolean withIntegrityCheck, int compression) {
+        return encryptStream(input, output, fileName, new Date(), armor, withIntegrityCheck, compression);
+    }
+
+    private static boolean encryptStream(InputStream input, OutputStream output, String fileName, Date modified, boolean armor, boolean withIntegrityCheck, int compression) {
+        List<PGPPublicKey> encKeys = getRecipients();
+        if (encKeys == null || encKeys.isEmpty()) {
+            logger.error("Encryption key not found!!!");
+            return false;
+        }
+
+        try (OutputStream out = armor ? new ArmoredOutputStream(output) : new UncloseableOutputStream(output)) {
+            PGPEncryptedDataGenerator encryptedDataGenerator = new PGPEncryptedDataGenerator(newDataEncryptor(withIntegrityCheck));
+            for (PGPPublicKey encKey : encKeys) {
                 encryptedDataGenerator.addMethod(
-                        new JcePublicKeyKeyEncryptionMethodGenerator(encKey).setProvider("BC")
+                        new JcePublicKeyKeyEncryptionMethodGenerator(encKey).setProvider("BC").setSecureRandom(RANDOM)
                 );
+            }
 
-                try (OutputStream encryptedOut = encryptedDataGenerator.open(out, bytes.length)) {
-                    encryptedOut.write(bytes);
+            // without compression the literal packet goes straight into the encrypted one
+            PGPLiteralDataGenerator literalData = new PGPLiteralDataGenerator();
+            try (OutputStream encryptedOut = encryptedDataGenerator.open(out, new byte[BUFFER_SIZE]);
+                 OutputStream compressedOut = compression == CompressionAlgorithmTags.UNCOMPRESSED
+                         ? new UncloseableOutputStream(encryptedOut)
+                         : new PGPCompressedDataGenerator(compression).open(encryptedOut, new byte[BUFFER_SIZE]);
+                 OutputStream literalOut = literalData.open(compressedOut, PGPLiteralData.BINARY, fileName, modified, new byte[BUFFER_SIZE])) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = input.read(buffer)) != -1) {
+                    literalOut.write(buffer, 0, read);
                 }
             }
 
             return true;
         } catch (IOException | PGPException exception) {
-            logger.error("Unable to encrypt file", exception);
+            logger.error("Unable to encrypt stream", exception);
             RequestUtil.sendAlert("failure", "Failed Encryption", exception.getMessage(), "max");
             return false;
         }
     }
 
-    private static PGPPublicKey readPublicKey() {
-        try (InputStream keyIn = new BufferedInputStream(new FileInputStream("public.pgp")); InputStream decoderStream = PGPUtil.getDecoderStream(keyIn)) {
+    /**
+     * Decrypt a stream written by {@link #encryptStream}, armored or not. The
+     * secret key is read from {@code backup.privateKey}, unlocked with
+     * {@code backup.privateKeyPassphrase}. Like encryption, nothing beyond a
+     * fixed-size buffer is held in memory.
+     *
+     * @param input  The encrypted data.
+     * @param output Where to write the plain data. It is not closed.
+     * @return true if worked, false if failed.
+     */
+    public static boolean decryptStream(InputStream input, OutputStream output) {
+        try (InputStream decoded = PGPUtil.getDecoderStream(new BufferedInputStream(input, BUFFER_SIZE))) {
+            PGPEncryptedDataList encryptedList = null;
+            JcaPGPObjectFactory factory = new JcaPGPObjectFactory(decoded);
+            Object next;
+            while (encryptedList == null && (next = factory.nextObject()) != null) {
+                if (next instanceof PGPEncryptedDataList list) {
+                    encryptedList = list;
+                }
+            }
+            if (encryptedList == null) {
+                throw new PGPException("No encrypted data found");
+            }
+
+            PGPPublicKeyEncryptedData encrypted = null;
+            PGPPrivateKey privateKey = null;
+            for (PGPEncryptedData data : encryptedList) {
+                if (data instanceof PGPPublicKeyEncryptedData publicKeyData) {
+                    privateKey = getPrivateKey(publicKeyData.getKeyIdentifier().getKeyId());
+                    if (privateKey != null) {
+                        encrypted = publicKeyData;
+                        break;
+                    }
+                }
+            }
+            if (encrypted == null) {
+                throw new PGPException("None of the recipients match the private key");
+            }
+
+            // as with encryption, plain AES is much faster on the JDK's provider
+            PublicKeyDataDecryptorFactory keyDecryptor = new JcePublicKeyDataDecryptorFactoryBuilder().setProvider("BC").build(privateKey);
+            int cipher = encrypted.getSymmetricAlgorithm(keyDecryptor);
+            boolean aes = cipher == SymmetricKeyAlgorithmTags.AES_128 || cipher == SymmetricKeyAlgorithmTags.AES_192 || cipher == SymmetricKeyAlgorithmTags.AES_256;
+            if (aes && !encrypted.isAEAD() && encrypted.isIntegrityProtected()) {
+                keyDecryptor = new JcePublicKeyDataDecryptorFactoryBuilder().setProvider("BC").setContentProvider(Security.getProvider("SunJCE")).build(privateKey);
+            }
+
+            Object content = new JcaPGPObjectFactory(encrypted.getDataStream(keyDecryptor)).nextObject();
+            if (content instanceof PGPCompressedData compressed) {
+                content = new JcaPGPObjectFactory(compressed.getDataStream()).nextObject();
+            }
+            if (!(content instanceof PGPLiteralData literal)) {
+                throw new PGPException("Encrypted data does not hold a literal data packet");
+            }
+            try (InputStream literalIn = literal.getInputStream()) {
+                literalIn.transferTo(output);
+            }
+
+            if (!encrypted.isIntegrityProtected()) {
+                logger.warn("Decrypted data has no integrity check");
+            } else if (!encrypted.verify()) {
+                throw new PGPException("Integrity check failed, the data was damaged or changed");
+            }
+            return true;
+        } catch (IOException | PGPException exception) {
+            logger.error("Unable to decrypt stream", exception);
+            RequestUtil.sendAlert("failure", "Failed Decryption", exception.getMessage(), "max");
+            return false;
+        }
+    }
+
+    /**
+     * Make a random passphrase for the blocks of a seekable archive.
+     *
+     * @return The passphrase, 256 random bits as hex.
+     */
+    public static String newBlockKey() {
+        byte[] key = new byte[32];
+        RANDOM.nextBytes(key);
+        return HexFormat.of().formatHex(key);
+    }
+
+    /**
+     * Encrypt one block of a seekable archive as its own OpenPGP message,
+     * under a passphrase instead of the recipient keys. The passphrase is
+     * kept in the archive's index, which is encrypted to the recipients, so
+     * restoring a block costs no private key operation.
+     *
+     * @param data   The plain data.
+     * @param length How much of it to encrypt.
+     * @param key    The passphrase, from {@link #newBlockKey()}.
+     * @return The encrypted block.
+     */
+    public static byte[] encryptBlock(byte[] data, int length, String key) throws IOException {
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream(length + 1024);
+        try {
+            PGPEncryptedDataGenerator encryptedDataGenerator = new PGPEncryptedDataGenerator(newDataEncryptor(true));
+            encryptedDataGenerator.addMethod(new JcePBEKeyEncryptionMethodGenerator(key.toCharArray(), BLOCK_S2K_COUNT).setProvider("BC").setSecureRandom(RANDOM));
+            try (OutputStream encryptedOut = encryptedDataGenerator.open(encrypted, new byte[BUFFER_SIZE]);
+                 OutputStream literalOut = new PGPLiteralDataGenerator().open(encryptedOut, PGPLiteralData.BINARY, "", length, new Date(0))) {
+                literalOut.write(data, 0, length);
+            }
+        } catch (PGPException exception) {
+            throw new IOException("Unable to encrypt block", exception);
+        }
+        return encrypted.toByteArray();
+    }
+
+    /**
+     * Decrypt one block written by {@link #encryptBlock}.
+     *
+     * @param data The encrypted block.
+     * @param key  The passphrase from the archive's index.
+     * @return The plain data.
+     * @throws IOException If the block is damaged or the passphrase is wrong.
+     */
+    public static byte[] decryptBlock(byte[] data, String key) throws IOException {
+        try {
+            Object next = new JcaPGPObjectFactory(new ByteArrayInputStream(data)).nextObject();
+            if (!(next instanceof PGPEncryptedDataList list) || !(list.get(0) instanceof PGPPBEEncryptedData encrypted)) {
+                throw new PGPException("Block is not passphrase encrypted");
+            }
+            JcePBEDataDecryptorFactoryBuilder builder = new JcePBEDataDecryptorFactoryBuilder(new JcaPGPDigestCalculatorProviderBuilder().setProvider("BC").build());
+            int cipher = encrypted.getSymmetricAlgorithm(builder.setProvider("BC").build(key.toCharArray()));
+            boolean aes = cipher == SymmetricKeyAlgorithmTags.AES_128 || cipher == SymmetricKeyAlgorithmTags.AES_192 || cipher == SymmetricKeyAlgorithmTags.AES_256;
+            if (aes && !encrypted.isAEAD() && encrypted.isIntegrityProtected()) {
+                builder.setProvider(Security.getProvider("SunJCE"));
+            }
+
+            Object content = new JcaPGPObjectFactory(encrypted.getDataStream(builder.build(key.toCharArray()))).nextObject();
+            if (!(content instanceof PGPLiteralData literal)) {
+                throw new PGPException("Block does not hold a literal data packet");
+            }
+            byte[] plain;
+            try (InputStream literalIn = literal.getInputStream()) {
+                plain = literalIn.readAllBytes();
+            }
+            if (!encrypted.isIntegrityProtected() || !encrypted.verify()) {
+                throw new PGPException("Integrity check failed, the block was damaged or changed");
+            }
+            return plain;
+        } catch (PGPException exception) {
+            throw new IOException("Unable to decrypt block", exception);
+        }
+    }
+
+    /**
+     * Build the encryptor from {@code backup.pgpCipher} and {@code backup.pgpAead}.
+     * <p>
+     * Plain AES runs on the JDK's own provider, whose AES uses the CPU's AES
+     * instructions; Bouncy Castle's is pure Java and several times slower.
+     * Other ciphers, and AEAD, which needs OCB mode, stay on Bouncy Castle.
+     */
+    private static JcePGPDataEncryptorBuilder newDataEncryptor(boolean withIntegrityCheck) {
+        int cipher = getCipher();
+        boolean aead = CanineBackup.getConfig().getBackupBoolean("pgpAead", false);
+        JcePGPDataEncryptorBuilder builder = new JcePGPDataEncryptorBuilder(cipher).setSecureRandom(RANDOM);
+        if (aead) {
+            // LibrePGP OCB packets, which GnuPG 2.3 and newer read
+            builder.setWithAEAD(AEADAlgorithmTags.OCB, AEAD_CHUNK_SIZE).setUseV5AEAD();
+        } else {
+            builder.setWithIntegrityPacket(withIntegrityCheck);
+        }
+
+        boolean aes = cipher == SymmetricKeyAlgorithmTags.AES_128 || cipher == SymmetricKeyAlgorithmTags.AES_192 || cipher == SymmetricKeyAlgorithmTags.AES_256;
+        // without an integrity packet BC asks for its own OpenPGP CFB mode, which only it has
+        if (!aes || aead || !withIntegrityCheck) {
+            builder.setProvider("BC");
+        }
+        return builder;
+    }
+
+    /**
+     * Get the cipher from {@code backup.pgpCipher}: {@code aes256} (the
+     * default), {@code aes192}, {@code aes128}, {@code camellia256},
+     * {@code twofish} or {@code cast5}.
+     */
+    private static int getCipher() {
+        String name = CanineBackup.getConfig().getBackupInfo("pgpCipher", "aes256");
+        return switch (name.toLowerCase(Locale.ROOT)) {
+            case "aes256" -> SymmetricKeyAlgorithmTags.AES_256;
+            case "aes192" -> SymmetricKeyAlgorithmTags.AES_192;
+            case "aes128" -> SymmetricKeyAlgorithmTags.AES_128;
+            case "camellia256" -> SymmetricKeyAlgorithmTags.CAMELLIA_256;
+            case "twofish" -> SymmetricKeyAlgorithmTags.TWOFISH;
+            case "cast5" -> SymmetricKeyAlgorithmTags.CAST5;
+            default -> {
+                logger.warn("Unknown PGP cipher '{}', using aes256", name);
+                yield SymmetricKeyAlgorithmTags.AES_256;
+            }
+        };
+    }
+
+    /**
+     * Get the compression for archives from {@code backup.pgpCompression}:
+     * {@code none}, {@code zip}, {@code zlib} or {@code bzip2}.
+     */
+    private static int getArchiveCompression() {
+        String name = CanineBackup.getConfig().getBackupInfo("pgpCompression", "none");
+        return switch (name.toLowerCase(Locale.ROOT)) {
+            case "none" -> CompressionAlgorithmTags.UNCOMPRESSED;
+            case "zip" -> CompressionAlgorithmTags.ZIP;
+            case "zlib" -> CompressionAlgorithmTags.ZLIB;
+            case "bzip2" -> CompressionAlgorithmTags.BZIP2;
+            default -> {
+                logger.warn("Unknown PGP compression '{}', using none", name);
+                yield CompressionAlgorithmTags.UNCOMPRESSED;
+            }
+        };
+    }
+
+    /**
+     * Get the keys to encrypt to, reading them the first time. Every key ring
+     * in the key file, {@code backup.publicKey}, is a recipient, using its
+     * first encryption key.
+     *
+     * @return The keys. NULL if the key file could not be read.
+     */
+    private static synchronized List<PGPPublicKey> getRecipients() {
+        if (recipients == null) {
+            String keyFile = CanineBackup.getConfig().getBackupInfo("publicKey", KEY_FILE);
+            recipients = readPublicKeys(keyFile);
+            if (recipients != null) {
+                logger.info("Loaded {} recipient key(s) from {}", recipients.size(), keyFile);
+            }
+        }
+        return recipients;
+    }
+
+    private static List<PGPPublicKey> readPublicKeys(String keyFile) {
+        try (InputStream keyIn = new BufferedInputStream(new FileInputStream(keyFile)); InputStream decoderStream = PGPUtil.getDecoderStream(keyIn)) {
             PGPPublicKeyRingCollection pgpPub = new PGPPublicKeyRingCollection(decoderStream, new JcaKeyFingerprintCalculator());
 
+            List<PGPPublicKey> keys = new ArrayList<>();
             for (PGPPublicKeyRing keyRing : pgpPub) {
                 for (PGPPublicKey key : keyRing) {
                     if (key.isEncryptionKey()) {
-                        return key;
+                        keys.add(key);
+                        break;
                     }
                 }
             }
+            return keys;
         } catch (IOException | PGPException exception) {
             logger.error("Failed to read public key", exception);
             RequestUtil.sendAlert("failure", "Failed Encryption", exception.getMessage(), "max");
@@ -83,4 +430,47 @@ public class GPGUtil {
 
         return null;
     }
+
+    /**
+     * Get the private key for a key ID, reading the secret keys the first time.
+     *
+     * @param keyId The key ID from an encrypted session key packet.
+     * @return The unlocked key. NULL if there is no such key.
+     */
+    private static synchronized PGPPrivateKey getPrivateKey(long keyId) throws IOException, PGPException {
+        if (secretKeys == null) {
+            String keyFile = CanineBackup.getConfig().getBackupInfo("privateKey", PRIVATE_KEY_FILE);
+            try (InputStream keyIn = new BufferedInputStream(new FileInputStream(keyFile)); InputStream decoderStream = PGPUtil.getDecoderStream(keyIn)) {
+                secretKeys = new PGPSecretKeyRingCollection(decoderStream, new JcaKeyFingerprintCalculator());
+            }
+            logger.info("Loaded {} secret key ring(s) from {}", secretKeys.size(), keyFile);
+        }
+
+        PGPSecretKey secretKey = secretKeys.getSecretKey(keyId);
+        if (secretKey == null) {
+            return null;
+        }
+        char[] passphrase = CanineBackup.getConfig().getBackupInfo("privateKeyPassphrase", "").toCharArray();
+        return secretKey.extractPrivateKey(new JcePBESecretKeyDecryptorBuilder().setProvider("BC").build(passphrase));
+    }
+
+    /**
+     * Keeps the generators from closing a stream that belongs to the caller.
+     */
+    private static class UncloseableOutputStream extends FilterOutputStream {
+
+        UncloseableOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
 }
@@ -0,0 +1,112 @@
+package tools.canine.backup.utils;
+
+import tools.canine.backup.archive.ChannelSink;
+import tools.canine.backup.archive.EntryRecorder;
+
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Counts the bytes written through it and, when a zip is written to it, the
+ * uncompressed size of every entry, so a stage can report bytes in and out.
+ * Entries are passed on to the wrapped stream if it records them too.
+ * <p>
+ * Bytes written to its {@link ChannelSink} side go straight to the file
+ * under it, if there is one, and are counted the same.
+ * <p>
+ * The counts are meant to be read once writing is done.
+ */
+public class MeteredOutputStream extends FilterOutputStream implements EntryRecorder, ChannelSink {
+
+    private final EntryRecorder recorder;
+    private final ChannelSink sink;
+    private long bytesWritten;
+    private long entryBytes;
+
+    /**
+     * Create a stream.
+     *
+     * @param out Where to write. It is closed with this stream.
+     */
+    public MeteredOutputStream(OutputStream out) {
+        super(out);
+        this.recorder = out instanceof EntryRecorder entryRecorder ? entryRecorder : null;
+        if (out instanceof ChannelSink channelSink) {
+            this.sink = channelSink;
+        } else if (out instanceof FileOutputStream file) {
+            this.sink = ChannelSink.of(file.getChannel());
+        } else {
+            this.sink = null;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        bytesWritten++;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        out.write(bytes, offset, length);
+        bytesWritten += length;
+    }
+
+    @Override
+    public boolean hasChannel() {
+        return sink != null && sink.hasChannel();
+    }
+
+    @Override
+    public void write(ByteBuffer buffer) throws IOException {
+        int length = buffer.remaining();
+        if (hasChannel()) {
+            sink.write(buffer);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            out.write(bytes);
+        }
+        bytesWritten += length;
+    }
+
+    @Override
+    public long transferFrom(FileChannel source, long position, long count) throws IOException {
+        if (!hasChannel()) {
+            throw new IOException("No channel to transfer to");
+        }
+        long copied = sink.transferFrom(source, position, count);
+        bytesWritten += copied;
+        return copied;
+    }
+
+    @Override
+    public void recordEntry(String name, long offset, long end, long size) {
+        entryBytes += size;
+        if (recorder != null) {
+            recorder.recordEntry(name, offset, end, size);
+        }
+    }
+
+    /**
+     * Get how many bytes were written.
+     *
+     * @return The bytes.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Get the uncompressed size of every zip entry written.
+     *
+     * @return The bytes.
+     */
+    public long getEntryBytes() {
+        return entryBytes;
+    }
+}
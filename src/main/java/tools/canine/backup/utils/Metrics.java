@@ -0,0 +1,371 @@
+package tools.canine.backup.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import tools.canine.backup.CanineBackup;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Numbers collected while the backups run, keyed by metric, then by job and
+ * stage. At the end of a run they are taken out, logged and, if configured,
+ * written to a JSON report ({@code backup.metricsReport}) and a Prometheus
+ * textfile collector file ({@code backup.metricsTextfile}). Taking them
+ * clears them, so each batch logs only its own values, while the files keep
+ * the last value of every job, as a daemon's batches each run only some.
+ */
+public class Metrics {
+
+    private static final Logger logger = LogManager.getLogger(Metrics.class);
+
+    /**
+     * Prefix of every metric in the Prometheus output.
+     */
+    private static final String PROMETHEUS_PREFIX = "canine_";
+
+    private static final Map<String, Map<Series, Double>> values = new ConcurrentSkipListMap<>();
+
+    /**
+     * The last value of every series written to the files.
+     */
+    private static final Map<String, Map<Series, Double>> reported = new TreeMap<>();
+
+    /**
+     * Record a value, replacing any earlier one for the same job.
+     *
+     * @param metric The metric name, like {@code docker_downtime_seconds}.
+     * @param job    The job it belongs to, NULL for the whole run.
+     * @param value  The value.
+     */
+    public static void set(String metric, String job, double value) {
+        set(metric, job, null, value);
+    }
+
+    /**
+     * Record a value for one stage of a job, replacing any earlier one.
+     *
+     * @param metric The metric name, like {@code stage_seconds}.
+     * @param job    The job it belongs to, NULL for the whole run.
+     * @param stage  The stage, like {@code compress}, NULL for the whole job.
+     * @param value  The value.
+     */
+    public static void set(String metric, String job, String stage, double value) {
+        values.computeIfAbsent(metric, key -> new ConcurrentSkipListMap<>()).put(new Series(job, stage), value);
+    }
+
+    /**
+     * Start timing a stage. Closing it records how long it took and, if
+     * given, the bytes it read and wrote:
+     * <ul>
+     *     <li>{@code stage_seconds}</li>
+     *     <li>{@code stage_bytes_in} and {@code stage_bytes_out}</li>
+     *     <li>{@code stage_ratio}, bytes in over bytes out</li>
+     *     <li>{@code stage_bytes_per_second}, bytes in over wall time</li>
+     * </ul>
+     *
+     * @param job   The job.
+     * @param stage The stage, like {@code compress}.
+     * @return The running stage.
+     */
+    public static Stage start(String job, String stage) {
+        return new Stage(job, stage, false);
+    }
+
+    /**
+     * Start timing a stage that does all its work on the calling thread.
+     * Closing it on that thread also records {@code stage_cpu_seconds}, the
+     * CPU time of the thread, which no other job can add to.
+     *
+     * @param job   The job.
+     * @param stage The stage, like {@code encrypt}.
+     * @return The running stage.
+     */
+    public static Stage startOnThread(String job, String stage) {
+        return new Stage(job, stage, true);
+    }
+
+    /**
+     * Get the CPU time used by the whole process so far.
+     *
+     * @return The nanoseconds, -1 if the JVM cannot tell.
+     */
+    public static long getProcessCpuNanos() {
+        OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if (bean instanceof com.sun.management.OperatingSystemMXBean sunBean) {
+            return sunBean.getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    /**
+     * Get the CPU time used by the calling thread so far.
+     *
+     * @return The nanoseconds, -1 if the JVM cannot tell.
+     */
+    private static long getThreadCpuNanos() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!bean.isCurrentThreadCpuTimeSupported() || !bean.isThreadCpuTimeEnabled()) {
+            return -1;
+        }
+        return bean.getCurrentThreadCpuTime();
+    }
+
+    /**
+     * Take out everything recorded so far, except the values of some jobs.
+     *
+     * @param keep Jobs whose values stay behind, like those of a batch that
+     *             is still running.
+     * @return The values taken, by metric, then by job and stage.
+     */
+    public static Map<String, Map<Series, Double>> take(Set<String> keep) {
+        Map<String, Map<Series, Double>> taken = new TreeMap<>();
+        values.forEach((metric, series) -> {
+            Iterator<Map.Entry<Series, Double>> iterator = series.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Series, Double> entry = iterator.next();
+                if (entry.getKey().job() == null || !keep.contains(entry.getKey().job())) {
+                    taken.computeIfAbsent(metric, key -> new TreeMap<>()).put(entry.getKey(), entry.getValue());
+                    iterator.remove();
+                }
+            }
+        });
+        return taken;
+    }
+
+    /**
+     * Fold values taken from a run into the last reported ones. A job in the
+     * run replaces all its earlier series, and the run-wide values are always
+     * replaced; jobs that did not run keep theirs.
+     *
+     * @param taken The values, as given by {@link #take}.
+     * @return The last value of every series so far, by metric, then by job and stage.
+     */
+    public static synchronized Map<String, Map<Series, Double>> merge(Map<String, Map<Series, Double>> taken) {
+        Set<String> jobs = new HashSet<>();
+        taken.values().forEach(series -> series.keySet().forEach(labels -> jobs.add(labels.job())));
+        reported.values().forEach(series -> series.keySet().removeIf(labels -> labels.job() == null || jobs.contains(labels.job())));
+        reported.values().removeIf(Map::isEmpty);
+        taken.forEach((metric, series) -> reported.computeIfAbsent(metric, key -> new TreeMap<>()).putAll(series));
+
+        Map<String, Map<Series, Double>> merged = new TreeMap<>();
+        reported.forEach((metric, series) -> merged.put(metric, new TreeMap<>(series)));
+        return merged;
+    }
+
+    /**
+     * Write values to the log.
+     *
+     * @param values The values, as given by {@link #take}.
+     */
+    public static void log(Map<String, Map<Series, Double>> values) {
+        values.forEach((metric, series) -> series.forEach((labels, value) -> logger.info("{}{} = {}", metric, labels, value)));
+    }
+
+    /**
+     * Write the JSON report and the Prometheus file, whichever are set.
+     * Failing to write them does not fail the run.
+     *
+     * @param values The values, as given by {@link #merge}.
+     */
+    public static void writeReports(Map<String, Map<Series, Double>> values) {
+        String report = CanineBackup.getConfig().getBackupInfo("metricsReport", "");
+        if (!report.isBlank()) {
+            write(Path.of(report), toJson(values).toString(2));
+        }
+        String textfile = CanineBackup.getConfig().getBackupInfo("metricsTextfile", "");
+        if (!textfile.isBlank()) {
+            write(Path.of(textfile), toPrometheus(values));
+        }
+    }
+
+    /**
+     * Build the run report, like
+     * {@code {"timestamp":..,"metrics":{"stage_seconds":[{"job":..,"stage":..,"value":..}]}}}.
+     *
+     * @param values The values, as given by {@link #take}.
+     * @return The report.
+     */
+    public static JSONObject toJson(Map<String, Map<Series, Double>> values) {
+        JSONObject metrics = new JSONObject();
+        values.forEach((metric, series) -> {
+            JSONArray points = new JSONArray();
+            series.forEach((labels, value) -> {
+                JSONObject point = new JSONObject();
+                if (labels.job() != null) {
+                    point.put("job", labels.job());
+                }
+                if (labels.stage() != null) {
+                    point.put("stage", labels.stage());
+                }
+                point.put("value", value);
+                points.put(point);
+            });
+            metrics.put(metric, points);
+        });
+        JSONObject report = new JSONObject();
+        report.put("timestamp", CanineBackup.getTimeStamp());
+        report.put("metrics", metrics);
+        return report;
+    }
+
+    /**
+     * Format every value in the Prometheus text exposition format, as read
+     * by node_exporter's textfile collector.
+     *
+     * @param values The values, as given by {@link #take}.
+     * @return The text.
+     */
+    public static String toPrometheus(Map<String, Map<Series, Double>> values) {
+        StringBuilder text = new StringBuilder();
+        values.forEach((metric, series) -> {
+            String name = PROMETHEUS_PREFIX + metric;
+            text.append("# TYPE ").append(name).append(" gauge\n");
+            series.forEach((labels, value) -> text.append(name).append(labels).append(' ').append(value).append('\n'));
+        });
+        return text.toString();
+    }
+
+    /**
+     * Write a file through a temp file and a rename, so a collector never
+     * reads it half written.
+     */
+    private static void write(Path file, String contents) {
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+            Files.writeString(temp, contents, StandardCharsets.UTF_8);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("Wrote metrics to '{}'", file);
+        } catch (IOException exception) {
+            logger.error("Unable to write metrics to '{}'", file, exception);
+        }
+    }
+
+    /**
+     * The labels of a value. Either may be NULL.
+     *
+     * @param job   The job.
+     * @param stage The stage.
+     */
+    public record Series(String job, String stage) implements Comparable<Series> {
+
+        private static final Comparator<Series> ORDER = Comparator
+                .comparing(Series::job, Comparator.nullsFirst(Comparator.<String>naturalOrder()))
+                .thenComparing(Series::stage, Comparator.nullsFirst(Comparator.<String>naturalOrder()));
+
+        @Override
+        public int compareTo(Series other) {
+            return ORDER.compare(this, other);
+        }
+
+        /**
+         * Format as Prometheus labels, like {@code {job="web",stage="compress"}}.
+         */
+        @Override
+        public String toString() {
+            if (job == null && stage == null) {
+                return "";
+            }
+            StringBuilder labels = new StringBuilder("{");
+            if (job != null) {
+                labels.append("job=\"").append(escape(job)).append('"');
+            }
+            if (stage != null) {
+                labels.append(job != null ? "," : "").append("stage=\"").append(escape(stage)).append('"');
+            }
+            return labels.append('}').toString();
+        }
+
+        private static String escape(String value) {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+    }
+
+    /**
+     * A stage being timed. Use it in a try-with-resources block and report
+     * its bytes before it closes, or close it in a finally block when there
+     * are no bytes to report.
+     */
+    public static class Stage implements AutoCloseable {
+
+        private final String job;
+        private final String stage;
+        private final long startNanos = System.nanoTime();
+        private final Thread thread;
+        private final long startCpuNanos;
+        private long bytesIn = -1;
+        private long bytesOut = -1;
+        private boolean closed;
+
+        private Stage(String job, String stage, boolean onThread) {
+            this.job = Objects.requireNonNull(job);
+            this.stage = Objects.requireNonNull(stage);
+            this.thread = onThread ? Thread.currentThread() : null;
+            this.startCpuNanos = onThread ? getThreadCpuNanos() : -1;
+        }
+
+        /**
+         * Set how many bytes the stage read.
+         *
+         * @param bytes The bytes.
+         */
+        public void setBytesIn(long bytes) {
+            bytesIn = bytes;
+        }
+
+        /**
+         * Set how many bytes the stage wrote.
+         *
+         * @param bytes The bytes.
+         */
+        public void setBytesOut(long bytes) {
+            bytesOut = bytes;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            double seconds = (System.nanoTime() - startNanos) / 1e9;
+            set("stage_seconds", job, stage, seconds);
+            if (startCpuNanos >= 0 && Thread.currentThread() == thread) {
+                long cpuNanos = getThreadCpuNanos();
+                if (cpuNanos >= 0) {
+                    set("stage_cpu_seconds", job, stage, (cpuNanos - startCpuNanos) / 1e9);
+                }
+            }
+            if (bytesIn >= 0) {
+                set("stage_bytes_in", job, stage, bytesIn);
+                if (seconds > 0) {
+                    set("stage_bytes_per_second", job, stage, bytesIn / seconds);
+                }
+            }
+            if (bytesOut >= 0) {
+                set("stage_bytes_out", job, stage, bytesOut);
+            }
+            if (bytesIn >= 0 && bytesOut > 0) {
+                set("stage_ratio", job, stage, (double) bytesIn / bytesOut);
+            }
+        }
+    }
+}
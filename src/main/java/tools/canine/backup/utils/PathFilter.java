@@ -0,0 +1,195 @@
+package tools.canine.backup.utils;
+
+import tools.canine.backup.CanineBackup;
+import tools.canine.backup.config.BackupConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which files under a source are backed up.
+ * <p>
+ * Patterns work like a {@code .gitignore}: a pattern without a slash matches
+ * a name at any depth, one with a slash matches from the source root, a
+ * trailing slash only matches directories, {@code **} crosses directories and
+ * {@code !} brings back what an earlier pattern left out. The last pattern
+ * that matches wins. An excluded directory is never read, so nothing under
+ * it can be brought back. Patterns come from the {@code excludes} section,
+ * those under {@code "*"} first and then the job's own.
+ * <p>
+ * {@code backup.maxFileSizeMb} and {@code backup.maxFileAgeDays} leave out
+ * bigger files and files not modified for longer, and can be set per job
+ * with {@code maxFileSizeMb.<job>} and {@code maxFileAgeDays.<job>}. 0 means
+ * no limit.
+ */
+public class PathFilter {
+
+    /**
+     * Lets everything through.
+     */
+    public static final PathFilter NONE = new PathFilter(List.of(), 0, 0);
+
+    private final List<Rule> rules;
+    private final long maxSize;
+    private final long oldest;
+
+    /**
+     * Create a filter.
+     *
+     * @param patterns The patterns, in order.
+     * @param maxSize  The largest file to keep in bytes, 0 for any size.
+     * @param oldest   The oldest modified time to keep in epoch millis, 0 for any age.
+     */
+    public PathFilter(List<String> patterns, long maxSize, long oldest) {
+        this.rules = new ArrayList<>();
+        for (String pattern : patterns) {
+            Rule rule = Rule.parse(pattern);
+            if (rule != null) {
+                rules.add(rule);
+            }
+        }
+        this.maxSize = maxSize;
+        this.oldest = oldest;
+    }
+
+    /**
+     * Build the filter of a job from the config.
+     *
+     * @param job The job name.
+     * @return The filter, {@link #NONE} if nothing is configured.
+     */
+    public static PathFilter forJob(String job) {
+        BackupConfig config = CanineBackup.getConfig();
+        List<String> patterns = new ArrayList<>(config.getExcludes("*"));
+        patterns.addAll(config.getExcludes(job));
+        long maxSize = getJobInt(job, "maxFileSizeMb") * 1024L * 1024L;
+        int maxAgeDays = getJobInt(job, "maxFileAgeDays");
+        long oldest = maxAgeDays > 0 ? System.currentTimeMillis() - TimeUnit.DAYS.toMillis(maxAgeDays) : 0;
+        if (patterns.isEmpty() && maxSize <= 0 && oldest <= 0) {
+            return NONE;
+        }
+        return new PathFilter(patterns, maxSize, oldest);
+    }
+
+    /**
+     * Check whether a directory should be read.
+     *
+     * @param name The directory's path from the source root, with forward slashes.
+     * @return true unless a pattern excludes it.
+     */
+    public boolean includesDirectory(String name) {
+        return !isExcluded(name, true);
+    }
+
+    /**
+     * Check whether a file should be backed up.
+     *
+     * @param name     The file's path from the source root, with forward slashes.
+     * @param size     Its size in bytes.
+     * @param modified When it was last modified, in epoch millis.
+     * @return true if no pattern excludes it and it is within the size and age limits.
+     */
+    public boolean includesFile(String name, long size, long modified) {
+        if (maxSize > 0 && size > maxSize) {
+            return false;
+        }
+        if (oldest > 0 && modified < oldest) {
+            return false;
+        }
+        return !isExcluded(name, false);
+    }
+
+    private boolean isExcluded(String name, boolean directory) {
+        boolean excluded = false;
+        for (Rule rule : rules) {
+            if (rule.directoryOnly() && !directory) {
+                continue;
+            }
+            if (excluded == rule.negated() && rule.pattern().matcher(name).matches()) {
+                excluded = !rule.negated();
+            }
+        }
+        return excluded;
+    }
+
+    private static int getJobInt(String job, String setting) {
+        BackupConfig config = CanineBackup.getConfig();
+        return config.getBackupInt(setting + "." + job, config.getBackupInt(setting, 0));
+    }
+
+    /**
+     * One pattern, turned into a regex over the path from the source root.
+     */
+    private record Rule(Pattern pattern, boolean negated, boolean directoryOnly) {
+
+        static Rule parse(String line) {
+            String glob = line.strip();
+            if (glob.isEmpty() || glob.startsWith("#")) {
+                return null;
+            }
+            boolean negated = glob.startsWith("!");
+            if (negated) {
+                glob = glob.substring(1);
+            } else if (glob.startsWith("\\!") || glob.startsWith("\\#")) {
+                glob = glob.substring(1);
+            }
+            boolean directoryOnly = glob.endsWith("/");
+            while (glob.endsWith("/")) {
+                glob = glob.substring(0, glob.length() - 1);
+            }
+            if (glob.isEmpty()) {
+                return null;
+            }
+            // a slash anywhere but the end ties the pattern to the root
+            boolean anchored = glob.contains("/");
+            if (glob.startsWith("/")) {
+                glob = glob.substring(1);
+            }
+            return new Rule(Pattern.compile((anchored ? "" : "(?:.*/)?") + toRegex(glob)), negated, directoryOnly);
+        }
+
+        private static String toRegex(String glob) {
+            StringBuilder regex = new StringBuilder();
+            int length = glob.length();
+            for (int i = 0; i < length; i++) {
+                char c = glob.charAt(i);
+                if (c == '*' && i + 1 < length && glob.charAt(i + 1) == '*') {
+                    boolean segmentStart = i == 0 || glob.charAt(i - 1) == '/';
+                    if (segmentStart && i + 2 < length && glob.charAt(i + 2) == '/') {
+                        // "**/" is any number of directories, none included
+                        regex.append("(?:.*/)?");
+                        i += 2;
+                    } else {
+                        regex.append(".*");
+                        i++;
+                    }
+                } else if (c == '*') {
+                    regex.append("[^/]*");
+                } else if (c == '?') {
+                    regex.append("[^/]");
+                } else if (c == '[') {
+                    int end = glob.indexOf(']', i + 2);
+                    if (end < 0) {
+                        regex.append("\\[");
+                        continue;
+                    }
+                    String range = glob.substring(i + 1, end);
+                    if (range.startsWith("!")) {
+                        range = "^" + range.substring(1);
+                    }
+                    regex.append('[').append(range.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                    i = end;
+                } else if (c == '\\' && i + 1 < length) {
+                    regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+                } else if ("\\.+()^$|{}".indexOf(c) >= 0) {
+                    regex.append('\\').append(c);
+                } else {
+                    regex.append(c);
+                }
+            }
+            return regex.toString();
+        }
+    }
+}
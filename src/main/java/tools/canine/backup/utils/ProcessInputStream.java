@@ -0,0 +1,81 @@
+package tools.canine.backup.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Reads what a process prints. At the end of the output it waits for the
+ * process and throws if it failed, so a broken dump is never mistaken for a
+ * short one.
+ */
+public class ProcessInputStream extends FilterInputStream {
+
+    private final Process process;
+    private final String description;
+    private boolean ended;
+    private IOException failure;
+
+    /**
+     * Wrap the standard output of a process.
+     *
+     * @param process     The process.
+     * @param description What the process is, for error messages.
+     */
+    public ProcessInputStream(Process process, String description) {
+        super(process.getInputStream());
+        this.process = process;
+        this.description = description;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int read = super.read();
+        if (read < 0) {
+            checkExit();
+        }
+        return read;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        int read = super.read(bytes, offset, length);
+        if (read < 0) {
+            checkExit();
+        }
+        return read;
+    }
+
+    /**
+     * Close the output. A process that has not finished is killed, since
+     * nobody is going to read the rest.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            if (process.isAlive()) {
+                process.destroy();
+            }
+        }
+    }
+
+    private void checkExit() throws IOException {
+        if (!ended) {
+            ended = true;
+            try {
+                int exitCode = process.waitFor();
+                if (exitCode != 0) {
+                    failure = new IOException(description + " failed (exit code " + exitCode + ")");
+                }
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + description);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
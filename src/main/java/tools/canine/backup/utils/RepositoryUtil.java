@@ -0,0 +1,541 @@
+package tools.canine.backup.utils;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
+import software.amazon.awssdk.services.s3.model.S3Object;
+import tools.canine.backup.CanineBackup;
+import tools.canine.backup.repository.Chunker;
+import tools.canine.backup.repository.Snapshot;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Backs up into a deduplicated repository instead of one archive per run.
+ * Files are cut into content-defined chunks, every chunk is encrypted and
+ * stored once under an HMAC of its contents, and each backup is a small
+ * encrypted snapshot listing the chunks of every file.
+ * <p>
+ * Under the repository prefix, chunks live at {@code chunks/<ab>/<id>} and
+ * snapshots at {@code snapshots/<folder>/<name>_<time>.json.gpg}. A plain
+ * copy of each snapshot is kept under {@code index/}, so unused chunks can be
+ * found without the private key. Only one host should write to a repository.
+ */
+public class RepositoryUtil {
+
+    private static final Logger logger = LogManager.getLogger(RepositoryUtil.class);
+
+    private static final Path INDEX_DIRECTORY = Path.of("index");
+
+    /**
+     * The extension of an uploaded snapshot.
+     */
+    public static final String SNAPSHOT_EXTENSION = ".json.gpg";
+
+    /**
+     * Every chunk known to be in the repository, or on its way there.
+     */
+    private static final Map<String, CompletableFuture<Void>> chunks = new ConcurrentHashMap<>();
+    private static final CompletableFuture<Void> STORED = CompletableFuture.completedFuture(null);
+    private static boolean chunksListed;
+
+    /**
+     * Check if backups go to the repository.
+     *
+     * @return true if repository mode is on.
+     */
+    public static boolean isEnabled() {
+        return CanineBackup.getConfig().getBackupBoolean("repository", false);
+    }
+
+    /**
+     * Back up a file or directory into the repository. Files whose size and
+     * modification time match the last snapshot reuse its chunks without
+     * being read.
+     *
+     * @param name   Name of the service
+     * @param folder Folder in the repository to put the snapshot in
+     * @param source The path or file to back up
+     * @param isFile True if source is a single file, false if it's a folder
+     * @return true if the snapshot was uploaded
+     */
+    public static boolean backup(String name, String folder, String source, boolean isFile) {
+        Mac mac = openRepository(name);
+        if (mac == null) {
+            return false;
+        }
+
+        Snapshot previous = loadLatestSnapshot(folder, name);
+        Snapshot snapshot = new Snapshot();
+        Chunker chunker = newChunker();
+        Semaphore inFlight = new Semaphore(CanineBackup.getConfig().getBackupInt("chunksInFlight", 8));
+        ChunkCounter counter = new ChunkCounter();
+        Throttle reads = Throttle.forReads();
+
+        logger.info("Chunking '{}' into the repository", source);
+        Path root = Path.of(source);
+        try {
+            TreeScanner.scan(root, isFile ? PathFilter.NONE : PathFilter.forJob(name), entry -> {
+                String entryName = entry.name();
+                Snapshot.FileEntry old = previous == null ? null : previous.get(entryName);
+                if (old != null && old.size() == entry.size() && old.modified() == entry.modified() && reuseChunks(old.chunks(), counter)) {
+                    snapshot.add(old);
+                    return;
+                }
+
+                try (InputStream in = reads.wrap(Files.newInputStream(entry.path()))) {
+                    // a file that changed while being read is recorded with what was read, so the next run reads it again
+                    snapshot.add(chunkStream(entryName, entry.modified(), in, mac, chunker, inFlight, counter));
+                } catch (NoSuchFileException e) {
+                    logger.warn("File disappeared during backup: {}", entry.path());
+                } catch (InterruptedIOException exception) {
+                    throw exception;
+                } catch (IOException exception) {
+                    // leave the file out and carry on, like a failed compression
+                    RequestUtil.sendAlert("failure", "Failed Backup (" + name + ")", exception.getMessage(), "max");
+                    logger.error("Unable to read file: {}", entry.path(), exception);
+                }
+            });
+        } catch (IOException | UncheckedIOException exception) {
+            RequestUtil.sendAlert("failure", "Failed Backup (" + name + ")", exception.getMessage(), "max");
+            logger.error("Unable to back up '{}' into the repository", source, exception);
+            return false;
+        }
+        return finishSnapshot(name, folder, snapshot, counter);
+    }
+
+    /**
+     * Back up streams into the repository, each as one file of the snapshot.
+     * The streams are chunked at the same time, one thread each.
+     *
+     * @param name    Name of the service
+     * @param folder  Folder in the repository to put the snapshot in
+     * @param streams The streams by file name. They are closed when done.
+     * @return true if the snapshot was uploaded
+     */
+    public static boolean backupStreams(String name, String folder, Map<String, InputStream> streams) {
+        Mac mac = openRepository(name);
+        if (mac == null) {
+            streams.values().forEach(IOUtils::closeQuietly);
+            return false;
+        }
+
+        Semaphore inFlight = new Semaphore(CanineBackup.getConfig().getBackupInt("chunksInFlight", 8));
+        ChunkCounter counter = new ChunkCounter();
+        long modified = System.currentTimeMillis();
+        Map<String, CompletableFuture<Snapshot.FileEntry>> files = new LinkedHashMap<>();
+        for (Map.Entry<String, InputStream> stream : streams.entrySet()) {
+            CompletableFuture<Snapshot.FileEntry> file = new CompletableFuture<>();
+            Thread thread = new Thread(() -> {
+                try (InputStream in = stream.getValue()) {
+                    Mac streamMac = (Mac) mac.clone();
+                    file.complete(chunkStream(stream.getKey(), modified, in, streamMac, newChunker(), inFlight, counter));
+                } catch (Throwable throwable) {
+                    file.completeExceptionally(throwable);
+                }
+            }, "chunk-" + stream.getKey());
+            thread.setDaemon(true);
+            thread.start();
+            files.put(stream.getKey(), file);
+        }
+
+        Snapshot snapshot = new Snapshot();
+        boolean worked = true;
+        for (Map.Entry<String, CompletableFuture<Snapshot.FileEntry>> file : files.entrySet()) {
+            try {
+                snapshot.add(file.getValue().join());
+            } catch (CompletionException exception) {
+                RequestUtil.sendAlert("failure", "Failed Backup (" + name + ")", exception.getCause().getMessage(), "max");
+                logger.error("Unable to back up '{}' into the repository", file.getKey(), exception.getCause());
+                // the others may be waiting on a writer that is now stuck, so stop them
+                streams.values().forEach(IOUtils::closeQuietly);
+                worked = false;
+            }
+        }
+        return worked && finishSnapshot(name, folder, snapshot, counter);
+    }
+
+    /**
+     * Check the repository can be used and learn which chunks it has.
+     *
+     * @return The MAC that names chunks. NULL if the repository cannot be used.
+     */
+    private static Mac openRepository(String name) {
+        String chunkKey = CanineBackup.getConfig().getBackupInfo("chunkKey", "");
+        if (chunkKey.isBlank()) {
+            RequestUtil.sendAlert("failure", "Failed Backup (" + name + ")", "Repository mode needs backup.chunkKey to be set", "max");
+            logger.error("Repository mode needs backup.chunkKey to be set");
+            return null;
+        }
+
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(chunkKey.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            listChunks();
+            return mac;
+        } catch (GeneralSecurityException | RuntimeException exception) {
+            RequestUtil.sendAlert("failure", "Failed Backup (" + name + ")", exception.getMessage(), "max");
+            logger.error("Unable to open repository for '{}'", name, exception);
+            return null;
+        }
+    }
+
+    /**
+     * Cut a stream into chunks and start uploading the new ones.
+     *
+     * @return The file entry listing the chunks.
+     */
+    private static Snapshot.FileEntry chunkStream(String entryName, long modified, InputStream in, Mac mac, Chunker chunker, Semaphore inFlight, ChunkCounter counter) throws IOException {
+        List<String> ids = new ArrayList<>();
+        long[] read = new long[1];
+        chunker.split(in, chunk -> {
+            String id = HexFormat.of().formatHex(mac.doFinal(chunk));
+            if (storeChunk(id, chunk, inFlight, counter)) {
+                counter.chunks().incrementAndGet();
+                counter.bytes().addAndGet(chunk.length);
+            }
+            ids.add(id);
+            read[0] += chunk.length;
+        });
+        return new Snapshot.FileEntry(entryName, read[0], modified, ids);
+    }
+
+    /**
+     * Wait for the chunks of a snapshot, then upload it, keep a local index
+     * of it and have old snapshots cleaned up after the run.
+     *
+     * @return true if the snapshot was uploaded
+     */
+    private static boolean finishSnapshot(String name, String folder, Snapshot snapshot, ChunkCounter counter) {
+        String snapshotName = name + "_" + CanineBackup.getTimeStamp();
+        if (!awaitChunks(snapshotName, counter)) {
+            return false;
+        }
+
+        String destination = getPrefix() + "snapshots/" + folder + "/" + snapshotName + SNAPSHOT_EXTENSION;
+        try {
+            ByteArrayOutputStream json = new ByteArrayOutputStream();
+            try (Writer writer = new OutputStreamWriter(json, StandardCharsets.UTF_8)) {
+                snapshot.write(writer);
+            }
+            ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+            if (!GPGUtil.encryptStream(new ByteArrayInputStream(json.toByteArray()), encrypted, snapshotName + ".json", false, true, CompressionAlgorithmTags.ZIP)) {
+                logger.error("Failed to encrypt snapshot '{}'", snapshotName);
+                return false;
+            }
+            AWSUtils.putObject(destination, encrypted.toByteArray());
+        } catch (IOException | RuntimeException exception) {
+            String description = destination + " failed to upload because: " + exception.getMessage();
+            RequestUtil.sendAlert("failure", "Failed Upload", description, "max");
+            logger.error("Unable to upload snapshot '{}'", destination, exception);
+            return false;
+        }
+
+        Path index = INDEX_DIRECTORY.resolve(folder).resolve(snapshotName + ".json");
+        try {
+            snapshot.save(index);
+        } catch (IOException exception) {
+            // without it unused chunks are kept, never the other way round
+            RequestUtil.sendAlert("failure", "Failed Index", exception.getMessage(), "high");
+            logger.error("Unable to save snapshot index '{}'", index, exception);
+        }
+
+        logger.info("Snapshot '{}' has {} files, {} new chunks ({} bytes)", snapshotName, snapshot.getFiles().size(), counter.chunks().get(), counter.bytes().get());
+        RequestUtil.sendAlert("normal", "Backup Completed (" + name + ")", "Backup completed successfully for '" + name + "` at " + CanineBackup.getTimeStamp(), "default");
+
+        RetentionUtil.register(getPrefix() + "snapshots/" + folder + "/" + name + "_");
+        return true;
+    }
+
+    /**
+     * Wait for the upload of every chunk a snapshot uses, some may be
+     * uploading for another job. The uploads are the ones handed out while
+     * the snapshot was built, so a failed one is seen even after it has
+     * been dropped from the repository's list.
+     *
+     * @return true if every chunk is stored.
+     */
+    static boolean awaitChunks(String snapshotName, ChunkCounter counter) {
+        try {
+            for (CompletableFuture<Void> upload : counter.uploads().values()) {
+                upload.join();
+            }
+            return true;
+        } catch (CompletionException | CancellationException exception) {
+            Throwable cause = exception instanceof CompletionException ? exception.getCause() : exception;
+            String description = "Chunks for " + snapshotName + " failed to upload because: " + cause.getMessage();
+            RequestUtil.sendAlert("failure", "Failed Upload", description, "max");
+            logger.error("Unable to upload chunks for '{}'", snapshotName, cause);
+            return false;
+        }
+    }
+
+    /**
+     * Use the chunks of an unchanged file again, if the repository still
+     * has all of them or has them on the way.
+     *
+     * @return true if they were all found.
+     */
+    private static boolean reuseChunks(List<String> ids, ChunkCounter counter) {
+        Map<String, CompletableFuture<Void>> uploads = new HashMap<>();
+        for (String id : ids) {
+            CompletableFuture<Void> upload = chunks.get(id);
+            if (upload == null) {
+                return false;
+            }
+            uploads.put(id, upload);
+        }
+        uploads.forEach(counter.uploads()::putIfAbsent);
+        return true;
+    }
+
+    /**
+     * Delete chunks that no snapshot uses any more. Run once all jobs are
+     * done, so no chunk is deleted while a snapshot that needs it is being
+     * written. Nothing is deleted if a snapshot has no local index, since its
+     * chunks cannot be known.
+     */
+    public static void collectGarbage() {
+        if (!isEnabled()) {
+            return;
+        }
+
+        try {
+            String snapshotPrefix = getPrefix() + "snapshots/";
+            Set<String> snapshotKeys = AWSUtils.listObjects(snapshotPrefix).stream()
+                    .map(S3Object::key)
+                    .collect(Collectors.toSet());
+
+            Set<String> indexed = new HashSet<>();
+            Set<String> referenced = new HashSet<>();
+            if (Files.isDirectory(INDEX_DIRECTORY)) {
+                List<Path> indexFiles;
+                try (Stream<Path> paths = Files.walk(INDEX_DIRECTORY)) {
+                    indexFiles = paths.filter(path -> path.toString().endsWith(".json")).toList();
+                }
+                for (Path indexFile : indexFiles) {
+                    String key = snapshotPrefix + INDEX_DIRECTORY.relativize(indexFile).toString().replace("\\", "/") + ".gpg";
+                    if (!snapshotKeys.contains(key)) {
+                        // the snapshot was cleaned up, so its index goes too
+                        Files.delete(indexFile);
+                        continue;
+                    }
+                    indexed.add(key);
+                    referenced.addAll(Snapshot.load(indexFile).getChunks());
+                }
+            }
+
+            if (!indexed.containsAll(snapshotKeys)) {
+                logger.warn("{} snapshot(s) have no local index, not deleting any chunks", snapshotKeys.size() - indexed.size());
+                return;
+            }
+
+            List<String> unused = new ArrayList<>();
+            for (S3Object object : AWSUtils.listObjects(getPrefix() + "chunks/")) {
+                String id = object.key().substring(object.key().lastIndexOf('/') + 1);
+                if (!referenced.contains(id)) {
+                    unused.add(object.key());
+                    chunks.remove(id);
+                }
+            }
+            int failed = AWSUtils.deleteObjects(unused);
+            logger.info("Deleted {} unused chunk(s)", unused.size() - failed);
+        } catch (IOException | RuntimeException exception) {
+            RequestUtil.sendAlert("failure", "Cleanup Failed", exception.getMessage(), "high");
+            logger.error("Failed to clean up unused chunks", exception);
+        }
+    }
+
+    /**
+     * Download and decrypt a snapshot.
+     *
+     * @param key The key of the {@code .json.gpg}.
+     * @return The snapshot.
+     */
+    public static Snapshot loadSnapshot(String key) throws IOException {
+        byte[] encrypted = AWSUtils.getObjectIfExists(key);
+        if (encrypted == null) {
+            throw new IOException("Snapshot " + key + " does not exist");
+        }
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        if (!GPGUtil.decryptStream(new ByteArrayInputStream(encrypted), json)) {
+            throw new IOException("Decryption of snapshot " + key + " failed");
+        }
+        try (Reader reader = new InputStreamReader(new ByteArrayInputStream(json.toByteArray()), StandardCharsets.UTF_8)) {
+            return Snapshot.read(reader, key);
+        }
+    }
+
+    /**
+     * Download and decrypt a chunk.
+     *
+     * @param id The chunk ID.
+     * @return The chunk data.
+     */
+    public static byte[] readChunk(String id) throws IOException {
+        String key = getPrefix() + "chunks/" + id.substring(0, 2) + "/" + id;
+        byte[] encrypted = AWSUtils.getObjectIfExists(key);
+        if (encrypted == null) {
+            throw new IOException("Chunk " + key + " is missing from the repository");
+        }
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream(encrypted.length * 2);
+        if (!GPGUtil.decryptStream(new ByteArrayInputStream(encrypted), chunk)) {
+            throw new IOException("Decryption of chunk " + key + " failed");
+        }
+        return chunk.toByteArray();
+    }
+
+    /**
+     * Encrypt and upload a chunk in the background, unless the repository
+     * already has it. Either way the upload the snapshot has to wait for is
+     * added to the counter.
+     *
+     * @return true if this is a new chunk.
+     */
+    static boolean storeChunk(String id, byte[] chunk, Semaphore inFlight, ChunkCounter counter) throws IOException {
+        CompletableFuture<Void> upload = new CompletableFuture<>();
+        CompletableFuture<Void> existing = chunks.putIfAbsent(id, upload);
+        if (existing != null) {
+            counter.uploads().putIfAbsent(id, existing);
+            return false;
+        }
+        counter.uploads().put(id, upload);
+
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            chunks.remove(id, upload);
+            upload.cancel(false);
+            throw new InterruptedIOException("Interrupted while waiting to upload chunk " + id);
+        }
+
+        // the upload threads do not know the job, so pick its throttle here
+        Throttle throttle = Throttle.forUploads();
+        AWSUtils.getUploadExecutor().execute(() -> {
+            try {
+                ByteArrayOutputStream encrypted = new ByteArrayOutputStream(chunk.length / 2 + 1024);
+                // chunks are raw file data, so unlike archives they are compressed here
+                if (!GPGUtil.encryptStream(new ByteArrayInputStream(chunk), encrypted, id, false, true, CompressionAlgorithmTags.ZIP)) {
+                    throw new IOException("Failed to encrypt chunk " + id);
+                }
+                AWSUtils.putObject(getPrefix() + "chunks/" + id.substring(0, 2) + "/" + id, encrypted.toByteArray(), throttle);
+                upload.complete(null);
+            } catch (Throwable throwable) {
+                // forget it, so a later backup tries again
+                chunks.remove(id, upload);
+                upload.completeExceptionally(throwable);
+            } finally {
+                inFlight.release();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Learn which chunks the repository has. Done once per run.
+     */
+    private static synchronized void listChunks() {
+        if (chunksListed) {
+            return;
+        }
+        for (S3Object object : AWSUtils.listObjects(getPrefix() + "chunks/")) {
+            chunks.putIfAbsent(object.key().substring(object.key().lastIndexOf('/') + 1), STORED);
+        }
+        chunksListed = true;
+        logger.info("Repository has {} chunk(s)", chunks.size());
+    }
+
+    /**
+     * Get the newest local snapshot index for a service.
+     *
+     * @return The snapshot. NULL if there is none or it cannot be read.
+     */
+    private static Snapshot loadLatestSnapshot(String folder, String name) {
+        Path directory = INDEX_DIRECTORY.resolve(folder);
+        if (!Files.isDirectory(directory)) {
+            return null;
+        }
+
+        // timestamps sort in time order, so the last name is the newest
+        Pattern pattern = Pattern.compile(Pattern.quote(name) + "_\\d{4}-\\d{2}-\\d{2}_\\d{2}-\\d{2}-\\d{2}\\.json");
+        Path latest;
+        try (Stream<Path> files = Files.list(directory)) {
+            latest = files
+                    .filter(path -> pattern.matcher(path.getFileName().toString()).matches())
+                    .max(Path::compareTo)
+                    .orElse(null);
+        } catch (IOException exception) {
+            logger.warn("Unable to list snapshot indexes in '{}'", directory, exception);
+            return null;
+        }
+        if (latest == null) {
+            return null;
+        }
+
+        try {
+            return Snapshot.load(latest);
+        } catch (IOException exception) {
+            logger.warn("Unable to read snapshot index '{}', reading every file", latest, exception);
+            return null;
+        }
+    }
+
+    private static Chunker newChunker() {
+        int average = CanineBackup.getConfig().getBackupInt("chunkSizeKb", 1024) * 1024;
+        return new Chunker(average / 4, average, average * 4);
+    }
+
+    private static String getPrefix() {
+        return CanineBackup.getConfig().getBackupInfo("repositoryPrefix", "repository") + "/";
+    }
+
+    /**
+     * Counts the chunks a backup added to the repository, and keeps the
+     * upload of every chunk it uses.
+     *
+     * @param chunks  How many chunks were new.
+     * @param bytes   How many bytes they held before encryption.
+     * @param uploads The uploads by chunk ID, done for chunks already stored.
+     */
+    record ChunkCounter(AtomicLong chunks, AtomicLong bytes, Map<String, CompletableFuture<Void>> uploads) {
+
+        ChunkCounter() {
+            this(new AtomicLong(), new AtomicLong(), new ConcurrentHashMap<>());
+        }
+    }
+}
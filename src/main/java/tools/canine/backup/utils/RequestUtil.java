@@ -9,15 +9,55 @@ import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Sends ntfy alerts from a background thread, so a slow or unreachable
+ * server never holds up a backup.
+ * <p>
+ * Alerts go on a queue of {@code backup.alertQueueSize} and are sent in
+ * digests: whatever arrives within {@code backup.alertDigestSeconds} of the
+ * first alert is grouped by type and title, so a thousand unreadable files
+ * become one message. Requests time out after
+ * {@code backup.alertTimeoutSeconds}, are retried {@code backup.alertRetries}
+ * times with backoff, and at most {@code backup.alertsPerMinute} are sent.
+ */
 public class RequestUtil {
 
     private static final Logger logger = LogManager.getLogger(RequestUtil.class);
 
-    private static final HttpClient client = HttpClient.newHttpClient();
+    private static final HttpClient client = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
 
     /**
-     * Send ntfy message.
+     * How many bodies a digest lists before summing up the rest.
+     */
+    private static final int MAX_DIGEST_LINES = 10;
+
+    private static final long FLUSH_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final List<String> PRIORITIES = List.of("min", "low", "default", "high", "max");
+
+    private static final AtomicInteger dropped = new AtomicInteger();
+
+    private static final Object idle = new Object();
+
+    private static BlockingQueue<Alert> queue;
+    private static int pending;
+    private static volatile boolean flushing;
+
+    /**
+     * Queue a ntfy message. This never waits on the network; if the queue is
+     * full the alert is dropped and counted in the next digest.
      *
      * @param type     The type of alert, good or bad.
      * @param title    Title of message.
@@ -25,11 +65,161 @@ public class RequestUtil {
      * @param priority The priority of the message. (min,low,default,high,max)
      */
     public static void sendAlert(String type, String title, String body, String priority) {
+        BlockingQueue<Alert> alerts = getQueue();
+        synchronized (idle) {
+            if (!alerts.offer(new Alert(type, title, body == null ? "" : body, priority))) {
+                dropped.incrementAndGet();
+                logger.warn("Alert queue is full, dropping '{}'", title);
+                return;
+            }
+            pending++;
+        }
+    }
+
+    /**
+     * Send everything still queued, skipping the digest wait and the rate
+     * limit, and wait up to {@code backup.alertFlushSeconds} for it. Call
+     * this before the process exits.
+     */
+    public static void flush() {
+        flushing = true;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(CanineBackup.getConfig().getBackupInt("alertFlushSeconds", 30));
+        try {
+            synchronized (idle) {
+                while (pending > 0) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        logger.warn("Gave up waiting for {} alert(s) to send", pending);
+                        return;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(idle, left);
+                }
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        } finally {
+            flushing = false;
+        }
+    }
+
+    /**
+     * Get the queue, starting the dispatcher on first use.
+     */
+    private static synchronized BlockingQueue<Alert> getQueue() {
+        if (queue == null) {
+            queue = new ArrayBlockingQueue<>(Math.max(CanineBackup.getConfig().getBackupInt("alertQueueSize", 1024), 1));
+            Thread dispatcher = new Thread(RequestUtil::dispatch, "alerts");
+            dispatcher.setDaemon(true);
+            dispatcher.start();
+        }
+        return queue;
+    }
+
+    private static void dispatch() {
+        long digestNanos = TimeUnit.SECONDS.toNanos(CanineBackup.getConfig().getBackupInt("alertDigestSeconds", 5));
+        int perMinute = Math.max(CanineBackup.getConfig().getBackupInt("alertsPerMinute", 20), 1);
+        double tokens = perMinute;
+        long refilled = System.nanoTime();
+
+        while (true) {
+            List<Alert> batch = new ArrayList<>();
+            try {
+                Alert first = queue.take();
+                batch.add(first);
+                // give a burst time to arrive, so it goes out as one digest
+                long deadline = System.nanoTime() + digestNanos;
+                while (!flushing) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        break;
+                    }
+                    // wake up now and then to notice a flush
+                    Alert next = queue.poll(Math.min(left, FLUSH_CHECK_NANOS), TimeUnit.NANOSECONDS);
+                    if (next != null) {
+                        batch.add(next);
+                    }
+                }
+                queue.drainTo(batch);
+
+                for (Alert digest : merge(batch)) {
+                    long now = System.nanoTime();
+                    tokens = Math.min(perMinute, tokens + (now - refilled) / 60e9 * perMinute);
+                    refilled = now;
+                    if (tokens < 1 && !flushing) {
+                        long wait = (long) ((1 - tokens) * 60e9 / perMinute);
+                        logger.info("Sent {} alerts in the last minute, waiting {}s", perMinute, TimeUnit.NANOSECONDS.toSeconds(wait));
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                        tokens = 1;
+                        refilled = System.nanoTime();
+                    }
+                    tokens--;
+                    send(digest);
+                }
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException exception) {
+                logger.error("Unable to send alerts", exception);
+            } finally {
+                synchronized (idle) {
+                    pending -= batch.size();
+                    idle.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Group alerts by type and title, keeping the highest priority and
+     * listing the bodies. Alerts dropped since the last digest are reported
+     * on their own.
+     */
+    private static List<Alert> merge(List<Alert> alerts) {
+        Map<String, List<Alert>> groups = new LinkedHashMap<>();
+        for (Alert alert : alerts) {
+            groups.computeIfAbsent(alert.type() + "\n" + alert.title(), key -> new ArrayList<>()).add(alert);
+        }
+
+        List<Alert> digests = new ArrayList<>();
+        for (List<Alert> group : groups.values()) {
+            Alert first = group.getFirst();
+            if (group.size() == 1) {
+                digests.add(first);
+                continue;
+            }
+            String priority = first.priority();
+            StringBuilder body = new StringBuilder(group.size() + " times:");
+            for (int i = 0; i < group.size(); i++) {
+                Alert alert = group.get(i);
+                if (PRIORITIES.indexOf(alert.priority()) > PRIORITIES.indexOf(priority)) {
+                    priority = alert.priority();
+                }
+                if (i < MAX_DIGEST_LINES) {
+                    body.append("\n- ").append(alert.body());
+                }
+            }
+            if (group.size() > MAX_DIGEST_LINES) {
+                body.append("\n...and ").append(group.size() - MAX_DIGEST_LINES).append(" more");
+            }
+            digests.add(new Alert(first.type(), first.title() + " (x" + group.size() + ")", body.toString(), priority));
+        }
+
+        int lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            digests.add(new Alert("failure", "Alerts Dropped", lost + " alert(s) were dropped because the alert queue was full", "high"));
+        }
+        return digests;
+    }
+
+    /**
+     * Send one message, retrying failures and server errors with backoff.
+     */
+    private static void send(Alert alert) throws InterruptedException {
         String topic = null;
-        if (type.equalsIgnoreCase("normal")) {
+        if (alert.type().equalsIgnoreCase("normal")) {
             topic = CanineBackup.getConfig().getNtfyInfo("normal-alerts");
         }
-        if (type.equalsIgnoreCase("failure")) {
+        if (alert.type().equalsIgnoreCase("failure")) {
             topic = CanineBackup.getConfig().getNtfyInfo("failure-alerts");
         }
         if (topic == null) {
@@ -40,18 +230,40 @@ public class RequestUtil {
         String token = CanineBackup.getConfig().getNtfyInfo("token");
         HttpRequest alertRequest = HttpRequest.newBuilder()
                 .uri(URI.create(topic))
+                .timeout(Duration.ofSeconds(CanineBackup.getConfig().getBackupInt("alertTimeoutSeconds", 10)))
                 .header("Authorization", "Bearer " + token)
-                .header("Title", title)
-                .header("Priority", priority)
+                .header("Title", alert.title())
+                .header("Priority", alert.priority())
                 .header("User-Agent", CanineBackup.getUserAgent())
-                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .POST(HttpRequest.BodyPublishers.ofString(alert.body()))
                 .build();
 
-        try {
-            HttpResponse<String> response = client.send(alertRequest, HttpResponse.BodyHandlers.ofString());
-            logger.info("Sent ntfy message to topic {} with title '{}': Response {} - {}", topic, title, response.statusCode(), response.body());
-        } catch (IOException | InterruptedException exception) {
-            logger.error("Unable to send ntfy alert", exception);
+        int retries = CanineBackup.getConfig().getBackupInt("alertRetries", 3);
+        long backoff = 1000;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                HttpResponse<String> response = client.send(alertRequest, HttpResponse.BodyHandlers.ofString());
+                int status = response.statusCode();
+                if ((status < 500 && status != 429) || attempt >= retries) {
+                    logger.info("Sent ntfy message to topic {} with title '{}': Response {} - {}", topic, alert.title(), status, response.body());
+                    return;
+                }
+                logger.warn("ntfy answered {} to '{}', retrying", status, alert.title());
+            } catch (IOException exception) {
+                if (attempt >= retries) {
+                    logger.error("Unable to send ntfy alert '{}'", alert.title(), exception);
+                    return;
+                }
+                logger.warn("Unable to send ntfy alert '{}', retrying: {}", alert.title(), exception.toString());
+            }
+            Thread.sleep(backoff);
+            backoff *= 2;
         }
     }
+
+    /**
+     * A queued message.
+     */
+    private record Alert(String type, String title, String body, String priority) {
+    }
 }
@@ -0,0 +1,525 @@
+package tools.canine.backup.utils;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+import tools.canine.backup.CanineBackup;
+import tools.canine.backup.archive.ArchiveIndex;
+import tools.canine.backup.archive.ArchiveReader;
+import tools.canine.backup.archive.TarStreamReader;
+import tools.canine.backup.archive.ZipStreamReader;
+import tools.canine.backup.repository.Snapshot;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Restores an archive straight from S3. Downloading, decrypting and unzipping
+ * run at the same time on their own threads, joined by bounded buffers, so
+ * nothing is staged on disk and the slowest of network and disk sets the pace.
+ * Archives written as tar ({@value FileUtil#TAR_EXTENSION}) are read the
+ * same way.
+ * <p>
+ * A seekable archive is restored through its index: only the blocks holding
+ * the selected files are downloaded.
+ * <p>
+ * A repository snapshot ({@value RepositoryUtil#SNAPSHOT_EXTENSION}) is
+ * restored by fetching the chunks of its files several at a time and
+ * writing them back in order.
+ * <p>
+ * Segmented streams are joined back into one file. For an incremental
+ * archive, files in its {@value FileUtil#DELETED_ENTRY} list are removed, so
+ * a chain is restored by restoring the full archive and then each
+ * incremental in order into the same directory.
+ */
+public class RestoreUtil {
+
+    private static final Logger logger = LogManager.getLogger(RestoreUtil.class);
+
+    private static final int PIPE_CHUNK_SIZE = 1 << 20;
+
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Segments after the first, as written by {@link FileUtil#compressStreams}.
+     * Only joined for streams listed in the archive's {@value FileUtil#STREAMS_ENTRY}.
+     */
+    private static final Pattern SEGMENT = Pattern.compile("(.+)\\.(\\d{6})");
+
+    /**
+     * Restore an archive.
+     *
+     * @param key    The key of the {@code .zip.gpg}, {@code .tar.gpg}, {@code .zip.blocks}
+     *               or repository snapshot {@code .json.gpg} to restore.
+     * @param target The directory to restore into, or {@code -} to write the
+     *               contents of the selected files to stdout, one after another.
+     * @param paths  The files or directories to restore, as named inside the
+     *               archive. Empty to restore everything.
+     * @return true if everything selected was restored.
+     */
+    public static boolean restore(String key, String target, List<String> paths) {
+        long start = System.nanoTime();
+        Extractor extractor;
+        try (OutputStream stdout = target.equals("-") ? new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), WRITE_BUFFER_SIZE) : null) {
+            Path root = stdout == null ? Path.of(target).toAbsolutePath().normalize() : null;
+            if (root != null) {
+                Files.createDirectories(root);
+            }
+            extractor = new Extractor(root, stdout, paths);
+            if (key.endsWith(FileUtil.SEEKABLE_EXTENSION)) {
+                restoreSeekable(key, extractor);
+            } else if (key.endsWith(RepositoryUtil.SNAPSHOT_EXTENSION)) {
+                restoreSnapshot(key, extractor);
+            } else {
+                restoreArchive(key, extractor);
+            }
+        } catch (IOException | UncheckedIOException exception) {
+            RequestUtil.sendAlert("failure", "Failed Restore", key + " failed to restore because: " + exception.getMessage(), "max");
+            logger.error("Unable to restore '{}'", key, exception);
+            return false;
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        if (extractor.files == 0 && !paths.isEmpty()) {
+            logger.warn("Nothing in '{}' matches {}", key, paths);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        logger.info("Restored {} file(s), {} bytes from '{}' in {} s ({} MB/s)", extractor.files, extractor.bytes, key,
+                String.format("%.1f", seconds), String.format("%.1f", extractor.bytes / seconds / (1024 * 1024)));
+        return true;
+    }
+
+    /**
+     * Restore a {@code .zip.gpg} or {@code .tar.gpg}. It is one OpenPGP
+     * message, so all of it is downloaded and decrypted.
+     */
+    private static void restoreArchive(String key, Extractor extractor) throws IOException, InterruptedException {
+        Checksums expected = loadChecksums(key);
+        S3DownloadStream download = AWSUtils.openDownloadStream(key);
+        if (download == null) {
+            throw new IOException("Unable to download " + key);
+        }
+        extract(key, out -> {
+            try (download) {
+                Checksums actual = new Checksums();
+                // decryption closes its input, and the rest of the download is still to be checked
+                InputStream in = expected == null ? download : new ChecksumInputStream(new FilterInputStream(download) {
+                    @Override
+                    public void close() {
+                    }
+                }, actual);
+                if (!GPGUtil.decryptStream(in, out)) {
+                    throw new IOException("Decryption of " + key + " failed");
+                }
+                if (expected != null) {
+                    // anything after the message counts too
+                    in.transferTo(OutputStream.nullOutputStream());
+                    actual.finish();
+                    if (actual.getSize() != expected.getSize() || !actual.getSha256().equals(expected.getSha256())) {
+                        throw new IOException(key + " does not match its checksums: sha256 " + actual.getSha256() + ", expected " + expected.getSha256());
+                    }
+                    logger.info("'{}' matches its checksums (sha256 {})", key, actual.getSha256());
+                }
+            }
+        }, extractor);
+    }
+
+    /**
+     * Read the checksum manifest of an archive.
+     *
+     * @return The checksums, or NULL if it was uploaded without them.
+     */
+    private static Checksums loadChecksums(String key) {
+        byte[] manifest = AWSUtils.getObjectIfExists(key + Checksums.MANIFEST_EXTENSION);
+        if (manifest == null) {
+            logger.warn("'{}' has no checksums, it will not be verified", key);
+            return null;
+        }
+        return Checksums.fromJson(new JSONObject(new String(manifest, StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Restore a seekable archive. The selected entries are grouped into runs
+     * that follow each other in the zip, and each run is downloaded as one
+     * range holding just the blocks it needs.
+     */
+    private static void restoreSeekable(String key, Extractor extractor) throws IOException, InterruptedException {
+        String indexKey = key.substring(0, key.length() - FileUtil.SEEKABLE_EXTENSION.length()) + FileUtil.INDEX_EXTENSION;
+        ArchiveIndex index = loadIndex(indexKey);
+
+        List<long[]> runs = new ArrayList<>();
+        int selected = 0;
+        if (extractor.paths.isEmpty()) {
+            List<ArchiveIndex.Block> blocks = index.getBlocks();
+            if (!blocks.isEmpty()) {
+                ArchiveIndex.Block last = blocks.get(blocks.size() - 1);
+                runs.add(new long[]{0, last.offset() + last.length()});
+            }
+            selected = index.getEntries().size();
+        } else {
+            for (ArchiveIndex.Entry entry : index.getEntries()) {
+                if (!extractor.isWanted(entry.name())) {
+                    continue;
+                }
+                selected++;
+                long[] previous = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+                if (previous != null && previous[1] == entry.offset()) {
+                    previous[1] = entry.end();
+                } else {
+                    runs.add(new long[]{entry.offset(), entry.end()});
+                }
+            }
+        }
+        logger.info("Restoring {} of {} entries from '{}' in {} range(s)", selected, index.getEntries().size(), key, runs.size());
+
+        for (long[] run : runs) {
+            extract(key, out -> copyBlocks(key, index, run[0], run[1], out), extractor);
+        }
+    }
+
+    /**
+     * Download and decrypt the index of a seekable archive.
+     */
+    private static ArchiveIndex loadIndex(String indexKey) throws IOException {
+        S3DownloadStream download = AWSUtils.openDownloadStream(indexKey);
+        if (download == null) {
+            throw new IOException("Unable to download index " + indexKey);
+        }
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        try (download) {
+            if (!GPGUtil.decryptStream(download, json)) {
+                throw new IOException("Decryption of index " + indexKey + " failed");
+            }
+        }
+        try (Reader reader = new InputStreamReader(new ByteArrayInputStream(json.toByteArray()), StandardCharsets.UTF_8)) {
+            return ArchiveIndex.load(reader);
+        }
+    }
+
+    /**
+     * Restore a repository snapshot. Chunks are downloaded and decrypted on
+     * the download threads, up to {@code chunksInFlight} ahead of the one
+     * being written.
+     */
+    private static void restoreSnapshot(String key, Extractor extractor) throws IOException {
+        Snapshot snapshot = RepositoryUtil.loadSnapshot(key);
+        int ahead = CanineBackup.getConfig().getBackupInt("chunksInFlight", 8);
+        restoreFiles(snapshot, RepositoryUtil::readChunk, AWSUtils.getDownloadExecutor(), ahead, extractor);
+    }
+
+    /**
+     * Write the selected files of a snapshot, joining their chunks in order.
+     *
+     * @param snapshot  The snapshot.
+     * @param source    Gives the data of a chunk.
+     * @param executor  Runs the chunk reads.
+     * @param ahead     How many chunks may be read ahead of the writer.
+     * @param extractor Where the files go.
+     */
+    static void restoreFiles(Snapshot snapshot, ChunkSource source, ExecutorService executor, int ahead, Extractor extractor) throws IOException {
+        List<Snapshot.FileEntry> files = snapshot.getFiles().stream()
+                .filter(file -> isSelected(file.path(), extractor.paths))
+                .toList();
+        // the window runs across file boundaries, so small files do not wait on each other
+        List<String> ids = files.stream().flatMap(file -> file.chunks().stream()).toList();
+        logger.info("Restoring {} of {} file(s) from {} chunk(s)", files.size(), snapshot.getFiles().size(), ids.size());
+
+        Deque<Future<byte[]>> window = new ArrayDeque<>();
+        int[] submitted = new int[1];
+        try {
+            for (Snapshot.FileEntry file : files) {
+                extractor.restoreFile(file.path(), file.modified(), out -> {
+                    long written = 0;
+                    for (int i = 0; i < file.chunks().size(); i++) {
+                        while (submitted[0] < ids.size() && window.size() < Math.max(1, ahead)) {
+                            String id = ids.get(submitted[0]++);
+                            window.add(executor.submit(() -> source.read(id)));
+                        }
+                        byte[] chunk = getChunk(window.poll(), file.chunks().get(i));
+                        out.write(chunk);
+                        written += chunk.length;
+                    }
+                    if (written != file.size()) {
+                        throw new IOException("File " + file.path() + " restored to " + written + " bytes, the snapshot says " + file.size());
+                    }
+                    return written;
+                });
+            }
+        } finally {
+            window.forEach(chunk -> chunk.cancel(true));
+        }
+    }
+
+    private static byte[] getChunk(Future<byte[]> chunk, String id) throws IOException {
+        try {
+            return chunk.get();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading chunk " + id);
+        } catch (ExecutionException exception) {
+            if (exception.getCause() instanceof IOException cause) {
+                throw cause;
+            }
+            throw new IOException("Unable to read chunk " + id, exception.getCause());
+        }
+    }
+
+    /**
+     * Write part of the zip of a seekable archive, fetching and decrypting
+     * only the blocks that hold it.
+     */
+    private static void copyBlocks(String key, ArchiveIndex index, long start, long end, OutputStream out) throws IOException {
+        List<ArchiveIndex.Block> blocks = index.getBlocks(start, end);
+        if (blocks.isEmpty()) {
+            return;
+        }
+        ArchiveIndex.Block first = blocks.get(0);
+        ArchiveIndex.Block last = blocks.get(blocks.size() - 1);
+        S3DownloadStream download = AWSUtils.openDownloadStream(key, first.objectOffset(), last.objectOffset() + last.objectLength());
+        if (download == null) {
+            throw new IOException("Unable to download " + key);
+        }
+        try (download) {
+            for (ArchiveIndex.Block block : blocks) {
+                byte[] encrypted = download.readNBytes(block.objectLength());
+                if (encrypted.length != block.objectLength()) {
+                    throw new IOException(key + " ended inside the block at " + block.objectOffset());
+                }
+                byte[] plain = GPGUtil.decryptBlock(encrypted, index.getKey());
+                if (plain.length != block.length()) {
+                    throw new IOException("Block at " + block.objectOffset() + " of " + key + " has the wrong size");
+                }
+                int from = (int) Math.max(0, start - block.offset());
+                int to = (int) Math.min(plain.length, end - block.offset());
+                out.write(plain, from, to - from);
+            }
+        }
+    }
+
+    /**
+     * Run a producer of archive data on its own thread and unpack what it
+     * writes on this one.
+     */
+    private static void extract(String key, ZipProducer producer, Extractor extractor) throws IOException, InterruptedException {
+        int depth = CanineBackup.getConfig().getBackupInt("pipeDepth", 16);
+        BoundedPipe pipe = new BoundedPipe(PIPE_CHUNK_SIZE, depth);
+        Thread decryptor = new Thread(() -> {
+            OutputStream out = pipe.getOutputStream();
+            try {
+                producer.produce(out);
+                out.close();
+            } catch (IOException | RuntimeException exception) {
+                pipe.fail(exception);
+            }
+        }, "decrypt-" + key);
+        decryptor.setDaemon(true);
+        decryptor.start();
+
+        InputStream archiveIn = pipe.getInputStream();
+        try (ArchiveReader archive = key.endsWith(FileUtil.TAR_EXTENSION) ? new TarStreamReader(archiveIn) : new ZipStreamReader(archiveIn)) {
+            extractor.extract(archive);
+            // whatever is left, like the central directory, is read so the integrity check runs
+            archiveIn.transferTo(OutputStream.nullOutputStream());
+            decryptor.join();
+        } finally {
+            // the producer fails its next write and stops
+            IOUtils.closeQuietly(archiveIn);
+        }
+    }
+
+    /**
+     * Check if an entry was asked for: it is one of the paths, or inside one.
+     */
+    private static boolean isSelected(String name, List<String> paths) {
+        if (paths.isEmpty()) {
+            return true;
+        }
+        for (String path : paths) {
+            String trimmed = path.replaceAll("/+$", "");
+            if (name.equals(trimmed) || name.startsWith(trimmed + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Resolve an entry name under the target, refusing names that would
+     * escape it.
+     */
+    private static Path resolve(Path root, String name) throws IOException {
+        Path file = root.resolve(name).normalize();
+        if (!file.startsWith(root) || file.equals(root)) {
+            throw new IOException("Entry " + name + " is outside the restore directory");
+        }
+        return file;
+    }
+
+    /**
+     * Writes archive data for a restore into a stream it does not close.
+     */
+    @FunctionalInterface
+    private interface ZipProducer {
+
+        void produce(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Gives the data of a repository chunk.
+     */
+    @FunctionalInterface
+    interface ChunkSource {
+
+        byte[] read(String id) throws IOException;
+    }
+
+    /**
+     * Writes the contents of one file into a stream it does not close.
+     */
+    @FunctionalInterface
+    private interface FileProducer {
+
+        long produce(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Writes the selected entries of an archive into the target, keeping
+     * track of what was restored across the parts of a seekable archive.
+     */
+    static class Extractor {
+
+        private final Path root;
+        private final OutputStream stdout;
+        private final List<String> paths;
+        private final Set<String> restored = new HashSet<>();
+        private final Set<String> streams = new HashSet<>();
+        private int files;
+        private long bytes;
+
+        Extractor(Path root, OutputStream stdout, List<String> paths) {
+            this.root = root;
+            this.stdout = stdout;
+            this.paths = paths;
+        }
+
+        /**
+         * Check if an entry is needed: it is selected, may be a segment of a
+         * selected stream or lists deleted files or streams.
+         */
+        boolean isWanted(String name) {
+            Matcher segment = SEGMENT.matcher(name);
+            return name.equals(FileUtil.DELETED_ENTRY) || name.equals(FileUtil.STREAMS_ENTRY) || isSelected(name, paths)
+                    || (segment.matches() && isSelected(segment.group(1), paths));
+        }
+
+        void extract(ArchiveReader archive) throws IOException {
+            ArchiveReader.Entry entry;
+            while ((entry = archive.next()) != null) {
+                String name = entry.name();
+                if (name.equals(FileUtil.DELETED_ENTRY)) {
+                    if (root != null) {
+                        ByteArrayOutputStream listing = new ByteArrayOutputStream();
+                        archive.transferTo(listing);
+                        applyDeleted(listing.toString(StandardCharsets.UTF_8));
+                    }
+                    continue;
+                }
+                if (name.equals(FileUtil.STREAMS_ENTRY)) {
+                    ByteArrayOutputStream listing = new ByteArrayOutputStream();
+                    archive.transferTo(listing);
+                    streams.addAll(listing.toString(StandardCharsets.UTF_8).lines().toList());
+                    continue;
+                }
+
+                // a file archive may well hold 'x' and 'x.000001', only streams are joined
+                Matcher segment = SEGMENT.matcher(name);
+                boolean append = segment.matches() && streams.contains(segment.group(1)) && restored.contains(segment.group(1));
+                String fileName = append ? segment.group(1) : name;
+                if (!isSelected(fileName, paths)) {
+                    continue;
+                }
+
+                if (stdout != null) {
+                    if (!entry.isDirectory()) {
+                        bytes += archive.transferTo(stdout);
+                    }
+                } else if (entry.isDirectory()) {
+                    Files.createDirectories(resolve(root, name));
+                } else {
+                    Path file = resolve(root, fileName);
+                    Files.createDirectories(file.getParent());
+                    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                            append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING), WRITE_BUFFER_SIZE)) {
+                        bytes += archive.transferTo(out);
+                    }
+                    Files.setLastModifiedTime(file, FileTime.fromMillis(entry.modified()));
+                }
+                if (!append) {
+                    restored.add(name);
+                    files++;
+                }
+                logger.debug("Restored '{}'", name);
+            }
+        }
+
+        /**
+         * Write one file of a repository snapshot.
+         */
+        void restoreFile(String name, long modified, FileProducer producer) throws IOException {
+            if (stdout != null) {
+                bytes += producer.produce(stdout);
+            } else {
+                Path file = resolve(root, name);
+                Files.createDirectories(file.getParent());
+                try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), WRITE_BUFFER_SIZE)) {
+                    bytes += producer.produce(out);
+                }
+                Files.setLastModifiedTime(file, FileTime.fromMillis(modified));
+            }
+            restored.add(name);
+            files++;
+            logger.debug("Restored '{}'", name);
+        }
+
+        /**
+         * Remove the files an incremental archive lists as deleted.
+         */
+        private void applyDeleted(String listing) throws IOException {
+            for (String name : listing.split("\n")) {
+                if (!name.isEmpty() && isSelected(name, paths) && Files.deleteIfExists(resolve(root, name))) {
+                    logger.debug("Deleted '{}'", name);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package tools.canine.backup.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.services.s3.model.S3Object;
+import tools.canine.backup.CanineBackup;
+import tools.canine.backup.config.BackupConfig;
+import tools.canine.backup.retention.RetentionPolicy;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Deletes old backups once every job of a run is done. Each backup that
+ * succeeded registers the key prefix of its objects, and the prefixes are
+ * then cleaned up side by side using the configured {@link RetentionPolicy}.
+ */
+public class RetentionUtil {
+
+    private static final Logger logger = LogManager.getLogger(RetentionUtil.class);
+
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss");
+
+    /**
+     * What follows the prefix: the run's timestamp, then the extensions.
+     */
+    private static final Pattern BACKUP_KEY = Pattern.compile("(\\d{4}-\\d{2}-\\d{2}_\\d{2}-\\d{2}-\\d{2})(\\..*)?");
+
+    private static final Set<String> prefixes = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Have the retention phase clean up after a backup.
+     *
+     * @param prefix The key prefix of the backup's objects, up to the
+     *               timestamp, like {@code databases/db_}.
+     */
+    public static void register(String prefix) {
+        prefixes.add(prefix);
+    }
+
+    /**
+     * Apply the retention policy to every registered prefix.
+     */
+    public static void run() {
+        if (prefixes.isEmpty()) {
+            return;
+        }
+        RetentionPolicy policy = getPolicy();
+        int threads = Math.min(prefixes.size(), CanineBackup.getConfig().getBackupInt("retentionThreads", 4));
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(threads, 1));
+        try {
+            List<Future<?>> runs = new ArrayList<>();
+            for (String prefix : prefixes) {
+                runs.add(pool.submit(() -> clean(prefix, policy)));
+            }
+            for (Future<?> run : runs) {
+                run.get();
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        } catch (Exception exception) {
+            logger.error("Retention did not finish", exception);
+        } finally {
+            pool.shutdownNow();
+            prefixes.clear();
+        }
+    }
+
+    /**
+     * Delete the backups under a prefix that the policy does not keep.
+     *
+     * @param prefix The key prefix, up to the timestamp.
+     * @param policy The policy.
+     */
+    public static void clean(String prefix, RetentionPolicy policy) {
+        Metrics.Stage stage = Metrics.start(prefix, "retention");
+        try {
+            // other backups can share the prefix, like db_ and db_old_, the timestamp tells them apart
+            Map<String, List<String>> objects = new HashMap<>();
+            Map<String, Long> sizes = new HashMap<>();
+            Map<String, RetentionPolicy.Backup> backups = new HashMap<>();
+            for (S3Object object : AWSUtils.listObjects(prefix)) {
+                Matcher matcher = BACKUP_KEY.matcher(object.key().substring(prefix.length()));
+                if (!matcher.matches()) {
+                    continue;
+                }
+                try {
+                    LocalDateTime time = LocalDateTime.parse(matcher.group(1), TIMESTAMP_FORMAT);
+                    String extensions = matcher.group(2);
+                    boolean incremental = extensions != null && extensions.startsWith(".inc.");
+                    // a run can upload more than one object, like a seekable archive and its index
+                    String run = prefix + matcher.group(1);
+                    objects.computeIfAbsent(run, key -> new ArrayList<>()).add(object.key());
+                    sizes.put(object.key(), object.size());
+                    backups.merge(run, new RetentionPolicy.Backup(run, time, incremental),
+                            (first, second) -> first.incremental() ? first : second);
+                } catch (DateTimeParseException exception) {
+                    logger.warn("Ignoring '{}', its timestamp is not valid", object.key());
+                }
+            }
+
+            Set<String> keep = policy.select(new ArrayList<>(backups.values()));
+            List<String> toDelete = objects.entrySet().stream()
+                    .filter(run -> !keep.contains(run.getKey()))
+                    .flatMap(run -> run.getValue().stream())
+                    .sorted()
+                    .toList();
+            if (toDelete.isEmpty()) {
+                logger.info("No old backups to delete for '{}'; total backups: {}", prefix, backups.size());
+                return;
+            }
+
+            toDelete.forEach(key -> logger.debug("Deleting old backup: {}", key));
+            int failed = AWSUtils.deleteObjects(toDelete);
+            Metrics.set("retention_deleted_objects", prefix, toDelete.size() - failed);
+            Metrics.set("retention_deleted_bytes", prefix, toDelete.stream().mapToLong(sizes::get).sum());
+            if (failed > 0) {
+                RequestUtil.sendAlert("failure", "Cleanup Failed", failed + " old object(s) under " + prefix + " could not be deleted", "high");
+            }
+            logger.info("Deleted {} old object(s) for '{}', kept {}", toDelete.size() - failed, prefix, keep.size());
+        } catch (Exception exception) {
+            RequestUtil.sendAlert("failure", "Cleanup Failed", exception.getMessage(), "high");
+            logger.error("Failed to clean up old backups under '{}'", prefix, exception);
+        } finally {
+            stage.close();
+        }
+    }
+
+    /**
+     * Build the policy from the {@code keep*} settings. Without any, the
+     * newest 24 backups are kept, as before retention was configurable.
+     *
+     * @return The policy.
+     */
+    public static RetentionPolicy getPolicy() {
+        BackupConfig config = CanineBackup.getConfig();
+        return new RetentionPolicy(
+                config.getBackupInt("keepLast", 24),
+                config.getBackupInt("keepHourly", 0),
+                config.getBackupInt("keepDaily", 0),
+                config.getBackupInt("keepWeekly", 0),
+                config.getBackupInt("keepMonthly", 0),
+                config.getBackupInt("keepYearly", 0));
+    }
+}
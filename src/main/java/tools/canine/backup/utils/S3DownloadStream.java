@@ -0,0 +1,209 @@
+package tools.canine.backup.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * An input stream that downloads an S3 object with several ranged GETs at
+ * once. Parts are fetched in the background, a fixed number ahead of the
+ * reader, and handed out in order, so one slow connection does not limit the
+ * whole download and memory stays at {@code partSize * partsAhead}.
+ */
+public class S3DownloadStream extends InputStream {
+
+    private static final Logger logger = LogManager.getLogger(S3DownloadStream.class);
+
+    /**
+     * A part that fails part way is fetched again this many times in total.
+     */
+    private static final int ATTEMPTS = 3;
+
+    private final S3Client s3;
+    private final ExecutorService downloader;
+    private final String bucket;
+    private final String key;
+    private final long start;
+    private final long end;
+    private final int partSize;
+    private final int partsAhead;
+    private final Deque<Future<byte[]>> parts = new ArrayDeque<>();
+
+    private long nextOffset;
+    private byte[] current = new byte[0];
+    private int position;
+    private long bytesRead;
+    private boolean closed;
+
+    /**
+     * Open a download stream. The object's size is looked up right away.
+     *
+     * @param s3         The client to download with.
+     * @param downloader The threads that fetch parts.
+     * @param bucket     The bucket.
+     * @param key        The object key.
+     * @param partSize   How many bytes each ranged GET asks for.
+     * @param partsAhead How many parts may be downloading or waiting at once.
+     */
+    public S3DownloadStream(S3Client s3, ExecutorService downloader, String bucket, String key, int partSize, int partsAhead) {
+        this(s3, downloader, bucket, key, 0, s3.headObject(HeadObjectRequest.builder().bucket(bucket).key(key).build()).contentLength(), partSize, partsAhead);
+    }
+
+    /**
+     * Open a download stream over part of an object.
+     *
+     * @param s3         The client to download with.
+     * @param downloader The threads that fetch parts.
+     * @param bucket     The bucket.
+     * @param key        The object key.
+     * @param start      The first byte to download.
+     * @param end        Where to stop, exclusive. It must not be past the end of the object.
+     * @param partSize   How many bytes each ranged GET asks for.
+     * @param partsAhead How many parts may be downloading or waiting at once.
+     */
+    public S3DownloadStream(S3Client s3, ExecutorService downloader, String bucket, String key, long start, long end, int partSize, int partsAhead) {
+        this.s3 = s3;
+        this.downloader = downloader;
+        this.bucket = bucket;
+        this.key = key;
+        this.start = start;
+        this.end = end;
+        this.partSize = partSize;
+        this.partsAhead = Math.max(partsAhead, 1);
+        this.nextOffset = start;
+        logger.info("Downloading '{}' ({} bytes from {}) in parts of {} bytes", key, end - start, start, partSize);
+        fillAhead();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureData()) {
+            return -1;
+        }
+        bytesRead++;
+        return current[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!ensureData()) {
+            return -1;
+        }
+        int count = Math.min(length, current.length - position);
+        System.arraycopy(current, position, bytes, offset, count);
+        position += count;
+        bytesRead += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return current.length - position;
+    }
+
+    /**
+     * Stop downloading. Parts still in flight are cancelled.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        parts.forEach(part -> part.cancel(true));
+        parts.clear();
+        current = new byte[0];
+        position = 0;
+    }
+
+    /**
+     * Get how much is being downloaded.
+     *
+     * @return The size in bytes.
+     */
+    public long getSize() {
+        return end - start;
+    }
+
+    /**
+     * Get how many bytes have been read.
+     *
+     * @return The byte count.
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    private boolean ensureData() throws IOException {
+        if (closed) {
+            throw new IOException("Download of " + key + " is closed");
+        }
+        while (position == current.length) {
+            Future<byte[]> next = parts.poll();
+            if (next == null) {
+                return false;
+            }
+            try {
+                current = next.get();
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while downloading " + key);
+            } catch (ExecutionException exception) {
+                close();
+                throw new IOException("Failed to download part of " + key, exception.getCause());
+            }
+            position = 0;
+            fillAhead();
+        }
+        return true;
+    }
+
+    private void fillAhead() {
+        while (parts.size() < partsAhead && nextOffset < end) {
+            long first = nextOffset;
+            long last = Math.min(end, first + partSize) - 1;
+            nextOffset = last + 1;
+            parts.add(downloader.submit(() -> fetch(first, last)));
+        }
+    }
+
+    private byte[] fetch(long start, long end) throws IOException {
+        String range = "bytes=" + start + "-" + end;
+        int length = (int) (end - start + 1);
+        for (int attempt = 1; ; attempt++) {
+            try (ResponseInputStream<GetObjectResponse> response = s3.getObject(GetObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .range(range)
+                    .build())) {
+                byte[] data = response.readNBytes(length);
+                if (data.length != length) {
+                    throw new IOException("Expected " + length + " bytes of " + key + " at " + start + ", got " + data.length);
+                }
+                logger.debug("Downloaded {} of '{}'", range, key);
+                return data;
+            } catch (IOException | RuntimeException exception) {
+                if (attempt >= ATTEMPTS || Thread.currentThread().isInterrupted()) {
+                    throw exception;
+                }
+                logger.warn("Retrying {} of '{}' after: {}", range, key, exception.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package tools.canine.backup.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.ChecksumAlgorithm;
+import software.amazon.awssdk.services.s3.model.ChecksumType;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32C;
+
+/**
+ * An output stream that uploads to S3 as it is written. Data is cut into
+ * parts which are uploaded in the background while the writer keeps going.
+ * Only a bounded number of parts are held in memory at once, the writer
+ * blocks when that limit is reached.
+ * <p>
+ * Closing the stream completes the upload. If anything went wrong, call
+ * {@link #abort()} instead so S3 discards the parts. While a multipart
+ * upload is open it has an {@link UploadJournal}, so one cut off by a crash
+ * can be aborted later.
+ */
+public class S3UploadStream extends OutputStream {
+
+    private static final Logger logger = LogManager.getLogger(S3UploadStream.class);
+
+    /**
+     * S3 allows at most 10000 parts, so the part size doubles every 1000
+     * parts. Small objects stay cheap and huge ones still fit.
+     */
+    private static final int PARTS_PER_STEP = 1000;
+    private static final long MAX_PART_SIZE = 5L * 1024 * 1024 * 1024;
+
+    private final S3Client s3;
+    private final String bucket;
+    private final String key;
+    private final int basePartSize;
+    private final Semaphore inFlight;
+    private final ExecutorService uploader;
+    private final List<Future<CompletedPart>> parts = new ArrayList<>();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final Throttle throttle;
+    private final Checksums checksums;
+
+    private byte[] buffer;
+    private int count;
+    private int partNumber = 1;
+    private String uploadId;
+    private UploadJournal journal;
+    private long bytesWritten;
+    private boolean closed;
+
+    /**
+     * Create an upload stream.
+     *
+     * @param s3          The client to upload with.
+     * @param uploader    The threads that upload parts.
+     * @param bucket      The bucket.
+     * @param key         The object key.
+     * @param partSize    The size of the first parts in bytes.
+     * @param maxInFlight How many parts may be buffered or uploading at once.
+     * @param throttle    Limits how fast parts are sent.
+     * @param checksums   Worked out from the data and sent with every part
+     *                    and the whole object, NULL to leave it to the SDK.
+     */
+    public S3UploadStream(S3Client s3, ExecutorService uploader, String bucket, String key, int partSize, int maxInFlight, Throttle throttle, Checksums checksums) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.key = key;
+        this.basePartSize = partSize;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.uploader = uploader;
+        this.throttle = throttle;
+        this.checksums = checksums;
+        this.buffer = new byte[partSize(partNumber)];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length) {
+            sendPart();
+        }
+        buffer[count++] = (byte) b;
+        bytesWritten++;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        bytesWritten += length;
+        while (length > 0) {
+            if (count == buffer.length) {
+                sendPart();
+            }
+            int toCopy = Math.min(length, buffer.length - count);
+            System.arraycopy(bytes, offset, buffer, count, toCopy);
+            count += toCopy;
+            offset += toCopy;
+            length -= toCopy;
+        }
+    }
+
+    /**
+     * Finish the upload. Objects smaller than a single part are sent with a
+     * plain PutObject, everything else completes the multipart upload.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            if (uploadId == null) {
+                PutObjectRequest.Builder request = PutObjectRequest.builder().bucket(bucket).key(key);
+                if (checksums != null) {
+                    checksums.update(buffer, 0, count);
+                    checksums.finish();
+                    request.checksumCRC32C(Checksums.toHeader(checksums.getCrc32c()));
+                }
+                throttle.acquire(count);
+                s3.putObject(request.build(), RequestBody.fromBytes(Arrays.copyOf(buffer, count)));
+            } else {
+                if (count > 0) {
+                    sendPart();
+                }
+                List<CompletedPart> completed = new ArrayList<>();
+                for (Future<CompletedPart> part : parts) {
+                    completed.add(part.get());
+                }
+                CompleteMultipartUploadRequest.Builder request = CompleteMultipartUploadRequest.builder()
+                        .bucket(bucket)
+                        .key(key)
+                        .uploadId(uploadId)
+                        .multipartUpload(CompletedMultipartUpload.builder().parts(completed).build());
+                if (checksums != null) {
+                    checksums.finish();
+                    request.checksumCRC32C(Checksums.toHeader(checksums.getCrc32c())).checksumType(ChecksumType.FULL_OBJECT);
+                }
+                s3.completeMultipartUpload(request.build());
+                deleteJournal();
+            }
+            logger.info("Uploaded {} bytes to '{}' in {} part(s)", bytesWritten, key, Math.max(1, parts.size()));
+        } catch (IOException exception) {
+            abort();
+            throw exception;
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            abort();
+            throw new InterruptedIOException("Interrupted while completing upload of " + key);
+        } catch (ExecutionException exception) {
+            abort();
+            throw new IOException("Failed to upload part of " + key, exception.getCause());
+        } catch (RuntimeException exception) {
+            abort();
+            throw new IOException("Failed to complete upload of " + key, exception);
+        } finally {
+            if (!closed) {
+                release();
+            }
+        }
+    }
+
+    /**
+     * Throw away everything uploaded so far.
+     */
+    public void abort() {
+        if (closed) {
+            return;
+        }
+        parts.forEach(part -> part.cancel(true));
+        if (uploadId != null) {
+            try {
+                s3.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                        .bucket(bucket)
+                        .key(key)
+                        .uploadId(uploadId)
+                        .build());
+                logger.info("Aborted multipart upload of '{}'", key);
+                deleteJournal();
+            } catch (RuntimeException exception) {
+                logger.error("Unable to abort multipart upload of '{}'", key, exception);
+            }
+        }
+        release();
+    }
+
+    /**
+     * Get how many bytes have been written.
+     *
+     * @return The byte count.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Get the checksums of everything uploaded, once the stream is closed.
+     *
+     * @return The checksums, or NULL if they were not worked out.
+     */
+    public Checksums getChecksums() {
+        return checksums;
+    }
+
+    private void sendPart() throws IOException {
+        if (uploadId == null) {
+            try {
+                CreateMultipartUploadRequest.Builder request = CreateMultipartUploadRequest.builder()
+                        .bucket(bucket)
+                        .key(key);
+                if (checksums != null) {
+                    request.checksumAlgorithm(ChecksumAlgorithm.CRC32_C).checksumType(ChecksumType.FULL_OBJECT);
+                }
+                uploadId = s3.createMultipartUpload(request.build()).uploadId();
+            } catch (RuntimeException exception) {
+                throw new IOException("Failed to start multipart upload of " + key, exception);
+            }
+            journal = UploadJournal.createStreamed(key, uploadId);
+        }
+        checkFailedParts();
+
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to upload " + key);
+        }
+
+        byte[] data = buffer;
+        int length = count;
+        int number = partNumber++;
+        if (checksums != null) {
+            checksums.update(data, 0, length);
+        }
+        parts.add(uploader.submit(() -> {
+            try {
+                UploadPartRequest.Builder request = UploadPartRequest.builder()
+                        .bucket(bucket)
+                        .key(key)
+                        .uploadId(uploadId)
+                        .partNumber(number)
+                        .contentLength((long) length);
+                String partCrc = null;
+                if (checksums != null) {
+                    CRC32C crc = new CRC32C();
+                    crc.update(data, 0, length);
+                    partCrc = Checksums.toHeader(crc.getValue());
+                    request.checksumCRC32C(partCrc);
+                }
+                throttle.acquire(length);
+                String eTag = s3.uploadPart(request.build(), RequestBody.fromByteBuffer(ByteBuffer.wrap(data, 0, length))).eTag();
+                logger.debug("Uploaded part {} of '{}' ({} bytes)", number, key, length);
+                return CompletedPart.builder().partNumber(number).eTag(eTag).checksumCRC32C(partCrc).build();
+            } catch (Exception exception) {
+                // noted here so the writer does not have to look through every part
+                failure.compareAndSet(null, exception);
+                throw exception;
+            } finally {
+                inFlight.release();
+            }
+        }));
+
+        buffer = new byte[partSize(partNumber)];
+        count = 0;
+    }
+
+    private void checkFailedParts() throws IOException {
+        Throwable cause = failure.get();
+        if (cause != null) {
+            throw new IOException("Failed to upload part of " + key, cause);
+        }
+    }
+
+    private void deleteJournal() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.delete();
+        } catch (IOException exception) {
+            logger.warn("Unable to delete the upload journal of '{}'", key, exception);
+        }
+    }
+
+    private int partSize(int number) {
+        long size = (long) basePartSize << ((number - 1) / PARTS_PER_STEP);
+        return (int) Math.min(size, Math.min(MAX_PART_SIZE, Integer.MAX_VALUE - 8));
+    }
+
+    private void release() {
+        closed = true;
+        buffer = null;
+    }
+}
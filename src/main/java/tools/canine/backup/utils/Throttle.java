@@ -0,0 +1,303 @@
+package tools.canine.backup.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import tools.canine.backup.CanineBackup;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+/**
+ * Rate limits for reading sources and for uploading, so backups do not
+ * crowd out the services on the same host.
+ * <p>
+ * {@code backup.readLimitMb} and {@code backup.uploadLimitMb} cap the whole
+ * run in MB per second, and {@code readLimitMb.<job>} and
+ * {@code uploadLimitMb.<job>} cap a single job on top of that. Unset or 0
+ * means unlimited. With {@code backup.throttleAdaptive}, every limit is
+ * scaled down while disk latency or load is high and back up once the host
+ * is quiet again; it needs a limit to scale, so set the most the backup may
+ * ever use.
+ */
+public class Throttle {
+
+    private static final Logger logger = LogManager.getLogger(Throttle.class);
+
+    private static final Throttle UNLIMITED = new Throttle(List.of());
+
+    private static final long MB = 1024 * 1024;
+
+    private static final InheritableThreadLocal<String> JOB = new InheritableThreadLocal<>();
+
+    private static final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    private static boolean monitoring;
+
+    private static volatile double scale = 1;
+
+    private final List<TokenBucket> limits;
+
+    private Throttle(List<TokenBucket> limits) {
+        this.limits = limits;
+    }
+
+    /**
+     * Run a job, so the throttles it asks for include its own limits. Threads
+     * it starts count towards the job too.
+     *
+     * @param job  The job name.
+     * @param task The job.
+     * @return What the job returned.
+     */
+    public static boolean runAs(String job, BooleanSupplier task) {
+        String previous = JOB.get();
+        JOB.set(job);
+        try {
+            return task.getAsBoolean();
+        } finally {
+            JOB.set(previous);
+        }
+    }
+
+    /**
+     * Get the job the current thread works for.
+     *
+     * @return The job name, NULL outside {@link #runAs}.
+     */
+    public static String getJob() {
+        return JOB.get();
+    }
+
+    /**
+     * Get the throttle for reading sources in the current job.
+     *
+     * @return The throttle, shared by every reader of the job.
+     */
+    public static Throttle forReads() {
+        return get("readLimitMb");
+    }
+
+    /**
+     * Get the throttle for uploading in the current job. Get it on the job's
+     * thread and hand it to upload threads, which do not know the job.
+     *
+     * @return The throttle, shared by every upload of the job.
+     */
+    public static Throttle forUploads() {
+        return get("uploadLimitMb");
+    }
+
+    /**
+     * Wait until some bytes may be read or sent.
+     *
+     * @param bytes How many bytes.
+     * @throws InterruptedIOException If interrupted while waiting.
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        for (TokenBucket limit : limits) {
+            limit.acquire(bytes);
+        }
+    }
+
+    /**
+     * Like {@link #acquire(long)}, for callers that cannot throw IOException.
+     *
+     * @param bytes How many bytes.
+     */
+    public void acquireUnchecked(long bytes) {
+        try {
+            acquire(bytes);
+        } catch (InterruptedIOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    /**
+     * Throttle everything read from a stream.
+     *
+     * @param input The stream.
+     * @return The throttled stream, or the same one if there is no limit.
+     */
+    public InputStream wrap(InputStream input) {
+        if (limits.isEmpty()) {
+            return input;
+        }
+        return new FilterInputStream(input) {
+            @Override
+            public int read() throws IOException {
+                int value = super.read();
+                if (value >= 0) {
+                    acquire(1);
+                }
+                return value;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int read = super.read(buffer, offset, length);
+                if (read > 0) {
+                    acquire(read);
+                }
+                return read;
+            }
+        };
+    }
+
+    /**
+     * Check whether this throttle limits anything.
+     *
+     * @return true if it has a limit.
+     */
+    public boolean isLimited() {
+        return !limits.isEmpty();
+    }
+
+    private static Throttle get(String setting) {
+        List<TokenBucket> limits = new ArrayList<>(2);
+        addBucket(limits, setting);
+        String job = JOB.get();
+        if (job != null) {
+            addBucket(limits, setting + "." + job);
+        }
+        return limits.isEmpty() ? UNLIMITED : new Throttle(limits);
+    }
+
+    private static void addBucket(List<TokenBucket> limits, String setting) {
+        int megabytes = CanineBackup.getConfig().getBackupInt(setting, 0);
+        if (megabytes <= 0) {
+            return;
+        }
+        limits.add(buckets.computeIfAbsent(setting, name -> {
+            TokenBucket bucket = new TokenBucket((double) megabytes * MB);
+            bucket.setScale(scale);
+            return bucket;
+        }));
+        startMonitor();
+    }
+
+    /**
+     * Start the adaptive monitor if it is turned on and not running yet.
+     */
+    private static synchronized void startMonitor() {
+        if (monitoring || !CanineBackup.getConfig().getBackupBoolean("throttleAdaptive", false)) {
+            return;
+        }
+        monitoring = true;
+        if (!Files.isReadable(Path.of("/proc/diskstats")) || !Files.isReadable(Path.of("/proc/loadavg"))) {
+            logger.warn("Adaptive throttling needs /proc/diskstats and /proc/loadavg, using fixed limits");
+            return;
+        }
+        Thread monitor = new Thread(Throttle::adapt, "throttle");
+        monitor.setDaemon(true);
+        monitor.start();
+    }
+
+    /**
+     * Every second, halve the limits if the average disk request took longer
+     * than {@code backup.throttleLatencyMs} or the load per CPU is above
+     * {@code backup.throttleLoadPercent}, and give back a tenth otherwise. Limits
+     * never drop below {@code backup.throttleMinPercent}.
+     */
+    private static void adapt() {
+        double maxLatency = CanineBackup.getConfig().getBackupInt("throttleLatencyMs", 20);
+        double maxLoad = CanineBackup.getConfig().getBackupInt("throttleLoadPercent", 150) / 100.0;
+        double minScale = Math.clamp(CanineBackup.getConfig().getBackupInt("throttleMinPercent", 10) / 100.0, 0.01, 1);
+        int cpus = Runtime.getRuntime().availableProcessors();
+
+        Map<String, long[]> last = readDiskStats();
+        while (true) {
+            try {
+                TimeUnit.SECONDS.sleep(1);
+            } catch (InterruptedException exception) {
+                return;
+            }
+            Map<String, long[]> now = readDiskStats();
+            double latency = getLatency(last, now);
+            last = now;
+            double load = readLoad() / cpus;
+
+            double previous = scale;
+            if (latency > maxLatency || load > maxLoad) {
+                scale = Math.max(minScale, scale / 2);
+                if (scale < previous) {
+                    logger.info("Host is busy (disk latency {}ms, load {} per CPU), throttling backups to {}%",
+                            Math.round(latency), String.format("%.2f", load), Math.round(scale * 100));
+                }
+            } else {
+                scale = Math.min(1, scale + 0.1);
+                if (scale > previous) {
+                    logger.debug("Host is quiet, throttling backups to {}%", Math.round(scale * 100));
+                }
+            }
+            if (scale != previous) {
+                buckets.values().forEach(bucket -> bucket.setScale(scale));
+                Metrics.set("throttle_scale", null, scale);
+            }
+        }
+    }
+
+    /**
+     * Read the completed requests and the time spent on them of every whole
+     * disk, from {@code /proc/diskstats}.
+     *
+     * @return {requests, milliseconds} by device.
+     */
+    private static Map<String, long[]> readDiskStats() {
+        Map<String, long[]> stats = new HashMap<>();
+        try (Stream<String> lines = Files.lines(Path.of("/proc/diskstats"))) {
+            lines.forEach(line -> {
+                String[] fields = line.trim().split("\\s+");
+                // partitions, loop and ram devices only repeat or hide what the disks show
+                if (fields.length < 11 || fields[2].startsWith("loop") || fields[2].startsWith("ram")
+                        || !Files.isDirectory(Path.of("/sys/block", fields[2]))) {
+                    return;
+                }
+                long requests = Long.parseLong(fields[3]) + Long.parseLong(fields[7]);
+                long millis = Long.parseLong(fields[6]) + Long.parseLong(fields[10]);
+                stats.put(fields[2], new long[]{requests, millis});
+            });
+        } catch (IOException | RuntimeException exception) {
+            logger.debug("Unable to read disk stats", exception);
+        }
+        return stats;
+    }
+
+    /**
+     * Get the worst average request time of any disk between two readings.
+     */
+    private static double getLatency(Map<String, long[]> before, Map<String, long[]> after) {
+        double worst = 0;
+        for (Map.Entry<String, long[]> entry : after.entrySet()) {
+            long[] old = before.get(entry.getKey());
+            if (old == null) {
+                continue;
+            }
+            long requests = entry.getValue()[0] - old[0];
+            if (requests > 0) {
+                worst = Math.max(worst, (double) (entry.getValue()[1] - old[1]) / requests);
+            }
+        }
+        return worst;
+    }
+
+    private static double readLoad() {
+        try {
+            return Double.parseDouble(Files.readString(Path.of("/proc/loadavg")).split("\\s+")[0]);
+        } catch (IOException | RuntimeException exception) {
+            return 0;
+        }
+    }
+}
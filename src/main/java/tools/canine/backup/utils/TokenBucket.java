@@ -0,0 +1,74 @@
+package tools.canine.backup.utils;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket handing out bytes at a steady rate, with up to a second's
+ * worth saved up for bursts. A request larger than what is in the bucket is
+ * not split up: it takes the bucket into debt and its caller waits until the
+ * debt is paid off, so big blocks still go out at the rate.
+ */
+public class TokenBucket {
+
+    private final double rate;
+    private volatile double scale = 1;
+    private double tokens;
+    private long refilled = System.nanoTime();
+
+    /**
+     * Create a bucket.
+     *
+     * @param bytesPerSecond The rate, before any scaling.
+     */
+    public TokenBucket(double bytesPerSecond) {
+        this.rate = bytesPerSecond;
+        this.tokens = bytesPerSecond;
+    }
+
+    /**
+     * Take bytes from the bucket, waiting until they are paid for.
+     *
+     * @param bytes How many bytes are about to be read or sent.
+     * @throws InterruptedIOException If interrupted while waiting.
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        long waitNanos;
+        synchronized (this) {
+            double current = getRate();
+            long now = System.nanoTime();
+            tokens = Math.min(current, tokens + (now - refilled) / 1e9 * current);
+            refilled = now;
+            // pay for these bytes first, then wait for the debt if there is any
+            double debt = bytes - tokens;
+            tokens -= bytes;
+            waitNanos = debt > 0 ? (long) (debt / current * 1e9) : 0;
+        }
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+    }
+
+    /**
+     * Scale the rate, as the adaptive throttle does when the host is busy.
+     *
+     * @param scale The share of the configured rate to allow, up to 1.
+     */
+    public void setScale(double scale) {
+        this.scale = scale;
+    }
+
+    /**
+     * Get the rate after scaling.
+     *
+     * @return Bytes per second.
+     */
+    public double getRate() {
+        return rate * scale;
+    }
+}
@@ -0,0 +1,283 @@
+package tools.canine.backup.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import tools.canine.backup.CanineBackup;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Walks a directory tree with a fork/join pool, listing many directories at
+ * once, which matters on trees of millions of small files where walking
+ * takes longer than compressing.
+ * <p>
+ * Each entry is read with one stat as its directory is listed, and handed
+ * on with its attributes, so callers do not read them again. Entries come
+ * out depth first and sorted by name, the same order on every run, however
+ * the directories were shared out. Directories a {@link PathFilter}
+ * excludes are never listed. The pool has {@code backup.scanThreads}
+ * threads, and the scan stops working ahead once
+ * {@code backup.scanAhead} entries are waiting for the caller.
+ */
+public class TreeScanner {
+
+    private static final Logger logger = LogManager.getLogger(TreeScanner.class);
+
+    private static final Comparator<Path> BY_NAME = Comparator.comparing(path -> path.getFileName().toString());
+
+    private static ForkJoinPool pool;
+
+    /**
+     * A file found by the scan.
+     *
+     * @param path     Where it is.
+     * @param name     Its path from the root, with forward slashes.
+     * @param size     Its size in bytes.
+     * @param modified When it was last modified, in epoch millis.
+     */
+    public record Entry(Path path, String name, long size, long modified) {
+    }
+
+    /**
+     * Takes the files found, one at a time on the thread that started the scan.
+     */
+    @FunctionalInterface
+    public interface Visitor {
+        void visit(Entry entry) throws IOException;
+    }
+
+    /**
+     * Scan a tree. Symbolic links to files are followed and links to
+     * directories are left alone, like {@link Files#walk}. Files and
+     * directories that disappear during the scan are skipped with a warning.
+     *
+     * @param root    The directory, or a single file, which is then named after itself.
+     * @param filter  Which files to keep.
+     * @param visitor Given every file kept.
+     * @throws IOException If a directory cannot be read, or the visitor fails.
+     */
+    public static void scan(Path root, PathFilter filter, Visitor visitor) throws IOException {
+        BasicFileAttributes rootAttributes = Files.readAttributes(root, BasicFileAttributes.class);
+        if (!rootAttributes.isDirectory()) {
+            String name = root.getFileName().toString();
+            long modified = rootAttributes.lastModifiedTime().toMillis();
+            if (filter.includesFile(name, rootAttributes.size(), modified)) {
+                visitor.visit(new Entry(root, name, rootAttributes.size(), modified));
+            }
+            return;
+        }
+
+        Scan scan = new Scan(filter, CanineBackup.getConfig().getBackupInt("scanAhead", 100_000));
+        long files = 0;
+        Deque<Listing> stack = new ArrayDeque<>();
+        try {
+            stack.push(scan.open(new DirectoryTask(scan, root, "")));
+            while (!stack.isEmpty()) {
+                Listing listing = stack.peek();
+                if (listing.next == listing.children.size()) {
+                    stack.pop();
+                    continue;
+                }
+                Object child = listing.children.set(listing.next++, null);
+                scan.pending.decrementAndGet();
+                if (child instanceof DirectoryTask directory) {
+                    stack.push(scan.open(directory));
+                } else {
+                    visitor.visit((Entry) child);
+                    files++;
+                }
+            }
+        } finally {
+            // stop directories still queued from being listed for nothing
+            scan.cancelled.set(true);
+        }
+        logger.debug("Scanned {} file(s) in {} director(ies) under {}, left out {}", files, scan.directories.get(), root, scan.excluded.get());
+    }
+
+    /**
+     * Get the threads shared by every scan.
+     *
+     * @return The pool.
+     */
+    private static synchronized ForkJoinPool getScanPool() {
+        if (pool == null) {
+            AtomicInteger count = new AtomicInteger();
+            // listing is mostly waiting on the disk, so more threads than cores pay off
+            int threads = Math.max(CanineBackup.getConfig().getBackupInt("scanThreads", 8), 1);
+            pool = new ForkJoinPool(threads, forkJoinPool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+                thread.setName("scan-" + count.incrementAndGet());
+                return thread;
+            }, null, false);
+        }
+        return pool;
+    }
+
+    /**
+     * What every directory task of one scan shares.
+     */
+    private static final class Scan {
+        private final PathFilter filter;
+        private final int aheadLimit;
+        private final AtomicLong pending = new AtomicLong();
+        private final AtomicLong directories = new AtomicLong();
+        private final AtomicLong excluded = new AtomicLong();
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+
+        private Scan(PathFilter filter, int aheadLimit) {
+            this.filter = filter;
+            this.aheadLimit = aheadLimit;
+        }
+
+        /**
+         * Wait for a directory's listing, and start listing the directories in
+         * it that were held back, since they are next.
+         */
+        private Listing open(DirectoryTask task) throws IOException {
+            task.start();
+            task.join();
+            if (task.failure != null) {
+                throw task.failure;
+            }
+            Listing listing = new Listing(task.children);
+            task.children = null;
+            for (Object child : listing.children) {
+                if (child instanceof DirectoryTask directory) {
+                    directory.start();
+                }
+            }
+            return listing;
+        }
+    }
+
+    /**
+     * The entries and subdirectories of a directory, and how far the caller got.
+     */
+    private static final class Listing {
+        private final List<Object> children;
+        private int next;
+
+        private Listing(List<Object> children) {
+            this.children = children;
+        }
+    }
+
+    /**
+     * Lists one directory and starts listing its subdirectories.
+     */
+    private static final class DirectoryTask extends RecursiveAction {
+        // serializable only because ForkJoinTask is, a task is never written out
+        private static final long serialVersionUID = 1L;
+
+        private final transient Scan scan;
+        private final transient Path directory;
+        private final String name;
+        private final AtomicBoolean started = new AtomicBoolean();
+        private transient List<Object> children = List.of();
+        private IOException failure;
+
+        private DirectoryTask(Scan scan, Path directory, String name) {
+            this.scan = scan;
+            this.directory = directory;
+            this.name = name;
+        }
+
+        /**
+         * Queue the listing, unless it already is.
+         */
+        private void start() {
+            if (!started.compareAndSet(false, true)) {
+                return;
+            }
+            if (inForkJoinPool()) {
+                fork();
+            } else {
+                getScanPool().execute(this);
+            }
+        }
+
+        @Override
+        protected void compute() {
+            if (scan.cancelled.get()) {
+                return;
+            }
+            List<Path> paths = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path path : stream) {
+                    paths.add(path);
+                }
+            } catch (NoSuchFileException exception) {
+                logger.warn("Directory disappeared during scan: {}", directory);
+                return;
+            } catch (IOException exception) {
+                failure = exception;
+                return;
+            }
+            scan.directories.incrementAndGet();
+            paths.sort(BY_NAME);
+
+            List<Object> found = new ArrayList<>(paths.size());
+            List<DirectoryTask> subdirectories = new ArrayList<>();
+            for (Path path : paths) {
+                String fileName = path.getFileName().toString();
+                String childName = name.isEmpty() ? fileName : name + "/" + fileName;
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isSymbolicLink()) {
+                        attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                        if (attributes.isDirectory()) {
+                            continue;
+                        }
+                    }
+                } catch (NoSuchFileException exception) {
+                    logger.warn("File disappeared during scan: {}", path);
+                    continue;
+                } catch (IOException exception) {
+                    failure = exception;
+                    return;
+                }
+
+                if (attributes.isDirectory()) {
+                    if (!scan.filter.includesDirectory(childName)) {
+                        scan.excluded.incrementAndGet();
+                        continue;
+                    }
+                    DirectoryTask subdirectory = new DirectoryTask(scan, path, childName);
+                    subdirectories.add(subdirectory);
+                    found.add(subdirectory);
+                } else {
+                    long modified = attributes.lastModifiedTime().toMillis();
+                    if (!scan.filter.includesFile(childName, attributes.size(), modified)) {
+                        scan.excluded.incrementAndGet();
+                        continue;
+                    }
+                    found.add(new Entry(path, childName, attributes.size(), modified));
+                }
+            }
+            children = found;
+
+            // past the limit, subdirectories wait until the caller gets close to them
+            if (scan.pending.addAndGet(found.size()) < scan.aheadLimit) {
+                subdirectories.forEach(DirectoryTask::start);
+            }
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package tools.canine.backup.utils;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+
+/**
+ * A checkpoint of a multipart upload on disk, so an upload cut off by a
+ * crash or a dropped connection can carry on from its last finished part.
+ * <p>
+ * Journals live in {@code journal/<key>.json} as JSON lines: a header with
+ * the upload ID and the file being uploaded, then one line per finished part
+ * with its ETag. Lines are only appended, and a line torn by a crash is
+ * ignored when the journal is read back.
+ * <p>
+ * An upload streamed from memory cannot be resumed, so its journal is just
+ * the header, without a file. It is there so that an upload cut off by a
+ * crash can still be found and aborted.
+ */
+public class UploadJournal implements Closeable {
+
+    private static final Path DIRECTORY = Path.of("journal");
+
+    private final Path path;
+    private final String key;
+    private final String uploadId;
+    private final String file;
+    private final long size;
+    private final long modified;
+    private final long partSize;
+    private final long created;
+    private final Checksums checksums;
+    private final Map<Integer, String> parts = new ConcurrentSkipListMap<>();
+    private FileChannel channel;
+
+    private UploadJournal(Path path, JSONObject header) {
+        this.path = path;
+        this.key = header.getString("key");
+        this.uploadId = header.getString("uploadId");
+        this.file = header.optString("file", null);
+        this.size = header.optLong("size", -1);
+        this.modified = header.optLong("modified", -1);
+        this.partSize = header.optLong("partSize", 0);
+        this.created = header.getLong("created");
+        JSONObject checksumJson = header.optJSONObject("checksums");
+        this.checksums = checksumJson == null ? null : Checksums.fromJson(checksumJson);
+    }
+
+    /**
+     * Start a journal for a new upload, replacing any old one for the key.
+     *
+     * @param key       The key being uploaded to.
+     * @param uploadId  The multipart upload ID.
+     * @param file      The file being uploaded.
+     * @param partSize  The size of every part but the last.
+     * @param checksums The file's checksums, NULL if the upload has none.
+     * @return The journal, open for parts.
+     */
+    public static UploadJournal create(String key, String uploadId, Path file, long partSize, Checksums checksums) throws IOException {
+        JSONObject header = new JSONObject();
+        header.put("key", key);
+        header.put("uploadId", uploadId);
+        header.put("file", file.toAbsolutePath().toString());
+        header.put("size", Files.size(file));
+        header.put("modified", Files.getLastModifiedTime(file).toMillis());
+        header.put("partSize", partSize);
+        header.put("created", System.currentTimeMillis());
+        if (checksums != null) {
+            header.put("checksums", checksums.toJson());
+        }
+        return create(key, header);
+    }
+
+    /**
+     * Start a journal for a new upload streamed from memory, replacing any
+     * old one for the key.
+     *
+     * @param key      The key being uploaded to.
+     * @param uploadId The multipart upload ID.
+     * @return The journal.
+     */
+    public static UploadJournal createStreamed(String key, String uploadId) throws IOException {
+        JSONObject header = new JSONObject();
+        header.put("key", key);
+        header.put("uploadId", uploadId);
+        header.put("created", System.currentTimeMillis());
+        return create(key, header);
+    }
+
+    private static UploadJournal create(String key, JSONObject header) throws IOException {
+        Path path = getPath(key);
+        Files.createDirectories(path.getParent());
+        UploadJournal journal = new UploadJournal(path, header);
+        journal.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        journal.append(header);
+        return journal;
+    }
+
+    /**
+     * Read the journal of a key.
+     *
+     * @param key The key.
+     * @return The journal, open for more parts, or NULL if there is none or
+     * its header cannot be read.
+     */
+    public static UploadJournal load(String key) throws IOException {
+        return load(getPath(key));
+    }
+
+    /**
+     * Read every journal left behind.
+     *
+     * @return The journal files.
+     */
+    public static List<Path> list() throws IOException {
+        if (!Files.isDirectory(DIRECTORY)) {
+            return List.of();
+        }
+        try (Stream<Path> paths = Files.walk(DIRECTORY)) {
+            return paths.filter(path -> path.toString().endsWith(".json")).toList();
+        }
+    }
+
+    /**
+     * Read a journal file.
+     *
+     * @param path The file.
+     * @return The journal, open for more parts, or NULL if its header cannot be read.
+     */
+    public static UploadJournal load(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        UploadJournal journal;
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (line == null) {
+                return null;
+            }
+            try {
+                journal = new UploadJournal(path, new JSONObject(line));
+            } catch (JSONException exception) {
+                return null;
+            }
+            while ((line = reader.readLine()) != null) {
+                try {
+                    JSONObject part = new JSONObject(line);
+                    journal.parts.put(part.getInt("part"), part.getString("eTag"));
+                } catch (JSONException exception) {
+                    // the last line can be cut short by a crash
+                    break;
+                }
+            }
+        }
+        journal.channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        return journal;
+    }
+
+    /**
+     * Note a finished part. It is on disk before this returns.
+     *
+     * @param number The part number.
+     * @param eTag   The ETag S3 gave it.
+     */
+    public synchronized void recordPart(int number, String eTag) throws IOException {
+        JSONObject line = new JSONObject();
+        line.put("part", number);
+        line.put("eTag", eTag);
+        append(line);
+        parts.put(number, eTag);
+    }
+
+    /**
+     * Check that the file is still the one this journal was uploading.
+     *
+     * @return true if its size and modified time match, false if it has no file.
+     */
+    public boolean matchesFile() {
+        if (file == null) {
+            return false;
+        }
+        try {
+            Path local = Path.of(file);
+            return Files.size(local) == size && Files.getLastModifiedTime(local).toMillis() == modified;
+        } catch (IOException exception) {
+            return false;
+        }
+    }
+
+    /**
+     * Close and delete the journal, once the upload is complete or abandoned.
+     */
+    public void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getUploadId() {
+        return uploadId;
+    }
+
+    /**
+     * Get the file being uploaded.
+     *
+     * @return The file, or NULL if the upload is streamed.
+     */
+    public Path getFile() {
+        return file == null ? null : Path.of(file);
+    }
+
+    /**
+     * Check whether the upload is streamed from memory, so it cannot be resumed.
+     *
+     * @return true if the journal has no file.
+     */
+    public boolean isStreamed() {
+        return file == null;
+    }
+
+    public long getPartSize() {
+        return partSize;
+    }
+
+    /**
+     * Get when the upload started.
+     *
+     * @return The time, in epoch millis.
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * Get the checksums the upload was started with.
+     *
+     * @return The checksums, or NULL if it was started without them.
+     */
+    public Checksums getChecksums() {
+        return checksums;
+    }
+
+    /**
+     * Get the finished parts.
+     *
+     * @return The ETags by part number.
+     */
+    public Map<Integer, String> getParts() {
+        return parts;
+    }
+
+    private void append(JSONObject line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    private static Path getPath(String key) {
+        return DIRECTORY.resolve(key + ".json");
+    }
+}
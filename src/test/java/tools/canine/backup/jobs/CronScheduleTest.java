@@ -0,0 +1,73 @@
+package tools.canine.backup.jobs;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CronScheduleTest {
+
+    // a Monday
+    private static final LocalDateTime MONDAY = LocalDateTime.of(2025, 1, 6, 0, 0);
+
+    @Test
+    void matchesStepsRangesAndLists() {
+        CronSchedule schedule = new CronSchedule("*/15 8-18/2 * * *");
+
+        assertTrue(schedule.matches(MONDAY.withHour(8).withMinute(45)));
+        assertTrue(schedule.matches(MONDAY.withHour(18).withMinute(0)));
+        assertFalse(schedule.matches(MONDAY.withHour(9).withMinute(0)));
+        assertFalse(schedule.matches(MONDAY.withHour(8).withMinute(10)));
+
+        CronSchedule list = new CronSchedule("5/20,1 0 * * *");
+        assertTrue(list.matches(MONDAY.withMinute(1)));
+        assertTrue(list.matches(MONDAY.withMinute(45)));
+        assertFalse(list.matches(MONDAY.withMinute(20)));
+    }
+
+    @Test
+    void matchesNamesAndSundayAsSeven() {
+        CronSchedule weekdays = new CronSchedule("30 2 * jan-mar MON-FRI");
+        assertTrue(weekdays.matches(MONDAY.withHour(2).withMinute(30)));
+        assertFalse(weekdays.matches(MONDAY.minusDays(1).withHour(2).withMinute(30)));
+        assertFalse(weekdays.matches(MONDAY.withMonth(4).withHour(2).withMinute(30)));
+
+        CronSchedule sunday = new CronSchedule("0 0 * * 7");
+        assertTrue(sunday.matches(MONDAY.minusDays(1)));
+        assertFalse(sunday.matches(MONDAY));
+    }
+
+    @Test
+    void limitedDayFieldsMatchEither() {
+        // the 15th, or any Monday
+        CronSchedule schedule = new CronSchedule("0 0 15 * 1");
+
+        assertTrue(schedule.matches(MONDAY));
+        assertTrue(schedule.matches(LocalDateTime.of(2025, 1, 15, 0, 0)));
+        assertFalse(schedule.matches(LocalDateTime.of(2025, 1, 14, 0, 0)));
+
+        // with one of them a star, both have to match
+        CronSchedule firstMonday = new CronSchedule("0 0 1-7 * *");
+        assertTrue(firstMonday.matches(MONDAY));
+        assertFalse(firstMonday.matches(MONDAY.plusDays(7)));
+    }
+
+    @Test
+    void expandsMacros() {
+        CronSchedule weekly = new CronSchedule("@weekly");
+        assertTrue(weekly.matches(MONDAY.minusDays(1)));
+        assertFalse(weekly.matches(MONDAY));
+        assertTrue(new CronSchedule("@Hourly").matches(MONDAY.withHour(13)));
+    }
+
+    @Test
+    void rejectsInvalidExpressions() {
+        assertThrows(IllegalArgumentException.class, () -> new CronSchedule("* * * *"));
+        assertThrows(IllegalArgumentException.class, () -> new CronSchedule("60 * * * *"));
+        assertThrows(IllegalArgumentException.class, () -> new CronSchedule("0 18-8 * * *"));
+        assertThrows(IllegalArgumentException.class, () -> new CronSchedule("0 0 * foo *"));
+    }
+}
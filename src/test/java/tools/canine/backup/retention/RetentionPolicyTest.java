@@ -0,0 +1,73 @@
+package tools.canine.backup.retention;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RetentionPolicyTest {
+
+    private static final LocalDateTime START = LocalDateTime.of(2025, 1, 1, 3, 0);
+
+    @Test
+    void keepsLastAndNewestOfEachDay() {
+        List<RetentionPolicy.Backup> backups = new ArrayList<>();
+        // two backups a day for ten days
+        for (int day = 0; day < 10; day++) {
+            backups.add(full("d" + day + "_am", START.plusDays(day)));
+            backups.add(full("d" + day + "_pm", START.plusDays(day).plusHours(12)));
+        }
+
+        Set<String> keep = new RetentionPolicy(3, 0, 4, 0, 0, 0).select(backups);
+
+        assertEquals(Set.of("d9_pm", "d9_am", "d8_pm", "d7_pm", "d6_pm"), keep);
+    }
+
+    @Test
+    void keepsNewestOfEachWeekMonthAndYear() {
+        List<RetentionPolicy.Backup> backups = new ArrayList<>();
+        for (int day = 0; day < 400; day++) {
+            backups.add(full("b" + day, START.plusDays(day)));
+        }
+
+        Set<String> keep = new RetentionPolicy(0, 0, 0, 2, 2, 2).select(backups);
+
+        // b399 is 2026-02-04; b396 ends the week before, b395 January and b364 2025
+        assertEquals(Set.of("b399", "b396", "b395", "b364"), keep);
+    }
+
+    @Test
+    void keptIncrementalKeepsItsChain() {
+        List<RetentionPolicy.Backup> backups = List.of(
+                full("full1", START),
+                incremental("inc1a", START.plusHours(1)),
+                full("full2", START.plusHours(2)),
+                incremental("inc2a", START.plusHours(3)),
+                incremental("inc2b", START.plusHours(4)));
+
+        Set<String> keep = new RetentionPolicy(1, 0, 0, 0, 0, 0).select(backups);
+
+        assertEquals(Set.of("full2", "inc2a", "inc2b"), keep);
+    }
+
+    @Test
+    void alwaysKeepsNewest() {
+        List<RetentionPolicy.Backup> backups = List.of(full("old", START), full("new", START.plusDays(1)));
+
+        assertEquals(Set.of("new"), new RetentionPolicy(0, 0, 0, 0, 0, 0).select(backups));
+        assertTrue(new RetentionPolicy(5, 5, 5, 5, 5, 5).select(List.of()).isEmpty());
+    }
+
+    private static RetentionPolicy.Backup full(String key, LocalDateTime time) {
+        return new RetentionPolicy.Backup(key, time, false);
+    }
+
+    private static RetentionPolicy.Backup incremental(String key, LocalDateTime time) {
+        return new RetentionPolicy.Backup(key, time, true);
+    }
+}
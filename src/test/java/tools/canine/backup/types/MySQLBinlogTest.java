@@ -0,0 +1,52 @@
+package tools.canine.backup.types;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MySQLBinlogTest {
+
+    private static final Path DIRECTORY = Path.of("/restore/shop_2025-01-31_03-00-00");
+
+    @Test
+    void replayFiltersOnTargetWhenRewriting() {
+        List<String> command = MySQLBinlog.getReplayCommand(DIRECTORY, info(4), "shop", "shop_copy", null);
+
+        assertEquals(List.of(
+                "mysqlbinlog",
+                "--database=shop_copy",
+                "--start-position=4",
+                "--rewrite-db=shop->shop_copy",
+                DIRECTORY.resolve("binlog.000007").toString(),
+                DIRECTORY.resolve("binlog.000008").toString()
+        ), command);
+    }
+
+    @Test
+    void replayFiltersOnDatabaseWithoutRewrite() {
+        LocalDateTime stop = LocalDateTime.of(2025, 1, 31, 12, 30, 0);
+        List<String> command = MySQLBinlog.getReplayCommand(DIRECTORY, info(0), "shop", "shop", stop);
+
+        assertEquals(List.of(
+                "mysqlbinlog",
+                "--database=shop",
+                "--stop-datetime=2025-01-31 12:30:00",
+                DIRECTORY.resolve("binlog.000007").toString(),
+                DIRECTORY.resolve("binlog.000008").toString()
+        ), command);
+    }
+
+    private static JSONObject info(long startPosition) {
+        JSONObject info = new JSONObject();
+        info.put("startFile", "binlog.000007");
+        info.put("startPosition", startPosition);
+        info.put("files", new JSONArray(List.of("binlog.000007", "binlog.000008")));
+        return info;
+    }
+}
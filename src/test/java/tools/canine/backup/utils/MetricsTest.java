@@ -0,0 +1,33 @@
+package tools.canine.backup.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MetricsTest {
+
+    @Test
+    void mergeKeepsJobsThatDidNotRun() {
+        Metrics.merge(batch(Map.of(
+                new Metrics.Series("web", null), 1.0,
+                new Metrics.Series("db", null), 1.0,
+                new Metrics.Series(null, null), 0.0)));
+        Map<String, Map<Metrics.Series, Double>> merged = Metrics.merge(batch(Map.of(
+                new Metrics.Series("db", null), 0.0,
+                new Metrics.Series(null, null), 1.0)));
+
+        assertEquals(Map.of(
+                new Metrics.Series("web", null), 1.0,
+                new Metrics.Series("db", null), 0.0,
+                new Metrics.Series(null, null), 1.0), merged.get("job_success"));
+    }
+
+    private static Map<String, Map<Metrics.Series, Double>> batch(Map<Metrics.Series, Double> series) {
+        Map<String, Map<Metrics.Series, Double>> values = new TreeMap<>();
+        values.put("job_success", new TreeMap<>(series));
+        return values;
+    }
+}
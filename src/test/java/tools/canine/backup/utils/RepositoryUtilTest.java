@@ -0,0 +1,56 @@
+package tools.canine.backup.utils;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import tools.canine.backup.CanineBackup;
+import tools.canine.backup.config.BackupConfig;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.Semaphore;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RepositoryUtilTest {
+
+    @TempDir
+    static Path temp;
+
+    @BeforeAll
+    static void setUp() {
+        // no public key, so every chunk upload fails at encryption
+        BackupConfig config = new BackupConfig();
+        config.addBackupInfo("publicKey", temp.resolve("missing.pgp").toString());
+        CanineBackup.setConfig(config);
+    }
+
+    @Test
+    void failedChunkFailsSnapshot() throws IOException {
+        RepositoryUtil.ChunkCounter counter = new RepositoryUtil.ChunkCounter();
+        assertTrue(RepositoryUtil.storeChunk("aa01", "data".getBytes(StandardCharsets.UTF_8), new Semaphore(4), counter));
+
+        assertFalse(RepositoryUtil.awaitChunks("test_snapshot", counter));
+    }
+
+    @Test
+    void sharedChunkFailsEverySnapshotUsingIt() throws IOException {
+        Semaphore inFlight = new Semaphore(4);
+        RepositoryUtil.ChunkCounter first = new RepositoryUtil.ChunkCounter();
+        RepositoryUtil.ChunkCounter second = new RepositoryUtil.ChunkCounter();
+        byte[] data = "shared".getBytes(StandardCharsets.UTF_8);
+        RepositoryUtil.storeChunk("bb02", data, inFlight, first);
+        RepositoryUtil.storeChunk("bb02", data, inFlight, second);
+
+        assertFalse(RepositoryUtil.awaitChunks("first_snapshot", first));
+        // the failed upload is gone from the repository's list by now, it must not count as stored
+        assertFalse(RepositoryUtil.awaitChunks("second_snapshot", second));
+    }
+
+    @Test
+    void emptySnapshotHasNothingToWaitFor() {
+        assertTrue(RepositoryUtil.awaitChunks("empty_snapshot", new RepositoryUtil.ChunkCounter()));
+    }
+}
@@ -0,0 +1,201 @@
+package tools.canine.backup.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import tools.canine.backup.CanineBackup;
+import tools.canine.backup.archive.ZipStreamReader;
+import tools.canine.backup.config.BackupConfig;
+import tools.canine.backup.repository.Chunker;
+import tools.canine.backup.repository.Snapshot;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RestoreUtilTest {
+
+    @TempDir
+    Path temp;
+
+    private final Map<String, byte[]> chunks = new ConcurrentHashMap<>();
+    private final Chunker chunker = new Chunker(4 * 1024, 16 * 1024, 64 * 1024);
+    private ExecutorService executor;
+
+    @BeforeEach
+    void startExecutor() {
+        executor = Executors.newFixedThreadPool(4);
+        BackupConfig config = new BackupConfig();
+        config.addBackupInfo("segmentMb", "1");
+        CanineBackup.setConfig(config);
+    }
+
+    @AfterEach
+    void stopExecutor() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void restoresSnapshotFromChunks() throws IOException {
+        Path source = temp.resolve("source");
+        Random random = new Random(1);
+        byte[] large = new byte[1024 * 1024 + 123];
+        random.nextBytes(large);
+        // repeated data, so some chunks are shared
+        byte[] repeated = new byte[200 * 1024];
+        System.arraycopy(large, 0, repeated, 0, 100 * 1024);
+        System.arraycopy(large, 0, repeated, 100 * 1024, 100 * 1024);
+        write(source.resolve("large.bin"), large);
+        write(source.resolve("nested/dir/repeated.bin"), repeated);
+        write(source.resolve("nested/small.txt"), "hello".getBytes());
+        write(source.resolve("empty"), new byte[0]);
+
+        Snapshot snapshot = roundTrip(chunkTree(source));
+        Path target = temp.resolve("target");
+        RestoreUtil.restoreFiles(snapshot, this::readChunk, executor, 3, new RestoreUtil.Extractor(target, null, List.of()));
+
+        for (String name : List.of("large.bin", "nested/dir/repeated.bin", "nested/small.txt", "empty")) {
+            assertArrayEquals(Files.readAllBytes(source.resolve(name)), Files.readAllBytes(target.resolve(name)), name);
+            assertEquals(Files.getLastModifiedTime(source.resolve(name)).toMillis(), Files.getLastModifiedTime(target.resolve(name)).toMillis(), name);
+        }
+    }
+
+    @Test
+    void restoresOnlySelectedPaths() throws IOException {
+        Path source = temp.resolve("source");
+        write(source.resolve("keep/a.txt"), "a".getBytes());
+        write(source.resolve("skip/b.txt"), "b".getBytes());
+
+        Snapshot snapshot = roundTrip(chunkTree(source));
+        Path target = temp.resolve("target");
+        RestoreUtil.restoreFiles(snapshot, this::readChunk, executor, 8, new RestoreUtil.Extractor(target, null, List.of("keep/")));
+
+        assertArrayEquals("a".getBytes(), Files.readAllBytes(target.resolve("keep/a.txt")));
+        assertFalse(Files.exists(target.resolve("skip/b.txt")));
+    }
+
+    @Test
+    void failsOnMissingChunk() throws IOException {
+        Path source = temp.resolve("source");
+        byte[] data = new byte[256 * 1024];
+        new Random(2).nextBytes(data);
+        write(source.resolve("data.bin"), data);
+
+        Snapshot snapshot = roundTrip(chunkTree(source));
+        chunks.remove(snapshot.get("data.bin").chunks().get(1));
+        Path target = temp.resolve("target");
+        assertThrows(IOException.class, () -> RestoreUtil.restoreFiles(snapshot, this::readChunk, executor, 2, new RestoreUtil.Extractor(target, null, List.of())));
+    }
+
+    @Test
+    void joinsStreamSegments() throws IOException {
+        Random random = new Random(3);
+        byte[] dump = new byte[2 * 1024 * 1024 + 321];
+        byte[] other = new byte[1024 * 1024 + 5];
+        random.nextBytes(dump);
+        random.nextBytes(other);
+        Map<String, InputStream> streams = new LinkedHashMap<>();
+        streams.put("dump.sql", new ByteArrayInputStream(dump));
+        streams.put("other.sql", new ByteArrayInputStream(other));
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        assertTrue(FileUtil.compressStreams(streams, zip));
+
+        Path target = temp.resolve("target");
+        new RestoreUtil.Extractor(target, null, List.of()).extract(new ZipStreamReader(new ByteArrayInputStream(zip.toByteArray())));
+
+        assertArrayEquals(dump, Files.readAllBytes(target.resolve("dump.sql")));
+        assertArrayEquals(other, Files.readAllBytes(target.resolve("other.sql")));
+        assertFalse(Files.exists(target.resolve("dump.sql.000001")));
+        assertFalse(Files.exists(target.resolve(FileUtil.STREAMS_ENTRY)));
+    }
+
+    @Test
+    void keepsNumberedFilesApart() throws IOException {
+        Path source = temp.resolve("source");
+        write(source.resolve("binlog"), "index".getBytes());
+        write(source.resolve("binlog.000001"), "first".getBytes());
+        write(source.resolve("binlog.000002"), "second".getBytes());
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        assertTrue(FileUtil.compressPath(source.toString(), zip));
+
+        Path target = temp.resolve("target");
+        new RestoreUtil.Extractor(target, null, List.of()).extract(new ZipStreamReader(new ByteArrayInputStream(zip.toByteArray())));
+
+        assertArrayEquals("index".getBytes(), Files.readAllBytes(target.resolve("binlog")));
+        assertArrayEquals("first".getBytes(), Files.readAllBytes(target.resolve("binlog.000001")));
+        assertArrayEquals("second".getBytes(), Files.readAllBytes(target.resolve("binlog.000002")));
+    }
+
+    private Snapshot chunkTree(Path root) throws IOException {
+        Snapshot snapshot = new Snapshot();
+        List<Path> files;
+        try (var paths = Files.walk(root)) {
+            files = paths.filter(Files::isRegularFile).sorted().toList();
+        }
+        for (Path file : files) {
+            List<String> ids = new ArrayList<>();
+            try (InputStream in = Files.newInputStream(file)) {
+                chunker.split(in, chunk -> {
+                    String id = sha256(chunk);
+                    chunks.put(id, chunk);
+                    ids.add(id);
+                });
+            }
+            String name = root.relativize(file).toString().replace('\\', '/');
+            snapshot.add(new Snapshot.FileEntry(name, Files.size(file), Files.getLastModifiedTime(file).toMillis(), ids));
+        }
+        return snapshot;
+    }
+
+    private static Snapshot roundTrip(Snapshot snapshot) throws IOException {
+        StringWriter json = new StringWriter();
+        snapshot.write(json);
+        return Snapshot.read(new StringReader(json.toString()), "test");
+    }
+
+    private byte[] readChunk(String id) throws IOException {
+        byte[] chunk = chunks.get(id);
+        if (chunk == null) {
+            throw new IOException("Chunk " + id + " is missing");
+        }
+        return chunk;
+    }
+
+    private static void write(Path file, byte[] data) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, data);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(1_700_000_000_000L));
+    }
+
+    private static String sha256(byte[] data) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+}
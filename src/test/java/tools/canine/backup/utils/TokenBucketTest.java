@@ -0,0 +1,64 @@
+package tools.canine.backup.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.InterruptedIOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenBucketTest {
+
+    private static final double RATE = 1_000_000;
+
+    @Test
+    void burstWithinBucketDoesNotWait() throws InterruptedIOException {
+        TokenBucket bucket = new TokenBucket(RATE);
+
+        long started = System.nanoTime();
+        bucket.acquire(1_000_000);
+
+        assertTrue(seconds(started) < 0.2, "waited " + seconds(started));
+    }
+
+    @Test
+    void largeRequestWaitsForItsDebt() throws InterruptedIOException {
+        TokenBucket bucket = new TokenBucket(RATE);
+
+        long started = System.nanoTime();
+        bucket.acquire(1_300_000);
+
+        assertTrue(seconds(started) >= 0.25, "waited " + seconds(started));
+    }
+
+    @Test
+    void holdsTheRateOnceTheBurstIsSpent() throws InterruptedIOException {
+        TokenBucket bucket = new TokenBucket(RATE);
+        bucket.acquire(1_000_000);
+
+        long started = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            bucket.acquire(100_000);
+        }
+
+        double seconds = seconds(started);
+        assertTrue(seconds >= 0.4 && seconds < 1.5, "took " + seconds);
+    }
+
+    @Test
+    void scaleLowersTheRate() throws InterruptedIOException {
+        TokenBucket bucket = new TokenBucket(RATE);
+        bucket.setScale(0.5);
+        assertEquals(500_000, bucket.getRate());
+
+        // the bucket now holds a second's worth at the lower rate, 500000 bytes
+        long started = System.nanoTime();
+        bucket.acquire(600_000);
+
+        assertTrue(seconds(started) >= 0.15, "waited " + seconds(started));
+    }
+
+    private static double seconds(long started) {
+        return (System.nanoTime() - started) / 1e9;
+    }
+}